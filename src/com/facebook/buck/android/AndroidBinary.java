@@ -850,9 +850,11 @@ public class AndroidBinary
     // directly apply to the internal threading/parallelization details of various build commands
     // being executed.  For example, aapt is internally threaded by default when preprocessing
     // images.
+    //
+    // dx runs in-process whenever the version being used supports it, see DxService.
     EnumSet<DxStep.Option> dxOptions = PackageType.RELEASE.equals(packageType)
-        ? EnumSet.noneOf(DxStep.Option.class)
-        : EnumSet.of(DxStep.Option.NO_OPTIMIZE);
+        ? EnumSet.of(DxStep.Option.RUN_IN_PROCESS)
+        : EnumSet.of(DxStep.Option.NO_OPTIMIZE, DxStep.Option.RUN_IN_PROCESS);
     Path selectedPrimaryDexPath = primaryDexPath;
     if (isReorderingClasses()) {
       String primaryDexFileName = primaryDexPath.getFileName().toString();
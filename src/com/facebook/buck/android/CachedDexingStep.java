@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ResourceIntensiveStep;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fetches what a step running {@code dx} would produce from the {@link DexCache}, and only runs the
+ * step if the cache doesn't have it, storing what it produced.
+ */
+public class CachedDexingStep implements ResourceIntensiveStep {
+
+  private static final Logger LOG = Logger.get(CachedDexingStep.class);
+
+  private final String inputsHash;
+  private final Set<DxStep.Option> dxOptions;
+  private final ImmutableList<Path> outputs;
+  private final Step dexingStep;
+
+  /**
+   * @param inputsHash a hash of the contents of every file {@code dexingStep} dexes.
+   * @param dxOptions the options {@code dexingStep} runs {@code dx} with.
+   * @param outputs every file {@code dexingStep} produces, starting with the dex file.
+   * @param dexingStep the step which runs {@code dx} and produces {@code outputs}.
+   */
+  public CachedDexingStep(
+      String inputsHash,
+      EnumSet<DxStep.Option> dxOptions,
+      List<Path> outputs,
+      Step dexingStep) {
+    Preconditions.checkArgument(!outputs.isEmpty());
+    this.inputsHash = inputsHash;
+    this.dxOptions = Sets.immutableEnumSet(dxOptions);
+    this.outputs = ImmutableList.copyOf(outputs);
+    this.dexingStep = dexingStep;
+  }
+
+  @Override
+  public int execute(ExecutionContext context) throws IOException, InterruptedException {
+    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    ImmutableList.Builder<Path> absoluteOutputs = ImmutableList.builder();
+    for (Path output : outputs) {
+      absoluteOutputs.add(projectFilesystem.resolve(output));
+    }
+
+    String dx;
+    try {
+      dx = DxStep.describeDx(context, dxOptions);
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to tell which dx makes %s, not using the dex cache.", outputs.get(0));
+      return dexingStep.execute(context);
+    }
+
+    DexCache cache = DexCache.forProject(projectFilesystem);
+    String key = DexCache.getKey(inputsHash, dx, outputs.get(0));
+    if (cache.fetch(key, absoluteOutputs.build())) {
+      LOG.debug("Fetched %s from the dex cache.", outputs.get(0));
+      return 0;
+    }
+
+    int exitCode = dexingStep.execute(context);
+    if (exitCode == 0) {
+      cache.store(key, absoluteOutputs.build());
+    }
+    return exitCode;
+  }
+
+  @Override
+  public ResourceAmounts getRequiredResources(ExecutionContext context) {
+    // Fetching from the cache needs next to nothing, but there's no knowing whether it will hit
+    // until the step runs.
+    return dexingStep instanceof ResourceIntensiveStep
+        ? ((ResourceIntensiveStep) dexingStep).getRequiredResources(context)
+        : ResourceAmounts.ZERO;
+  }
+
+  @Override
+  public String getShortName() {
+    return dexingStep.getShortName();
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return dexingStep.getDescription(context);
+  }
+}
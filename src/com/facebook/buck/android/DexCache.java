@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A store of the files {@code dx} produced, keyed by the contents of its inputs and how it was run
+ * rather than by the rule which ran it. Every rule dexing the same classes the same way, in any
+ * {@code android_binary} and on any branch, shares one entry.
+ * <p>
+ * The store lives in {@code buck-out} but outside the directories {@code buck clean} deletes.
+ * When it grows beyond its maximum size, the least recently used entries are deleted.
+ */
+public class DexCache {
+
+  private static final Logger LOG = Logger.get(DexCache.class);
+
+  @VisibleForTesting
+  static final Path PATH = BuckConstant.BUCK_OUTPUT_PATH.resolve("dex-cache");
+
+  /** Change this whenever the way dex files are produced changes without their key changing. */
+  private static final int VERSION = 2;
+
+  private static final long DEFAULT_MAX_SIZE_BYTES = 2L * 1024 * 1024 * 1024;
+
+  /** Entries are written here first, then moved into place, so they're never seen half written. */
+  private static final String TEMP_PREFIX = ".tmp-";
+
+  private static final ConcurrentMap<Path, DexCache> CACHES = Maps.newConcurrentMap();
+
+  private final Path cacheDir;
+  private final long maxSizeBytes;
+
+  /** The size of all the entries, or -1 if the directory hasn't been measured yet. */
+  @GuardedBy("this")
+  private long totalSizeBytes = -1;
+
+  @VisibleForTesting
+  DexCache(Path cacheDir, long maxSizeBytes) {
+    this.cacheDir = cacheDir;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /** @return the cache shared by every build of the project in this process. */
+  public static DexCache forProject(ProjectFilesystem projectFilesystem) {
+    Path cacheDir = projectFilesystem.resolve(PATH);
+    DexCache cache = CACHES.get(cacheDir);
+    if (cache == null) {
+      CACHES.putIfAbsent(cacheDir, new DexCache(cacheDir, DEFAULT_MAX_SIZE_BYTES));
+      cache = CACHES.get(cacheDir);
+    }
+    return cache;
+  }
+
+  /**
+   * @param inputsHash a hash of the contents of every input to {@code dx}.
+   * @param dx describes the {@code dx} which runs and its options, see
+   *     {@link DxStep#describeDx}.
+   * @param output the main file produced, whose name determines what {@code dx} writes.
+   */
+  public static String getKey(String inputsHash, String dx, Path output) {
+    String format = com.google.common.io.Files.getFileExtension(output.toString());
+    for (DexStore store : DexStore.values()) {
+      if (store.matchesPath(output)) {
+        format = store.name();
+      }
+    }
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putInt(VERSION)
+        .putString(inputsHash, Charsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(dx, Charsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(format, Charsets.UTF_8);
+    return hasher.hash().toString();
+  }
+
+  private Path getPathToEntry(String key) {
+    // Keys are hashes, so two characters spread entries evenly over 256 subdirectories.
+    return cacheDir.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  /**
+   * Copies the files stored for {@code key} to {@code outputs}, which must be listed in the order
+   * they were stored in.
+   *
+   * @return whether the cache had every file.
+   */
+  public boolean fetch(String key, List<Path> outputs) {
+    Path entry = getPathToEntry(key);
+    if (!Files.isDirectory(entry)) {
+      return false;
+    }
+    try {
+      for (int i = 0; i < outputs.size(); i++) {
+        Path output = outputs.get(i);
+        Files.createDirectories(output.getParent());
+        Files.copy(entry.resolve(String.valueOf(i)), output, StandardCopyOption.REPLACE_EXISTING);
+      }
+      // The modification time of an entry is when it was last used.
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (IOException e) {
+      // The entry may have been evicted while it was copied.
+      LOG.debug(e, "Unable to fetch %s from the dex cache.", key);
+      return false;
+    }
+  }
+
+  /** Stores copies of {@code outputs} for {@code key}, unless the cache already has them. */
+  public void store(String key, List<Path> outputs) {
+    Path entry = getPathToEntry(key);
+    if (Files.isDirectory(entry)) {
+      return;
+    }
+
+    Path tempEntry = null;
+    try {
+      Files.createDirectories(cacheDir);
+      tempEntry = Files.createTempDirectory(cacheDir, TEMP_PREFIX);
+      long size = 0;
+      for (int i = 0; i < outputs.size(); i++) {
+        Path copy = tempEntry.resolve(String.valueOf(i));
+        Files.copy(outputs.get(i), copy);
+        size += Files.size(copy);
+      }
+      Files.createDirectories(entry.getParent());
+      Files.move(tempEntry, entry, StandardCopyOption.ATOMIC_MOVE);
+      tempEntry = null;
+      entryStored(size);
+    } catch (IOException e) {
+      // Another build may have stored the same entry first, which is fine.
+      LOG.debug(e, "Unable to store %s in the dex cache.", key);
+    } finally {
+      if (tempEntry != null) {
+        try {
+          MoreFiles.deleteRecursively(tempEntry);
+        } catch (IOException e) {
+          LOG.debug(e, "Unable to delete %s.", tempEntry);
+        }
+      }
+    }
+  }
+
+  private synchronized void entryStored(long size) throws IOException {
+    if (totalSizeBytes < 0) {
+      totalSizeBytes = 0;
+      for (Entry entry : listEntries()) {
+        totalSizeBytes += entry.size;
+      }
+    } else {
+      totalSizeBytes += size;
+    }
+
+    if (totalSizeBytes > maxSizeBytes) {
+      evict();
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache is down to three quarters of its
+   * maximum size, so that the directory is only listed again once a quarter of it has been
+   * replaced.
+   */
+  @GuardedBy("this")
+  private void evict() throws IOException {
+    List<Entry> entries = listEntries();
+    Collections.sort(
+        entries,
+        new Comparator<Entry>() {
+          @Override
+          public int compare(Entry a, Entry b) {
+            return Long.compare(a.lastUse, b.lastUse);
+          }
+        });
+
+    long targetSizeBytes = maxSizeBytes / 4 * 3;
+    totalSizeBytes = 0;
+    for (Entry entry : entries) {
+      totalSizeBytes += entry.size;
+    }
+    int evicted = 0;
+    for (Entry entry : entries) {
+      if (totalSizeBytes <= targetSizeBytes) {
+        break;
+      }
+      MoreFiles.deleteRecursivelyIfExists(entry.path);
+      totalSizeBytes -= entry.size;
+      evicted++;
+    }
+    LOG.debug("Evicted %d entries from %s.", evicted, cacheDir);
+  }
+
+  private List<Entry> listEntries() throws IOException {
+    List<Entry> entries = Lists.newArrayList();
+    if (!Files.isDirectory(cacheDir)) {
+      return entries;
+    }
+    try (DirectoryStream<Path> shards = Files.newDirectoryStream(cacheDir)) {
+      for (Path shard : shards) {
+        if (shard.getFileName().toString().startsWith(".") || !Files.isDirectory(shard)) {
+          continue;
+        }
+        try (DirectoryStream<Path> entryPaths = Files.newDirectoryStream(shard)) {
+          for (Path entryPath : entryPaths) {
+            long size = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(entryPath)) {
+              for (Path file : files) {
+                size += Files.size(file);
+              }
+            }
+            entries.add(
+                new Entry(entryPath, Files.getLastModifiedTime(entryPath).toMillis(), size));
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  private static class Entry {
+    private final Path path;
+    private final long lastUse;
+    private final long size;
+
+    private Entry(Path path, long lastUse, long size) {
+      this.path = path;
+      this.lastUse = lastUse;
+      this.size = size;
+    }
+  }
+}
@@ -123,14 +123,21 @@ public class DexProducedFromJavaLibrary extends AbstractBuildRule
 
       // To be conservative, use --force-jumbo for these intermediate .dex files so that they can be
       // merged into a final classes.dex that uses jumbo instructions.
+      EnumSet<DxStep.Option> dxOptions = EnumSet.of(
+          DxStep.Option.USE_CUSTOM_DX_IF_AVAILABLE,
+          DxStep.Option.RUN_IN_PROCESS,
+          DxStep.Option.NO_OPTIMIZE,
+          DxStep.Option.FORCE_JUMBO);
       DxStep dx = new DxStep(getPathToDex(),
           Collections.singleton(pathToOutputFile),
-          EnumSet.of(
-              DxStep.Option.USE_CUSTOM_DX_IF_AVAILABLE,
-              DxStep.Option.RUN_IN_PROCESS,
-              DxStep.Option.NO_OPTIMIZE,
-              DxStep.Option.FORCE_JUMBO));
-      steps.add(dx);
+          dxOptions);
+      // The same classes are often pre-dexed by rules for other apps, flavors and branches.
+      steps.add(
+          new CachedDexingStep(
+              computeAbiKey(classNamesToHashes).getHash(),
+              dxOptions,
+              ImmutableList.of(getPathToDex()),
+              dx));
     } else {
       linearAllocEstimate = Suppliers.ofInstance(0);
     }
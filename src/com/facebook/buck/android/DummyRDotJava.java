@@ -111,10 +111,6 @@ public class DummyRDotJava extends AbstractBuildRule
     final Path rDotJavaClassesFolder = getRDotJavaBinFolder();
     steps.add(new MakeCleanDirectoryStep(rDotJavaClassesFolder));
 
-    Path pathToAbiOutputDir = getPathToAbiOutputDir(getBuildTarget());
-    steps.add(new MakeCleanDirectoryStep(pathToAbiOutputDir));
-    Path pathToAbiOutputFile = pathToAbiOutputDir.resolve("abi.jar");
-
     // Compile the .java files.
     final JavacStep javacStep =
         RDotJava.createJavacStepForDummyRDotJavaFiles(
@@ -126,7 +122,7 @@ public class DummyRDotJava extends AbstractBuildRule
     steps.add(javacStep);
     buildableContext.recordArtifact(rDotJavaClassesFolder);
 
-    steps.add(new CalculateAbiStep(buildableContext, rDotJavaClassesFolder, pathToAbiOutputFile));
+    steps.add(new CalculateAbiStep(buildableContext, rDotJavaClassesFolder));
 
     return steps.build();
   }
@@ -144,10 +140,6 @@ public class DummyRDotJava extends AbstractBuildRule
     return BuildTargets.getScratchPath(buildTarget, "__%s_rdotjava_bin__");
   }
 
-  private static Path getPathToAbiOutputDir(BuildTarget buildTarget) {
-    return BuildTargets.getGenPath(buildTarget, "__%s_dummyrdotjava_abi__");
-  }
-
   @Nullable
   @Override
   public Path getPathToOutput() {
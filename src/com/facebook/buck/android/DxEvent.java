@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.LeafEvent;
+import com.google.common.base.Objects;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Events about a single {@code dx} invocation, so that the time spent dexing and whether it
+ * happened in buck's own JVM can be measured.
+ */
+@SuppressWarnings("PMD.OverrideBothEqualsAndHashcode")
+public abstract class DxEvent extends AbstractBuckEvent implements LeafEvent {
+
+  private final Path outputDexFile;
+  private final String dxVersion;
+  private final boolean inProcess;
+  private final long inputBytes;
+  private final UUID uuid;
+
+  protected DxEvent(
+      Path outputDexFile,
+      String dxVersion,
+      boolean inProcess,
+      long inputBytes,
+      UUID uuid) {
+    this.outputDexFile = outputDexFile;
+    this.dxVersion = dxVersion;
+    this.inProcess = inProcess;
+    this.inputBytes = inputBytes;
+    this.uuid = uuid;
+  }
+
+  public Path getOutputDexFile() {
+    return outputDexFile;
+  }
+
+  /** @return the {@code dx} which ran, either {@code "bundled"} or the path to its jar. */
+  public String getDxVersion() {
+    return dxVersion;
+  }
+
+  public boolean isInProcess() {
+    return inProcess;
+  }
+
+  /** @return the total size of the files being dexed. */
+  public long getInputBytes() {
+    return inputBytes;
+  }
+
+  protected UUID getUuid() {
+    return uuid;
+  }
+
+  @Override
+  public String getCategory() {
+    return "dx";
+  }
+
+  @Override
+  protected String getValueString() {
+    return outputDexFile.toString();
+  }
+
+  @Override
+  public boolean isRelatedTo(BuckEvent event) {
+    if (!(event instanceof DxEvent)) {
+      return false;
+    }
+
+    DxEvent that = (DxEvent) event;
+
+    return Objects.equal(uuid, that.uuid);
+  }
+
+  @Override
+  public int hashCode() {
+    return uuid.hashCode();
+  }
+
+  public static Started started(
+      Path outputDexFile,
+      String dxVersion,
+      boolean inProcess,
+      long inputBytes,
+      UUID uuid) {
+    return new Started(outputDexFile, dxVersion, inProcess, inputBytes, uuid);
+  }
+
+  public static Finished finished(Started started, long waitMillis, int exitCode) {
+    return new Finished(started, waitMillis, exitCode);
+  }
+
+  public static class Started extends DxEvent {
+    protected Started(
+        Path outputDexFile,
+        String dxVersion,
+        boolean inProcess,
+        long inputBytes,
+        UUID uuid) {
+      super(outputDexFile, dxVersion, inProcess, inputBytes, uuid);
+    }
+
+    @Override
+    public String getEventName() {
+      return "DxStarted";
+    }
+  }
+
+  public static class Finished extends DxEvent {
+    private final long waitMillis;
+    private final int exitCode;
+
+    protected Finished(Started started, long waitMillis, int exitCode) {
+      super(
+          started.getOutputDexFile(),
+          started.getDxVersion(),
+          started.isInProcess(),
+          started.getInputBytes(),
+          started.getUuid());
+      this.waitMillis = waitMillis;
+      this.exitCode = exitCode;
+    }
+
+    /** @return how long the invocation waited for enough of buck's heap to be free. */
+    public long getWaitMillis() {
+      return waitMillis;
+    }
+
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    @Override
+    public String getEventName() {
+      return "DxFinished";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!super.equals(o)) {
+        return false;
+      }
+
+      Finished that = (Finished) o;
+      return that.exitCode == exitCode;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(super.hashCode(), exitCode);
+    }
+  }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceBudget;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs {@code dx} in buck's own JVM, so that a daemon dexes with classes the JIT has already warmed
+ * up instead of starting a new JVM for every invocation.
+ * <p>
+ * Each version of {@code dx} is loaded by a class loader of its own, which is kept for as long as
+ * its jar doesn't change, and closed once the runs of a replaced version are over. Only versions
+ * which can be run many times, from many threads, in one JVM are run this way: those whose
+ * {@code com.android.dx.command.dexer.Main} has an instance
+ * {@code run(String[], PrintStream, PrintStream)} method, like the {@code dx} bundled with buck.
+ * <p>
+ * Invocations wait until the heap they are estimated to need is free, so that many large dex
+ * files being built at once don't run buck out of memory.
+ */
+public class DxService {
+
+  private static final Logger LOG = Logger.get(DxService.class);
+
+  @VisibleForTesting
+  static final String BUNDLED_VERSION = "bundled";
+
+  private static final String MAIN_CLASS_NAME = "com.android.dx.command.dexer.Main";
+
+  /** What a {@code dx} invocation needs regardless of its inputs. */
+  private static final long BASE_HEAP_BYTES = 64L * 1024 * 1024;
+
+  /** {@code dx} keeps several expanded copies of the classes it is translating. */
+  private static final long HEAP_BYTES_PER_INPUT_BYTE = 8;
+
+  private static final DxService INSTANCE = new DxService(
+      ResourceAmounts.of(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2));
+
+  private final ResourceBudget heapBudget;
+  private final Dexer bundledDexer;
+
+  /** Loaded versions of {@code dx}, keyed by the jar they were loaded from. */
+  private final Map<Path, Optional<Dexer>> dexersByJar = Maps.newHashMap();
+
+  /** Hashes of {@code dx} jars, keyed by their path and the attributes they were hashed with. */
+  private final ConcurrentMap<String, String> hashesByStamp = Maps.newConcurrentMap();
+
+  @VisibleForTesting
+  DxService(ResourceAmounts heapLimit) {
+    this.heapBudget = new ResourceBudget(heapLimit);
+    this.bundledDexer = Dexer.of(
+        BUNDLED_VERSION,
+        com.android.dx.command.dexer.Main.class,
+        /* jar */ null,
+        /* loader */ null,
+        /* lastModified */ 0).get();
+  }
+
+  /** @return the service shared by every build run by this process. */
+  public static DxService getInstance() {
+    return INSTANCE;
+  }
+
+  /** @return the {@code dx} which is on buck's own classpath. */
+  public Dexer getBundledDexer() {
+    return bundledDexer;
+  }
+
+  /**
+   * @param dxExecutable the {@code dx} script of an Android SDK or tree.
+   * @return the {@code dx} run by {@code dxExecutable}, if it can be run in-process.
+   */
+  public Optional<Dexer> getDexer(Path dxExecutable) {
+    Optional<Path> jar = findJar(dxExecutable);
+    if (!jar.isPresent()) {
+      return Optional.absent();
+    }
+    return getDexerForJar(jar.get());
+  }
+
+  private synchronized Optional<Dexer> getDexerForJar(Path jar) {
+    long lastModified;
+    try {
+      lastModified = Files.getLastModifiedTime(jar).toMillis();
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to read %s, not dexing in-process.", jar);
+      return Optional.absent();
+    }
+
+    Optional<Dexer> dexer = dexersByJar.get(jar);
+    if (dexer == null ||
+        (dexer.isPresent() && dexer.get().lastModified != lastModified)) {
+      if (dexer != null) {
+        dexer.get().retire();
+      }
+      dexer = load(jar, lastModified);
+      dexersByJar.put(jar, dexer);
+    }
+    return dexer;
+  }
+
+  /**
+   * Starts a run of {@code dexer}, or of the version which replaced it, if its jar changed after
+   * it was looked up and its class loader has been closed since.
+   */
+  private Dexer startRun(Dexer dexer) throws IOException {
+    if (dexer.startRun()) {
+      return dexer;
+    }
+    Optional<Dexer> replacement = getDexerForJar(Preconditions.checkNotNull(dexer.jar));
+    if (replacement.isPresent() && replacement.get().startRun()) {
+      return replacement.get();
+    }
+    throw new IOException(
+        String.format("%s changed and can no longer be run in-process.", dexer.jar));
+  }
+
+  /**
+   * @param dxExecutable the {@code dx} script of an Android SDK or tree.
+   * @return a hash of the jar run by {@code dxExecutable}, or of {@code dxExecutable} itself if it
+   *     has no jar, which changes whenever a different version of {@code dx} is installed there.
+   */
+  public String hashDx(Path dxExecutable) throws IOException {
+    Path file = findJar(dxExecutable).or(dxExecutable);
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    String stamp = Joiner.on(' ').join(
+        file,
+        attributes.size(),
+        attributes.lastModifiedTime().toMillis(),
+        attributes.fileKey());
+    String hash = hashesByStamp.get(stamp);
+    if (hash == null) {
+      hash = com.google.common.io.Files.asByteSource(file.toFile())
+          .hash(Hashing.sha1())
+          .toString();
+      hashesByStamp.put(stamp, hash);
+    }
+    return hash;
+  }
+
+  /** The places the {@code dx} script looks for its jar, in an SDK and in an Android tree. */
+  private static Optional<Path> findJar(Path dxExecutable) {
+    Path dir = dxExecutable.toAbsolutePath().getParent();
+    if (dir == null) {
+      return Optional.absent();
+    }
+    ImmutableList.Builder<Path> candidates = ImmutableList.builder();
+    candidates.add(dir.resolve("lib").resolve("dx.jar"));
+    if (dir.getParent() != null) {
+      candidates.add(dir.getParent().resolve("framework").resolve("dx.jar"));
+    }
+    for (Path candidate : candidates.build()) {
+      if (Files.isRegularFile(candidate)) {
+        return Optional.of(candidate);
+      }
+    }
+    return Optional.absent();
+  }
+
+  private static Optional<Dexer> load(Path jar, long lastModified) {
+    URL url;
+    try {
+      url = jar.toUri().toURL();
+    } catch (MalformedURLException e) {
+      throw Throwables.propagate(e);
+    }
+
+    // Don't let the dexer see buck's classes, which may include a different version of dx.
+    URLClassLoader loader = new URLClassLoader(
+        new URL[] {url},
+        ClassLoader.getSystemClassLoader().getParent());
+    Class<?> mainClass;
+    try {
+      mainClass = loader.loadClass(MAIN_CLASS_NAME);
+    } catch (ClassNotFoundException | LinkageError e) {
+      LOG.warn(e, "%s does not contain %s, not dexing in-process.", jar, MAIN_CLASS_NAME);
+      closeQuietly(loader);
+      return Optional.absent();
+    }
+
+    Optional<Dexer> dexer = Dexer.of(jar.toString(), mainClass, jar, loader, lastModified);
+    if (!dexer.isPresent()) {
+      LOG.info("The dx in %s can only be run in a process of its own.", jar);
+      closeQuietly(loader);
+    }
+    return dexer;
+  }
+
+  private static void closeQuietly(URLClassLoader loader) {
+    try {
+      loader.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to close the class loader of %s.", Arrays.toString(loader.getURLs()));
+    }
+  }
+
+  @VisibleForTesting
+  static long estimateHeapBytes(long inputBytes) {
+    return BASE_HEAP_BYTES + HEAP_BYTES_PER_INPUT_BYTE * inputBytes;
+  }
+
+  /**
+   * Runs {@code dexer} once enough of the heap is free, posting a {@link DxEvent} when it starts
+   * and finishes.
+   *
+   * @param args the arguments to {@code dx --dex}, without {@code --dex} itself.
+   * @param inputBytes the total size of the files being dexed.
+   * @return the exit code of {@code dx}.
+   */
+  public int run(
+      Dexer dexer,
+      Path outputDexFile,
+      ImmutableList<String> args,
+      long inputBytes,
+      PrintStream stdout,
+      PrintStream stderr,
+      BuckEventBus eventBus) throws IOException, InterruptedException {
+    ResourceAmounts heap = ResourceAmounts.of(0, estimateHeapBytes(inputBytes));
+    long waitStarted = System.nanoTime();
+    heapBudget.acquire(heap);
+    long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStarted);
+    try {
+      dexer = startRun(dexer);
+    } catch (IOException e) {
+      heapBudget.release(heap);
+      throw e;
+    }
+
+    DxEvent.Started started = DxEvent.started(
+        outputDexFile,
+        dexer.getVersion(),
+        /* inProcess */ true,
+        inputBytes,
+        UUID.randomUUID());
+    eventBus.post(started);
+    int exitCode = 1;
+    try {
+      exitCode = dexer.run(args.toArray(new String[args.size()]), stdout, stderr);
+      return exitCode;
+    } finally {
+      dexer.finishRun();
+      heapBudget.release(heap);
+      eventBus.post(DxEvent.finished(started, waitMillis, exitCode));
+    }
+  }
+
+  /** A version of {@code dx} which can be run in-process. */
+  public static class Dexer {
+    private final String version;
+    private final Constructor<?> constructor;
+    private final Method run;
+    /** The jar this version was loaded from, unless it is bundled. */
+    @Nullable private final Path jar;
+    @Nullable private final URLClassLoader loader;
+    private final long lastModified;
+
+    // Guarded by this.
+    private int runs;
+    private boolean isRetired;
+    private boolean isClosed;
+
+    private Dexer(
+        String version,
+        Constructor<?> constructor,
+        Method run,
+        @Nullable Path jar,
+        @Nullable URLClassLoader loader,
+        long lastModified) {
+      this.version = version;
+      this.constructor = constructor;
+      this.run = run;
+      this.jar = jar;
+      this.loader = loader;
+      this.lastModified = lastModified;
+    }
+
+    private static Optional<Dexer> of(
+        String version,
+        Class<?> mainClass,
+        @Nullable Path jar,
+        @Nullable URLClassLoader loader,
+        long lastModified) {
+      try {
+        Method run = mainClass.getMethod(
+            "run",
+            String[].class,
+            PrintStream.class,
+            PrintStream.class);
+        if (run.getReturnType() != int.class) {
+          return Optional.absent();
+        }
+        return Optional.of(
+            new Dexer(version, mainClass.getConstructor(), run, jar, loader, lastModified));
+      } catch (NoSuchMethodException | LinkageError e) {
+        return Optional.absent();
+      }
+    }
+
+    /** @return {@code "bundled"} for the {@code dx} on buck's classpath, or the path to its jar. */
+    public String getVersion() {
+      return version;
+    }
+
+    /** @return false if the class loader of this version has been closed. */
+    private synchronized boolean startRun() {
+      if (isClosed) {
+        return false;
+      }
+      runs++;
+      return true;
+    }
+
+    private synchronized void finishRun() {
+      runs--;
+      closeIfUnused();
+    }
+
+    /** Closes the class loader of this version once nothing is running it. */
+    private synchronized void retire() {
+      isRetired = true;
+      closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+      if (isRetired && runs == 0 && !isClosed) {
+        isClosed = true;
+        if (loader != null) {
+          closeQuietly(loader);
+        }
+      }
+    }
+
+    @VisibleForTesting
+    synchronized boolean isClosed() {
+      return isClosed;
+    }
+
+    private int run(String[] args, PrintStream stdout, PrintStream stderr) throws IOException {
+      try {
+        return (Integer) run.invoke(constructor.newInstance(), args, stdout, stderr);
+      } catch (InvocationTargetException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
+      } catch (ReflectiveOperationException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+}
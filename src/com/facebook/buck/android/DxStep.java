@@ -17,10 +17,15 @@
 package com.facebook.buck.android;
 
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ResourceIntensiveStep;
 import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
@@ -29,13 +34,21 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.annotation.CheckForNull;
 
-public class DxStep extends ShellStep {
+public class DxStep extends ShellStep implements ResourceIntensiveStep {
+
+  private static final Logger LOG = Logger.get(DxStep.class);
 
   /**
    */
@@ -57,13 +70,24 @@ public class DxStep extends ShellStep {
     USE_CUSTOM_DX_IF_AVAILABLE,
 
     /**
-     * Execute DX in-process instead of fork/execing.
-     * This only works with custom dx.
+     * Execute DX in-process instead of fork/execing, if the {@code dx} being used supports it.
+     * See {@link DxService}.
      */
     RUN_IN_PROCESS,
     ;
   }
 
+  /**
+   * The dx script in the SDK runs the dexer with a 1GB heap, and in-process dexing needs about as
+   * much of buck's heap.
+   */
+  private static final ResourceAmounts REQUIRED_RESOURCES =
+      ResourceAmounts.of(/* cpus */ 1, /* memoryBytes */ 1024L * 1024 * 1024);
+
+  /** In-process dexing uses buck's heap, which {@link DxService} accounts for itself. */
+  private static final ResourceAmounts REQUIRED_RESOURCES_IN_PROCESS =
+      ResourceAmounts.of(/* cpus */ 1, /* memoryBytes */ 0);
+
   private static final Supplier<String> DEFAULT_GET_CUSTOM_DX = new Supplier<String>() {
     @Override
     @CheckForNull
@@ -76,6 +100,7 @@ public class DxStep extends ShellStep {
   private final Set<Path> filesToDex;
   private final Set<Option> options;
   private final Supplier<String> getPathToCustomDx;
+  private final DxService dxService;
 
   /**
    * @param outputDexFile path to the file where the generated classes.dex should go.
@@ -99,15 +124,47 @@ public class DxStep extends ShellStep {
   @VisibleForTesting
   DxStep(Path outputDexFile, Iterable<Path> filesToDex, EnumSet<Option> options,
       Supplier<String> getPathToCustomDx) {
+    this(outputDexFile, filesToDex, options, getPathToCustomDx, DxService.getInstance());
+  }
+
+  @VisibleForTesting
+  DxStep(Path outputDexFile, Iterable<Path> filesToDex, EnumSet<Option> options,
+      Supplier<String> getPathToCustomDx, DxService dxService) {
     this.outputDexFile = outputDexFile;
     this.filesToDex = ImmutableSet.copyOf(filesToDex);
     this.options = Sets.immutableEnumSet(options);
     this.getPathToCustomDx = getPathToCustomDx;
+    this.dxService = dxService;
+  }
+
+  /**
+   * @return a description of the {@code dx} a step with {@code options} runs, including a hash of
+   *     its jar, and the flags which change what it writes, for keying the {@link DexCache}.
+   */
+  static String describeDx(ExecutionContext context, Set<Option> options) throws IOException {
+    Path dx = context.getAndroidPlatformTarget().getDxExecutable();
+    if (options.contains(Option.USE_CUSTOM_DX_IF_AVAILABLE)) {
+      String customDx = DEFAULT_GET_CUSTOM_DX.get();
+      dx = customDx != null ? Paths.get(customDx) : dx;
+    }
+    // Whether dx runs in-process makes no difference to what it writes.
+    return dx + " " + DxService.getInstance().hashDx(dx) + " " + Joiner.on(' ').join(
+        Sets.difference(options, EnumSet.of(Option.RUN_IN_PROCESS)));
+  }
 
-    Preconditions.checkArgument(
-        !options.contains(Option.RUN_IN_PROCESS) ||
-            options.contains(Option.USE_CUSTOM_DX_IF_AVAILABLE),
-        "In-process dexing is only supported with custom DX");
+  /**
+   * @return the {@code dx} to run in-process, if {@link Option#RUN_IN_PROCESS} was given and the
+   *     {@code dx} this step would otherwise run supports it. A custom {@code dx} is the one
+   *     bundled with buck.
+   */
+  private Optional<DxService.Dexer> getInProcessDexer(ExecutionContext context) {
+    if (!options.contains(Option.RUN_IN_PROCESS)) {
+      return Optional.absent();
+    }
+    if (options.contains(Option.USE_CUSTOM_DX_IF_AVAILABLE) && getPathToCustomDx.get() != null) {
+      return Optional.of(dxService.getBundledDexer());
+    }
+    return dxService.getDexer(context.getAndroidPlatformTarget().getDxExecutable());
   }
 
   @Override
@@ -159,36 +216,84 @@ public class DxStep extends ShellStep {
     return builder.build();
   }
 
+  @Override
+  public ResourceAmounts getRequiredResources(ExecutionContext context) {
+    return getInProcessDexer(context).isPresent()
+        ? REQUIRED_RESOURCES_IN_PROCESS
+        : REQUIRED_RESOURCES;
+  }
+
   @Override
   public int execute(ExecutionContext context) throws InterruptedException {
-    if (options.contains(Option.RUN_IN_PROCESS)) {
-      return executeInProcess(context);
-    } else {
-      return super.execute(context);
+    Optional<DxService.Dexer> dexer = getInProcessDexer(context);
+    long inputBytes = getInputBytes(context.getProjectFilesystem());
+    if (dexer.isPresent()) {
+      return executeInProcess(context, dexer.get(), inputBytes);
+    }
+
+    DxEvent.Started started = DxEvent.started(
+        outputDexFile,
+        getShellCommandInternal(context).get(0),
+        /* inProcess */ false,
+        inputBytes,
+        UUID.randomUUID());
+    context.getBuckEventBus().post(started);
+    int exitCode = 1;
+    try {
+      exitCode = super.execute(context);
+      return exitCode;
+    } finally {
+      context.getBuckEventBus().post(
+          DxEvent.finished(started, /* waitMillis */ 0, exitCode));
     }
   }
 
-  private int executeInProcess(ExecutionContext context) {
+  private int executeInProcess(ExecutionContext context, DxService.Dexer dexer, long inputBytes)
+      throws InterruptedException {
     ImmutableList<String> argv = getShellCommandInternal(context);
 
     // The first arguments should be ".../dx --dex" ("...\dx.bat --dex on Windows).  Strip them off
     // because we bypass the dispatcher and go straight to the dexer.
-    Preconditions.checkState(argv.get(0).endsWith("/dx") || argv.get(0).endsWith("\\dx.bat"));
     Preconditions.checkState(argv.get(1).equals("--dex"));
     ImmutableList<String> args = argv.subList(2, argv.size());
 
     try {
-      return new com.android.dx.command.dexer.Main().run(
-          args.toArray(new String[args.size()]),
+      return dxService.run(
+          dexer,
+          outputDexFile,
+          args,
+          inputBytes,
           context.getStdOut(),
-          context.getStdErr()
-      );
+          context.getStdErr(),
+          context.getBuckEventBus());
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
     }
   }
 
+  /** @return the total size of the files to dex, counting the files within directories. */
+  private long getInputBytes(ProjectFilesystem projectFilesystem) {
+    final long[] total = {0};
+    for (Path fileToDex : filesToDex) {
+      try {
+        Files.walkFileTree(
+            projectFilesystem.resolve(fileToDex),
+            new SimpleFileVisitor<Path>() {
+              @Override
+              public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+              }
+            });
+      } catch (IOException e) {
+        // dx will report the missing or unreadable input itself.
+        LOG.debug(e, "Unable to measure %s.", fileToDex);
+      }
+    }
+    return total[0];
+  }
+
   @Override
   protected boolean shouldPrintStderr(Verbosity verbosity) {
     return verbosity.shouldPrintSelectCommandOutput();
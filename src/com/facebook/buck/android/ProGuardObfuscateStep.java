@@ -20,8 +20,10 @@ import com.facebook.buck.rules.BuildableContext;
 import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ResourceIntensiveStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.fs.TouchStep;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.zip.CustomZipOutputStream;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.annotations.VisibleForTesting;
@@ -39,9 +41,11 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 
-public final class ProGuardObfuscateStep extends ShellStep {
+public final class ProGuardObfuscateStep extends ShellStep implements ResourceIntensiveStep {
 
   static enum SdkProguardType {
     DEFAULT,
@@ -49,6 +53,8 @@ public final class ProGuardObfuscateStep extends ShellStep {
     NONE,
   }
 
+  private static final Pattern JVM_MEMORY_SIZE = Pattern.compile("(\\d+)([kKmMgG]?)");
+
   private final Map<Path, Path> inputAndOutputEntries;
   private final Path pathToProGuardCommandLineArgsFile;
   private final Optional<Path> proguardJarOverride;
@@ -145,6 +151,37 @@ public final class ProGuardObfuscateStep extends ShellStep {
     return args.build();
   }
 
+  /**
+   * ProGuard is single threaded, but may well use all of the heap it's given.
+   */
+  @Override
+  public ResourceAmounts getRequiredResources(ExecutionContext context) {
+    return ResourceAmounts.of(/* cpus */ 1, parseJvmMemorySize(proguardMaxHeapSize));
+  }
+
+  /**
+   * @return the number of bytes in a size given the way {@code -Xmx} takes it, such as
+   *     {@code 1024M}, or 0 if the size can't be parsed, in which case the JVM will complain.
+   */
+  @VisibleForTesting
+  static long parseJvmMemorySize(String size) {
+    Matcher matcher = JVM_MEMORY_SIZE.matcher(size);
+    if (!matcher.matches()) {
+      return 0;
+    }
+    long bytes = Long.parseLong(matcher.group(1));
+    switch (matcher.group(2).toLowerCase()) {
+      case "g":
+        return bytes << 30;
+      case "m":
+        return bytes << 20;
+      case "k":
+        return bytes << 10;
+      default:
+        return bytes;
+    }
+  }
+
   @Override
   public int execute(ExecutionContext context) throws InterruptedException {
     int exitCode = super.execute(context);
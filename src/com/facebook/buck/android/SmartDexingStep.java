@@ -314,7 +314,13 @@ public class SmartDexingStep implements Step {
 
       List<Step> steps = Lists.newArrayList();
 
-      steps.add(createDxStepForDxPseudoRule(srcs, outputPath, dxOptions));
+      // Other apps and flavors built from the same libraries often produce the same dex files.
+      steps.add(
+          new CachedDexingStep(
+              newInputsHash,
+              dxOptions,
+              getDxOutputs(outputPath),
+              createDxStepForDxPseudoRule(srcs, outputPath, dxOptions)));
       steps.add(new WriteFileStep(newInputsHash, outputHashPath));
 
       // Use a composite step to ensure that runDxSteps can still make use of
@@ -324,6 +330,26 @@ public class SmartDexingStep implements Step {
     }
   }
 
+  /**
+   * @return the files produced by {@link #createDxStepForDxPseudoRule}, starting with
+   *     {@code outputPath}.
+   */
+  @VisibleForTesting
+  static ImmutableList<Path> getDxOutputs(Path outputPath) {
+    if (DexStore.XZ.matchesPath(outputPath)) {
+      Path repackedJar = Paths.get(outputPath.toString().replaceAll("\\.xz$", ""));
+      return ImmutableList.of(
+          outputPath,
+          repackedJar.resolveSibling(repackedJar.getFileName() + ".meta"));
+    } else if (DexStore.JAR.matchesPath(outputPath)) {
+      return ImmutableList.of(
+          outputPath,
+          outputPath.resolveSibling(outputPath.getFileName() + ".meta"));
+    } else {
+      return ImmutableList.of(outputPath);
+    }
+  }
+
   /**
    * The step to produce the .dex file will be determined by the file extension of outputPath, much
    * as {@code dx} itself chooses whether to embed the dex inside a jar/zip based on the destination
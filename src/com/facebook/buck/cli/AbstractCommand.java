@@ -24,6 +24,7 @@ import com.facebook.buck.parser.BuildTargetPatternTargetNodeParser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.parser.TargetNodeSpec;
 import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.ArtifactUploadQueue;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.MoreStrings;
 import com.google.common.base.Optional;
@@ -185,6 +186,33 @@ public abstract class AbstractCommand implements Command {
     return params.getArtifactCacheFactory().newInstance(params.getBuckConfig(), isNoCache());
   }
 
+  /**
+   * @return a queue on which to upload artifacts in the background, unless the configuration asks
+   *     for them to be uploaded by the build threads. It must be closed once the build is done.
+   */
+  protected Optional<ArtifactUploadQueue> createArtifactUploadQueue(CommandRunnerParams params) {
+    int threads = params.getBuckConfig().getArtifactUploadThreads();
+    if (threads == 0) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new ArtifactUploadQueue(
+            threads,
+            params.getBuckConfig().getArtifactUploadQueueMaxBytes(),
+            params.getBuckEventBus()));
+  }
+
+  /**
+   * Waits for the uploads on {@code uploadQueue} to finish, so that they are reported as part of
+   * the build. Call this before the build's finished event is posted.
+   */
+  protected static void flushArtifactUploadQueue(Optional<ArtifactUploadQueue> uploadQueue)
+      throws InterruptedException {
+    if (uploadQueue.isPresent()) {
+      uploadQueue.get().close();
+    }
+  }
+
   protected ExecutionContext createExecutionContext(CommandRunnerParams params) {
     return ExecutionContext.builder()
         .setProjectFilesystem(params.getRepository().getFilesystem())
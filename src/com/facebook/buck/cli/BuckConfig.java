@@ -41,6 +41,7 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Config;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.Inis;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.unit.SizeUnit;
 import com.google.common.annotations.Beta;
@@ -63,10 +64,12 @@ import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Response;
+import com.sun.management.OperatingSystemMXBean;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -110,10 +113,15 @@ public class BuckConfig {
   private static final String DEFAULT_CACHE_DIR = "buck-cache";
   private static final String DEFAULT_DIR_CACHE_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_MAX_TRACES = "25";
+  /** What a single dx run needs, see {@link com.facebook.buck.android.DxStep}. */
+  private static final long MIN_DEFAULT_STEP_MEMORY_BYTES = 1024L * 1024L * 1024L;
 
   private static final String DEFAULT_HTTP_URL = "http://localhost:8080";
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS = "3";
+  private static final long DEFAULT_CACHE_HEDGE_DELAY_MILLIS = 50;
+  private static final long DEFAULT_CACHE_UPLOAD_THREADS = 2;
+  private static final String DEFAULT_CACHE_UPLOAD_QUEUE_MAX_SIZE = "512MB";
 
   private final Config config;
 
@@ -465,6 +473,14 @@ public class BuckConfig {
     return getBooleanValue("daemon", "flush_events_before_exit", false);
   }
 
+  /**
+   * @return whether the hashes of source files are persisted under {@code buck-out}, so that a new
+   *     buck process only reads the files which changed since they were last hashed.
+   */
+  public boolean getPersistentFileHashCacheEnabled() {
+    return getBooleanValue("project", "persistent_file_hash_cache", false);
+  }
+
   public ImmutableSet<String> getListenerJars() {
     return ImmutableSet.copyOf(getListWithoutComments("extensions", "listeners"));
   }
@@ -560,10 +576,64 @@ public class BuckConfig {
       // Don't bother wrapping a single artifact cache in MultiArtifactCache.
       return artifactCaches.get(0);
     } else {
-      return new MultiArtifactCache(artifactCaches);
+      return new MultiArtifactCache(artifactCaches, getCacheHedgeDelayMillis());
     }
   }
 
+  /**
+   * @return if fetches should race the configured caches, how long to wait for one cache to answer
+   *     before also asking the next.
+   */
+  @VisibleForTesting
+  Optional<Long> getCacheHedgeDelayMillis() {
+    if (!getBooleanValue("cache", "parallel_fetch", false)) {
+      return Optional.absent();
+    }
+    long hedgeDelayMillis =
+        getLong("cache", "hedge_delay_millis").or(DEFAULT_CACHE_HEDGE_DELAY_MILLIS);
+    if (hedgeDelayMillis < 0) {
+      throw new HumanReadableException(
+          "cache.hedge_delay_millis must not be negative, but was %d.",
+          hedgeDelayMillis);
+    }
+    return Optional.of(hedgeDelayMillis);
+  }
+
+  /**
+   * @return the number of threads which upload artifacts to the cache in the background, or 0 if
+   *     artifacts are uploaded by the thread which built them.
+   */
+  public int getArtifactUploadThreads() {
+    long threads = getLong("cache", "upload_threads").or(DEFAULT_CACHE_UPLOAD_THREADS);
+    if (threads < 0) {
+      throw new HumanReadableException(
+          "cache.upload_threads must not be negative, but was %d.",
+          threads);
+    }
+    return (int) threads;
+  }
+
+  /**
+   * @return the total size of outputs which may be waiting to be uploaded before the build has to
+   *     wait for uploads to finish.
+   */
+  public long getArtifactUploadQueueMaxBytes() {
+    return SizeUnit.parseBytes(
+        getValue("cache", "upload_queue_max_size").or(DEFAULT_CACHE_UPLOAD_QUEUE_MAX_SIZE));
+  }
+
+  /**
+   * @return whether to ask the cache which artifacts of the whole build it has, in a few batched
+   *     requests, before building starts. This is on by default when there's a remote cache, for
+   *     which a request per rule is expensive.
+   */
+  public boolean getPrefetchCacheExistence() {
+    return getBooleanValue(
+        "cache",
+        "prefetch_existence",
+        getArtifactCacheModes().contains(ArtifactCacheNames.http.name()));
+  }
+
   ImmutableList<String> getArtifactCacheModes() {
     return getListWithoutComments("cache", "mode");
   }
@@ -761,6 +831,45 @@ public class BuckConfig {
         .or(CachingBuildEngine.BuildMode.SHALLOW);
   }
 
+  /**
+   * @return the cores and memory which resource intensive steps, such as dexing or ProGuard, may
+   *     use between them at once. By default they may use all the cores, and the memory of the
+   *     machine other than what Buck's own heap may grow to.
+   */
+  public ResourceAmounts getStepResourceLimit() {
+    long cpus = getLong("build", "max_step_cpus").or(
+        (long) Runtime.getRuntime().availableProcessors());
+    if (cpus <= 0) {
+      throw new HumanReadableException(
+          "build.max_step_cpus must be positive, but was %d.",
+          cpus);
+    }
+    Optional<String> memory = getValue("build", "max_step_memory");
+    return ResourceAmounts.of(
+        (int) Math.min(cpus, Integer.MAX_VALUE),
+        memory.isPresent() ? SizeUnit.parseBytes(memory.get()) : getDefaultStepMemory());
+  }
+
+  private static long getDefaultStepMemory() {
+    Object osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (!(osBean instanceof OperatingSystemMXBean)) {
+      return Long.MAX_VALUE;
+    }
+    long physicalMemory = ((OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize();
+    // Leave room for at least one step, so that they can still run one at a time.
+    return Math.max(
+        physicalMemory - Runtime.getRuntime().maxMemory(),
+        MIN_DEFAULT_STEP_MEMORY_BYTES);
+  }
+
+  /**
+   * @return whether the build engine should schedule rules on the longest chain of work first,
+   *     going by how long rules took in earlier builds.
+   */
+  public boolean getCriticalPathScheduling() {
+    return getBooleanValue("build", "critical_path_scheduling", false);
+  }
+
   /**
    * @return the path for the given section and property.
    */
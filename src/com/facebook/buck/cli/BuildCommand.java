@@ -30,12 +30,15 @@ import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.ArtifactUploadQueue;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleDurationStore;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.CachingBuildEngine;
+import com.facebook.buck.rules.ExistencePrefetchingArtifactCache;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphToActionGraph;
@@ -207,7 +210,10 @@ public class BuildCommand extends AbstractCommand {
   }
 
   public ConcurrencyLimit getConcurrencyLimit(BuckConfig buckConfig) {
-    return new ConcurrencyLimit(getNumThreads(buckConfig), getLoadLimit(buckConfig));
+    return new ConcurrencyLimit(
+        getNumThreads(buckConfig),
+        getLoadLimit(buckConfig),
+        buckConfig.getStepResourceLimit());
   }
 
   /**
@@ -318,7 +324,8 @@ public class BuildCommand extends AbstractCommand {
           new TargetGraphToActionGraph(
               params.getBuckEventBus(),
               new BuildTargetNodeToBuildRuleTransformer(),
-              params.getFileHashCache());
+              params.getFileHashCache(),
+              params.getActionGraphCache());
       actionGraph = targetGraphToActionGraph.apply(result.getSecond());
       resolver = targetGraphToActionGraph.getRuleResolver();
     } catch (BuildTargetException | BuildFileParseException e) {
@@ -342,6 +349,23 @@ public class BuildCommand extends AbstractCommand {
       buildTargets = ImmutableSet.of(explicitTarget);
     }
 
+    if (params.getBuckConfig().getPrefetchCacheExistence()) {
+      ExistencePrefetchingArtifactCache prefetchingCache =
+          new ExistencePrefetchingArtifactCache(artifactCache);
+      prefetchingCache.prefetch(actionGraph.getNodes());
+      artifactCache = prefetchingCache;
+    }
+
+    ImmutableMap<BuildTarget, Long> priorities = ImmutableMap.of();
+    if (params.getBuckConfig().getCriticalPathScheduling()) {
+      BuildRuleDurationStore durationStore = BuildRuleDurationStore.load(
+          params.getRepository().getFilesystem(),
+          params.getObjectMapper());
+      priorities = durationStore.getCriticalPathPriorities(actionGraph.getNodes());
+      params.getBuckEventBus().register(durationStore);
+    }
+
+    Optional<ArtifactUploadQueue> uploadQueue = createArtifactUploadQueue(params);
     try (CommandThreadManager pool = new CommandThreadManager(
         "Build",
         getConcurrencyLimit(params.getBuckConfig()));
@@ -355,7 +379,9 @@ public class BuildCommand extends AbstractCommand {
                  getBuildEngineMode().or(params.getBuckConfig().getBuildEngineMode()),
                  new InputBasedRuleKeyBuilderFactory(
                      params.getFileHashCache(),
-                     new SourcePathResolver(resolver))),
+                     new SourcePathResolver(resolver)),
+                 uploadQueue,
+                 priorities),
              artifactCache,
              params.getConsole(),
              params.getBuckEventBus(),
@@ -370,8 +396,13 @@ public class BuildCommand extends AbstractCommand {
           isKeepGoing(),
           params.getConsole(),
           getPathToBuildReport(params.getBuckConfig()));
+      flushArtifactUploadQueue(uploadQueue);
       params.getBuckEventBus().post(BuildEvent.finished(getArguments(), exitCode));
       return exitCode;
+    } finally {
+      if (uploadQueue.isPresent()) {
+        uploadQueue.get().close();
+      }
     }
   }
 
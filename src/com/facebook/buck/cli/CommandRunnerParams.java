@@ -21,6 +21,7 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.httpserver.WebServer;
 import com.facebook.buck.java.JavaPackageFinder;
 import com.facebook.buck.parser.Parser;
+import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Repository;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.timing.Clock;
@@ -53,6 +54,7 @@ class CommandRunnerParams {
   private final Optional<WebServer> webServer;
   private final BuckConfig buckConfig;
   private final FileHashCache fileHashCache;
+  private final Optional<ActionGraphCache> actionGraphCache;
 
   public CommandRunnerParams(
       Console console,
@@ -69,7 +71,8 @@ class CommandRunnerParams {
       Optional<ProcessManager> processManager,
       Optional<WebServer> webServer,
       BuckConfig buckConfig,
-      FileHashCache fileHashCache) {
+      FileHashCache fileHashCache,
+      Optional<ActionGraphCache> actionGraphCache) {
     this.console = console;
     this.repository = repository;
     this.artifactCacheFactory = artifactCacheFactory;
@@ -85,6 +88,7 @@ class CommandRunnerParams {
     this.webServer = webServer;
     this.buckConfig = buckConfig;
     this.fileHashCache = fileHashCache;
+    this.actionGraphCache = actionGraphCache;
   }
 
   public Console getConsole() {
@@ -147,6 +151,11 @@ class CommandRunnerParams {
     return fileHashCache;
   }
 
+  /** @return the cache of rules kept between commands, if running in the daemon. */
+  public Optional<ActionGraphCache> getActionGraphCache() {
+    return actionGraphCache;
+  }
+
   protected ExecutionContext createExecutionContext() {
     return ExecutionContext.builder()
         .setProjectFilesystem(repository.getFilesystem())
@@ -40,9 +40,11 @@ import com.facebook.buck.log.CommandThreadAssociation;
 import com.facebook.buck.log.LogConfig;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
+import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.python.PythonBuckConfig;
+import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
 import com.facebook.buck.rules.Repository;
 import com.facebook.buck.timing.Clock;
@@ -55,6 +57,7 @@ import com.facebook.buck.util.DefaultFileHashCache;
 import com.facebook.buck.util.DefaultPropertyFinder;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.InterruptionFailedException;
+import com.facebook.buck.util.PersistentFileHashCache;
 import com.facebook.buck.util.PkillProcessManager;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessManager;
@@ -71,6 +74,7 @@ import com.facebook.buck.util.environment.Platform;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jdk7.Jdk7Module;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
@@ -78,6 +82,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
 import com.google.common.reflect.ClassPath;
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.common.util.concurrent.ServiceManager;
@@ -150,7 +155,8 @@ public final class Main {
   private final ObjectMapper objectMapper;
 
   // This is a hack to work around a perf issue where generated Xcode IDE files
-  // trip WatchmanWatcher, causing buck project to take a long time to run.
+  // trip WatchmanWatcher, causing buck project to take a long time to run. The parser must know
+  // them too, as it can't cache listings of files whose changes it won't hear about.
   private static final ImmutableSet<String> DEFAULT_IGNORE_GLOBS =
       ImmutableSet.of("*.pbxproj", "*.xcscheme", "*.xcworkspacedata");
 
@@ -166,6 +172,7 @@ public final class Main {
     private final Repository repository;
     private final Parser parser;
     private final DefaultFileHashCache hashCache;
+    private final ActionGraphCache actionGraphCache;
     private final EventBus fileEventBus;
     private final ProjectFilesystemWatcher filesystemWatcher;
     private final Optional<WebServer> webServer;
@@ -180,7 +187,7 @@ public final class Main {
       this.repository = repository;
       this.clock = clock;
       this.objectMapper = objectMapper;
-      this.hashCache = new DefaultFileHashCache(repository.getFilesystem());
+      this.hashCache = createFileHashCache(repository);
       ParserConfig parserConfig = new ParserConfig(repository.getBuckConfig());
       PythonBuckConfig pythonBuckConfig = new PythonBuckConfig(
           repository.getBuckConfig(),
@@ -192,7 +199,17 @@ public final class Main {
           parserConfig.getEnforceBuckPackageBoundary(),
           parserConfig.getTempFilePatterns(),
           parserConfig.getBuildFileName(),
-          parserConfig.getDefaultIncludes());
+          parserConfig.getDefaultIncludes(),
+          DEFAULT_IGNORE_GLOBS);
+      this.actionGraphCache = new ActionGraphCache(
+          repository.getFilesystem(),
+          hashCache,
+          new Function<BuildTarget, HashCode>() {
+            @Override
+            public HashCode apply(BuildTarget target) {
+              return parser.getBuildTargetHashCodeCache().getUnchecked(target);
+            }
+          });
 
       this.fileEventBus = new EventBus("file-change-events");
       this.filesystemWatcher = createWatcher(repository.getFilesystem());
@@ -208,7 +225,6 @@ public final class Main {
       return new WatchmanWatcher(
           projectFilesystem,
           fileEventBus,
-          clock,
           objectMapper,
           repository.getBuckConfig().getIgnorePaths(),
           DEFAULT_IGNORE_GLOBS);
@@ -266,6 +282,10 @@ public final class Main {
       return hashCache;
     }
 
+    private ActionGraphCache getActionGraphCache() {
+      return actionGraphCache;
+    }
+
     private void watchClient(final NGContext context) {
       context.addClientListener(new NGClientListener() {
         @Override
@@ -318,6 +338,7 @@ public final class Main {
     public void close() throws IOException {
       filesystemWatcher.close();
       shutdownWebServer();
+      closeFileHashCache(hashCache);
     }
 
     private void shutdownWebServer() {
@@ -542,10 +563,13 @@ public final class Main {
         System.getProperties());
 
     DefaultFileHashCache fileHashCache;
+    Optional<ActionGraphCache> actionGraphCache;
     if (isDaemon) {
       fileHashCache = getFileHashCacheFromDaemon(rootRepository, clock);
+      actionGraphCache = Optional.of(getActionGraphCacheFromDaemon(rootRepository, clock));
     } else {
-      fileHashCache = new DefaultFileHashCache(rootRepository.getFilesystem());
+      fileHashCache = createFileHashCache(rootRepository);
+      actionGraphCache = Optional.absent();
     }
 
     @Nullable ArtifactCacheFactory artifactCacheFactory = null;
@@ -624,7 +648,8 @@ public final class Main {
             parserConfig.getEnforceBuckPackageBoundary(),
             parserConfig.getTempFilePatterns(),
             parserConfig.getBuildFileName(),
-            parserConfig.getDefaultIncludes());
+            parserConfig.getDefaultIncludes(),
+            DEFAULT_IGNORE_GLOBS);
       }
       JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootRepository.getFilesystem());
 
@@ -668,7 +693,8 @@ public final class Main {
               processManager,
               webServer,
               buckConfig,
-              fileHashCache));
+              fileHashCache,
+              actionGraphCache));
       parser.cleanCache();
       buildEventBus.post(
           CommandEvent.finished(
@@ -684,6 +710,9 @@ public final class Main {
       if (commandSemaphoreAcquired) {
         commandSemaphore.release(); // Allow another command to execute while outputting traces.
       }
+      if (!isDaemon) {
+        closeFileHashCache(fileHashCache); // The daemon's cache is closed along with the daemon.
+      }
       for (BuckEventListener eventListener : eventListeners) {
         try {
           eventListener.outputTrace(buildId);
@@ -765,6 +794,19 @@ public final class Main {
     };
   }
 
+  private static DefaultFileHashCache createFileHashCache(Repository repository) {
+    if (repository.getBuckConfig().getPersistentFileHashCacheEnabled()) {
+      return new PersistentFileHashCache(repository.getFilesystem());
+    }
+    return new DefaultFileHashCache(repository.getFilesystem());
+  }
+
+  private static void closeFileHashCache(DefaultFileHashCache fileHashCache) {
+    if (fileHashCache instanceof PersistentFileHashCache) {
+      ((PersistentFileHashCache) fileHashCache).close();
+    }
+  }
+
   /**
    * @return the client environment, which is either the process environment or the
    * environment sent to the daemon by the Nailgun client. This method should always be used
@@ -812,6 +854,14 @@ public final class Main {
     return daemon.getFileHashCache();
   }
 
+  private ActionGraphCache getActionGraphCacheFromDaemon(
+      Repository repository,
+      Clock clock)
+      throws IOException, InterruptedException {
+    Daemon daemon = getDaemon(repository, clock, objectMapper);
+    return daemon.getActionGraphCache();
+  }
+
   private Optional<WebServer> getWebServerIfDaemon(
       Optional<NGContext> context,
       Repository repository,
@@ -26,6 +26,7 @@ import com.facebook.buck.parser.BuildFileSpec;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.parser.TargetNodePredicateSpec;
 import com.facebook.buck.rules.ActionGraph;
+import com.facebook.buck.rules.ArtifactUploadQueue;
 import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.Label;
@@ -298,7 +299,8 @@ public class TestCommand extends BuildCommand {
         new TargetGraphToActionGraph(
             params.getBuckEventBus(),
             new BuildTargetNodeToBuildRuleTransformer(),
-            params.getFileHashCache());
+            params.getFileHashCache(),
+            params.getActionGraphCache());
     ActionGraph graph = targetGraphToActionGraph.apply(targetGraph);
 
     // Look up all of the test rules in the action graph.
@@ -314,6 +316,7 @@ public class TestCommand extends BuildCommand {
       printMatchingTestRules(params.getConsole(), testRules);
     }
 
+    Optional<ArtifactUploadQueue> uploadQueue = createArtifactUploadQueue(params);
     try (CommandThreadManager pool =
              new CommandThreadManager("Test", getConcurrencyLimit(params.getBuckConfig()))) {
       CachingBuildEngine cachingBuildEngine =
@@ -322,7 +325,8 @@ public class TestCommand extends BuildCommand {
               getBuildEngineMode().or(params.getBuckConfig().getBuildEngineMode()),
               new InputBasedRuleKeyBuilderFactory(
                   params.getFileHashCache(),
-                  new SourcePathResolver(targetGraphToActionGraph.getRuleResolver())));
+                  new SourcePathResolver(targetGraphToActionGraph.getRuleResolver())),
+              uploadQueue);
       try (Build build = createBuild(
           params.getBuckConfig(),
           graph,
@@ -344,6 +348,7 @@ public class TestCommand extends BuildCommand {
             isKeepGoing(),
             params.getConsole(),
             getPathToBuildReport(params.getBuckConfig()));
+        flushArtifactUploadQueue(uploadQueue);
         params.getBuckEventBus().post(BuildEvent.finished(getArguments(), exitCode));
         if (exitCode != 0) {
           return exitCode;
@@ -389,6 +394,10 @@ public class TestCommand extends BuildCommand {
           return 1;
         }
       }
+    } finally {
+      if (uploadQueue.isPresent()) {
+        uploadQueue.get().close();
+      }
     }
   }
 
@@ -116,7 +116,7 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     this.reportDir = reportDir;
     this.dexSplitStrategy = dexSplitStrategy;
     this.linearAllocLimit = linearAllocLimit;
-    this.dalvikStatsCache = new DalvikStatsCache();
+    this.dalvikStatsCache = new DalvikStatsCache(DalvikStatsStore.forProject(filesystem));
   }
 
   public static DalvikAwareZipSplitter splitZip(
@@ -165,6 +165,8 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     classpathTraverser.traverse(new ClasspathTraversal(inFiles, filesystem) {
       @Override
       public void visit(FileLike entry) throws IOException {
+        // Every class is needed by one of the passes, so start parsing them all now.
+        dalvikStatsCache.prefetch(entry);
         String relativePath = entry.getRelativePath();
         Preconditions.checkNotNull(primaryOut);
         if (requiredInPrimaryZip.apply(relativePath)) {
@@ -235,6 +237,7 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     }
     primaryOut.close();
     secondaryDexWriter.close();
+    dalvikStatsCache.save();
     return secondaryDexWriter.getFiles();
   }
 
@@ -17,43 +17,150 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.java.classes.FileLike;
-import com.google.common.collect.MapMaker;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.SharedExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * Cache to memoize results from DalvikStatsTool.
+ * <p>
+ * Stats are remembered by where each class was read from, for as long as the cache is used, and
+ * by the contents of each class in a {@link DalvikStatsStore}, across builds. Classes which the
+ * store doesn't know can be {@link #prefetch prefetched}, to be parsed on a pool of threads while
+ * the rest of the classpath is read.
  */
 class DalvikStatsCache {
 
-  private final ConcurrentMap<FileLike, DalvikStatsTool.Stats> cache;
+  private static final Logger LOG = Logger.get(DalvikStatsCache.class);
 
-  DalvikStatsCache() {
-    cache = new MapMaker().weakKeys().makeMap();
+  private static final Supplier<ListeningExecutorService> STATS_EXECUTOR_SERVICE =
+      SharedExecutors.perProcessor("dalvik-stats-%d");
+
+  /** Bounds how many classes are held in memory while they wait to be parsed. */
+  private static final int MAX_PENDING_CLASSES = 1024;
+
+  private final DalvikStatsStore store;
+  private final ListeningExecutorService executorService;
+  private final Semaphore pendingClasses = new Semaphore(MAX_PENDING_CLASSES);
+  private final ConcurrentMap<String, ListenableFuture<DalvikStatsTool.Stats>> cache =
+      Maps.newConcurrentMap();
+
+  DalvikStatsCache(DalvikStatsStore store) {
+    this(store, STATS_EXECUTOR_SERVICE.get());
+  }
+
+  @VisibleForTesting
+  DalvikStatsCache(DalvikStatsStore store, ListeningExecutorService executorService) {
+    this.store = store;
+    this.executorService = executorService;
+  }
+
+  /**
+   * Starts working out the stats of {@code entry} in the background. The contents of the entry are
+   * read right away, so it needn't be readable once this returns.
+   */
+  void prefetch(FileLike entry) throws IOException {
+    if (!isClass(entry) || cache.containsKey(getLocation(entry))) {
+      return;
+    }
+    final byte[] contents = readContents(entry);
+    pendingClasses.acquireUninterruptibly();
+    ListenableFuture<DalvikStatsTool.Stats> stats;
+    try {
+      stats = executorService.submit(
+          new Callable<DalvikStatsTool.Stats>() {
+            @Override
+            public DalvikStatsTool.Stats call() throws IOException {
+              try {
+                return computeStats(contents);
+              } finally {
+                pendingClasses.release();
+              }
+            }
+          });
+    } catch (RuntimeException e) {
+      pendingClasses.release();
+      throw e;
+    }
+    cache.putIfAbsent(getLocation(entry), stats);
   }
 
   DalvikStatsTool.Stats getStats(FileLike entry) {
     String name = entry.getRelativePath();
-    if (!name.endsWith(".class")) {
+    if (!isClass(entry)) {
       // Probably something like a pom.properties file in a JAR: this does not contribute
       // to the linear alloc size, so return zero.
       return DalvikStatsTool.Stats.ZERO;
     }
 
-    DalvikStatsTool.Stats stats = cache.get(entry);
-    if (stats != null) {
-      return stats;
-    }
-
     try {
-      stats = DalvikStatsTool.getEstimate(entry.getInput());
-      cache.put(entry, stats);
-      return stats;
+      ListenableFuture<DalvikStatsTool.Stats> stats = cache.get(getLocation(entry));
+      if (stats == null) {
+        DalvikStatsTool.Stats computed = computeStats(readContents(entry));
+        cache.put(getLocation(entry), Futures.immediateFuture(computed));
+        return computed;
+      }
+      return stats.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(String.format("Interrupted calculating size for %s.", name), e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(
+          String.format("Error calculating size for %s.", name),
+          e.getCause());
     } catch (IOException e) {
       throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
     } catch (RuntimeException e) {
       throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
     }
   }
+
+  /** Writes the stats of classes parsed since the last save for later builds. */
+  void save() {
+    try {
+      store.save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save dalvik stats.");
+    }
+  }
+
+  private DalvikStatsTool.Stats computeStats(byte[] contents) throws IOException {
+    HashCode hash = Hashing.sha1().hashBytes(contents);
+    DalvikStatsTool.Stats stats = store.get(hash);
+    if (stats == null) {
+      stats = DalvikStatsTool.getEstimate(new ByteArrayInputStream(contents));
+      store.put(hash, stats);
+    }
+    return stats;
+  }
+
+  private static boolean isClass(FileLike entry) {
+    return entry.getRelativePath().endsWith(".class");
+  }
+
+  private static String getLocation(FileLike entry) {
+    return entry.getContainer().getPath() + '!' + entry.getRelativePath();
+  }
+
+  private static byte[] readContents(FileLike entry) throws IOException {
+    try (InputStream in = entry.getInput()) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
 }
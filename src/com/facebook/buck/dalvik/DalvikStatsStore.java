@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The {@link DalvikStatsTool.Stats} of every class seen recently, keyed by a hash of the contents
+ * of the class, and kept in {@code buck-out} between builds so that unchanged classes needn't be
+ * parsed again.
+ * <p>
+ * The index is a compact binary file: a table of the distinct strings in the method references,
+ * followed by the hash, linear alloc estimate and method references of each class, with the
+ * references written as indexes into the table.
+ */
+class DalvikStatsStore {
+
+  private static final Logger LOG = Logger.get(DalvikStatsStore.class);
+
+  @VisibleForTesting
+  static final Path PATH = BuckConstant.BUCK_OUTPUT_PATH.resolve(".dalvik-stats");
+
+  private static final int MAGIC = 0xDA1F57A7;
+
+  /** Change this whenever {@link DalvikStatsTool} changes its estimates. */
+  private static final int VERSION = 1;
+
+  /**
+   * The most classes kept in the index. Classes used by this process are kept first, so that
+   * classes from old branches are eventually dropped.
+   */
+  @VisibleForTesting
+  static final int MAX_ENTRIES = 250000;
+
+  private static final ConcurrentMap<Path, DalvikStatsStore> STORES = Maps.newConcurrentMap();
+
+  private final Path indexPath;
+  private final ConcurrentMap<HashCode, DalvikStatsTool.Stats> stats = Maps.newConcurrentMap();
+  private final Set<HashCode> used = Sets.newConcurrentHashSet();
+
+  @GuardedBy("this")
+  private boolean loaded = false;
+
+  /** Whether stats have been added since the index was last read or written. */
+  private volatile boolean dirty = false;
+
+  @VisibleForTesting
+  DalvikStatsStore(Path indexPath) {
+    this.indexPath = indexPath;
+  }
+
+  /** @return the store shared by every build of the project in this process. */
+  static DalvikStatsStore forProject(ProjectFilesystem filesystem) {
+    Path indexPath = filesystem.resolve(PATH);
+    DalvikStatsStore store = STORES.get(indexPath);
+    if (store == null) {
+      STORES.putIfAbsent(indexPath, new DalvikStatsStore(indexPath));
+      store = STORES.get(indexPath);
+    }
+    return store;
+  }
+
+  @Nullable
+  DalvikStatsTool.Stats get(HashCode contents) {
+    ensureLoaded();
+    DalvikStatsTool.Stats result = stats.get(contents);
+    if (result != null) {
+      used.add(contents);
+    }
+    return result;
+  }
+
+  void put(HashCode contents, DalvikStatsTool.Stats result) {
+    ensureLoaded();
+    used.add(contents);
+    if (stats.put(contents, result) == null) {
+      dirty = true;
+    }
+  }
+
+  private synchronized void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    try (DataInputStream in = new DataInputStream(
+             new BufferedInputStream(Files.newInputStream(indexPath)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.debug("Ignoring %s, which was written by another version of buck.", indexPath);
+        return;
+      }
+      String[] strings = new String[in.readInt()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = in.readUTF();
+      }
+      int entries = in.readInt();
+      byte[] hash = new byte[in.readUnsignedByte()];
+      for (int i = 0; i < entries; i++) {
+        in.readFully(hash);
+        int estimate = in.readInt();
+        int references = in.readInt();
+        ImmutableSet.Builder<DalvikStatsTool.MethodReference> builder = ImmutableSet.builder();
+        for (int j = 0; j < references; j++) {
+          builder.add(
+              new DalvikStatsTool.MethodReference(
+                  strings[in.readInt()],
+                  strings[in.readInt()],
+                  strings[in.readInt()]));
+        }
+        stats.putIfAbsent(
+            HashCode.fromBytes(hash.clone()),
+            new DalvikStatsTool.Stats(estimate, builder.build()));
+      }
+    } catch (NoSuchFileException e) {
+      // No build has written the index yet.
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Ignoring unreadable dalvik stats in %s.", indexPath);
+    }
+  }
+
+  /** Writes the index, if stats have been added since it was read. */
+  synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+
+    List<Map.Entry<HashCode, DalvikStatsTool.Stats>> entries = Lists.newArrayList();
+    List<Map.Entry<HashCode, DalvikStatsTool.Stats>> unused = Lists.newArrayList();
+    for (Map.Entry<HashCode, DalvikStatsTool.Stats> entry : stats.entrySet()) {
+      if (used.contains(entry.getKey())) {
+        entries.add(entry);
+      } else {
+        unused.add(entry);
+      }
+    }
+    entries = Lists.newArrayList(
+        Iterables.limit(Iterables.concat(entries, unused), MAX_ENTRIES));
+
+    Map<String, Integer> strings = Maps.newLinkedHashMap();
+    for (Map.Entry<HashCode, DalvikStatsTool.Stats> entry : entries) {
+      for (DalvikStatsTool.MethodReference reference : entry.getValue().methodReferences) {
+        addString(strings, reference.className);
+        addString(strings, reference.methodName);
+        addString(strings, reference.methodDesc);
+      }
+    }
+
+    Files.createDirectories(indexPath.getParent());
+    Path tempPath = Files.createTempFile(indexPath.getParent(), ".dalvik-stats", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+          out.writeUTF(string);
+        }
+        out.writeInt(entries.size());
+        out.writeByte(entries.isEmpty() ? 0 : entries.get(0).getKey().bits() / 8);
+        for (Map.Entry<HashCode, DalvikStatsTool.Stats> entry : entries) {
+          out.write(entry.getKey().asBytes());
+          out.writeInt(entry.getValue().estimatedLinearAllocSize);
+          out.writeInt(entry.getValue().methodReferences.size());
+          for (DalvikStatsTool.MethodReference reference : entry.getValue().methodReferences) {
+            out.writeInt(strings.get(reference.className));
+            out.writeInt(strings.get(reference.methodName));
+            out.writeInt(strings.get(reference.methodDesc));
+          }
+        }
+      }
+      Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      dirty = true;
+      throw e;
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  private static void addString(Map<String, Integer> strings, String string) {
+    if (!strings.containsKey(string)) {
+      strings.put(string, strings.size());
+    }
+  }
+}
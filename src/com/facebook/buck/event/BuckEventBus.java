@@ -23,15 +23,24 @@ import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Supplier;
-import com.google.common.eventbus.EventBus;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Thin wrapper around guava event bus.
+ * Delivers events to the methods of registered listeners annotated with
+ * {@link com.google.common.eventbus.Subscribe}.
+ * <p>
+ * Events are delivered in the order they were posted, on the bus's own thread so that slow
+ * listeners don't hold up the build. Posting only appends the event to a lock-free queue: the
+ * first event posted while the queue is idle schedules a task which delivers every event queued
+ * until the queue is empty again, so a burst of events costs a single task.
  */
 public class BuckEventBus implements Closeable {
 
@@ -48,7 +57,20 @@ public class BuckEventBus implements Closeable {
 
   private final Clock clock;
   private final ExecutorService executorService;
-  private final EventBus eventBus;
+  private final Queue<BuckEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+  /** Whether a task delivering {@link #pendingEvents} has been scheduled and not yet finished. */
+  private final AtomicBoolean isDelivering = new AtomicBoolean(false);
+  private final Runnable deliverPendingEvents = new Runnable() {
+    @Override
+    public void run() {
+      deliverPendingEvents();
+    }
+  };
+  private final AtomicLong postedEventCount = new AtomicLong();
+  /** Only written by the thread delivering events. */
+  private volatile long deliveredEventCount = 0;
+  private volatile long maxQueueDepth = 0;
+  private final EventDispatcher dispatcher = new EventDispatcher();
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
@@ -69,20 +91,38 @@ public class BuckEventBus implements Closeable {
       int shutdownTimeoutMillis) {
     this.clock = clock;
     this.executorService = executorService;
-    this.eventBus = new EventBus("buck-build-events");
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = buildId;
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
   }
 
-  private void dispatch(final BuckEvent event) {
-    executorService.submit(
-        new Runnable() {
-          @Override
-          public void run() {
-            eventBus.post(event);
-          }
-        });
+  private void dispatch(BuckEvent event) {
+    postedEventCount.incrementAndGet();
+    pendingEvents.add(event);
+    if (isDelivering.compareAndSet(false, true)) {
+      executorService.execute(deliverPendingEvents);
+    }
+  }
+
+  private void deliverPendingEvents() {
+    do {
+      try {
+        long queueDepth = postedEventCount.get() - deliveredEventCount;
+        if (queueDepth > maxQueueDepth) {
+          maxQueueDepth = queueDepth;
+        }
+        BuckEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+          dispatcher.deliver(event);
+          deliveredEventCount++;
+        }
+      } finally {
+        // Otherwise no task would ever be scheduled again if delivery failed.
+        isDelivering.set(false);
+      }
+      // An event posted after the queue was found empty, but before the flag was cleared, would
+      // otherwise wait for the next event to be posted.
+    } while (!pendingEvents.isEmpty() && isDelivering.compareAndSet(false, true));
   }
 
   public void post(BuckEvent event) {
@@ -108,17 +148,20 @@ public class BuckEventBus implements Closeable {
     dispatch(event);
   }
 
-  public void register(Object object) {
-    eventBus.register(object);
+  /**
+   * Post an event which has already been configured, as a test of a listener may need to.
+   */
+  @VisibleForTesting
+  void postWithoutConfiguring(BuckEvent event) {
+    dispatch(event);
   }
 
-  public void unregister(Object object) {
-    eventBus.unregister(object);
+  public void register(Object object) {
+    dispatcher.register(object);
   }
 
-  @VisibleForTesting
-  EventBus getEventBus() {
-    return eventBus;
+  public void unregister(Object object) {
+    dispatcher.unregister(object);
   }
 
   @VisibleForTesting
@@ -131,6 +174,16 @@ public class BuckEventBus implements Closeable {
     return threadIdSupplier;
   }
 
+  /** @return how many events have been posted but not yet delivered to the listeners. */
+  public long getQueueDepth() {
+    return postedEventCount.get() - deliveredEventCount;
+  }
+
+  /** @return the most events which have been waiting to be delivered at once. */
+  public long getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
   /**
    * An id that every event posted to this event bus will share. For long-running processes, like
    * the daemon, the build id makes it possible to distinguish when events come from different
@@ -144,9 +197,9 @@ public class BuckEventBus implements Closeable {
 
   /**
    * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} is called
-   * to wait for events which have been posted, but which have been queued by the
-   * {@link EventBus}, to be delivered. This allows listeners to record or report as much
-   * information as possible. This aids debugging when close is called during exception processing.
+   * to wait for events which have been posted, but which are still queued, to be delivered. This
+   * allows listeners to record or report as much information as possible. This aids debugging
+   * when close is called during exception processing.
    */
   @Override
   public void close() throws IOException {
@@ -160,6 +213,11 @@ public class BuckEventBus implements Closeable {
           executorService.toString()));
         executorService.shutdownNow();
       }
+      LOG.debug(
+          "Delivered %d of %d events, with at most %d waiting to be delivered.",
+          deliveredEventCount,
+          postedEventCount.get(),
+          maxQueueDepth);
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Delivers events to the methods of listeners annotated with {@link Subscribe}, as Guava's
+ * {@link com.google.common.eventbus.EventBus} would.
+ * <p>
+ * Guava looks up the subscribers of every supertype of an event each time it's posted, queues the
+ * event per thread, and locks each subscriber while delivering it. Events are only delivered by
+ * one thread at a time here, so none of that is needed: the subscribers of each class of event are
+ * worked out the first time it's delivered, and each event is handed straight to them.
+ */
+class EventDispatcher {
+
+  private static final Logger LOG = Logger.get(EventDispatcher.class);
+
+  /** Every subscriber, in the order they were registered. Guarded by this. */
+  private final List<Subscriber> subscribers = Lists.newArrayList();
+
+  /** The subscribers of each class of event. Cleared whenever a listener comes or goes. */
+  private final ConcurrentMap<Class<?>, ImmutableList<Subscriber>> subscribersByEventClass =
+      Maps.newConcurrentMap();
+
+  public synchronized void register(Object listener) {
+    for (Method method : findSubscriberMethods(listener.getClass())) {
+      Subscriber subscriber = new Subscriber(listener, method);
+      if (!subscribers.contains(subscriber)) {
+        subscribers.add(subscriber);
+      }
+    }
+    subscribersByEventClass.clear();
+  }
+
+  public synchronized void unregister(Object listener) {
+    for (Method method : findSubscriberMethods(listener.getClass())) {
+      if (!subscribers.remove(new Subscriber(listener, method))) {
+        throw new IllegalArgumentException(
+            "missing event subscriber for an annotated method. Is " + listener + " registered?");
+      }
+    }
+    subscribersByEventClass.clear();
+  }
+
+  /**
+   * Delivers {@code event} to every subscriber to its class or a supertype. Must not be called by
+   * more than one thread at a time.
+   */
+  public void deliver(Object event) {
+    for (Subscriber subscriber : getSubscribers(event.getClass())) {
+      subscriber.deliver(event);
+    }
+  }
+
+  private ImmutableList<Subscriber> getSubscribers(Class<?> eventClass) {
+    ImmutableList<Subscriber> found = subscribersByEventClass.get(eventClass);
+    if (found != null) {
+      return found;
+    }
+    synchronized (this) {
+      // Like Guava, deliver to the subscribers of the event's own class before its supertypes.
+      ImmutableList.Builder<Subscriber> builder = ImmutableList.builder();
+      for (Class<?> type : TypeToken.of(eventClass).getTypes().rawTypes()) {
+        for (Subscriber subscriber : subscribers) {
+          if (subscriber.eventClass.equals(type)) {
+            builder.add(subscriber);
+          }
+        }
+      }
+      found = builder.build();
+      subscribersByEventClass.put(eventClass, found);
+      return found;
+    }
+  }
+
+  /** Finds the public methods annotated with {@link Subscribe}, as Guava does. */
+  private static Iterable<Method> findSubscriberMethods(Class<?> listenerClass) {
+    Map<List<Object>, Method> methods = Maps.newLinkedHashMap();
+    for (Class<?> type : TypeToken.of(listenerClass).getTypes().rawTypes()) {
+      for (Method method : type.getMethods()) {
+        if (!method.isAnnotationPresent(Subscribe.class) || method.isBridge()) {
+          continue;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+            parameterTypes.length == 1,
+            "Method %s has @Subscribe annotation, but requires %s arguments. " +
+                "Event subscriber methods must require a single argument.",
+            method,
+            parameterTypes.length);
+        List<Object> signature = Lists.<Object>newArrayList(method.getName());
+        signature.addAll(Arrays.asList(parameterTypes));
+        if (!methods.containsKey(signature)) {
+          methods.put(signature, method);
+        }
+      }
+    }
+    return methods.values();
+  }
+
+  private static class Subscriber {
+    private final Object listener;
+    private final Method method;
+    private final Class<?> eventClass;
+
+    private Subscriber(Object listener, Method method) {
+      this.listener = listener;
+      this.method = method;
+      this.eventClass = method.getParameterTypes()[0];
+      method.setAccessible(true);
+    }
+
+    private void deliver(Object event) {
+      try {
+        method.invoke(listener, event);
+      } catch (InvocationTargetException e) {
+        // Like Guava's EventBus, even an Error mustn't keep the event from the other subscribers.
+        LOG.error(e.getCause(), "Could not deliver %s to %s.", event, method);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Subscriber)) {
+        return false;
+      }
+      Subscriber that = (Subscriber) other;
+      return listener == that.listener && method.equals(that.method);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(listener) + method.hashCode();
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable directed graph which numbers its nodes and stores its edges in compressed sparse
+ * row form: the sinks of the edges from each node are stored next to each other in a single
+ * {@code int[]}, as are the sources of the edges to each node. Compared to a multimap of nodes per
+ * direction, this takes a fraction of the memory and keeps the edges of a node together, which
+ * matters for the large graphs the daemon holds on to.
+ * @param <T> the type of object stored as nodes in this graph
+ */
+public final class CompactDirectedGraph<T> implements TraversableGraph<T> {
+
+  /** Numbers the nodes, in the order in which they are iterated. */
+  private final ImmutableSet<T> nodes;
+  private final ImmutableMap<T, Integer> nodeIds;
+
+  /** The sinks of the edges from node {@code i} are at {@code [outgoingOffsets[i], [i + 1])}. */
+  private final int[] outgoingOffsets;
+  private final int[] outgoingEdges;
+  /** The sources of the edges to node {@code i} are at {@code [incomingOffsets[i], [i + 1])}. */
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+
+  private int hashCode;
+
+  private CompactDirectedGraph(
+      ImmutableSet<T> nodes,
+      ImmutableMap<T, Integer> nodeIds,
+      int[] outgoingOffsets,
+      int[] outgoingEdges) {
+    this.nodes = nodes;
+    this.nodeIds = nodeIds;
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingEdges = outgoingEdges;
+
+    // Count the edges into each node, then fill in their sources in order.
+    int nodeCount = nodes.size();
+    incomingOffsets = new int[nodeCount + 1];
+    for (int sink : outgoingEdges) {
+      incomingOffsets[sink + 1]++;
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      incomingOffsets[i + 1] += incomingOffsets[i];
+    }
+    incomingEdges = new int[outgoingEdges.length];
+    int[] nextIncoming = Arrays.copyOf(incomingOffsets, nodeCount);
+    for (int source = 0; source < nodeCount; source++) {
+      for (int edge = outgoingOffsets[source]; edge < outgoingOffsets[source + 1]; edge++) {
+        incomingEdges[nextIncoming[outgoingEdges[edge]]++] = source;
+      }
+    }
+  }
+
+  /** @return a compact copy of {@code graph}. */
+  public static <T> CompactDirectedGraph<T> copyOf(MutableDirectedGraph<T> graph) {
+    ImmutableSet<T> nodes = graph.createImmutableCopyOfNodes();
+    ImmutableMap.Builder<T, Integer> nodeIds = ImmutableMap.builder();
+    int nodeCount = 0;
+    for (T node : nodes) {
+      nodeIds.put(node, nodeCount++);
+    }
+    ImmutableMap<T, Integer> ids = nodeIds.build();
+
+    int[] outgoingOffsets = new int[nodeCount + 1];
+    int[] outgoingEdges = new int[graph.getEdgeCount()];
+    int edgeCount = 0;
+    ImmutableList<T> nodeList = nodes.asList();
+    for (int source = 0; source < nodeCount; source++) {
+      outgoingOffsets[source] = edgeCount;
+      for (T sink : graph.getOutgoingNodesFor(nodeList.get(source))) {
+        // Removing a node leaves the edges to it behind, so skip those.
+        Integer sinkId = ids.get(sink);
+        if (sinkId != null) {
+          outgoingEdges[edgeCount++] = sinkId;
+        }
+      }
+    }
+    outgoingOffsets[nodeCount] = edgeCount;
+    if (edgeCount < outgoingEdges.length) {
+      outgoingEdges = Arrays.copyOf(outgoingEdges, edgeCount);
+    }
+    return new CompactDirectedGraph<>(nodes, ids, outgoingOffsets, outgoingEdges);
+  }
+
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  public int getEdgeCount() {
+    return outgoingEdges.length;
+  }
+
+  public ImmutableSet<T> getNodes() {
+    return nodes;
+  }
+
+  /** @return an unmodifiable view of the sinks of the edges from {@code source}. */
+  @Override
+  public Set<T> getOutgoingNodesFor(T source) {
+    Integer id = nodeIds.get(source);
+    if (id == null) {
+      return ImmutableSet.of();
+    }
+    return new EdgeSlice(outgoingEdges, outgoingOffsets[id], outgoingOffsets[id + 1]);
+  }
+
+  /** @return an unmodifiable view of the sources of the edges to {@code sink}. */
+  @Override
+  public Set<T> getIncomingNodesFor(T sink) {
+    Integer id = nodeIds.get(sink);
+    if (id == null) {
+      return ImmutableSet.of();
+    }
+    return new EdgeSlice(incomingEdges, incomingOffsets[id], incomingOffsets[id + 1]);
+  }
+
+  @Override
+  public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
+    return nodesWithNoEdges(outgoingOffsets);
+  }
+
+  @Override
+  public ImmutableSet<T> getNodesWithNoIncomingEdges() {
+    return nodesWithNoEdges(incomingOffsets);
+  }
+
+  /**
+   * The nodes at the other end of the edges {@code [from, to)} of {@code edges}, looked up as they
+   * are iterated. A node has no more than one edge to another, so they form a set.
+   */
+  private class EdgeSlice extends AbstractSet<T> {
+    private final int[] edges;
+    private final int from;
+    private final int to;
+
+    private EdgeSlice(int[] edges, int from, int to) {
+      this.edges = edges;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+
+    @Override
+    public boolean contains(Object node) {
+      Integer id = nodeIds.get(node);
+      if (id == null) {
+        return false;
+      }
+      for (int edge = from; edge < to; edge++) {
+        if (edges[edge] == id) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      final ImmutableList<T> nodeList = nodes.asList();
+      return new UnmodifiableIterator<T>() {
+        private int edge = from;
+
+        @Override
+        public boolean hasNext() {
+          return edge < to;
+        }
+
+        @Override
+        public T next() {
+          if (edge >= to) {
+            throw new NoSuchElementException();
+          }
+          return nodeList.get(edges[edge++]);
+        }
+      };
+    }
+  }
+
+  private ImmutableSet<T> nodesWithNoEdges(int[] offsets) {
+    ImmutableList<T> nodeList = nodes.asList();
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int node = 0; node < nodeList.size(); node++) {
+      if (offsets[node] == offsets[node + 1]) {
+        builder.add(nodeList.get(node));
+      }
+    }
+    return builder.build();
+  }
+
+  /** @return the nodes in topological order, deps first, or null if the graph has a cycle. */
+  int[] sortTopologically() {
+    int nodeCount = nodes.size();
+    int[] remainingOutDegrees = new int[nodeCount];
+    int[] sorted = new int[nodeCount];
+    int sortedCount = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      remainingOutDegrees[node] = outgoingOffsets[node + 1] - outgoingOffsets[node];
+      if (remainingOutDegrees[node] == 0) {
+        sorted[sortedCount++] = node;
+      }
+    }
+    for (int next = 0; next < sortedCount; next++) {
+      int node = sorted[next];
+      for (int edge = incomingOffsets[node]; edge < incomingOffsets[node + 1]; edge++) {
+        if (--remainingOutDegrees[incomingEdges[edge]] == 0) {
+          sorted[sortedCount++] = incomingEdges[edge];
+        }
+      }
+    }
+    return sortedCount == nodeCount ? sorted : null;
+  }
+
+  /**
+   * Calls {@code levelVisitor} with the nodes in each level of a topological sort, deps first: the
+   * first level holds the nodes without outgoing edges, and each later level the nodes whose
+   * outgoing edges all go to earlier levels. Nodes on a cycle are never visited.
+   */
+  void visitTopologicalLevels(LevelVisitor<T> levelVisitor) {
+    int nodeCount = nodes.size();
+    ImmutableList<T> nodeList = nodes.asList();
+    int[] remainingOutDegrees = new int[nodeCount];
+    int[] level = new int[nodeCount];
+    int levelSize = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      remainingOutDegrees[node] = outgoingOffsets[node + 1] - outgoingOffsets[node];
+      if (remainingOutDegrees[node] == 0) {
+        level[levelSize++] = node;
+      }
+    }
+    int[] nextLevel = new int[nodeCount];
+    while (levelSize > 0) {
+      int nextLevelSize = 0;
+      for (int i = 0; i < levelSize; i++) {
+        int node = level[i];
+        levelVisitor.visit(nodeList.get(node));
+        for (int edge = incomingOffsets[node]; edge < incomingOffsets[node + 1]; edge++) {
+          if (--remainingOutDegrees[incomingEdges[edge]] == 0) {
+            nextLevel[nextLevelSize++] = incomingEdges[edge];
+          }
+        }
+      }
+      levelVisitor.endLevel();
+      int[] swap = level;
+      level = nextLevel;
+      nextLevel = swap;
+      levelSize = nextLevelSize;
+    }
+  }
+
+  interface LevelVisitor<T> {
+    void visit(T node);
+    void endLevel();
+  }
+
+  public boolean isAcyclic() {
+    return sortTopologically() != null;
+  }
+
+  /**
+   * @return the strongly connected components of the graph with more than one node, and the
+   *     nodes with an edge to themselves.
+   */
+  public ImmutableSet<ImmutableSet<T>> findCycles() {
+    if (isAcyclic()) {
+      return ImmutableSet.of();
+    }
+
+    // An iterative version of Tarjan's algorithm, so that long chains of deps can't overflow the
+    // stack: http://en.wikipedia.org/wiki/Tarjan%27s_strongly_connected_components_algorithm
+    int nodeCount = nodes.size();
+    ImmutableList<T> nodeList = nodes.asList();
+    int[] indexes = new int[nodeCount];
+    Arrays.fill(indexes, -1);
+    int[] lowlinks = new int[nodeCount];
+    boolean[] onStack = new boolean[nodeCount];
+    int[] stack = new int[nodeCount];
+    int stackSize = 0;
+    // The path being explored, and the next edge to follow from each node on it.
+    int[] path = new int[nodeCount];
+    int[] nextEdges = new int[nodeCount];
+    int index = 0;
+    ImmutableSet.Builder<ImmutableSet<T>> cycles = ImmutableSet.builder();
+
+    for (int root = 0; root < nodeCount; root++) {
+      if (indexes[root] != -1) {
+        continue;
+      }
+      int pathSize = 0;
+      path[pathSize] = root;
+      nextEdges[pathSize++] = outgoingOffsets[root];
+      indexes[root] = lowlinks[root] = index++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+
+      while (pathSize > 0) {
+        int node = path[pathSize - 1];
+        if (nextEdges[pathSize - 1] < outgoingOffsets[node + 1]) {
+          int sink = outgoingEdges[nextEdges[pathSize - 1]++];
+          if (indexes[sink] == -1) {
+            path[pathSize] = sink;
+            nextEdges[pathSize++] = outgoingOffsets[sink];
+            indexes[sink] = lowlinks[sink] = index++;
+            stack[stackSize++] = sink;
+            onStack[sink] = true;
+          } else if (onStack[sink]) {
+            lowlinks[node] = Math.min(lowlinks[node], indexes[sink]);
+          }
+          continue;
+        }
+
+        pathSize--;
+        if (pathSize > 0) {
+          int parent = path[pathSize - 1];
+          lowlinks[parent] = Math.min(lowlinks[parent], lowlinks[node]);
+        }
+        if (lowlinks[node] == indexes[node]) {
+          ImmutableSet.Builder<T> component = ImmutableSet.builder();
+          int componentSize = 0;
+          int member;
+          do {
+            member = stack[--stackSize];
+            onStack[member] = false;
+            component.add(nodeList.get(member));
+            componentSize++;
+          } while (member != node);
+          if (componentSize > 1 || hasEdge(node, node)) {
+            cycles.add(component.build());
+          }
+        }
+      }
+    }
+    return cycles.build();
+  }
+
+  private boolean hasEdge(int source, int sink) {
+    for (int edge = outgoingOffsets[source]; edge < outgoingOffsets[source + 1]; edge++) {
+      if (outgoingEdges[edge] == sink) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Graphs are equal if they have the same nodes and edges, however they are numbered. */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof CompactDirectedGraph)) {
+      return false;
+    }
+    CompactDirectedGraph<?> that = (CompactDirectedGraph<?>) other;
+    if (this.hashCode() != that.hashCode() ||
+        this.getEdgeCount() != that.getEdgeCount() ||
+        !this.nodes.equals(that.nodes)) {
+      return false;
+    }
+    ImmutableList<T> nodeList = nodes.asList();
+    for (int source = 0; source < nodeList.size(); source++) {
+      Integer thatSource = that.nodeIds.get(nodeList.get(source));
+      if (thatSource == null ||
+          outgoingOffsets[source + 1] - outgoingOffsets[source] !=
+              that.outgoingOffsets[thatSource + 1] - that.outgoingOffsets[thatSource]) {
+        return false;
+      }
+      for (int edge = outgoingOffsets[source]; edge < outgoingOffsets[source + 1]; edge++) {
+        Integer thatSink = that.nodeIds.get(nodeList.get(outgoingEdges[edge]));
+        if (thatSink == null || !that.hasEdge(thatSource, thatSink)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // Racy, but every thread computes the same value.
+    int result = hashCode;
+    if (result == 0) {
+      ImmutableList<T> nodeList = nodes.asList();
+      result = nodes.hashCode();
+      for (int source = 0; source < nodeList.size(); source++) {
+        int sourceHash = nodeList.get(source).hashCode();
+        for (int edge = outgoingOffsets[source]; edge < outgoingOffsets[source + 1]; edge++) {
+          // Summed, so that the order of the nodes doesn't matter.
+          result += 31 * sourceHash ^ nodeList.get(outgoingEdges[edge]).hashCode();
+        }
+      }
+      hashCode = result;
+    }
+    return result;
+  }
+}
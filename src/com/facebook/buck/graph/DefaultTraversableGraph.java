@@ -17,23 +17,17 @@
 package com.facebook.buck.graph;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
 
-import java.util.Objects;
+import java.util.Set;
 
 public class DefaultTraversableGraph<T> implements TraversableGraph<T> {
 
-  private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+  private final CompactDirectedGraph<T> graph;
   private final boolean isAcyclic;
 
   public DefaultTraversableGraph(MutableDirectedGraph<T> graph) {
-    this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
-    this.isAcyclic = graph.isAcyclic();
+    this.graph = CompactDirectedGraph.copyOf(graph);
+    this.isAcyclic = this.graph.isAcyclic();
   }
 
   public boolean isAcyclic() {
@@ -41,28 +35,32 @@ public class DefaultTraversableGraph<T> implements TraversableGraph<T> {
   }
 
   @Override
-  public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+  public Set<T> getOutgoingNodesFor(T source) {
+    return graph.getOutgoingNodesFor(source);
   }
 
   @Override
-  public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+  public Set<T> getIncomingNodesFor(T sink) {
+    return graph.getIncomingNodesFor(sink);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return graph.getNodesWithNoOutgoingEdges();
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return graph.getNodesWithNoIncomingEdges();
   }
 
   /** @return an unmodifiable view of the nodes in this graph */
   public ImmutableSet<T> getNodes() {
-    return nodes;
+    return graph.getNodes();
+  }
+
+  CompactDirectedGraph<T> getCompactGraph() {
+    return graph;
   }
 
   @Override
@@ -72,13 +70,11 @@ public class DefaultTraversableGraph<T> implements TraversableGraph<T> {
     }
 
     DefaultTraversableGraph<?> that = (DefaultTraversableGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes) &&
-        Objects.equals(this.outgoingEdges, that.outgoingEdges) &&
-        Objects.equals(this.incomingEdges, that.incomingEdges);
+    return this.graph.equals(that.graph);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    return graph.hashCode();
   }
 }
@@ -18,13 +18,15 @@ package com.facebook.buck.graph;
 
 import com.google.common.collect.ImmutableSet;
 
+import java.util.Set;
+
 public interface DirectedAcyclicGraph<T> extends TraversableGraph<T> {
 
   @Override
-  public ImmutableSet<T> getOutgoingNodesFor(T source);
+  public Set<T> getOutgoingNodesFor(T source);
 
   @Override
-  public ImmutableSet<T> getIncomingNodesFor(T sink);
+  public Set<T> getIncomingNodesFor(T sink);
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges();
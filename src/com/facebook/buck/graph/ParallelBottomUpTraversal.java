@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Like {@link AbstractBottomUpTraversal}, every node is visited after every node to which it has
+ * an outgoing edge, but nodes which don't depend on each other are visited concurrently on an
+ * {@link Executor}. {@link #visit(Object)} must therefore be safe to call from several threads at
+ * once. Visiting a node happens-before visiting the nodes with edges to it, so the results of
+ * visiting a node's deps may be read without further synchronization.
+ * <p>
+ * On a {@link java.util.concurrent.ForkJoinPool}, the nodes made ready by visiting a node are
+ * queued on the visiting thread's own deque, and idle threads steal from the others.
+ */
+public abstract class ParallelBottomUpTraversal<T> {
+
+  private final TraversableGraph<T> graph;
+  private final Executor executor;
+
+  /** How many of each node's outgoing nodes are left to visit, once one has been visited. */
+  private final ConcurrentMap<T, AtomicInteger> remainingOutDegrees = new ConcurrentHashMap<>();
+  /** Nodes which are ready to visit, or being visited. */
+  private final AtomicInteger pendingNodes = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  public ParallelBottomUpTraversal(TraversableGraph<T> graph, Executor executor) {
+    this.graph = graph;
+    this.executor = executor;
+  }
+
+  /**
+   * Visits every node of the graph, returning once they have all been visited. If visiting a node
+   * fails, no more nodes are visited, and the failure is thrown once the nodes being visited are
+   * done.
+   */
+  public final void traverse() throws IOException, InterruptedException {
+    List<T> leaves = Lists.newArrayList(graph.getNodesWithNoOutgoingEdges());
+    if (leaves.isEmpty()) {
+      return;
+    }
+    pendingNodes.set(leaves.size());
+    for (T leaf : leaves) {
+      executor.execute(new VisitTask(leaf));
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+      throw e;
+    }
+
+    Throwable thrown = failure.get();
+    if (thrown != null) {
+      Throwables.propagateIfInstanceOf(thrown, IOException.class);
+      Throwables.propagateIfInstanceOf(thrown, InterruptedException.class);
+      throw Throwables.propagate(thrown);
+    }
+  }
+
+  public abstract void visit(T node) throws IOException, InterruptedException;
+
+  private class VisitTask implements Runnable {
+    private final T node;
+
+    public VisitTask(T node) {
+      this.node = node;
+    }
+
+    @Override
+    public void run() {
+      T next = node;
+      while (next != null) {
+        next = visitAndScheduleReadyNodes(next);
+      }
+    }
+
+    /** @return a node which became ready to visit, for this thread to visit next. */
+    private T visitAndScheduleReadyNodes(T node) {
+      if (failure.get() == null) {
+        try {
+          visit(node);
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      }
+      if (failure.get() != null) {
+        // Don't make any more nodes ready, so that the traversal finishes with the nodes which
+        // are already being visited.
+        if (pendingNodes.decrementAndGet() == 0) {
+          done.countDown();
+        }
+        return null;
+      }
+
+      T next = null;
+      for (T candidate : graph.getIncomingNodesFor(node)) {
+        if (decrementRemainingOutDegree(candidate) == 0) {
+          pendingNodes.incrementAndGet();
+          if (next == null) {
+            next = candidate;
+          } else {
+            executor.execute(new VisitTask(candidate));
+          }
+        }
+      }
+      if (pendingNodes.decrementAndGet() == 0) {
+        done.countDown();
+      }
+      return next;
+    }
+
+    private int decrementRemainingOutDegree(T candidate) {
+      AtomicInteger remaining = remainingOutDegrees.get(candidate);
+      if (remaining == null) {
+        AtomicInteger outDegree =
+            new AtomicInteger(Iterables.size(graph.getOutgoingNodesFor(candidate)));
+        remaining = remainingOutDegrees.putIfAbsent(candidate, outDegree);
+        if (remaining == null) {
+          remaining = outDegree;
+        }
+      }
+      return remaining.decrementAndGet();
+    }
+  }
+}
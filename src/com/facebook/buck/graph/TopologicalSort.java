@@ -36,6 +36,17 @@ public class TopologicalSort {
   public static <T extends Comparable<?>> ImmutableList<T> sort(
       TraversableGraph<T> graph,
       final Predicate<T> inclusionPredicate) {
+    CompactDirectedGraph<T> compactGraph = null;
+    if (graph instanceof DefaultTraversableGraph) {
+      compactGraph = ((DefaultTraversableGraph<T>) graph).getCompactGraph();
+    } else if (graph instanceof CompactDirectedGraph) {
+      compactGraph = (CompactDirectedGraph<T>) graph;
+    } else if (graph instanceof MutableDirectedGraph) {
+      compactGraph = CompactDirectedGraph.copyOf((MutableDirectedGraph<T>) graph);
+    }
+    if (compactGraph != null) {
+      return sort(compactGraph, inclusionPredicate);
+    }
 
     // AtomicInteger is used to decrement the integer value in-place.
     Map<T, AtomicInteger> effectiveOutDegreesOfExplorableNodes = Maps.newHashMap();
@@ -82,4 +93,32 @@ public class TopologicalSort {
 
     return toReturn.build();
   }
+
+  /**
+   * Sorts a {@link CompactDirectedGraph} through its node numbers, which avoids the maps and sets
+   * needed to track the nodes of other graphs.
+   */
+  private static <T extends Comparable<?>> ImmutableList<T> sort(
+      CompactDirectedGraph<T> graph,
+      final Predicate<T> inclusionPredicate) {
+    final ImmutableList.Builder<T> toReturn = ImmutableList.builder();
+    graph.visitTopologicalLevels(
+        new CompactDirectedGraph.LevelVisitor<T>() {
+          private Set<T> level = Sets.newTreeSet();
+
+          @Override
+          public void visit(T node) {
+            if (inclusionPredicate.apply(node)) {
+              level.add(node);
+            }
+          }
+
+          @Override
+          public void endLevel() {
+            toReturn.addAll(level);
+            level = Sets.newTreeSet();
+          }
+        });
+    return toReturn.build();
+  }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.httpserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.MediaType;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An in-memory implementation of the HTTP cache API, including its batch requests, which stands in
+ * for a real cache server in tests. Artifacts are kept exactly as they were uploaded, since the
+ * format of an artifact is the client's business.
+ */
+public class ArtifactCacheHandler extends AbstractHandler {
+
+  static final Pattern ARTIFACT_PATTERN = Pattern.compile("/artifact/key/([0-9a-zA-Z]+)");
+  static final String CONTAINS_PATH = "/artifacts/contains";
+  static final String FETCH_PATH = "/artifacts/fetch";
+
+  private final Map<String, byte[]> artifacts = Maps.newConcurrentMap();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final boolean supportsBatchRequests;
+
+  public ArtifactCacheHandler() {
+    this(/* supportsBatchRequests */ true);
+  }
+
+  /**
+   * @param supportsBatchRequests if false, batch requests are answered with a 404, like a server
+   *     which predates them.
+   */
+  public ArtifactCacheHandler(boolean supportsBatchRequests) {
+    this.supportsBatchRequests = supportsBatchRequests;
+  }
+
+  /** @return the number of requests handled so far, so tests can check requests are batched. */
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  @Override
+  public void handle(String target,
+      Request baseRequest,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException, ServletException {
+    requestCount.incrementAndGet();
+    String method = baseRequest.getMethod();
+    Matcher matcher = ARTIFACT_PATTERN.matcher(target);
+    if (matcher.matches() && "GET".equals(method)) {
+      doGet(matcher.group(1), response);
+    } else if (matcher.matches() && "PUT".equals(method)) {
+      artifacts.put(matcher.group(1), readBody(request));
+      response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    } else if (supportsBatchRequests && CONTAINS_PATH.equals(target) && "POST".equals(method)) {
+      doContains(request, response);
+    } else if (supportsBatchRequests && FETCH_PATH.equals(target) && "POST".equals(method)) {
+      doFetch(request, response);
+    } else {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    }
+    response.flushBuffer();
+    baseRequest.setHandled(true);
+  }
+
+  private void doGet(String key, HttpServletResponse response) throws IOException {
+    byte[] artifact = artifacts.get(key);
+    if (artifact == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(MediaType.OCTET_STREAM.toString());
+    response.getOutputStream().write(artifact);
+  }
+
+  private void doContains(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    ImmutableList<String> keys = readKeys(request);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(MediaType.OCTET_STREAM.toString());
+    DataOutputStream output = new DataOutputStream(response.getOutputStream());
+    for (String key : keys) {
+      output.writeBoolean(artifacts.containsKey(key));
+    }
+    output.flush();
+  }
+
+  private void doFetch(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    ImmutableList<String> keys = readKeys(request);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(MediaType.OCTET_STREAM.toString());
+    DataOutputStream output = new DataOutputStream(response.getOutputStream());
+    for (String key : keys) {
+      byte[] artifact = artifacts.get(key);
+      output.writeBoolean(artifact != null);
+      if (artifact != null) {
+        output.write(artifact);
+      }
+    }
+    output.flush();
+  }
+
+  private static ImmutableList<String> readKeys(HttpServletRequest request) throws IOException {
+    DataInputStream input = new DataInputStream(request.getInputStream());
+    int count = input.readInt();
+    ImmutableList.Builder<String> keys = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      keys.add(input.readUTF());
+    }
+    return keys.build();
+  }
+
+  private static byte[] readBody(HttpServletRequest request) throws IOException {
+    try (InputStream input = request.getInputStream()) {
+      return ByteStreams.toByteArray(input);
+    }
+  }
+}
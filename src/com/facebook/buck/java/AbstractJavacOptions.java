@@ -68,6 +68,16 @@ abstract class AbstractJavacOptions implements RuleKeyAppendable {
   @VisibleForTesting
   abstract String getTargetLevel();
 
+  /**
+   * Whether libraries may recompile just the sources affected by a change, keeping the rest of the
+   * classes from their last build. The classes come out the same either way, so this isn't part of
+   * the rule key.
+   */
+  @Value.Default
+  public boolean isIncremental() {
+    return false;
+  }
+
   @Value.Default
   public AnnotationProcessingParams getAnnotationProcessingParams() {
     return AnnotationProcessingParams.EMPTY;
@@ -208,6 +218,7 @@ abstract class AbstractJavacOptions implements RuleKeyAppendable {
 
     builder.setVerbose(options.isVerbose());
     builder.setProductionBuild(options.isProductionBuild());
+    builder.setIncremental(options.isIncremental());
 
     builder.setProcessExecutor(options.getProcessExecutor());
     builder.setJavacPath(options.getJavacPath());
@@ -24,20 +24,48 @@ import com.facebook.buck.rules.BuildableContext;
 import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.util.concurrent.SharedExecutors;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
 
+/**
+ * Calculates the ABI key of a jar or directory of classes from the stubs of its classes, which
+ * only change when the members other classes can see do. The stub jar is only written when a path
+ * for it is given.
+ */
 public class CalculateAbiStep implements Step {
 
+  /** Stubs the classes of large jars on several threads. */
+  private static final Supplier<ListeningExecutorService> STUB_EXECUTOR_SERVICE =
+      SharedExecutors.perProcessor("calculate-abi-%d");
+
   private final BuildableContext buildableContext;
   private final Path binaryJar;
-  private final Path abiJar;
+  private final Optional<Path> abiJar;
+
+  /** Calculates the ABI key of {@code binaryJar} without writing a stub jar. */
+  public CalculateAbiStep(
+      BuildableContext buildableContext,
+      Path binaryJar) {
+    this(buildableContext, binaryJar, Optional.<Path>absent());
+  }
 
+  /** Calculates the ABI key of {@code binaryJar}, writing its stub jar to {@code abiJar}. */
   public CalculateAbiStep(
       BuildableContext buildableContext,
       Path binaryJar,
       Path abiJar) {
+    this(buildableContext, binaryJar, Optional.of(abiJar));
+  }
+
+  private CalculateAbiStep(
+      BuildableContext buildableContext,
+      Path binaryJar,
+      Optional<Path> abiJar) {
     this.buildableContext = buildableContext;
     this.binaryJar = binaryJar;
     this.abiJar = abiJar;
@@ -45,39 +73,39 @@ public class CalculateAbiStep implements Step {
 
   @Override
   public int execute(ExecutionContext context) {
-    String fileSha1;
+    String abiHash;
     try {
-      Path out = getPathToHash(context, buildableContext);
-
-      fileSha1 = context.getProjectFilesystem().computeSha1(out);
+      abiHash = calculateAbiHash(context);
     } catch (IOException e) {
       context.logError(e, "Failed to calculate ABI for %s.", binaryJar);
       return 1;
     }
 
-    Sha1HashCode abiKey = Sha1HashCode.of(fileSha1);
+    Sha1HashCode abiKey = Sha1HashCode.of(abiHash);
     buildableContext.addMetadata(AbiRule.ABI_KEY_ON_DISK_METADATA, abiKey.getHash());
 
     return 0;
   }
 
-  private Path getPathToHash(
-      ExecutionContext context,
-      BuildableContext buildableContext) throws IOException {
+  private String calculateAbiHash(ExecutionContext context) throws IOException {
     ProjectFilesystem filesystem = context.getProjectFilesystem();
     Path binJar = filesystem.resolve(binaryJar);
 
     try {
-      new StubJar(binJar).writeTo(filesystem, abiJar);
-      buildableContext.recordArtifact(abiJar);
-      return abiJar;
+      StubJar stubJar = new StubJar(binJar, STUB_EXECUTOR_SERVICE.get());
+      if (!abiJar.isPresent()) {
+        return stubJar.computeAbiHash().toString();
+      }
+      String abiHash = stubJar.writeTo(filesystem, abiJar.get()).toString();
+      buildableContext.recordArtifact(abiJar.get());
+      return abiHash;
     } catch (IllegalArgumentException e) {
       // Thrown when ASM chokes on an input file. Fall back to the input jar, but warn the user.
       context.postEvent(
           ConsoleEvent.warning(
               "Unable to create abi jar from %s. Falling back to hashing that jar",
               binaryJar));
-      return binJar;
+      return filesystem.computeSha1(binJar);
     }
   }
 
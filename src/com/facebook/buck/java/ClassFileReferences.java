@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * The classes a compiled class refers to, read from its constant pool and from the descriptors,
+ * signatures and annotations of the class and its members, for working out which classes need to
+ * be recompiled when another one changes.
+ */
+class ClassFileReferences {
+
+  /** The class names in descriptors and signatures, such as {@code Ljava/util/List;}. */
+  private static final Pattern CLASS_IN_DESCRIPTOR = Pattern.compile("L([^;<]+)[;<]");
+
+  private static final int CONSTANT_CLASS = 7;
+
+  private final String name;
+  @Nullable
+  private final String sourceFile;
+  private final ImmutableSet<String> references;
+  private final boolean declaresConstants;
+
+  private ClassFileReferences(
+      String name,
+      @Nullable String sourceFile,
+      ImmutableSet<String> references,
+      boolean declaresConstants) {
+    this.name = name;
+    this.sourceFile = sourceFile;
+    this.references = references;
+    this.declaresConstants = declaresConstants;
+  }
+
+  static ClassFileReferences read(InputStream classFile) throws IOException {
+    ClassReader reader = new ClassReader(classFile);
+    final ImmutableSet.Builder<String> references = ImmutableSet.builder();
+
+    char[] buffer = new char[reader.getMaxStringLength()];
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      int offset = reader.getItem(i);
+      // The second slots of longs and doubles have no offset.
+      if (offset > 0 && reader.b[offset - 1] == CONSTANT_CLASS) {
+        String className = reader.readUTF8(offset, buffer);
+        if (className.startsWith("[")) {
+          addClassesIn(className, references);
+        } else {
+          references.add(className);
+        }
+      }
+    }
+
+    final AnnotationVisitor annotationVisitor = new AnnotationVisitor(Opcodes.ASM5) {
+      @Override
+      public void visitEnum(String name, String desc, String value) {
+        addClassesIn(desc, references);
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String name, String desc) {
+        addClassesIn(desc, references);
+        return this;
+      }
+
+      @Override
+      public AnnotationVisitor visitArray(String name) {
+        return this;
+      }
+    };
+    final FieldVisitor fieldVisitor = new FieldVisitor(Opcodes.ASM5) {
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        addClassesIn(desc, references);
+        return annotationVisitor;
+      }
+    };
+    final MethodVisitor methodVisitor = new MethodVisitor(Opcodes.ASM5) {
+      @Override
+      public AnnotationVisitor visitAnnotationDefault() {
+        return annotationVisitor;
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        addClassesIn(desc, references);
+        return annotationVisitor;
+      }
+
+      @Override
+      public AnnotationVisitor visitParameterAnnotation(
+          int parameter,
+          String desc,
+          boolean visible) {
+        addClassesIn(desc, references);
+        return annotationVisitor;
+      }
+    };
+
+    final String[] sourceFile = new String[1];
+    final boolean[] declaresConstants = new boolean[1];
+    reader.accept(
+        new ClassVisitor(Opcodes.ASM5) {
+          @Override
+          public void visit(
+              int version,
+              int access,
+              String name,
+              String signature,
+              String superName,
+              String[] interfaces) {
+            addClassesIn(signature, references);
+          }
+
+          @Override
+          public void visitSource(String source, String debug) {
+            sourceFile[0] = source;
+          }
+
+          @Override
+          public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            addClassesIn(desc, references);
+            return annotationVisitor;
+          }
+
+          @Override
+          public FieldVisitor visitField(
+              int access,
+              String name,
+              String desc,
+              String signature,
+              Object value) {
+            // javac copies the values of constants into the classes using them.
+            if (value != null && (access & Opcodes.ACC_STATIC) != 0) {
+              declaresConstants[0] = true;
+            }
+            addClassesIn(desc, references);
+            addClassesIn(signature, references);
+            return fieldVisitor;
+          }
+
+          @Override
+          public MethodVisitor visitMethod(
+              int access,
+              String name,
+              String desc,
+              String signature,
+              String[] exceptions) {
+            addClassesIn(desc, references);
+            addClassesIn(signature, references);
+            return methodVisitor;
+          }
+        },
+        ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+
+    return new ClassFileReferences(
+        reader.getClassName(),
+        sourceFile[0],
+        references.build(),
+        declaresConstants[0]);
+  }
+
+  private static void addClassesIn(
+      @Nullable String descriptor,
+      ImmutableSet.Builder<String> references) {
+    if (descriptor == null) {
+      return;
+    }
+    Matcher matcher = CLASS_IN_DESCRIPTOR.matcher(descriptor);
+    while (matcher.find()) {
+      references.add(matcher.group(1));
+    }
+  }
+
+  /** @return the internal name of the class, such as {@code com/example/Outer$Inner}. */
+  String getName() {
+    return name;
+  }
+
+  /** @return the file name of the source the class was compiled from, if javac recorded it. */
+  @Nullable
+  String getSourceFile() {
+    return sourceFile;
+  }
+
+  /**
+   * @return the internal names of the classes this class refers to, and possibly some which
+   *     aren't classes at all.
+   */
+  ImmutableSet<String> getReferences() {
+    return references;
+  }
+
+  boolean declaresConstants() {
+    return declaresConstants;
+  }
+}
@@ -295,10 +295,37 @@ public class DefaultJavaLibrary extends AbstractBuildRule
           suggestBuildRules,
           getResolver());
 
-      commands.add(javacStep);
+      if (isCompiledIncrementally()) {
+        commands.add(
+            new IncrementalJavacStep(
+                javacStep,
+                BuildTargets.getScratchPath(target, "lib__%s__incremental.json"),
+                getAbiKeyForDeps().getHash()));
+      } else {
+        commands.add(javacStep);
+      }
     }
   }
 
+  /**
+   * Annotation processors may generate sources and postprocessing may change classes, so
+   * libraries using them are always compiled from scratch, as are those with zips of sources.
+   */
+  private boolean isCompiledIncrementally() {
+    if (!javacOptions.isIncremental() ||
+        !javacOptions.getAnnotationProcessingParams().isEmpty() ||
+        !postprocessClassesCommands.isEmpty() ||
+        getJavaSrcs().isEmpty()) {
+      return false;
+    }
+    for (Path src : getJavaSrcs()) {
+      if (!src.toString().endsWith(".java")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Creates the total ABI key for this rule. If export_deps is true, the total key is computed by
    * hashing the ABI keys of the dependencies together with the ABI key of this rule. If export_deps
@@ -493,7 +520,12 @@ public class DefaultJavaLibrary extends AbstractBuildRule
     // might be resources that need to be copied there.
     BuildTarget target = getBuildTarget();
     Path outputDirectory = getClassesDir(target);
-    steps.add(new MakeCleanDirectoryStep(outputDirectory));
+    if (isCompiledIncrementally()) {
+      // Cleaned by the IncrementalJavacStep, if need be.
+      steps.add(new MkdirStep(outputDirectory));
+    } else {
+      steps.add(new MakeCleanDirectoryStep(outputDirectory));
+    }
 
     Optional<JavacStep.SuggestBuildRules> suggestBuildRule =
         createSuggestBuildFunction(context,
@@ -552,10 +584,6 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
     steps.add(new MakeCleanDirectoryStep(getOutputJarDirPath(target)));
 
-    Path abiJar = getOutputJarDirPath(target)
-        .resolve(String.format("%s-abi.jar", target.getShortNameAndFlavorPostfix()));
-    steps.add(new MkdirStep(abiJar.getParent()));
-
     if (outputJar.isPresent()) {
       Path output = outputJar.get();
 
@@ -568,14 +596,14 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
       // Calculate the ABI.
 
-      steps.add(new CalculateAbiStep(buildableContext, output, abiJar));
+      steps.add(new CalculateAbiStep(buildableContext, output));
     } else {
       Path scratch = BuildTargets.getScratchPath(
           target,
           String.format("%%s/%s-temp-abi.jar", target.getShortNameAndFlavorPostfix()));
       steps.add(new MakeCleanDirectoryStep(scratch.getParent()));
       steps.add(new TouchStep(scratch));
-      steps.add(new CalculateAbiStep(buildableContext, scratch, abiJar));
+      steps.add(new CalculateAbiStep(buildableContext, scratch));
     }
 
     JavaLibraryRules.addAccumulateClassNamesStep(this, buildableContext, steps);
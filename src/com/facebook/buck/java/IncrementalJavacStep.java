@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compiles the sources of a library as its {@link JavacStep} would, but keeps the classes of the
+ * last build which can't have been affected by the changes since. Only the changed sources, and
+ * the sources of classes which refer to their classes, directly or through other classes of the
+ * library, are recompiled.
+ * <p>
+ * Everything is recompiled when there's no record of a previous build, when the ABIs of the deps
+ * or the compiler options changed, when sources were added, and when a changed class declares
+ * constants, since javac copies constants into the classes which use them.
+ */
+public class IncrementalJavacStep implements Step {
+
+  private static final Logger LOG = Logger.get(IncrementalJavacStep.class);
+
+  /** Bump this whenever the format of the state file changes. */
+  private static final int VERSION = 1;
+
+  private final JavacStep javacStep;
+  private final Path statePath;
+  private final String abiKeyForDeps;
+
+  /**
+   * @param statePath where to record the sources and classes of each build for the next one.
+   * @param abiKeyForDeps the ABI key of the deps the library is compiled against.
+   */
+  public IncrementalJavacStep(JavacStep javacStep, Path statePath, String abiKeyForDeps) {
+    this.javacStep = javacStep;
+    this.statePath = statePath;
+    this.abiKeyForDeps = abiKeyForDeps;
+  }
+
+  @Override
+  public int execute(ExecutionContext context) throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    Path outputDirectory = javacStep.getOutputDirectory();
+
+    // Forget the last build first, so that a failed compilation leaves nothing to trust.
+    Optional<State> previous = readState(context);
+    filesystem.deleteFileAtPathIfExists(statePath);
+
+    State state = new State();
+    state.version = VERSION;
+    state.configuration = getConfiguration(context);
+    for (Path source : javacStep.getSrcs()) {
+      state.sources.put(source.toString(), filesystem.computeSha1(source));
+    }
+
+    Optional<ImmutableSet<Path>> toRecompile = Optional.absent();
+    if (previous.isPresent() && filesystem.isDirectory(outputDirectory)) {
+      toRecompile = getSourcesToRecompile(previous.get(), state);
+    }
+
+    ImmutableSet<Path> compiled;
+    int exitCode;
+    if (toRecompile.isPresent()) {
+      compiled = toRecompile.get();
+      for (Map.Entry<String, ClassInfo> entry : previous.get().classes.entrySet()) {
+        String source = entry.getValue().source;
+        if (state.sources.containsKey(source) && !compiled.contains(Paths.get(source))) {
+          state.classes.put(entry.getKey(), entry.getValue());
+        }
+      }
+      deleteAllButClasses(filesystem, outputDirectory, state.classes.keySet());
+
+      LOG.debug(
+          "Recompiling %d of %d sources of %s.",
+          compiled.size(),
+          state.sources.size(),
+          outputDirectory);
+      exitCode = compiled.isEmpty() ? 0 : javacStep.forSources(compiled).execute(context);
+    } else {
+      compiled = ImmutableSet.copyOf(javacStep.getSrcs());
+      filesystem.deleteRecursivelyIfExists(outputDirectory);
+      filesystem.mkdirs(outputDirectory);
+      exitCode = javacStep.execute(context);
+    }
+
+    if (exitCode == 0 && addCompiledClasses(filesystem, outputDirectory, compiled, state)) {
+      filesystem.writeContentsToPath(
+          context.getObjectMapper().writeValueAsString(state),
+          statePath);
+    }
+    return exitCode;
+  }
+
+  /**
+   * @return the sources to recompile, or {@link Optional#absent()} if everything needs to be.
+   */
+  @VisibleForTesting
+  static Optional<ImmutableSet<Path>> getSourcesToRecompile(State previous, State current) {
+    if (previous.version != VERSION || !current.configuration.equals(previous.configuration)) {
+      LOG.debug("The classpath or compiler options changed, recompiling everything.");
+      return Optional.absent();
+    }
+
+    Set<String> changed = Sets.newHashSet();
+    for (Map.Entry<String, String> source : current.sources.entrySet()) {
+      String previousHash = previous.sources.get(source.getKey());
+      if (previousHash == null) {
+        // Classes of the new source may be meant to shadow classes the library used before.
+        LOG.debug("%s was added, recompiling everything.", source.getKey());
+        return Optional.absent();
+      } else if (!previousHash.equals(source.getValue())) {
+        changed.add(source.getKey());
+      }
+    }
+    changed.addAll(Sets.difference(previous.sources.keySet(), current.sources.keySet()));
+
+    Multimap<String, String> referencedBy = HashMultimap.create();
+    Deque<String> toVisit = new ArrayDeque<>();
+    for (Map.Entry<String, ClassInfo> entry : previous.classes.entrySet()) {
+      ClassInfo info = entry.getValue();
+      for (String reference : info.references) {
+        referencedBy.put(reference, entry.getKey());
+      }
+      if (changed.contains(info.source)) {
+        if (info.declaresConstants) {
+          LOG.debug("%s declares constants, recompiling everything.", entry.getKey());
+          return Optional.absent();
+        }
+        toVisit.add(entry.getKey());
+      }
+    }
+
+    Set<String> affected = Sets.newHashSet(toVisit);
+    while (!toVisit.isEmpty()) {
+      for (String dependent : referencedBy.get(toVisit.pop())) {
+        if (affected.add(dependent)) {
+          toVisit.add(dependent);
+        }
+      }
+    }
+
+    ImmutableSortedSet.Builder<Path> toRecompile = ImmutableSortedSet.naturalOrder();
+    for (String source : changed) {
+      if (current.sources.containsKey(source)) {
+        toRecompile.add(Paths.get(source));
+      }
+    }
+    for (String affectedClass : affected) {
+      String source = previous.classes.get(affectedClass).source;
+      if (current.sources.containsKey(source)) {
+        toRecompile.add(Paths.get(source));
+      }
+    }
+    return Optional.<ImmutableSet<Path>>of(toRecompile.build());
+  }
+
+  /**
+   * Deletes everything in the output directory but the given classes, which includes the classes
+   * of sources about to be recompiled and anything put there after compiling, such as resources.
+   */
+  private static void deleteAllButClasses(
+      ProjectFilesystem filesystem,
+      Path outputDirectory,
+      Set<String> classes) throws IOException {
+    for (Path file : filesystem.getFilesUnderPath(outputDirectory)) {
+      Optional<String> className = getClassName(outputDirectory, file);
+      if (!className.isPresent() || !classes.contains(className.get())) {
+        filesystem.deleteFileAtPath(file);
+      }
+    }
+  }
+
+  /**
+   * Adds the classes which were just compiled to {@code state}, along with their references to
+   * the library's other classes.
+   *
+   * @return whether the source of every class was found.
+   */
+  private static boolean addCompiledClasses(
+      ProjectFilesystem filesystem,
+      Path outputDirectory,
+      ImmutableSet<Path> compiled,
+      State state) throws IOException {
+    Map<String, ClassFileReferences> compiledClasses = Maps.newHashMap();
+    for (Path file : filesystem.getFilesUnderPath(outputDirectory)) {
+      Optional<String> className = getClassName(outputDirectory, file);
+      if (!className.isPresent() || state.classes.containsKey(className.get())) {
+        continue;
+      }
+      try (InputStream input = filesystem.newFileInputStream(file)) {
+        compiledClasses.put(className.get(), ClassFileReferences.read(input));
+      }
+    }
+
+    Set<String> allClasses = Sets.union(state.classes.keySet(), compiledClasses.keySet())
+        .immutableCopy();
+    for (Map.Entry<String, ClassFileReferences> entry : compiledClasses.entrySet()) {
+      ClassFileReferences references = entry.getValue();
+      Path source = findSource(entry.getKey(), references.getSourceFile(), compiled);
+      if (source == null) {
+        LOG.debug("Can't tell which source %s was compiled from.", entry.getKey());
+        return false;
+      }
+      ClassInfo info = new ClassInfo();
+      info.source = source.toString();
+      info.declaresConstants = references.declaresConstants();
+      info.references = ImmutableList.copyOf(
+          ImmutableSortedSet.copyOf(
+              Sets.difference(
+                  Sets.intersection(references.getReferences(), allClasses),
+                  ImmutableSet.of(entry.getKey()))));
+      state.classes.put(entry.getKey(), info);
+    }
+    return true;
+  }
+
+  @Nullable
+  private static Path findSource(
+      String className,
+      @Nullable String sourceFile,
+      ImmutableSet<Path> sources) {
+    if (sourceFile == null) {
+      return null;
+    }
+    int lastSlash = className.lastIndexOf('/');
+    Path packageFolder = Paths.get(lastSlash == -1 ? "" : className.substring(0, lastSlash));
+
+    Path found = null;
+    boolean isAmbiguous = false;
+    for (Path source : sources) {
+      if (!source.getFileName().toString().equals(sourceFile)) {
+        continue;
+      }
+      if (found == null) {
+        found = source;
+      } else {
+        isAmbiguous = true;
+        // Sources named after the class's package win.
+        boolean foundMatchesPackage = found.getParent() != null &&
+            found.getParent().endsWith(packageFolder);
+        boolean sourceMatchesPackage = source.getParent() != null &&
+            source.getParent().endsWith(packageFolder);
+        if (sourceMatchesPackage && !foundMatchesPackage) {
+          found = source;
+          isAmbiguous = false;
+        } else if (foundMatchesPackage && !sourceMatchesPackage) {
+          isAmbiguous = false;
+        }
+      }
+    }
+    return isAmbiguous ? null : found;
+  }
+
+  private static Optional<String> getClassName(Path outputDirectory, Path file) {
+    String relative = MorePaths.pathWithUnixSeparators(outputDirectory.relativize(file));
+    if (!relative.endsWith(".class")) {
+      return Optional.absent();
+    }
+    return Optional.of(relative.substring(0, relative.length() - ".class".length()));
+  }
+
+  private String getConfiguration(ExecutionContext context) {
+    List<String> options = javacStep.getOptions(context, javacStep.getClasspathEntries());
+    return Hashing.sha1().newHasher()
+        .putUnencodedChars(abiKeyForDeps)
+        .putUnencodedChars(Joiner.on('\0').join(options))
+        .hash()
+        .toString();
+  }
+
+  private Optional<State> readState(ExecutionContext context) {
+    Optional<String> contents = context.getProjectFilesystem().readFileIfItExists(statePath);
+    if (!contents.isPresent()) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(context.getObjectMapper().readValue(contents.get(), State.class));
+    } catch (IOException e) {
+      LOG.warn(e, "Ignoring unreadable incremental compilation state in %s.", statePath);
+      return Optional.absent();
+    }
+  }
+
+  @Override
+  public String getShortName() {
+    return javacStep.getShortName();
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return javacStep.getDescription(context);
+  }
+
+  /** What was compiled by the last build. */
+  @VisibleForTesting
+  static class State {
+    @JsonProperty
+    int version;
+    /** Covers everything other than the sources which the classes depend on. */
+    @JsonProperty
+    String configuration = "";
+    /** The hash of each source, by path. */
+    @JsonProperty
+    Map<String, String> sources = Maps.newTreeMap();
+    /** Each class of the library, by internal name. */
+    @JsonProperty
+    Map<String, ClassInfo> classes = Maps.newTreeMap();
+  }
+
+  @VisibleForTesting
+  static class ClassInfo {
+    @JsonProperty
+    String source = "";
+    @JsonProperty
+    boolean declaresConstants;
+    /** The other classes of the library which this class refers to. */
+    @JsonProperty
+    List<String> references = ImmutableList.of();
+  }
+}
@@ -24,6 +24,7 @@ import com.facebook.buck.io.DirectoryTraversal;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.RawZipFile;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
@@ -48,6 +49,7 @@ import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import javax.annotation.Nullable;
@@ -139,8 +141,52 @@ public class JarDirectoryStepHelper {
       Set<String> alreadyAddedEntries,
       BuckEventBus eventBus,
       Iterable<Pattern> blacklist) throws IOException {
+    RawZipFile rawZip;
+    try {
+      rawZip = RawZipFile.open(file.toPath());
+    } catch (ZipException e) {
+      // Not a zip whose entries we can copy as they are, so inflate and deflate them again.
+      copyZipEntriesToJarInflating(
+          file,
+          jar,
+          manifest,
+          alreadyAddedEntries,
+          eventBus,
+          blacklist);
+      return;
+    }
+
+    // The entries are copied as they are stored, without inflating and deflating them again.
+    try (RawZipFile zip = rawZip) {
+      for (RawZipFile.Entry entry : zip.getEntries()) {
+        String entryName = entry.getName();
+
+        if (entryName.equals(JarFile.MANIFEST_NAME)) {
+          try (InputStream stream = zip.getInputStream(entry)) {
+            merge(manifest, new Manifest(stream));
+          }
+          continue;
+        }
+
+        if (shouldCopyEntry(
+            entryName,
+            entry.isDirectory(),
+            alreadyAddedEntries,
+            eventBus,
+            blacklist)) {
+          jar.putRawEntry(zip, entry);
+        }
+      }
+    }
+  }
+
+  private static void copyZipEntriesToJarInflating(File file,
+      final CustomZipOutputStream jar,
+      Manifest manifest,
+      Set<String> alreadyAddedEntries,
+      BuckEventBus eventBus,
+      Iterable<Pattern> blacklist) throws IOException {
     try (ZipFile zip = new ZipFile(file)) {
-      zipEntryLoop:
       for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
         ZipEntry entry = entries.nextElement();
         String entryName = entry.getName();
@@ -151,27 +197,15 @@ public class JarDirectoryStepHelper {
           continue;
         }
 
-        // We're in the process of merging a bunch of different jar files. These typically contain
-        // just ".class" files and the manifest, but they can also include things like license files
-        // from third party libraries and config files. We should include those license files within
-        // the jar we're creating. Extracting them is left as an exercise for the consumer of the
-        // jar.  Because we don't know which files are important, the only ones we skip are
-        // duplicate class files.
-        if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
-          // Duplicate entries. Skip.
-          eventBus.post(ConsoleEvent.create(
-              determineSeverity(entry), "Duplicate found when adding file to jar: %s", entryName));
+        if (!shouldCopyEntry(
+            entryName,
+            entry.isDirectory(),
+            alreadyAddedEntries,
+            eventBus,
+            blacklist)) {
           continue;
         }
 
-        for (Pattern p : blacklist) {
-          if (p.matcher(entryName).matches()) {
-            eventBus.post(ConsoleEvent.create(
-                    Level.FINE, "Skipping adding file to jar: %s", entryName));
-            continue zipEntryLoop;
-          }
-        }
-
         ZipEntry newEntry = new ZipEntry(entry);
 
         // For deflated entries, the act of re-"putting" this entry means we're re-compressing
@@ -196,8 +230,39 @@ public class JarDirectoryStepHelper {
     }
   }
 
-  private static Level determineSeverity(ZipEntry entry) {
-    return entry.isDirectory() ? Level.FINE : Level.INFO;
+  private static boolean shouldCopyEntry(
+      String entryName,
+      boolean isDirectory,
+      Set<String> alreadyAddedEntries,
+      BuckEventBus eventBus,
+      Iterable<Pattern> blacklist) {
+    // We're in the process of merging a bunch of different jar files. These typically contain
+    // just ".class" files and the manifest, but they can also include things like license files
+    // from third party libraries and config files. We should include those license files within
+    // the jar we're creating. Extracting them is left as an exercise for the consumer of the
+    // jar.  Because we don't know which files are important, the only ones we skip are
+    // duplicate class files.
+    if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
+      // Duplicate entries. Skip.
+      eventBus.post(ConsoleEvent.create(
+          determineSeverity(isDirectory),
+          "Duplicate found when adding file to jar: %s",
+          entryName));
+      return false;
+    }
+
+    for (Pattern p : blacklist) {
+      if (p.matcher(entryName).matches()) {
+        eventBus.post(ConsoleEvent.create(
+                Level.FINE, "Skipping adding file to jar: %s", entryName));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Level determineSeverity(boolean isDirectory) {
+    return isDirectory ? Level.FINE : Level.INFO;
   }
 
   private static Manifest readManifest(ZipFile zip, ZipEntry manifestMfEntry) throws IOException {
@@ -232,7 +297,7 @@ public class JarDirectoryStepHelper {
           if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
             if (!entryName.endsWith("/")) {
               eventBus.post(ConsoleEvent.create(
-                  determineSeverity(entry),
+                  determineSeverity(entry.isDirectory()),
                   "Duplicate found when adding directory to jar: %s", relativePath));
             }
               return;
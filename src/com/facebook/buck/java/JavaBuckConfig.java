@@ -70,6 +70,7 @@ public class JavaBuckConfig {
         .setTargetLevel(targetLevel.or(TARGETED_JAVA_VERSION))
         .putAllSourceToBootclasspath(bootclasspaths.build())
         .addAllExtraArguments(extraArguments)
+        .setIncremental(delegate.getBooleanValue("java", "incremental", false))
         .build();
   }
 
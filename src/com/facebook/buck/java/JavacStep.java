@@ -140,6 +140,35 @@ public class JavacStep implements Step {
     this.resolver = resolver;
   }
 
+  /**
+   * @return a step which compiles only {@code sources}, against the classes already in the output
+   *     directory as well as the usual classpath.
+   */
+  JavacStep forSources(Set<Path> sources) {
+    return new JavacStep(
+        outputDirectory,
+        workingDirectory,
+        sources,
+        pathToSrcsList,
+        ImmutableSet.<Path>builder()
+            .add(outputDirectory)
+            .addAll(transitiveClasspathEntries)
+            .build(),
+        ImmutableSet.<Path>builder()
+            .add(outputDirectory)
+            .addAll(declaredClasspathEntries)
+            .build(),
+        javacOptions,
+        invokingRule,
+        buildDependencies,
+        suggestBuildRules,
+        resolver);
+  }
+
+  Path getOutputDirectory() {
+    return outputDirectory;
+  }
+
   @Override
   public final int execute(ExecutionContext context) throws IOException, InterruptedException {
     try {
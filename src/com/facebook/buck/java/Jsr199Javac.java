@@ -32,6 +32,8 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -83,6 +85,33 @@ public class Jsr199Javac implements Javac {
   private static final Logger LOG = Logger.get(Jsr199Javac.class);
   private static final JavacVersion VERSION = JavacVersion.of("in memory");
 
+  /**
+   * The system compiler, with the file managers of its earlier compilations. Both live as long as
+   * buck does, so buckd reuses the jars they have opened across builds.
+   */
+  private static final Supplier<StandardJavaFileManagerPool> SYSTEM_COMPILER =
+      Suppliers.memoize(
+          new Supplier<StandardJavaFileManagerPool>() {
+            @Override
+            public StandardJavaFileManagerPool get() {
+              JavaCompiler compiler;
+              synchronized (ToolProvider.class) {
+                // ToolProvider has no synchronization internally, so if we don't synchronize from
+                // the outside we could wind up loading the compiler classes multiple times from
+                // different class loaders.
+                compiler = ToolProvider.getSystemJavaCompiler();
+              }
+
+              if (compiler == null) {
+                throw new HumanReadableException(
+                    "No system compiler found. Did you install the JRE instead of the JDK?");
+              }
+              return new StandardJavaFileManagerPool(
+                  compiler,
+                  Runtime.getRuntime().availableProcessors());
+            }
+          });
+
   @Override
   public JavacVersion getVersion() {
     return VERSION;
@@ -150,6 +179,8 @@ public class Jsr199Javac implements Javac {
       Optional<Path> pathToSrcsList,
       Optional<Path> workingDirectory) {
     JavaCompiler compiler;
+    StandardJavaFileManager fileManager;
+    Optional<StandardJavaFileManagerPool.Lease> lease = Optional.absent();
 
     if (javacJar.isPresent()) {
       ClassLoaderCache classLoaderCache = context.getClassLoaderCache();
@@ -163,21 +194,14 @@ public class Jsr199Javac implements Javac {
       } catch (ClassNotFoundException | IllegalAccessException | InstantiationException ex) {
         throw new RuntimeException(ex);
       }
+      fileManager = compiler.getStandardFileManager(null, null, null);
     } else {
-      synchronized (ToolProvider.class) {
-        // ToolProvider has no synchronization internally, so if we don't synchronize from the
-        // outside we could wind up loading the compiler classes multiple times from different
-        // class loaders.
-        compiler = ToolProvider.getSystemJavaCompiler();
-      }
-
-      if (compiler == null) {
-        throw new HumanReadableException(
-            "No system compiler found. Did you install the JRE instead of the JDK?");
-      }
+      StandardJavaFileManagerPool pool = SYSTEM_COMPILER.get();
+      compiler = pool.getCompiler();
+      lease = Optional.of(pool.acquire(options));
+      fileManager = lease.get().getFileManager();
     }
 
-    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
     Iterable<? extends JavaFileObject> compilationUnits = ImmutableSet.of();
     try {
       compilationUnits = createCompilationUnits(
@@ -185,7 +209,7 @@ public class Jsr199Javac implements Javac {
           context.getProjectFilesystem().getAbsolutifier(),
           javaSourceFilePaths);
     } catch (IOException e) {
-      close(fileManager, compilationUnits);
+      close(fileManager, lease, /* reusable */ true, compilationUnits);
       e.printStackTrace(context.getStdErr());
       return 1;
     }
@@ -201,7 +225,7 @@ public class Jsr199Javac implements Javac {
                 .transform(ARGFILES_ESCAPER),
             pathToSrcsList.get());
       } catch (IOException e) {
-        close(fileManager, compilationUnits);
+        close(fileManager, lease, /* reusable */ true, compilationUnits);
         context.logError(
             e,
             "Cannot write list of .java files to compile to %s file! Terminating compilation.",
@@ -222,6 +246,7 @@ public class Jsr199Javac implements Javac {
         compilationUnits);
 
     boolean isSuccess = false;
+    boolean isFinished = false;
     // Ensure annotation processors are loaded from their own classloader. If we don't do this,
     // then the evidence suggests that they get one polluted with Buck's own classpath, which
     // means that libraries that have dependencies on different versions of Buck's deps may choke
@@ -234,10 +259,12 @@ public class Jsr199Javac implements Javac {
 
       // Invoke the compilation and inspect the result.
       isSuccess = compilationTask.call();
+      isFinished = true;
     } catch (IOException e) {
       LOG.warn(e, "Unable to close annotation processor class loader. We may be leaking memory.");
     } finally {
-      close(fileManager, compilationUnits);
+      // A compilation which threw may have left the file manager in any state, so don't reuse it.
+      close(fileManager, lease, /* reusable */ isFinished, compilationUnits);
     }
 
     if (isSuccess) {
@@ -269,11 +296,17 @@ public class Jsr199Javac implements Javac {
 
   private void close(
       JavaFileManager fileManager,
+      Optional<StandardJavaFileManagerPool.Lease> lease,
+      boolean reusable,
       Iterable<? extends JavaFileObject> compilationUnits) {
-    try {
-      fileManager.close();
-    } catch (IOException e) {
-      LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+    if (lease.isPresent()) {
+      SYSTEM_COMPILER.get().release(lease.get(), reusable);
+    } else {
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+      }
     }
 
     for (JavaFileObject unit : compilationUnits) {
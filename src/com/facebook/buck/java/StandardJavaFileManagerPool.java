@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Keeps the file managers of finished compilations, so that later compilations reuse the jars on
+ * their classpath which earlier ones already opened and indexed instead of reading every jar
+ * again. Loading the classpath dominates the compilation of small libraries.
+ * <p>
+ * A file manager holds on to the options it was given, so it is only reused by compilations whose
+ * options differ in nothing but the paths given to options like {@code -classpath}. Some versions
+ * of javac keep the paths a file manager was first given rather than the ones a later compilation
+ * passes, so the paths of a reused file manager are set again when it is acquired. A file
+ * manager whose jars changed since it opened them is closed before it is reused, which makes it
+ * open them again when they are next used. Jars are compared by their size, modification time,
+ * identity (the inode, on unix) and, where the file system has one, status change time, rather
+ * than by the {@link com.facebook.buck.util.FileHashCache}, which doesn't watch the jars in
+ * {@code buck-out}. Replacing a jar changes its identity and writing to it changes its status
+ * change time, even when its size and modification time are kept.
+ */
+class StandardJavaFileManagerPool {
+
+  private static final Logger LOG = Logger.get(StandardJavaFileManagerPool.class);
+
+  /** Options whose values are paths which differ between otherwise identical compilations. */
+  private static final ImmutableSet<String> PATH_OPTIONS = ImmutableSet.of(
+      "-bootclasspath",
+      "-classpath",
+      "-cp",
+      "-d",
+      "-processorpath",
+      "-s",
+      "-sourcepath");
+
+  /** The locations set by {@link #PATH_OPTIONS}. */
+  private static final ImmutableMap<String, StandardLocation> PATH_OPTION_LOCATIONS =
+      ImmutableMap.<String, StandardLocation>builder()
+          .put("-bootclasspath", StandardLocation.PLATFORM_CLASS_PATH)
+          .put("-classpath", StandardLocation.CLASS_PATH)
+          .put("-cp", StandardLocation.CLASS_PATH)
+          .put("-d", StandardLocation.CLASS_OUTPUT)
+          .put("-processorpath", StandardLocation.ANNOTATION_PROCESSOR_PATH)
+          .put("-s", StandardLocation.SOURCE_OUTPUT)
+          .put("-sourcepath", StandardLocation.SOURCE_PATH)
+          .build();
+
+  /** Options whose values list the jars a file manager opens. */
+  private static final ImmutableSet<String> CLASSPATH_OPTIONS = ImmutableSet.of(
+      "-bootclasspath",
+      "-classpath",
+      "-cp");
+
+  /**
+   * Every open jar uses a file descriptor, so idle file managers are closed rather than kept once
+   * they hold this many jars between them.
+   */
+  @VisibleForTesting
+  static final int MAX_IDLE_OPEN_JARS = 2000;
+
+  private final JavaCompiler compiler;
+  private final int maxIdleFileManagers;
+
+  private final Map<ImmutableList<String>, Deque<Lease>> idle = Maps.newHashMap();
+  private int idleFileManagers;
+  private int idleOpenJars;
+
+  StandardJavaFileManagerPool(JavaCompiler compiler, int maxIdleFileManagers) {
+    this.compiler = compiler;
+    this.maxIdleFileManagers = maxIdleFileManagers;
+  }
+
+  public JavaCompiler getCompiler() {
+    return compiler;
+  }
+
+  /**
+   * @return a file manager for a compilation with {@code options}, which must be given back with
+   *     {@link #release(Lease, boolean)} once the compilation is over.
+   */
+  public Lease acquire(List<String> options) {
+    ImmutableList<String> key = getKey(options);
+    ImmutableMap<Path, JarStamp> jars = stampJars(options);
+
+    Lease lease = null;
+    synchronized (this) {
+      Deque<Lease> leases = idle.get(key);
+      if (leases != null) {
+        lease = leases.pollFirst();
+        if (lease != null) {
+          idleFileManagers--;
+          idleOpenJars -= lease.openJars.size();
+        }
+      }
+    }
+
+    if (lease != null) {
+      try {
+        lease.setLocations(options);
+      } catch (IOException e) {
+        // Leave it to javac to report the bad path, with a file manager which hasn't seen any.
+        LOG.debug(e, "Unable to set the paths of a reused file manager, closing it.");
+        lease.closeJars();
+        lease = null;
+      }
+    }
+
+    if (lease == null) {
+      lease = new Lease(key, compiler.getStandardFileManager(null, null, null));
+    } else if (lease.hasChanged(jars)) {
+      LOG.debug("Jars on the classpath changed, closing the file manager to reopen them.");
+      lease.closeJars();
+    }
+    lease.openJars.putAll(jars);
+    return lease;
+  }
+
+  /**
+   * Gives back a file manager from {@link #acquire(List)}.
+   *
+   * @param reusable whether the compilation ended normally, leaving the file manager fit to reuse.
+   */
+  public void release(Lease lease, boolean reusable) {
+    synchronized (this) {
+      if (reusable &&
+          idleFileManagers < maxIdleFileManagers &&
+          idleOpenJars + lease.openJars.size() <= MAX_IDLE_OPEN_JARS) {
+        Deque<Lease> leases = idle.get(lease.key);
+        if (leases == null) {
+          leases = new ArrayDeque<>();
+          idle.put(lease.key, leases);
+        }
+        leases.addFirst(lease);
+        idleFileManagers++;
+        idleOpenJars += lease.openJars.size();
+        return;
+      }
+    }
+    lease.closeJars();
+  }
+
+  @VisibleForTesting
+  static ImmutableList<String> getKey(List<String> options) {
+    ImmutableList.Builder<String> key = ImmutableList.builder();
+    Iterator<String> iterator = options.iterator();
+    while (iterator.hasNext()) {
+      String option = iterator.next();
+      key.add(option);
+      if (PATH_OPTIONS.contains(option) && iterator.hasNext()) {
+        iterator.next();
+      }
+    }
+    return key.build();
+  }
+
+  private static ImmutableMap<Path, JarStamp> stampJars(List<String> options) {
+    Map<Path, JarStamp> jars = Maps.newHashMap();
+    Iterator<String> iterator = options.iterator();
+    while (iterator.hasNext()) {
+      if (!CLASSPATH_OPTIONS.contains(iterator.next()) || !iterator.hasNext()) {
+        continue;
+      }
+      for (String entry : Splitter.on(File.pathSeparator).omitEmptyStrings().split(
+          iterator.next())) {
+        Path path = Paths.get(entry);
+        try {
+          JarStamp stamp = JarStamp.of(path);
+          // Directories are listed afresh by every compilation.
+          if (stamp != null) {
+            jars.put(path, stamp);
+          }
+        } catch (IOException e) {
+          // javac reports the entries of the classpath which don't exist, if it needs them.
+        }
+      }
+    }
+    return ImmutableMap.copyOf(jars);
+  }
+
+  /** A file manager lent to a compilation, and the jars it has seen so far. */
+  public static class Lease {
+    private final ImmutableList<String> key;
+    private final StandardJavaFileManager fileManager;
+    private final Map<Path, JarStamp> openJars = Maps.newHashMap();
+
+    private Lease(ImmutableList<String> key, StandardJavaFileManager fileManager) {
+      this.key = key;
+      this.fileManager = fileManager;
+    }
+
+    public StandardJavaFileManager getFileManager() {
+      return fileManager;
+    }
+
+    /** Sets the locations of the file manager to the paths given in {@code options}. */
+    private void setLocations(List<String> options) throws IOException {
+      Iterator<String> iterator = options.iterator();
+      while (iterator.hasNext()) {
+        StandardLocation location = PATH_OPTION_LOCATIONS.get(iterator.next());
+        if (location == null || !iterator.hasNext()) {
+          continue;
+        }
+        ImmutableList.Builder<File> files = ImmutableList.builder();
+        for (String entry : Splitter.on(File.pathSeparator).omitEmptyStrings().split(
+            iterator.next())) {
+          files.add(new File(entry));
+        }
+        fileManager.setLocation(location, files.build());
+      }
+    }
+
+    private boolean hasChanged(Map<Path, JarStamp> jars) {
+      for (Map.Entry<Path, JarStamp> jar : jars.entrySet()) {
+        JarStamp open = openJars.get(jar.getKey());
+        if (open != null && !open.equals(jar.getValue())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Closes the jars of the file manager, which it reopens if it is used again. */
+    private void closeJars() {
+      openJars.clear();
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+      }
+    }
+  }
+
+  private static class JarStamp {
+    /** The attributes to read in one go on file systems with a unix view. */
+    private static final String UNIX_ATTRIBUTES =
+        "unix:isRegularFile,size,lastModifiedTime,fileKey,ctime";
+
+    private final long size;
+    private final FileTime lastModifiedTime;
+    @Nullable private final Object fileKey;
+    @Nullable private final FileTime changeTime;
+
+    private JarStamp(
+        long size,
+        FileTime lastModifiedTime,
+        @Nullable Object fileKey,
+        @Nullable FileTime changeTime) {
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+      this.fileKey = fileKey;
+      this.changeTime = changeTime;
+    }
+
+    /** @return the stamp of the file at {@code path}, or null if it isn't a regular file. */
+    @Nullable
+    private static JarStamp of(Path path) throws IOException {
+      if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+        Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES);
+        if (!(Boolean) attributes.get("isRegularFile")) {
+          return null;
+        }
+        return new JarStamp(
+            (Long) attributes.get("size"),
+            (FileTime) attributes.get("lastModifiedTime"),
+            attributes.get("fileKey"),
+            (FileTime) attributes.get("ctime"));
+      }
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return null;
+      }
+      return new JarStamp(
+          attributes.size(),
+          attributes.lastModifiedTime(),
+          attributes.fileKey(),
+          /* changeTime */ null);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof JarStamp)) {
+        return false;
+      }
+      JarStamp that = (JarStamp) obj;
+      return size == that.size &&
+          lastModifiedTime.equals(that.lastModifiedTime) &&
+          Objects.equal(fileKey, that.fileKey) &&
+          Objects.equal(changeTime, that.changeTime);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(size, lastModifiedTime, fileKey, changeTime);
+    }
+  }
+}
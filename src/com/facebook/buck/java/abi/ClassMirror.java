@@ -150,11 +150,21 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
     return fileName.compareTo(o.fileName);
   }
 
+  public String getFileName() {
+    return fileName;
+  }
+
   public void writeTo(JarOutputStream jar) throws IOException {
     JarEntry entry = new JarEntry(fileName);
     entry.setTime(0);
 
     jar.putNextEntry(entry);
+    ByteSource.wrap(toByteArray()).copyTo(jar);
+    jar.closeEntry();
+  }
+
+  /** @return the class file of the stub of the visited class. */
+  public byte[] toByteArray() {
     ClassWriter writer = new ClassWriter(0);
     writer.visit(version, access, name, signature, superName, interfaces);
 
@@ -178,8 +188,7 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
       method.appendTo(writer);
     }
     writer.visitEnd();
-    ByteSource.wrap(writer.toByteArray()).copyTo(jar);
-    jar.closeEntry();
+    return writer.toByteArray();
   }
 
   private static class InnerClass implements Comparable<InnerClass> {
@@ -21,57 +21,175 @@ import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
 import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
 
 import com.facebook.buck.io.ProjectFilesystem;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.objectweb.asm.ClassReader;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.SortedSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 
+/**
+ * Strips the classes of a jar or directory down to their ABI: the members other classes can see,
+ * without the code of their methods.
+ * <p>
+ * Classes are read one at a time and stubbed on the given executor, keeping only the stubbed class
+ * files, or just their hashes when no jar is written, rather than a tree of every class. The hash
+ * of the ABI only depends on the stubbed classes and their names, so it is the same whether or not
+ * a stub jar is written and however many threads stubbed the classes.
+ */
 public class StubJar {
 
+  /**
+   * How many classes may be read ahead of the ones being stubbed, which bounds the memory used
+   * when reading is faster than stubbing.
+   */
+  private static final int MAX_PENDING_CLASSES = 256;
+
+  private static final Function<byte[], byte[]> KEEP_STUB = new Function<byte[], byte[]>() {
+    @Override
+    public byte[] apply(byte[] stub) {
+      return stub;
+    }
+  };
+
+  private static final Function<byte[], HashCode> HASH_STUB = new Function<byte[], HashCode>() {
+    @Override
+    public HashCode apply(byte[] stub) {
+      return Hashing.sha1().hashBytes(stub);
+    }
+  };
+
   private final Path toMirror;
-  private final SortedSet<ClassMirror> classes;
+  private final ListeningExecutorService executorService;
 
   public StubJar(Path toMirror) {
+    this(toMirror, MoreExecutors.newDirectExecutorService());
+  }
+
+  public StubJar(Path toMirror, ListeningExecutorService executorService) {
     this.toMirror = Preconditions.checkNotNull(toMirror);
-    this.classes = Sets.newTreeSet();
+    this.executorService = executorService;
   }
 
-  public void writeTo(ProjectFilesystem filesystem, Path path) throws IOException {
+  /**
+   * Writes the stub jar to {@code path}.
+   *
+   * @return the hash of the ABI, as {@link #computeAbiHash()} would.
+   */
+  public HashCode writeTo(ProjectFilesystem filesystem, Path path) throws IOException {
     Preconditions.checkState(!filesystem.exists(path), "Output file already exists: %s)", path);
 
     if (path.getParent() != null && !filesystem.exists(path.getParent())) {
       filesystem.createParentDirs(path);
     }
 
+    SortedMap<String, byte[]> stubs = stubClasses(KEEP_STUB);
+    Hasher hasher = Hashing.sha1().newHasher();
+    try (OutputStream fos = filesystem.newFileOutputStream(path);
+         JarOutputStream jar = new JarOutputStream(fos)) {
+      for (Map.Entry<String, byte[]> stub : stubs.entrySet()) {
+        JarEntry entry = new JarEntry(stub.getKey());
+        entry.setTime(0);
+        jar.putNextEntry(entry);
+        jar.write(stub.getValue());
+        jar.closeEntry();
+        putClass(hasher, stub.getKey(), HASH_STUB.apply(stub.getValue()));
+      }
+    }
+    return hasher.hash();
+  }
+
+  /** @return the hash of the ABI, without writing a stub jar. */
+  public HashCode computeAbiHash() throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Map.Entry<String, HashCode> stub : stubClasses(HASH_STUB).entrySet()) {
+      putClass(hasher, stub.getKey(), stub.getValue());
+    }
+    return hasher.hash();
+  }
+
+  private static void putClass(Hasher hasher, String fileName, HashCode stubHash) {
+    hasher.putString(fileName, StandardCharsets.UTF_8);
+    hasher.putByte((byte) 0);
+    hasher.putBytes(stubHash.asBytes());
+  }
+
+  /**
+   * Stubs every class, passing the stubbed class files through {@code transform} on the executor.
+   *
+   * @return the transformed stubs, keyed and ordered by the file names of their classes.
+   */
+  private <T> SortedMap<String, T> stubClasses(final Function<byte[], T> transform)
+      throws IOException {
+    final SortedMap<String, ListenableFuture<T>> futures = Maps.newTreeMap();
+    final Semaphore pending = new Semaphore(MAX_PENDING_CLASSES);
+
     Walker walker = Walkers.getWalkerFor(toMirror);
-    walker.walk(
-        new FileAction() {
-          @Override
-          public void visit(Path relativizedPath, InputStream stream) throws IOException {
-            String fileName = relativizedPath.toString();
-            if (!fileName.endsWith(".class")) {
-              return;
+    try {
+      walker.walk(
+          new FileAction() {
+            @Override
+            public void visit(Path relativizedPath, InputStream stream) throws IOException {
+              final String fileName = relativizedPath.toString();
+              if (!fileName.endsWith(".class")) {
+                return;
+              }
+
+              final byte[] classFile = ByteStreams.toByteArray(stream);
+              pending.acquireUninterruptibly();
+              ListenableFuture<T> future = executorService.submit(
+                  new Callable<T>() {
+                    @Override
+                    public T call() {
+                      try {
+                        ClassReader classReader = new ClassReader(classFile);
+                        ClassMirror visitor = new ClassMirror(fileName);
+                        classReader.accept(visitor, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+                        return transform.apply(visitor.toByteArray());
+                      } finally {
+                        pending.release();
+                      }
+                    }
+                  });
+              futures.put(fileName, future);
             }
+          });
 
-            ClassReader classReader = new ClassReader(stream);
-            ClassMirror visitor = new ClassMirror(fileName);
-            classes.add(visitor);
-            classReader.accept(visitor, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
-          }
-        });
-
-    try (
-        OutputStream fos = filesystem.newFileOutputStream(path);
-        JarOutputStream jar = new JarOutputStream(fos)) {
-      for (ClassMirror aClass : classes) {
-        aClass.writeTo(jar);
+      SortedMap<String, T> stubs = Maps.newTreeMap();
+      for (Map.Entry<String, ListenableFuture<T>> future : futures.entrySet()) {
+        try {
+          stubs.put(future.getKey(), Uninterruptibles.getUninterruptibly(future.getValue()));
+        } catch (ExecutionException e) {
+          // Rethrow what went wrong, such as ASM choking on a class file, as if the classes had
+          // been stubbed on this thread.
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+      return stubs;
+    } finally {
+      for (ListenableFuture<T> future : futures.values()) {
+        future.cancel(/* mayInterruptIfRunning */ false);
       }
     }
   }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persists the output of buck.py for each build file under {@code buck-out}, so that a fresh
+ * process doesn't have to evaluate build files which haven't changed since they were last parsed.
+ * <p>
+ * An entry is only used if the build file and everything it includes still have the same SHA-1,
+ * the parser's configuration (buck.py, its flags and the environment) is unchanged, and the files
+ * under the build file's directory are the same as when it was evaluated, since adding or removing
+ * files changes the results of {@code glob()}. Like {@code glob()}, the listing reaches into
+ * subpackages, but it leaves out ignored paths such as {@code buck-out} and {@code .git}: every
+ * build writes to them, and walking them would make each lookup as slow as a parse.
+ */
+public class BuildFileParseCache {
+
+  private static final Logger LOG = Logger.get(BuildFileParseCache.class);
+
+  /** Bump this whenever the format of the entries changes. */
+  private static final int VERSION = 2;
+
+  public static final Path CACHE_DIR = BuckConstant.BUCK_OUTPUT_PATH.resolve("parse-cache");
+
+  private static final String VERSION_KEY = "version";
+  private static final String CONFIGURATION_KEY = "configuration";
+  private static final String BUILD_FILE_KEY = "build_file";
+  private static final String LISTING_KEY = "listing";
+  private static final String INPUTS_KEY = "inputs";
+  private static final String RULES_KEY = "rules";
+
+  /**
+   * Key of the meta-rule that lists the build files executed while reading rules.
+   * @see com.facebook.buck.parser.Parser
+   */
+  private static final String INCLUDES_META_RULE = "__includes";
+
+  private static final HashCode MISSING_FILE_HASH = Hashing.sha1().hashInt(0);
+
+  private final ProjectFilesystem filesystem;
+  private final Gson gson;
+
+  public BuildFileParseCache(ProjectFilesystem filesystem) {
+    this.filesystem = filesystem;
+    // Raw rules may legitimately contain null values, which must survive the round trip.
+    this.gson = new GsonBuilder().serializeNulls().create();
+  }
+
+  /**
+   * Looks up the rules of {@code buildFile}. The returned {@link Lookup} records the state of the
+   * build file's package before it is evaluated, so that a change made while buck.py is running
+   * invalidates the entry it stores rather than being masked by it.
+   *
+   * @param buildFile an absolute path to a build file.
+   * @param configuration a hash of everything other than the build file's inputs which affects
+   *     the output of buck.py.
+   */
+  public Lookup lookup(Path buildFile, HashCode configuration) {
+    Preconditions.checkArgument(buildFile.isAbsolute());
+    @Nullable HashCode buildFileHash = null;
+    @Nullable HashCode listing = null;
+    Optional<List<Map<String, Object>>> rules = Optional.absent();
+    try {
+      buildFileHash = hashFile(buildFile);
+      listing = hashPackageListing(buildFile);
+      rules = readEntry(buildFile, configuration, buildFileHash, listing);
+    } catch (IOException | JsonParseException | IllegalStateException | ClassCastException e) {
+      LOG.debug(e, "Ignoring unusable parse cache entry for %s.", buildFile);
+    }
+    LOG.verbose("Parse cache %s for %s.", rules.isPresent() ? "hit" : "miss", buildFile);
+    return new Lookup(buildFile, configuration, buildFileHash, listing, rules);
+  }
+
+  private Optional<List<Map<String, Object>>> readEntry(
+      Path buildFile,
+      HashCode configuration,
+      HashCode buildFileHash,
+      HashCode listing) throws IOException {
+    Path entryPath = getEntryPath(buildFile);
+    if (!Files.isRegularFile(entryPath)) {
+      return Optional.absent();
+    }
+
+    JsonObject entry;
+    try (Reader reader = Files.newBufferedReader(entryPath, UTF_8)) {
+      entry = gson.fromJson(reader, JsonObject.class);
+    }
+    if (entry == null ||
+        !hasValue(entry, VERSION_KEY, String.valueOf(VERSION)) ||
+        !hasValue(entry, CONFIGURATION_KEY, configuration.toString()) ||
+        !hasValue(entry, BUILD_FILE_KEY, buildFile.toString()) ||
+        !hasValue(entry, LISTING_KEY, listing.toString()) ||
+        !entry.has(INPUTS_KEY) ||
+        !entry.has(RULES_KEY)) {
+      return Optional.absent();
+    }
+
+    for (Map.Entry<String, JsonElement> input : entry.getAsJsonObject(INPUTS_KEY).entrySet()) {
+      Path inputPath = Paths.get(input.getKey());
+      HashCode expected = HashCode.fromString(input.getValue().getAsString());
+      HashCode actual = inputPath.equals(buildFile) ? buildFileHash : hashFile(inputPath);
+      if (!expected.equals(actual)) {
+        LOG.verbose("Parse cache entry for %s is stale: %s changed.", buildFile, inputPath);
+        return Optional.absent();
+      }
+    }
+
+    List<Map<String, Object>> rules = Lists.newArrayList();
+    for (JsonElement rule : entry.getAsJsonArray(RULES_KEY)) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = (Map<String, Object>) RawParser.toRawTypes(rule);
+      rules.add(Preconditions.checkNotNull(map));
+    }
+    return Optional.of(rules);
+  }
+
+  private static boolean hasValue(JsonObject entry, String key, String expected) {
+    JsonElement value = entry.get(key);
+    return value != null && value.isJsonPrimitive() && expected.equals(value.getAsString());
+  }
+
+  private void writeEntry(
+      Path buildFile,
+      HashCode configuration,
+      HashCode buildFileHash,
+      HashCode listing,
+      List<Map<String, Object>> rulesAndMetaRules) throws IOException {
+    JsonObject inputs = new JsonObject();
+    for (Path include : getIncludes(rulesAndMetaRules)) {
+      HashCode hash = include.equals(buildFile) ? buildFileHash : hashFile(include);
+      inputs.addProperty(include.toString(), hash.toString());
+    }
+    inputs.addProperty(buildFile.toString(), buildFileHash.toString());
+
+    JsonObject entry = new JsonObject();
+    entry.addProperty(VERSION_KEY, VERSION);
+    entry.addProperty(CONFIGURATION_KEY, configuration.toString());
+    entry.addProperty(BUILD_FILE_KEY, buildFile.toString());
+    entry.addProperty(LISTING_KEY, listing.toString());
+    entry.add(INPUTS_KEY, inputs);
+    entry.add(RULES_KEY, gson.toJsonTree(rulesAndMetaRules));
+
+    // Write to a temporary file first, so that a concurrent reader never sees half an entry.
+    Path entryPath = getEntryPath(buildFile);
+    Files.createDirectories(entryPath.getParent());
+    Path tempPath = Files.createTempFile(entryPath.getParent(), "entry", ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tempPath, UTF_8)) {
+        gson.toJson(entry, writer);
+      }
+      Files.move(
+          tempPath,
+          entryPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  @SuppressWarnings("unchecked") // Needed for downcast from Object to List<String>.
+  private static ImmutableList<Path> getIncludes(List<Map<String, Object>> rulesAndMetaRules) {
+    ImmutableList.Builder<Path> includes = ImmutableList.builder();
+    for (Map<String, Object> rule : rulesAndMetaRules) {
+      Object fileNames = rule.get(INCLUDES_META_RULE);
+      if (fileNames != null) {
+        for (String fileName : (List<String>) fileNames) {
+          includes.add(Paths.get(fileName));
+        }
+      }
+    }
+    return includes.build();
+  }
+
+  @VisibleForTesting
+  Path getEntryPath(Path buildFile) {
+    String key = Hashing.sha1().hashString(buildFile.toString(), UTF_8).toString();
+    return filesystem.resolve(CACHE_DIR)
+        .resolve(key.substring(0, 2))
+        .resolve(key.substring(2) + ".json");
+  }
+
+  private static HashCode hashFile(Path path) throws IOException {
+    if (!Files.isRegularFile(path)) {
+      // A deleted input simply invalidates the entry.
+      return MISSING_FILE_HASH;
+    }
+    return MorePaths.asByteSource(path).hash(Hashing.sha1());
+  }
+
+  /**
+   * Hashes the names of the files {@code glob()} can reach from {@code buildFile}: everything
+   * under its directory, including subpackages, other than ignored paths. Changes to those don't
+   * invalidate cached globs in the daemon either.
+   */
+  private HashCode hashPackageListing(Path buildFile) throws IOException {
+    final Path packageDir = buildFile.getParent();
+    final Path rootPath = filesystem.getRootPath();
+    final List<String> names = Lists.newArrayList();
+    Files.walkFileTree(
+        packageDir,
+        EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+        Integer.MAX_VALUE,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (!dir.equals(packageDir)) {
+              // Storing an entry changes the cache directory, which would otherwise invalidate
+              // the entry of any build file above it.
+              Path relativeDir = rootPath.relativize(dir);
+              if (relativeDir.equals(CACHE_DIR) || filesystem.isIgnored(relativeDir)) {
+                return FileVisitResult.SKIP_SUBTREE;
+              }
+              names.add(packageDir.relativize(dir).toString() + "/");
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            names.add(packageDir.relativize(file).toString());
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // Broken symlinks and symlink loops are still part of the listing.
+            names.add(packageDir.relativize(file).toString());
+            return FileVisitResult.CONTINUE;
+          }
+        });
+
+    Collections.sort(names);
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String name : names) {
+      hasher.putString(name, UTF_8);
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * The result of looking up a build file, which stores the rules produced by evaluating it
+   * when the lookup missed.
+   */
+  public class Lookup {
+    private final Path buildFile;
+    private final HashCode configuration;
+    @Nullable private final HashCode buildFileHash;
+    @Nullable private final HashCode listing;
+    private final Optional<List<Map<String, Object>>> rules;
+
+    private Lookup(
+        Path buildFile,
+        HashCode configuration,
+        @Nullable HashCode buildFileHash,
+        @Nullable HashCode listing,
+        Optional<List<Map<String, Object>>> rules) {
+      this.buildFile = buildFile;
+      this.configuration = configuration;
+      this.buildFileHash = buildFileHash;
+      this.listing = listing;
+      this.rules = rules;
+    }
+
+    /**
+     * @return the cached rules and meta rules of the build file, if the entry was up to date.
+     */
+    public Optional<List<Map<String, Object>>> getRules() {
+      return rules;
+    }
+
+    /**
+     * Stores the rules and meta rules produced by evaluating the build file. Failures are logged
+     * rather than thrown, as they only cost a future evaluation.
+     */
+    public void store(List<Map<String, Object>> rulesAndMetaRules) {
+      if (buildFileHash == null || listing == null) {
+        return;
+      }
+      try {
+        writeEntry(buildFile, configuration, buildFileHash, listing, rulesAndMetaRules);
+      } catch (IOException e) {
+        LOG.warn(e, "Couldn't store parse cache entry for %s.", buildFile);
+      }
+    }
+  }
+}
@@ -17,10 +17,12 @@
 package com.facebook.buck.json;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.IOException;
 import java.io.Reader;
@@ -95,6 +97,26 @@ public class BuildFileToJsonParser implements AutoCloseable {
     }
   }
 
+  /**
+   * buck.py may ask its parent for something, e.g. a listing of files to match globs against,
+   * before writing the rules of the build file it's evaluating. Requests are JSON objects, so they
+   * can't be mistaken for the array of rules.
+   *
+   * @return the next request from buck.py, or absent if the rules come next.
+   */
+  @SuppressWarnings("unchecked")
+  Optional<Map<String, Object>> nextRequest() throws IOException {
+    try {
+      if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+        return Optional.absent();
+      }
+      JsonObject json = gson.fromJson(reader, JsonObject.class);
+      return Optional.of((Map<String, Object>) RawParser.toRawTypes(json));
+    } catch (IllegalStateException e) {
+      throw new IOException(e); // Rethrow Gson exceptions as IO (non-runtime) exceptions.
+    }
+  }
+
   @Override
   public void close() throws IOException {
     reader.close();
@@ -19,6 +19,7 @@ package com.facebook.buck.json;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.util.Console;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
@@ -31,6 +32,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final String buildFileName;
   private final Iterable<String> defaultIncludes;
   private final ImmutableSet<Description<?>> descriptions;
+  private final Optional<BuildFileParseCache> parseCache;
+  private final Optional<FileListingCache> fileListingCache;
 
   public DefaultProjectBuildFileParserFactory(
       Path projectRoot,
@@ -39,12 +42,34 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       String buildFileName,
       Iterable<String> defaultIncludes,
       ImmutableSet<Description<?>> descriptions) {
+    this(
+        projectRoot,
+        pythonInterpreter,
+        allowEmptyGlobs,
+        buildFileName,
+        defaultIncludes,
+        descriptions,
+        Optional.<BuildFileParseCache>absent(),
+        Optional.<FileListingCache>absent());
+  }
+
+  public DefaultProjectBuildFileParserFactory(
+      Path projectRoot,
+      String pythonInterpreter,
+      boolean allowEmptyGlobs,
+      String buildFileName,
+      Iterable<String> defaultIncludes,
+      ImmutableSet<Description<?>> descriptions,
+      Optional<BuildFileParseCache> parseCache,
+      Optional<FileListingCache> fileListingCache) {
     this.projectRoot = projectRoot;
     this.pythonInterpreter = pythonInterpreter;
     this.allowEmptyGlobs = allowEmptyGlobs;
     this.buildFileName = buildFileName;
     this.defaultIncludes = defaultIncludes;
     this.descriptions = descriptions;
+    this.parseCache = parseCache;
+    this.fileListingCache = fileListingCache;
   }
 
   @Override
@@ -61,6 +86,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
         descriptions,
         console,
         environment,
-        buckEventBus);
+        buckEventBus,
+        parseCache,
+        fileListingCache);
   }
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lists the files under directories of the project so that buck.py can match glob patterns
+ * against the listing rather than walking the filesystem for every call to {@code glob()}.
+ * <p>
+ * Listings are kept in memory until {@link #invalidate(Path)} is told about a file being created
+ * or deleted beneath them, so the cache must only be shared by parsers whose owner forwards file
+ * change events to it. Directories whose listings the events can't keep up to date, because
+ * they reach ignored paths, cross symlinks or hold files matching the globs Watchman is told to
+ * ignore, aren't listed at all: buck.py globs the filesystem itself for them.
+ */
+public class FileListingCache {
+
+  private static final Logger LOG = Logger.get(FileListingCache.class);
+
+  private final ProjectFilesystem filesystem;
+  private final Path rootPath;
+  private final ImmutableList<PathMatcher> ignoreGlobs;
+
+  /**
+   * Sorted paths of the regular files under each listed directory, relative to it and with unix
+   * separators.
+   */
+  private final Map<Path, ImmutableList<String>> listings = Maps.newHashMap();
+
+  /** Directories found not to be cacheable, which are forgotten like listings are. */
+  private final Set<Path> uncacheable = Sets.newHashSet();
+
+  /** Incremented by every invalidation, so that a listing racing with one isn't stored. */
+  private long generation;
+
+  /**
+   * @param ignoreGlobs the globs of the files whose changes the file change events leave out.
+   */
+  public FileListingCache(ProjectFilesystem filesystem, Iterable<String> ignoreGlobs) {
+    this.filesystem = filesystem;
+    this.rootPath = filesystem.getRootPath().toAbsolutePath().normalize();
+    ImmutableList.Builder<PathMatcher> matchers = ImmutableList.builder();
+    for (String glob : ignoreGlobs) {
+      matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+    this.ignoreGlobs = matchers.build();
+  }
+
+  /**
+   * @param directory an absolute path to a directory of the project.
+   * @return the sorted paths of the regular files under {@code directory}, relative to it and
+   *     with unix separators, following symlinks as {@code glob()} does. Absent if the directory
+   *     is outside the project, couldn't be listed or its listing couldn't be cached, in which
+   *     case buck.py should glob the filesystem itself.
+   */
+  public Optional<ImmutableList<String>> getFiles(Path directory) {
+    Path dir = directory.toAbsolutePath().normalize();
+    if (!dir.startsWith(rootPath)) {
+      return Optional.absent();
+    }
+
+    long startGeneration;
+    synchronized (this) {
+      if (uncacheable.contains(dir)) {
+        return Optional.absent();
+      }
+      Optional<ImmutableList<String>> cached = getCachedFiles(dir);
+      if (cached.isPresent()) {
+        return cached;
+      }
+      startGeneration = generation;
+    }
+
+    Optional<ImmutableList<String>> files;
+    try {
+      files = isReachingIgnoredPaths(dir) ?
+          Optional.<ImmutableList<String>>absent() :
+          listFiles(dir);
+    } catch (IOException e) {
+      LOG.debug(e, "Couldn't list files under %s.", dir);
+      return Optional.absent();
+    }
+
+    synchronized (this) {
+      if (generation == startGeneration) {
+        if (files.isPresent()) {
+          listings.put(dir, files.get());
+        } else {
+          uncacheable.add(dir);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Drops the listings affected by the creation or deletion of {@code path}: those of its
+   * ancestors and, should it be a directory, those beneath it.
+   *
+   * @param path a path relative to the project root.
+   */
+  public synchronized void invalidate(Path path) {
+    Path changed = filesystem.resolve(path);
+    generation++;
+    removeAffected(listings.keySet(), changed);
+    removeAffected(uncacheable, changed);
+  }
+
+  public synchronized void invalidateAll() {
+    generation++;
+    listings.clear();
+    uncacheable.clear();
+  }
+
+  private static void removeAffected(Set<Path> dirs, Path changed) {
+    Iterator<Path> iterator = dirs.iterator();
+    while (iterator.hasNext()) {
+      Path dir = iterator.next();
+      if (changed.startsWith(dir) || dir.startsWith(changed)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getCachedListingCount() {
+    return listings.size();
+  }
+
+  /**
+   * A directory beneath one which is already listed needn't be walked again: its files are a
+   * contiguous range of the ancestor's sorted listing.
+   */
+  private synchronized Optional<ImmutableList<String>> getCachedFiles(Path dir) {
+    for (Path ancestor = dir;
+         ancestor != null && ancestor.startsWith(rootPath);
+         ancestor = ancestor.getParent()) {
+      ImmutableList<String> files = listings.get(ancestor);
+      if (files == null) {
+        continue;
+      }
+      if (ancestor.equals(dir)) {
+        return Optional.of(files);
+      }
+
+      String prefix = MorePaths.pathWithUnixSeparatorsAndTrailingSlash(ancestor.relativize(dir));
+      int start = Collections.binarySearch(files, prefix);
+      start = start < 0 ? -start - 1 : start;
+      int end = start;
+      while (end < files.size() && files.get(end).startsWith(prefix)) {
+        end++;
+      }
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      for (String file : files.subList(start, end)) {
+        builder.add(file.substring(prefix.length()));
+      }
+      ImmutableList<String> derived = builder.build();
+      listings.put(dir, derived);
+      return Optional.of(derived);
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Changes to ignored paths aren't reported, but they're still globbed by buck.py. Checking for
+   * them up front spares walking everything else beneath, e.g., the project root.
+   */
+  private boolean isReachingIgnoredPaths(Path dir) {
+    if (filesystem.isIgnored(rootPath.relativize(dir))) {
+      return true;
+    }
+    for (Path ignorePath : filesystem.getIgnorePaths()) {
+      Path ignored = rootPath.resolve(ignorePath);
+      if (ignored.startsWith(dir) && Files.exists(ignored)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the sorted listing of {@code dir}, or absent if it can't be cached, in which case the
+   *     walk stops as soon as that's known.
+   */
+  private Optional<ImmutableList<String>> listFiles(final Path dir) throws IOException {
+    // Events name paths by their location in the project, so the listing of a directory reached
+    // through a symlink can't be invalidated by them.
+    if (!dir.toRealPath().equals(rootPath.toRealPath().resolve(rootPath.relativize(dir)))) {
+      return Optional.absent();
+    }
+    final ImmutableList.Builder<String> files = ImmutableList.builder();
+    final boolean[] isCacheable = {true};
+    Files.walkFileTree(
+        dir,
+        EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+        Integer.MAX_VALUE,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) {
+            if (filesystem.isIgnored(rootPath.relativize(subdir)) ||
+                (!subdir.equals(dir) && Files.isSymbolicLink(subdir))) {
+              // Changes to ignored paths aren't reported, and neither are changes beneath a
+              // symlink's target, but both are still globbed by buck.py.
+              isCacheable[0] = false;
+              return FileVisitResult.TERMINATE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (isIgnoredByGlob(file)) {
+              // Nor are changes to the files Watchman is told to ignore.
+              isCacheable[0] = false;
+              return FileVisitResult.TERMINATE;
+            }
+            // Broken symlinks are visited with the attributes of the link itself, and like other
+            // special files aren't matched by glob().
+            if (attrs.isRegularFile()) {
+              files.add(MorePaths.pathWithUnixSeparators(dir.relativize(file)));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+            if (e instanceof FileSystemLoopException) {
+              isCacheable[0] = false;
+              return FileVisitResult.TERMINATE;
+            }
+            throw e;
+          }
+        });
+    return isCacheable[0] ?
+        Optional.of(Ordering.natural().immutableSortedCopy(files.build())) :
+        Optional.<ImmutableList<String>>absent();
+  }
+
+  /**
+   * Watchman matches the globs against whole paths, letting {@code *} match separators, so the
+   * file's name is checked as well as its path in the project.
+   */
+  private boolean isIgnoredByGlob(Path file) {
+    Path relativePath = rootPath.relativize(file);
+    for (PathMatcher matcher : ignoreGlobs) {
+      if (matcher.matches(relativePath) || matcher.matches(file.getFileName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
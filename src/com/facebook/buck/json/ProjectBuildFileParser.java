@@ -38,7 +38,12 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Resources;
+import com.google.gson.Gson;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -48,6 +53,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
 import java.nio.file.Files;
@@ -73,6 +79,9 @@ public class ProjectBuildFileParser implements AutoCloseable {
           "buck.path_to_pathlib_py",
           "third-party/py/pathlib/pathlib.py"));
 
+  /** Key of buck.py's requests for the files under a directory, see {@link FileListingCache}. */
+  private static final String LIST_FILES_REQUEST = "list_files";
+
   private static final Logger LOG = Logger.get(ProjectBuildFileParser.class);
 
   private final ImmutableMap<String, String> environment;
@@ -92,10 +101,15 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private final Console console;
   private final BuckEventBus buckEventBus;
 
+  private final Optional<BuildFileParseCache> parseCache;
+  private final Optional<FileListingCache> fileListingCache;
+  @Nullable private HashCode configurationHash;
+
   private boolean isInitialized;
   private boolean isClosed;
 
   private boolean enableProfiling;
+  private boolean postParseEvents = true;
   @Nullable private NamedTemporaryFile profileOutputFile;
   @Nullable private Thread stderrConsumer;
 
@@ -109,6 +123,32 @@ public class ProjectBuildFileParser implements AutoCloseable {
       Console console,
       ImmutableMap<String, String> environment,
       BuckEventBus buckEventBus) {
+    this(
+        projectRoot,
+        pythonInterpreter,
+        allowEmptyGlobs,
+        buildFileName,
+        defaultIncludes,
+        descriptions,
+        console,
+        environment,
+        buckEventBus,
+        Optional.<BuildFileParseCache>absent(),
+        Optional.<FileListingCache>absent());
+  }
+
+  protected ProjectBuildFileParser(
+      Path projectRoot,
+      String pythonInterpreter,
+      boolean allowEmptyGlobs,
+      String buildFileName,
+      Iterable<String> defaultIncludes,
+      ImmutableSet<Description<?>> descriptions,
+      Console console,
+      ImmutableMap<String, String> environment,
+      BuckEventBus buckEventBus,
+      Optional<BuildFileParseCache> parseCache,
+      Optional<FileListingCache> fileListingCache) {
     this.projectRoot = projectRoot;
     this.pythonInterpreter = pythonInterpreter;
     this.allowEmptyGlobs = allowEmptyGlobs;
@@ -119,6 +159,8 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.console = console;
     this.environment = environment;
     this.buckEventBus = buckEventBus;
+    this.parseCache = parseCache;
+    this.fileListingCache = fileListingCache;
   }
 
   public void setEnableProfiling(boolean enableProfiling) {
@@ -127,6 +169,16 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.enableProfiling = enableProfiling;
   }
 
+  /**
+   * Parsers owned by a {@link ProjectBuildFileParserPool} leave it to the pool to post a single
+   * pair of {@link ProjectBuildFileParseEvents} for the whole parse.
+   */
+  void setPostParseEvents(boolean postParseEvents) {
+    ensureNotClosed();
+    ensureNotInitialized();
+    this.postParseEvents = postParseEvents;
+  }
+
   private void ensureNotClosed() {
     Preconditions.checkState(!isClosed);
   }
@@ -153,7 +205,9 @@ public class ProjectBuildFileParser implements AutoCloseable {
    * Initialize the parser, starting buck.py.
    */
   private void init() throws IOException {
-    buckEventBus.post(new ProjectBuildFileParseEvents.Started());
+    if (postParseEvents) {
+      buckEventBus.post(new ProjectBuildFileParseEvents.Started());
+    }
 
     ProcessBuilder processBuilder = new ProcessBuilder(buildArgs());
     processBuilder.environment().clear();
@@ -213,6 +267,10 @@ public class ProjectBuildFileParser implements AutoCloseable {
       argBuilder.add("--allow_empty_globs");
     }
 
+    if (fileListingCache.isPresent()) {
+      argBuilder.add("--list_files_from_parent");
+    }
+
     argBuilder.add("--project_root", projectRoot.toAbsolutePath().toString());
     argBuilder.add("--build_file_name", buildFileName);
 
@@ -240,14 +298,26 @@ public class ProjectBuildFileParser implements AutoCloseable {
 
   /**
    * Collect all rules from a particular build file, along with meta rules about the rules, for
-   * example which build files the rules depend on.
+   * example which build files the rules depend on. If this parser has a
+   * {@link BuildFileParseCache} with an up to date entry for the build file, buck.py isn't run.
    *
    * @param buildFile should be an absolute path to a build file. Must have rootPath as its prefix.
    */
   public List<Map<String, Object>> getAllRulesAndMetaRules(Path buildFile)
       throws BuildFileParseException, InterruptedException {
     try {
-      return getAllRulesInternal(buildFile);
+      if (!parseCache.isPresent()) {
+        return getAllRulesInternal(buildFile);
+      }
+
+      BuildFileParseCache.Lookup lookup =
+          parseCache.get().lookup(buildFile, getConfigurationHash());
+      if (lookup.getRules().isPresent()) {
+        return lookup.getRules().get();
+      }
+      List<Map<String, Object>> result = getAllRulesInternal(buildFile);
+      lookup.store(result);
+      return result;
     } catch (IOException e) {
       MoreThrowables.propagateIfInterrupt(e);
       throw BuildFileParseException.createForBuildFileParseError(buildFile, e);
@@ -272,12 +342,39 @@ public class ProjectBuildFileParser implements AutoCloseable {
     buckPyStdinWriter.flush();
 
     LOG.debug("Parsing output of process %s...", buckPyProcess);
+    Optional<Map<String, Object>> request;
+    while ((request = buckPyStdoutParser.nextRequest()).isPresent()) {
+      answerRequest(request.get());
+    }
     List<Map<String, Object>> result = buckPyStdoutParser.nextRules();
     LOG.verbose("Got rules: %s", result);
     LOG.debug("Parsed %d rules from process", result.size());
     return result;
   }
 
+  /**
+   * Writes the answer to a request from buck.py to its stdin as a single line of JSON. buck.py
+   * only asks for the files under a directory, which are answered with {@code null} when there's
+   * no listing for it to use instead of the filesystem.
+   */
+  private void answerRequest(Map<String, Object> request) throws IOException {
+    Preconditions.checkNotNull(buckPyStdinWriter);
+
+    Object directory = request.get(LIST_FILES_REQUEST);
+    if (!(directory instanceof String)) {
+      throw new IOException(String.format("Unexpected request from buck.py: %s", request));
+    }
+    Optional<ImmutableList<String>> files = Optional.absent();
+    if (fileListingCache.isPresent()) {
+      files = fileListingCache.get().getFiles(Paths.get((String) directory));
+    }
+    LOG.verbose("Listed %s for buck.py: %s", directory, files);
+
+    buckPyStdinWriter.write(new Gson().toJson(files.orNull()));
+    buckPyStdinWriter.newLine();
+    buckPyStdinWriter.flush();
+  }
+
   @Override
   @SuppressWarnings("PMD.EmptyCatchBlock")
   public void close() throws BuildFileParseException, InterruptedException {
@@ -338,7 +435,9 @@ public class ProjectBuildFileParser implements AutoCloseable {
       }
     } finally {
       isClosed = true;
-      buckEventBus.post(new ProjectBuildFileParseEvents.Finished());
+      if (postParseEvents) {
+        buckEventBus.post(new ProjectBuildFileParseEvents.Finished());
+      }
     }
   }
 
@@ -393,35 +492,71 @@ public class ProjectBuildFileParser implements AutoCloseable {
     Files.createDirectories(buckDotPy.getParent());
 
     try (Writer out = Files.newBufferedWriter(buckDotPy, UTF_8)) {
-      URL resource = Resources.getResource(BUCK_PY_RESOURCE);
-      String pathlibDir = PATH_TO_PATHLIB_PY.getParent().toString();
-      out.write(
-          "from __future__ import with_statement\n" +
-          "import sys\n" +
-          "sys.path.insert(0, \"" +
-              Escaper.escapeAsBashString(MorePaths.pathWithUnixSeparators(pathlibDir)) + "\")\n");
-      Resources.asCharSource(resource, UTF_8).copyTo(out);
-      out.write("\n\n");
-
-      ConstructorArgMarshaller inspector = new ConstructorArgMarshaller();
-      BuckPyFunction function = new BuckPyFunction(inspector);
-      for (Description<?> description : descriptions) {
-        out.write(function.toPythonFunction(
-            description.getBuildRuleType(),
-            description.createUnpopulatedConstructorArg()));
-        out.write('\n');
-      }
-
-      out.write(Joiner.on("\n").join(
-          "if __name__ == '__main__':",
-          "  try:",
-          "    main()",
-          "  except KeyboardInterrupt:",
-          "    print >> sys.stderr, 'Killed by User'",
-          ""));
+      writeBuckPy(descriptions, out);
     }
     Path normalizedBuckDotPyPath = buckDotPy.normalize();
     pathToBuckPy = Optional.of(normalizedBuckDotPyPath);
     LOG.debug("Created temporary buck.py instance at %s.", normalizedBuckDotPyPath);
   }
+
+  private static void writeBuckPy(ImmutableSet<Description<?>> descriptions, Writer out)
+      throws IOException {
+    URL resource = Resources.getResource(BUCK_PY_RESOURCE);
+    String pathlibDir = PATH_TO_PATHLIB_PY.getParent().toString();
+    out.write(
+        "from __future__ import with_statement\n" +
+        "import sys\n" +
+        "sys.path.insert(0, \"" +
+            Escaper.escapeAsBashString(MorePaths.pathWithUnixSeparators(pathlibDir)) + "\")\n");
+    Resources.asCharSource(resource, UTF_8).copyTo(out);
+    out.write("\n\n");
+
+    ConstructorArgMarshaller inspector = new ConstructorArgMarshaller();
+    BuckPyFunction function = new BuckPyFunction(inspector);
+    for (Description<?> description : descriptions) {
+      out.write(function.toPythonFunction(
+          description.getBuildRuleType(),
+          description.createUnpopulatedConstructorArg()));
+      out.write('\n');
+    }
+
+    out.write(Joiner.on("\n").join(
+        "if __name__ == '__main__':",
+        "  try:",
+        "    main()",
+        "  except KeyboardInterrupt:",
+        "    print >> sys.stderr, 'Killed by User'",
+        ""));
+  }
+
+  /**
+   * @return a hash of everything apart from the build file and its includes which affects the
+   *     output of buck.py: the generated script itself, its flags and its environment.
+   */
+  private HashCode getConfigurationHash() throws IOException {
+    if (configurationHash == null) {
+      StringWriter buckPy = new StringWriter();
+      writeBuckPy(descriptions, buckPy);
+
+      Hasher hasher = Hashing.sha1().newHasher();
+      hasher.putString(buckPy.toString(), UTF_8);
+      hasher.putString(pythonInterpreter, UTF_8);
+      hasher.putBoolean(allowEmptyGlobs);
+      hasher.putBoolean(fileListingCache.isPresent());
+      hasher.putString(projectRoot.toAbsolutePath().toString(), UTF_8);
+      hasher.putString(buildFileName, UTF_8);
+      for (String include : defaultIncludes) {
+        hasher.putString(include, UTF_8);
+        hasher.putByte((byte) 0);
+      }
+      for (Map.Entry<String, String> entry : ImmutableSortedMap.copyOf(environment).entrySet()) {
+        hasher.putString(entry.getKey(), UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putString(entry.getValue(), UTF_8);
+        hasher.putByte((byte) 0);
+      }
+      configurationHash = hasher.hash();
+    }
+    return configurationHash;
+  }
 }
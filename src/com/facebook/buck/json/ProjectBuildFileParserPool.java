@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.Console;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Evaluates build files concurrently using up to {@code maxParsers} buck.py processes. Each
+ * {@link ProjectBuildFileParser} is only ever used by one thread at a time, and parsers are
+ * created on demand, so a command which only needs a handful of build files still pays for a
+ * single python process. Each build file is evaluated at most once for the lifetime of the pool.
+ * <p>
+ * Like {@link ProjectBuildFileParser}, a pool is constructed for the parsing phase of a command
+ * and must be closed afterward to shut down its python processes. The pool rather than its parsers
+ * posts {@link ProjectBuildFileParseEvents}, once when its first parser is created and once when
+ * it is closed, so that the parse is reported as a single phase however many parsers it used.
+ */
+public class ProjectBuildFileParserPool implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
+
+  private final ProjectBuildFileParserFactory parserFactory;
+  private final Console console;
+  private final ImmutableMap<String, String> environment;
+  private final BuckEventBus buckEventBus;
+  private final boolean enableProfiling;
+
+  private final ListeningExecutorService executorService;
+
+  /** Parsers which are not currently evaluating a build file. */
+  private final Queue<ProjectBuildFileParser> idleParsers;
+
+  /** Every parser created by this pool, which must all be closed when the pool is closed. */
+  private final List<ProjectBuildFileParser> allParsers;
+
+  private final ConcurrentMap<Path, ListenableFuture<List<Map<String, Object>>>> parses;
+
+  private boolean isClosed;
+
+  public ProjectBuildFileParserPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory parserFactory,
+      Console console,
+      ImmutableMap<String, String> environment,
+      BuckEventBus buckEventBus,
+      boolean enableProfiling) {
+    Preconditions.checkArgument(maxParsers > 0, "Need at least one parser, got %s.", maxParsers);
+    this.parserFactory = parserFactory;
+    this.console = console;
+    this.environment = environment;
+    this.buckEventBus = buckEventBus;
+    this.enableProfiling = enableProfiling;
+    this.executorService = listeningDecorator(
+        MoreExecutors.newMultiThreadExecutor(
+            new CommandThreadFactory(ProjectBuildFileParserPool.class.getSimpleName()),
+            maxParsers));
+    this.idleParsers = new ConcurrentLinkedQueue<>();
+    this.allParsers = Lists.newArrayList();
+    this.parses = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts evaluating {@code buildFile} in the background, if it has not been started already.
+   * The result is later collected with {@link #getAllRulesAndMetaRules(Path)}.
+   *
+   * @param buildFile should be an absolute path to a build file.
+   */
+  public ListenableFuture<List<Map<String, Object>>> prefetch(final Path buildFile) {
+    Preconditions.checkState(!isClosed);
+    ListenableFuture<List<Map<String, Object>>> existing = parses.get(buildFile);
+    if (existing != null) {
+      return existing;
+    }
+
+    ListenableFutureTask<List<Map<String, Object>>> task = ListenableFutureTask.create(
+        new Callable<List<Map<String, Object>>>() {
+          @Override
+          public List<Map<String, Object>> call() throws Exception {
+            return evaluate(buildFile);
+          }
+        });
+    existing = parses.putIfAbsent(buildFile, task);
+    if (existing != null) {
+      return existing;
+    }
+    executorService.execute(task);
+    return task;
+  }
+
+  /**
+   * Collect all rules from a particular build file, along with meta rules about the rules, waiting
+   * for the evaluation started by {@link #prefetch(Path)} if there is one.
+   *
+   * @param buildFile should be an absolute path to a build file.
+   * @see ProjectBuildFileParser#getAllRulesAndMetaRules(Path)
+   */
+  public List<Map<String, Object>> getAllRulesAndMetaRules(Path buildFile)
+      throws BuildFileParseException, InterruptedException {
+    try {
+      return prefetch(buildFile).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, BuildFileParseException.class);
+      Throwables.propagateIfInstanceOf(cause, InterruptedException.class);
+      throw Throwables.propagate(cause);
+    }
+  }
+
+  private List<Map<String, Object>> evaluate(Path buildFile)
+      throws BuildFileParseException, InterruptedException {
+    ProjectBuildFileParser parser = idleParsers.poll();
+    if (parser == null) {
+      parser = createParser();
+    }
+    List<Map<String, Object>> rules = parser.getAllRulesAndMetaRules(buildFile);
+
+    // A parser which failed may have left unread output behind, so only a parser which succeeded
+    // is handed out again. Either way it is closed along with the pool.
+    idleParsers.add(parser);
+    return rules;
+  }
+
+  private ProjectBuildFileParser createParser() {
+    ProjectBuildFileParser parser = parserFactory.createParser(
+        console,
+        environment,
+        buckEventBus);
+    parser.setEnableProfiling(enableProfiling);
+    parser.setPostParseEvents(false);
+    synchronized (allParsers) {
+      Preconditions.checkState(!isClosed);
+      if (allParsers.isEmpty()) {
+        buckEventBus.post(new ProjectBuildFileParseEvents.Started());
+      }
+      allParsers.add(parser);
+      LOG.debug("Created build file parser %d: %s", allParsers.size(), parser);
+    }
+    return parser;
+  }
+
+  @Override
+  public void close() throws BuildFileParseException, InterruptedException {
+    if (isClosed) {
+      return;
+    }
+
+    // Build files which were prefetched but never asked for are not worth waiting on.
+    for (ListenableFuture<List<Map<String, Object>>> parse : parses.values()) {
+      parse.cancel(/* mayInterruptIfRunning */ false);
+    }
+
+    ImmutableList<ProjectBuildFileParser> parsers;
+    try {
+      MoreExecutors.shutdown(executorService);
+    } finally {
+      synchronized (allParsers) {
+        isClosed = true;
+        parsers = ImmutableList.copyOf(allParsers);
+      }
+    }
+
+    // Close every parser even if some fail, then report the first failure.
+    @Nullable Exception failure = null;
+    for (ProjectBuildFileParser parser : parsers) {
+      try {
+        parser.close();
+      } catch (BuildFileParseException | InterruptedException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (!parsers.isEmpty()) {
+      buckEventBus.post(new ProjectBuildFileParseEvents.Finished());
+    }
+    if (failure != null) {
+      Throwables.propagateIfInstanceOf(failure, BuildFileParseException.class);
+      Throwables.propagateIfInstanceOf(failure, InterruptedException.class);
+      throw Throwables.propagate(failure);
+    }
+  }
+}
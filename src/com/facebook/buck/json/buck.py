@@ -48,13 +48,28 @@ class BuildFileContext(object):
 
     type = BuildContextType.BUILD_FILE
 
-    def __init__(self, base_path, dirname, allow_empty_globs):
+    def __init__(self, base_path, dirname, allow_empty_globs, file_lister=None):
         self.globals = {}
         self.includes = set()
         self.base_path = base_path
         self.dirname = dirname
         self.allow_empty_globs = allow_empty_globs
         self.rules = {}
+        self._file_lister = file_lister
+        self._files = None
+        self._listed = False
+
+    def list_files(self):
+        """
+        Returns the paths of the files under dirname relative to it, as listed
+        by buck, or None if they should be found by walking the filesystem.
+        """
+        if self._file_lister is None:
+            return None
+        if not self._listed:
+            self._files = self._file_lister(self.dirname)
+            self._listed = True
+        return self._files
 
 
 class IncludeContext(object):
@@ -126,26 +141,47 @@ def glob(includes, excludes=[], include_dotfiles=False, build_env=None):
         excludes,
         include_dotfiles,
         build_env.allow_empty_globs,
-        search_base)
+        search_base,
+        list_files=build_env.list_files)
 
 
-def glob_internal(includes, excludes, include_dotfiles, allow_empty, search_base):
+def glob_internal(includes, excludes, include_dotfiles, allow_empty, search_base,
+                  list_files=None):
     # Ensure the user passes lists of strings rather than just a string.
     assert not isinstance(includes, basestring), \
         "The first argument to glob() must be a list of strings."
     assert not isinstance(excludes, basestring), \
         "The excludes argument must be a list of strings."
 
+    def is_special(pat):
+        return "*" in pat or "?" in pat or "[" in pat
+
+    def listed_files(pattern):
+        # Matching a listing of the files under search_base gives the same
+        # results as globbing it, except for patterns which pathlib rejects or
+        # resolves against the filesystem, and precise patterns are quicker to
+        # check directly.
+        if list_files is None or not is_special(pattern):
+            return None
+        pattern_path = type(search_base)(pattern)
+        if pattern_path.anchor or '..' in pattern_path.parts:
+            return None
+        return list_files()
+
     def includes_iterator():
         for pattern in includes:
+            files = listed_files(pattern)
+            if files is not None:
+                for path in files:
+                    if (path.match(pattern, match_entire=True) and
+                            (include_dotfiles or not path.name.startswith('.'))):
+                        yield path
+                continue
             for path in search_base.glob(pattern):
                 # TODO(user): Handle hidden files on Windows.
                 if path.is_file() and (include_dotfiles or not path.name.startswith('.')):
                     yield path.relative_to(search_base)
 
-    def is_special(pat):
-        return "*" in pat or "?" in pat or "[" in pat
-
     non_special_excludes = set()
     match_excludes = set()
     for pattern in excludes:
@@ -212,7 +248,8 @@ def add_deps(name, deps=[], build_env=None):
 
 class BuildFileProcessor(object):
 
-    def __init__(self, project_root, build_file_name, allow_empty_globs, implicit_includes=[]):
+    def __init__(self, project_root, build_file_name, allow_empty_globs, implicit_includes=[],
+                 file_lister=None):
         self._cache = {}
         self._build_env_stack = []
 
@@ -220,6 +257,7 @@ class BuildFileProcessor(object):
         self._build_file_name = build_file_name
         self._implicit_includes = implicit_includes
         self._allow_empty_globs = allow_empty_globs
+        self._file_lister = file_lister
 
         lazy_functions = {}
         for func in BUILD_FUNCTIONS:
@@ -394,7 +432,11 @@ class BuildFileProcessor(object):
         len_suffix = -len('/' + self._build_file_name)
         base_path = relative_path_to_build_file[:len_suffix]
         dirname = os.path.dirname(path)
-        build_env = BuildFileContext(base_path, dirname, self._allow_empty_globs)
+        build_env = BuildFileContext(
+            base_path,
+            dirname,
+            self._allow_empty_globs,
+            file_lister=self._file_lister)
 
         return self._process(
             build_env,
@@ -466,6 +508,11 @@ def main():
         '--include',
         action='append',
         dest='include')
+    parser.add_option(
+        '--list_files_from_parent',
+        action='store_true',
+        dest='list_files_from_parent',
+        help='Asks the parent for the files to match glob patterns against.')
     (options, args) = parser.parse_args()
 
     # Even though project_root is absolute path, it may not be concise. For
@@ -478,11 +525,25 @@ def main():
     options.project_root = cygwin_adjusted_path(options.project_root)
     project_root = os.path.abspath(options.project_root)
 
+    file_lister = None
+    if options.list_files_from_parent:
+        def file_lister(dirname):
+            # The parent answers with a line of JSON on our stdin before it
+            # reads the rules of the build file being processed.
+            to_parent.write(json.dumps({'list_files': dirname}))
+            to_parent.flush()
+            files = json.loads(sys.stdin.readline())
+            if files is None:
+                return None
+            encoding = sys.getfilesystemencoding() or 'utf-8'
+            return [Path(f.encode(encoding)) for f in files]
+
     buildFileProcessor = BuildFileProcessor(
         project_root,
         options.build_file_name,
         options.allow_empty_globs,
-        implicit_includes=options.include or [])
+        implicit_includes=options.include or [],
+        file_lister=file_lister)
 
     buildFileProcessor.install_builtins(__builtin__.__dict__)
 
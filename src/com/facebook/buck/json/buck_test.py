@@ -206,6 +206,22 @@ class TestBuckPlatformBase(object):
                 allow_empty=False,
                 search_base=search_base))
 
+    def test_glob_matches_listed_files(self):
+        search_base = self.fake_path('foo')
+        listed = [
+            self.fake_path(p)
+            for p in ['A.java', 'README', 'bar/B.java', 'bar/.C.java', 'bar/DTest.java']
+        ]
+        self.assertGlobMatches(
+            ['A.java', 'bar/B.java'],
+            glob_internal(
+                includes=['**/*.java'],
+                excludes=['**/*Test.java'],
+                include_dotfiles=False,
+                allow_empty=False,
+                search_base=search_base,
+                list_files=lambda: listed))
+
 
 class TestBuckPosix(TestBuckPlatformBase, unittest.TestCase):
     @staticmethod
@@ -277,6 +293,38 @@ class TestBuck(unittest.TestCase):
         finally:
             shutil.rmtree(d)
 
+    def test_listed_files_match_like_the_filesystem(self):
+        d = tempfile.mkdtemp()
+        try:
+            for path in ['A.java', '.B.java', 'b/C.java', 'b/c/DTest.java', 'b/E.java/F']:
+                path = os.path.join(d, *path.split('/'))
+                if not os.path.isdir(os.path.dirname(path)):
+                    os.makedirs(os.path.dirname(path))
+                open(path, 'w').close()
+            listed = []
+            for root, dirs, files in os.walk(d):
+                for f in files:
+                    listed.append(Path(os.path.relpath(os.path.join(root, f), d)))
+
+            for includes in [['**/*.java'], ['*'], ['b/**'], ['*/*.java'], ['b/c/../*']]:
+                for include_dotfiles in [False, True]:
+                    self.assertEquals(
+                        glob_internal(
+                            includes=includes,
+                            excludes=['**/*Test.java'],
+                            include_dotfiles=include_dotfiles,
+                            allow_empty=True,
+                            search_base=Path(d)),
+                        glob_internal(
+                            includes=includes,
+                            excludes=['**/*Test.java'],
+                            include_dotfiles=include_dotfiles,
+                            allow_empty=True,
+                            search_base=Path(d),
+                            list_files=lambda: listed))
+        finally:
+            shutil.rmtree(d)
+
 
 if __name__ == '__main__':
     unittest.main()
@@ -25,11 +25,14 @@ import com.facebook.buck.graph.AbstractAcyclicDepthFirstPostOrderTraversal;
 import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.json.BuildFileParseCache;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
+import com.facebook.buck.json.FileListingCache;
 import com.facebook.buck.json.JsonObjectHashing;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.json.ProjectBuildFileParserFactory;
+import com.facebook.buck.json.ProjectBuildFileParserPool;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildFileTree;
@@ -64,6 +67,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
@@ -107,6 +111,7 @@ public class Parser {
 
   private final Repository repository;
   private final ProjectBuildFileParserFactory buildFileParserFactory;
+  private final Optional<FileListingCache> fileListingCache;
 
   /**
    * Key of the meta-rule that lists the build files executed while reading rules.
@@ -196,8 +201,18 @@ public class Parser {
       boolean enforceBuckPackageBoundary,
       ImmutableSet<Pattern> tempFilePatterns,
       final String buildFileName,
-      Iterable<String> defaultIncludes)
+      Iterable<String> defaultIncludes,
+      Iterable<String> ignoreGlobs)
       throws IOException, InterruptedException {
+    ParserConfig parserConfig = new ParserConfig(repository.getBuckConfig());
+    Optional<BuildFileParseCache> parseCache = Optional.absent();
+    if (parserConfig.getEnablePersistentParseCache()) {
+      parseCache = Optional.of(new BuildFileParseCache(repository.getFilesystem()));
+    }
+    Optional<FileListingCache> fileListingCache = Optional.absent();
+    if (parserConfig.getEnableCachedGlobListings()) {
+      fileListingCache = Optional.of(new FileListingCache(repository.getFilesystem(), ignoreGlobs));
+    }
     return new Parser(
         repository,
         enforceBuckPackageBoundary,
@@ -221,7 +236,10 @@ public class Parser {
             allowEmptyGlobs,
             buildFileName,
             defaultIncludes,
-            repository.getAllDescriptions()));
+            repository.getAllDescriptions(),
+            parseCache,
+            fileListingCache),
+        fileListingCache);
   }
 
   /**
@@ -237,10 +255,36 @@ public class Parser {
       BuildTargetParser buildTargetParser,
       ProjectBuildFileParserFactory buildFileParserFactory)
       throws IOException, InterruptedException {
+    this(
+        repository,
+        enforceBuckPackageBoundary,
+        tempFilePatterns,
+        buildFileName,
+        buildFileTreeSupplier,
+        buildTargetParser,
+        buildFileParserFactory,
+        Optional.<FileListingCache>absent());
+  }
+
+  /**
+   * @param fileListingCache the listings handed to buck.py by parsers from
+   *     {@code buildFileParserFactory}, which this invalidates as files are added and removed.
+   */
+  private Parser(
+      Repository repository,
+      boolean enforceBuckPackageBoundary,
+      ImmutableSet<Pattern> tempFilePatterns,
+      String buildFileName,
+      Supplier<BuildFileTree> buildFileTreeSupplier,
+      BuildTargetParser buildTargetParser,
+      ProjectBuildFileParserFactory buildFileParserFactory,
+      Optional<FileListingCache> fileListingCache)
+      throws IOException, InterruptedException {
     this.repository = repository;
     this.buildFileTreeCache = new BuildFileTreeCache(buildFileTreeSupplier);
     this.buildTargetParser = buildTargetParser;
     this.buildFileParserFactory = buildFileParserFactory;
+    this.fileListingCache = fileListingCache;
     this.enforceBuckPackageBoundary = enforceBuckPackageBoundary;
     this.buildFileDependents = ArrayListMultimap.create();
     this.tempFilePatterns = tempFilePatterns;
@@ -296,28 +340,22 @@ public class Parser {
    */
   private ImmutableSet<BuildTarget> resolveTargetSpec(
       TargetNodeSpec spec,
+      Iterable<Path> buildFiles,
       ParserConfig parserConfig,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
     ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
 
     // Iterate over the build files the given target node spec returns.
-    for (Path buildFile : spec.getBuildFileSpec().findBuildFiles(
-        repository.getFilesystem(),
-        parserConfig.getBuildFileName())) {
-
-      // Format a proper error message for non-existent build files.
-      if (!repository.getFilesystem().isFile(buildFile)) {
-        throw new MissingBuildFileException(spec, buildFile);
-      }
+    for (Path buildFile : buildFiles) {
 
       // Build up a list of all target nodes from the build file.
       List<Map<String, Object>> parsed = parseBuildFile(
-          repository.getFilesystem().resolve(buildFile),
+          buildFile,
           parserConfig,
-          buildFileParser,
+          buildFileParserPool,
           environment);
       List<TargetNode<?>> nodes = Lists.newArrayListWithCapacity(parsed.size());
       for (Map<String, Object> map : parsed) {
@@ -336,18 +374,38 @@ public class Parser {
   private ImmutableSet<BuildTarget> resolveTargetSpecs(
       Iterable<? extends TargetNodeSpec> specs,
       ParserConfig parserConfig,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
+    // Find every build file up front so that they can all be evaluated concurrently, rather than
+    // one spec (or one build file) at a time.
+    ImmutableSetMultimap.Builder<TargetNodeSpec, Path> buildFilesBuilder =
+        ImmutableSetMultimap.builder();
+    for (TargetNodeSpec spec : specs) {
+      for (Path buildFile : spec.getBuildFileSpec().findBuildFiles(
+          repository.getFilesystem(),
+          parserConfig.getBuildFileName())) {
+
+        // Format a proper error message for non-existent build files.
+        if (!repository.getFilesystem().isFile(buildFile)) {
+          throw new MissingBuildFileException(spec, buildFile);
+        }
+        buildFilesBuilder.put(spec, repository.getFilesystem().resolve(buildFile));
+      }
+    }
+    ImmutableSetMultimap<TargetNodeSpec, Path> buildFiles = buildFilesBuilder.build();
+    prefetchBuildFiles(buildFiles.values(), parserConfig, buildFileParserPool, environment);
+
     ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
 
     for (TargetNodeSpec spec : specs) {
       targets.addAll(
           resolveTargetSpec(
               spec,
+              buildFiles.get(spec),
               parserConfig,
-              buildFileParser,
+              buildFileParserPool,
               environment));
     }
 
@@ -370,19 +428,21 @@ public class Parser {
           throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
     TargetGraph graph = null;
-    // TODO(jacko): Instantiating one ProjectBuildFileParser here isn't enough. We a collection of
-    //              repo-specific parsers.
-    try (ProjectBuildFileParser buildFileParser = buildFileParserFactory.createParser(
+    // TODO(jacko): Instantiating one ProjectBuildFileParserPool here isn't enough. We a collection
+    //              of repo-specific parsers.
+    try (ProjectBuildFileParserPool buildFileParserPool = new ProjectBuildFileParserPool(
+        parserConfig.getNumParsingThreads(),
+        buildFileParserFactory,
         console,
         environment,
-        eventBus)) {
-      buildFileParser.setEnableProfiling(enableProfiling);
+        eventBus,
+        enableProfiling)) {
 
       // Resolve the target node specs to the build targets the represent.
       ImmutableSet<BuildTarget> buildTargets = resolveTargetSpecs(
           targetNodeSpecs,
           parserConfig,
-          buildFileParser,
+          buildFileParserPool,
           environment);
 
       postParseStartEvent(buildTargets, eventBus);
@@ -391,7 +451,7 @@ public class Parser {
         graph = buildTargetGraph(
             buildTargets,
             parserConfig,
-            buildFileParser,
+            buildFileParserPool,
             environment);
         return new Pair<>(buildTargets, graph);
       } finally {
@@ -438,13 +498,13 @@ public class Parser {
    * between modules.
    *
    * @param toExplore the {@link BuildTarget}s that {@link TargetGraph} is calculated for.
-   * @param buildFileParser the parser for build files.
+   * @param buildFileParserPool the parsers for build files.
    * @return a {@link TargetGraph} containing all the nodes from {@code toExplore}.
    */
   private synchronized TargetGraph buildTargetGraph(
       Iterable<BuildTarget> toExplore,
       final ParserConfig parserConfig,
-      final ProjectBuildFileParser buildFileParser,
+      final ProjectBuildFileParserPool buildFileParserPool,
       final ImmutableMap<String, String> environment) throws IOException, InterruptedException {
 
     final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
@@ -468,6 +528,14 @@ public class Parser {
                       parserConfig.getBuildFileName()));
             }
 
+            // Start evaluating the build files of all the deps at once, so that the traversal only
+            // ever waits on the slowest of them rather than on each in turn.
+            prefetchBuildFilesContainingTargets(
+                targetNode.getDeps(),
+                parserConfig,
+                buildFileParserPool,
+                environment);
+
             Set<BuildTarget> deps = Sets.newHashSet();
             for (BuildTarget buildTargetForDep : targetNode.getDeps()) {
               try {
@@ -476,7 +544,7 @@ public class Parser {
                   parseBuildFileContainingTarget(
                       buildTargetForDep,
                       parserConfig,
-                      buildFileParser,
+                      buildFileParserPool,
                       environment);
                   depTargetNode = getTargetNode(buildTargetForDep);
                   if (depTargetNode == null) {
@@ -532,7 +600,7 @@ public class Parser {
   private synchronized void parseBuildFileContainingTarget(
       BuildTarget buildTarget,
       ParserConfig parserConfig,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
@@ -554,7 +622,46 @@ public class Parser {
           buildFile);
     }
 
-    parseBuildFile(buildFile, parserConfig, buildFileParser, environment);
+    parseBuildFile(buildFile, parserConfig, buildFileParserPool, environment);
+  }
+
+  /**
+   * Starts evaluating the build files defining {@code buildTargets} which are not cached yet.
+   * Targets whose build file can't be found are skipped, and reported when they're looked up.
+   */
+  private synchronized void prefetchBuildFilesContainingTargets(
+      Iterable<BuildTarget> buildTargets,
+      ParserConfig parserConfig,
+      ProjectBuildFileParserPool buildFileParserPool,
+      ImmutableMap<String, String> environment) {
+    Set<Path> buildFiles = Sets.newLinkedHashSet();
+    for (BuildTarget buildTarget : buildTargets) {
+      if (buildTarget.getRepository().isPresent()) {
+        continue;
+      }
+      try {
+        buildFiles.add(repository.getAbsolutePathToBuildFile(buildTarget));
+      } catch (Repository.MissingBuildFileException e) {
+        LOG.verbose(e, "Not prefetching build file of %s", buildTarget);
+      }
+    }
+    prefetchBuildFiles(buildFiles, parserConfig, buildFileParserPool, environment);
+  }
+
+  /**
+   * Starts evaluating those of {@code buildFiles} which are not cached yet in the background, so
+   * they're ready, or at least in progress, when {@link #parseBuildFile} asks for their rules.
+   */
+  private synchronized void prefetchBuildFiles(
+      Iterable<Path> buildFiles,
+      ParserConfig parserConfig,
+      ProjectBuildFileParserPool buildFileParserPool,
+      ImmutableMap<String, String> environment) {
+    for (Path buildFile : buildFiles) {
+      if (!isCached(buildFile, parserConfig.getDefaultIncludes(), environment)) {
+        buildFileParserPool.prefetch(buildFile);
+      }
+    }
   }
 
   public synchronized List<Map<String, Object>> parseBuildFile(
@@ -593,6 +700,28 @@ public class Parser {
     return state.getRawRules(buildFile);
   }
 
+  /**
+   * Like {@link #parseBuildFile(Path, ParserConfig, ProjectBuildFileParser, ImmutableMap)}, but
+   * evaluates the build file on one of the parsers in {@code buildFileParserPool}, reusing the
+   * evaluation started by {@link #prefetchBuildFiles} if there is one. The pool's threads never
+   * take this parser's lock: only merging their results into the cache happens here.
+   */
+  private synchronized List<Map<String, Object>> parseBuildFile(
+      Path buildFile,
+      ParserConfig parserConfig,
+      ProjectBuildFileParserPool buildFileParserPool,
+      ImmutableMap<String, String> environment)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+
+    if (!isCached(buildFile, parserConfig.getDefaultIncludes(), environment)) {
+      LOG.debug("Parsing %s file: %s", parserConfig.getBuildFileName(), buildFile);
+      parseRawRulesInternal(buildFileParserPool.getAllRulesAndMetaRules(buildFile));
+    } else {
+      LOG.debug("Not parsing %s file (already in cache)", parserConfig.getBuildFileName());
+    }
+    return state.getRawRules(buildFile);
+  }
+
   /**
    * @param rules the raw rule objects to parse.
    */
@@ -702,6 +831,11 @@ public class Parser {
 
       if (isPathCreateOrDeleteEvent(event)) {
 
+        // Globs match temp files too, so every listing containing the path is out of date.
+        if (fileListingCache.isPresent()) {
+          fileListingCache.get().invalidate(path);
+        }
+
         if (path.endsWith(new ParserConfig(repository.getBuckConfig()).getBuildFileName())) {
 
           // If a build file has been added or removed, reconstruct the build file tree.
@@ -725,6 +859,9 @@ public class Parser {
       LOG.debug("Parser invalidating entire cache on overflow.");
       buildFileTreeCache.invalidateIfStale();
       invalidateCache();
+      if (fileListingCache.isPresent()) {
+        fileListingCache.get().invalidateAll();
+      }
     }
   }
 
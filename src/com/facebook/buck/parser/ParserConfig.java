@@ -17,7 +17,9 @@
 package com.facebook.buck.parser;
 
 import com.facebook.buck.cli.BuckConfig;
+import com.facebook.buck.util.HumanReadableException;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
@@ -71,6 +73,39 @@ public class ParserConfig {
     return delegate.getBooleanValue("project", "check_package_boundary", true);
   }
 
+  /**
+   * @return the maximum number of buck.py processes used to evaluate build files concurrently.
+   */
+  public int getNumParsingThreads() {
+    Optional<Long> threads = delegate.getLong("project", "parsing_threads");
+    if (!threads.isPresent()) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    if (threads.get() < 1) {
+      throw new HumanReadableException(
+          "project.parsing_threads must be at least 1, but was %d.",
+          threads.get());
+    }
+    return threads.get().intValue();
+  }
+
+  /**
+   * @return whether the output of buck.py is persisted under {@code buck-out} so that build files
+   *     which haven't changed needn't be evaluated again by a new buck process.
+   */
+  public boolean getEnablePersistentParseCache() {
+    return delegate.getBooleanValue("project", "persistent_parse_cache", false);
+  }
+
+  /**
+   * @return whether buck.py matches glob patterns against listings of the project's files which
+   *     buck keeps in memory, invalidated by file change events, instead of walking the filesystem
+   *     for every call to {@code glob()}.
+   */
+  public boolean getEnableCachedGlobListings() {
+    return delegate.getBooleanValue("project", "cached_glob_listings", false);
+  }
+
   public ImmutableSet<Pattern> getTempFilePatterns() {
     return FluentIterable
         .from(delegate.getListWithoutComments("project", "temp_files"))
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.HasBuildTarget;
+import com.facebook.buck.util.FileHashCache;
+import com.google.common.base.Function;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the {@link BuildRule}s created from target graphs between the commands run by the
+ * daemon, so that {@link TargetGraphToActionGraph} only has to recreate the rules of the target
+ * nodes which changed since the last command, or whose deps changed.
+ * <p>
+ * Whether a node changed is decided by its {@link TargetGraphHashing} hash, which covers the
+ * node's rule, its input files and the hashes of its deps. The rules created while transforming
+ * a node, including those created by graph enhancement, are recorded against the node they were
+ * created for, or against the node they are a flavor of, and dropped along with it.
+ */
+public class ActionGraphCache {
+
+  private static final Logger LOG = Logger.get(ActionGraphCache.class);
+
+  private final ProjectFilesystem projectFilesystem;
+  private final FileHashCache fileHashCache;
+  private final Function<BuildTarget, HashCode> buildTargetToRuleHashCode;
+
+  private RecordingBuildRuleResolver ruleResolver = new RecordingBuildRuleResolver();
+
+  /** The hash each node had when its rules were created. */
+  private final Map<BuildTarget, HashCode> nodeHashes = Maps.newHashMap();
+  /** The targets of the rules recorded against each node. */
+  private final SetMultimap<BuildTarget, BuildTarget> nodeRules = HashMultimap.create();
+  /** The nodes which created rules recorded against another node. */
+  private final SetMultimap<BuildTarget, BuildTarget> nodeRuleCreators = HashMultimap.create();
+
+  /** The hashes of the nodes of the graph being transformed. */
+  private ImmutableMap<BuildTarget, HashCode> currentNodeHashes = ImmutableMap.of();
+
+  /**
+   * @param buildTargetToRuleHashCode the hash of the rule each target was declared with in its
+   *     build file. This should come from the same parser as the target graphs, so that it
+   *     changes when their build files do.
+   */
+  public ActionGraphCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCache fileHashCache,
+      Function<BuildTarget, HashCode> buildTargetToRuleHashCode) {
+    this.projectFilesystem = projectFilesystem;
+    this.fileHashCache = fileHashCache;
+    this.buildTargetToRuleHashCode = buildTargetToRuleHashCode;
+  }
+
+  BuildRuleResolver getRuleResolver() {
+    return ruleResolver;
+  }
+
+  /**
+   * Drops the rules of every node in the cache which isn't in {@code targetGraph} with the same
+   * hash, and of every node depending on one, ready for {@code targetGraph} to be transformed.
+   */
+  void prepare(TargetGraph targetGraph) {
+    try {
+      currentNodeHashes = TargetGraphHashing.hashTargetGraph(
+          projectFilesystem,
+          fileHashCache,
+          targetGraph,
+          buildTargetToRuleHashCode,
+          Iterables.transform(targetGraph.getNodes(), HasBuildTarget.TO_TARGET));
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Unable to hash the target graph, creating every rule again.");
+      invalidateAll();
+      return;
+    }
+
+    Set<BuildTarget> stale = Sets.newHashSet();
+    Deque<BuildTarget> toInvalidate = new ArrayDeque<>();
+    for (Map.Entry<BuildTarget, HashCode> entry : nodeHashes.entrySet()) {
+      if (!entry.getValue().equals(currentNodeHashes.get(entry.getKey()))) {
+        toInvalidate.add(entry.getKey());
+      }
+    }
+    while (!toInvalidate.isEmpty()) {
+      BuildTarget target = toInvalidate.remove();
+      if (!stale.add(target)) {
+        continue;
+      }
+      // Rules created for other nodes, and the rules of nodes depending on this node, may refer
+      // to the rules which are about to be dropped.
+      toInvalidate.addAll(nodeRuleCreators.get(target));
+      TargetNode<?> node = targetGraph.get(target);
+      if (node != null) {
+        for (TargetNode<?> dependent : targetGraph.getIncomingNodesFor(node)) {
+          toInvalidate.add(dependent.getBuildTarget());
+        }
+      }
+    }
+
+    for (BuildTarget target : stale) {
+      for (BuildTarget rule : nodeRules.removeAll(target)) {
+        ruleResolver.removeFromIndex(rule);
+      }
+      nodeRuleCreators.removeAll(target);
+      nodeHashes.remove(target);
+    }
+    LOG.debug(
+        "Reusing the rules of %d of %d target nodes.",
+        nodeHashes.size(),
+        currentNodeHashes.size());
+  }
+
+  /** @return whether the rules created for {@code node} by an earlier command can be reused. */
+  boolean isUpToDate(TargetNode<?> node) {
+    return nodeHashes.containsKey(node.getBuildTarget());
+  }
+
+  /** Starts recording the rules created for a node. */
+  void startNode() {
+    ruleResolver.added.clear();
+  }
+
+  /**
+   * Records the rules created since {@link #startNode()} against {@code node}, or against the
+   * node they are a flavor of, so that they are dropped when the nodes change.
+   */
+  void finishNode(TargetGraph targetGraph, TargetNode<?> node) {
+    BuildTarget nodeTarget = node.getBuildTarget();
+    for (BuildTarget rule : ruleResolver.added) {
+      BuildTarget owner = rule;
+      if (targetGraph.get(owner) == null) {
+        owner = BuildTarget.of(rule.getUnflavoredBuildTarget());
+        if (targetGraph.get(owner) == null) {
+          owner = nodeTarget;
+        }
+      }
+      nodeRules.put(owner, rule);
+      if (!owner.equals(nodeTarget)) {
+        nodeRuleCreators.put(owner, nodeTarget);
+      }
+    }
+    ruleResolver.added.clear();
+
+    HashCode hash = currentNodeHashes.get(nodeTarget);
+    if (hash != null) {
+      nodeHashes.put(nodeTarget, hash);
+    }
+  }
+
+  /** Drops every rule, for example after failing to transform a node part of the way through. */
+  void invalidateAll() {
+    ruleResolver = new RecordingBuildRuleResolver();
+    nodeHashes.clear();
+    nodeRules.clear();
+    nodeRuleCreators.clear();
+    currentNodeHashes = ImmutableMap.of();
+  }
+
+  /** Remembers the targets of the rules added to it, so they can be recorded against a node. */
+  private static class RecordingBuildRuleResolver extends BuildRuleResolver {
+    private final List<BuildTarget> added = Lists.newArrayList();
+
+    @Override
+    public <T extends BuildRule> T addToIndex(T buildRule) {
+      boolean isNew = !getRuleOptional(buildRule.getBuildTarget()).isPresent();
+      super.addToIndex(buildRule);
+      if (isNew) {
+        added.add(buildRule.getBuildTarget());
+      }
+      return buildRule;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import java.io.Closeable;
@@ -33,6 +34,27 @@ public interface ArtifactCache extends Closeable {
    */
   CacheResult fetch(RuleKey ruleKey, File output) throws InterruptedException;
 
+  /**
+   * Fetch several cached artifacts at once, which lets caches that pay a round trip per request
+   * amortize it across the whole batch.
+   *
+   * @param outputs the path to save each artifact to, keyed by its cache fetch key
+   * @return the result of fetching each of the keys of {@code outputs}.
+   */
+  ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs)
+      throws InterruptedException;
+
+  /**
+   * Check which of several artifacts are cached, without fetching any of them.
+   *
+   * @param ruleKeys cache fetch keys
+   * @return for each of {@code ruleKeys}, some type of hit if the artifact is cached,
+   *     {@link AbstractCacheResult.Type#MISS} if it definitely is not, or
+   *     {@link AbstractCacheResult.Type#ERROR} if the cache couldn't tell.
+   */
+  ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException;
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
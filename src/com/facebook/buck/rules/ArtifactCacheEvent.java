@@ -100,6 +100,22 @@ public abstract class ArtifactCacheEvent extends AbstractBuckEvent implements Le
     return new Finished(operation, ruleKey, Optional.of(cacheResult));
   }
 
+  public static UploadsFlushed uploadsFlushed(
+      int uploaded,
+      int coalesced,
+      int failed,
+      long uploadedBytes,
+      long blockedNanos,
+      long flushNanos) {
+    return new UploadsFlushed(
+        uploaded,
+        coalesced,
+        failed,
+        uploadedBytes,
+        blockedNanos,
+        flushNanos);
+  }
+
   public static class Started extends ArtifactCacheEvent {
     protected Started(Operation operation, ImmutableSet<RuleKey> ruleKeys) {
       super(operation, ruleKeys);
@@ -159,4 +175,78 @@ public abstract class ArtifactCacheEvent extends AbstractBuckEvent implements Le
     }
   }
 
+  /**
+   * Posted once the uploads scheduled on an {@code ArtifactUploadQueue} have all finished, with
+   * statistics about them.
+   */
+  public static class UploadsFlushed extends ArtifactCacheEvent {
+    private final int uploaded;
+    private final int coalesced;
+    private final int failed;
+    private final long uploadedBytes;
+    private final long blockedNanos;
+    private final long flushNanos;
+
+    protected UploadsFlushed(
+        int uploaded,
+        int coalesced,
+        int failed,
+        long uploadedBytes,
+        long blockedNanos,
+        long flushNanos) {
+      super(Operation.STORE, ImmutableSet.<RuleKey>of());
+      this.uploaded = uploaded;
+      this.coalesced = coalesced;
+      this.failed = failed;
+      this.uploadedBytes = uploadedBytes;
+      this.blockedNanos = blockedNanos;
+      this.flushNanos = flushNanos;
+    }
+
+    /** @return the number of rule keys stored. */
+    public int getUploaded() {
+      return uploaded;
+    }
+
+    /** @return the number of rule keys skipped because they were already scheduled. */
+    public int getCoalesced() {
+      return coalesced;
+    }
+
+    /** @return the number of rule keys which couldn't be stored. */
+    public int getFailed() {
+      return failed;
+    }
+
+    /** @return the total size of the outputs stored. */
+    public long getUploadedBytes() {
+      return uploadedBytes;
+    }
+
+    /** @return how long the build spent waiting for room in the queue. */
+    public long getBlockedNanos() {
+      return blockedNanos;
+    }
+
+    /** @return how long closing the queue waited for uploads still in flight. */
+    public long getFlushNanos() {
+      return flushNanos;
+    }
+
+    @Override
+    public String getValueString() {
+      return String.format(
+          "uploaded:%d,coalesced:%d,failed:%d,bytes:%d",
+          uploaded,
+          coalesced,
+          failed,
+          uploadedBytes);
+    }
+
+    @Override
+    public String getEventName() {
+      return "ArtifactUploadsFlushed";
+    }
+  }
+
 }
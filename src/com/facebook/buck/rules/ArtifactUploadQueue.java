@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses and stores the artifacts of built rules on a pool of its own, so that uploads to the
+ * {@link ArtifactCache} are never on the critical path of the build.
+ * <p>
+ * The queue is bounded by the total size of the outputs waiting to be uploaded: once that exceeds
+ * {@code maxPendingBytes}, {@link #upload} blocks until enough uploads have finished. A rule key
+ * is only ever uploaded once per queue, however many rules ask for it. Closing the queue waits for
+ * every pending upload and reports what was done with an {@link ArtifactCacheEvent}.
+ */
+public class ArtifactUploadQueue implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(ArtifactUploadQueue.class);
+
+  private final ListeningExecutorService executorService;
+  private final BuckEventBus eventBus;
+  private final long maxPendingBytes;
+
+  private final Set<RuleKey> submittedRuleKeys = Sets.newConcurrentHashSet();
+  private final Queue<ListenableFuture<Void>> uploads = new ConcurrentLinkedQueue<>();
+
+  /** Guards {@link #pendingBytes}, and is notified whenever it goes down. */
+  private final Object budgetLock = new Object();
+  private long pendingBytes;
+
+  private final AtomicInteger uploaded = new AtomicInteger();
+  private final AtomicInteger coalesced = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong uploadedBytes = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+
+  private boolean isClosed;
+
+  public ArtifactUploadQueue(int threads, long maxPendingBytes, BuckEventBus eventBus) {
+    Preconditions.checkArgument(threads > 0);
+    Preconditions.checkArgument(maxPendingBytes > 0);
+    this.executorService = listeningDecorator(
+        MoreExecutors.newMultiThreadExecutor(ArtifactUploadQueue.class.getSimpleName(), threads));
+    this.maxPendingBytes = maxPendingBytes;
+    this.eventBus = eventBus;
+  }
+
+  /**
+   * Schedules the outputs recorded by {@code buildInfoRecorder} to be stored in
+   * {@code artifactCache} under each of {@code ruleKeys} which hasn't been scheduled already.
+   *
+   * @param outputSize the size of the outputs, which is charged against the queue's budget until
+   *     the upload finishes.
+   */
+  public void upload(
+      final BuildInfoRecorder buildInfoRecorder,
+      ImmutableSet<RuleKey> ruleKeys,
+      final ArtifactCache artifactCache,
+      final long outputSize) throws InterruptedException {
+    Preconditions.checkState(!isClosed);
+    if (!artifactCache.isStoreSupported()) {
+      return;
+    }
+
+    ImmutableSet.Builder<RuleKey> newRuleKeys = ImmutableSet.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      if (submittedRuleKeys.add(ruleKey)) {
+        newRuleKeys.add(ruleKey);
+      } else {
+        coalesced.incrementAndGet();
+      }
+    }
+    final ImmutableSet<RuleKey> keysToUpload = newRuleKeys.build();
+    if (keysToUpload.isEmpty()) {
+      return;
+    }
+
+    reserve(outputSize);
+    try {
+      uploads.add(
+          executorService.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                  try {
+                    buildInfoRecorder.performUploadToArtifactCache(
+                        keysToUpload,
+                        artifactCache,
+                        eventBus);
+                    uploaded.addAndGet(keysToUpload.size());
+                    uploadedBytes.addAndGet(outputSize);
+                  } catch (RuntimeException e) {
+                    failed.addAndGet(keysToUpload.size());
+                    LOG.warn(e, "Failed to upload %s.", keysToUpload);
+                  } finally {
+                    release(outputSize);
+                  }
+                  return null;
+                }
+              }));
+    } catch (RuntimeException e) {
+      release(outputSize);
+      throw e;
+    }
+  }
+
+  private void reserve(long bytes) throws InterruptedException {
+    long start = System.nanoTime();
+    synchronized (budgetLock) {
+      // An artifact larger than the whole budget still goes through once nothing else is pending.
+      while (pendingBytes > 0 && pendingBytes + bytes > maxPendingBytes) {
+        budgetLock.wait();
+      }
+      pendingBytes += bytes;
+    }
+    blockedNanos.addAndGet(System.nanoTime() - start);
+  }
+
+  private void release(long bytes) {
+    synchronized (budgetLock) {
+      pendingBytes -= bytes;
+      budgetLock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for every scheduled upload to finish, then shuts down the queue's threads.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+
+    long start = System.nanoTime();
+    try {
+      Futures.successfulAsList(uploads).get();
+    } catch (ExecutionException e) {
+      // successfulAsList never fails, and each upload handles its own errors.
+      throw new IllegalStateException(e);
+    } finally {
+      MoreExecutors.shutdown(executorService);
+    }
+
+    eventBus.post(
+        ArtifactCacheEvent.uploadsFlushed(
+            uploaded.get(),
+            coalesced.get(),
+            failed.get(),
+            uploadedBytes.get(),
+            blockedNanos.get(),
+            System.nanoTime() - start));
+  }
+}
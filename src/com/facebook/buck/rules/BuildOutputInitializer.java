@@ -48,14 +48,11 @@ public class BuildOutputInitializer<T> {
 
   /**
    * This should be invoked only by the build engine (currently, {@link CachingBuildEngine})
-   * that invoked {@link #initializeFromDisk(OnDiskBuildInfo)}.
-   * <p>
-   * @throws IllegalStateException if this method has already been invoked.
+   * that invoked {@link #initializeFromDisk(OnDiskBuildInfo)}. Rules which the daemon keeps
+   * across commands (see {@link ActionGraphCache}) are initialized again by each build, which
+   * replaces the output of the previous build.
    */
-  public void setBuildOutput(T buildOutput) throws IllegalStateException {
-    Preconditions.checkState(this.buildOutput == null,
-        "buildOutput should not already be set for %s",
-        buildTarget);
+  public void setBuildOutput(T buildOutput) {
     this.buildOutput = buildOutput;
   }
 
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.util.BuckConstant;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how long each rule took the last few times it was built locally, so that the
+ * {@link CachingBuildEngine} can start the rules on the longest chain of work first.
+ * <p>
+ * Durations are measured from the {@link BuildRuleEvent}s of a rule, counting only the time
+ * between it being started or resumed and it being suspended or finished, so time spent waiting
+ * for deps isn't counted. Register the store with the build's event bus to record durations; they
+ * are saved to {@code buck-out} when the build finishes, which makes them specific to the machine
+ * and checkout that measured them.
+ */
+public class BuildRuleDurationStore {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationStore.class);
+
+  @VisibleForTesting
+  static final Path PATH = BuckConstant.BUCK_OUTPUT_PATH.resolve(".rule-durations.json");
+
+  /** How long a rule which hasn't been built locally before is assumed to take. */
+  @VisibleForTesting
+  static final long DEFAULT_DURATION_MILLIS = 1;
+
+  private final ProjectFilesystem filesystem;
+  private final ObjectMapper objectMapper;
+
+  /** Durations in milliseconds, keyed by fully qualified build target. */
+  private final ConcurrentMap<String, Long> durations;
+
+  /** When each rule last started or resumed work, for rules which are working right now. */
+  private final ConcurrentMap<BuildTarget, Long> workStarted = Maps.newConcurrentMap();
+  /** The time each rule has spent working so far in this build. */
+  private final ConcurrentMap<BuildTarget, Long> workDone = Maps.newConcurrentMap();
+
+  private BuildRuleDurationStore(
+      ProjectFilesystem filesystem,
+      ObjectMapper objectMapper,
+      Map<String, Long> durations) {
+    this.filesystem = filesystem;
+    this.objectMapper = objectMapper;
+    this.durations = Maps.newConcurrentMap();
+    this.durations.putAll(durations);
+  }
+
+  /**
+   * Reads the durations recorded by earlier builds. A missing or unreadable file is treated as if
+   * no rules had been built before.
+   */
+  public static BuildRuleDurationStore load(
+      ProjectFilesystem filesystem,
+      ObjectMapper objectMapper) {
+    Map<String, Long> durations = Maps.newHashMap();
+    Optional<String> contents = filesystem.readFileIfItExists(PATH);
+    if (contents.isPresent()) {
+      try {
+        durations = objectMapper.readValue(
+            contents.get(),
+            new TypeReference<Map<String, Long>>() {});
+      } catch (IOException e) {
+        LOG.warn(e, "Ignoring unreadable rule durations in %s.", PATH);
+      }
+    }
+    return new BuildRuleDurationStore(filesystem, objectMapper, durations);
+  }
+
+  /**
+   * @return how long {@code rule} took to build, in milliseconds, if it was built locally before.
+   */
+  public Optional<Long> getDurationMillis(BuildRule rule) {
+    return Optional.fromNullable(durations.get(rule.getFullyQualifiedName()));
+  }
+
+  @VisibleForTesting
+  void recordDurationMillis(BuildRule rule, long durationMillis) {
+    String key = rule.getFullyQualifiedName();
+    Long previous = durations.get(key);
+
+    // Smooth the durations a little, so a single slow build (say, of a rule whose inputs
+    // changed a lot) doesn't reorder the next build on its own.
+    durations.put(key, previous == null ? durationMillis : (previous + durationMillis) / 2);
+  }
+
+  /**
+   * Ranks {@code rules}, which must include all the rules depending on them, by the longest chain
+   * of work from each rule up to a rule nothing depends on, including the rule itself. Scheduling
+   * the highest ranked rules first starts the critical path of the build as early as possible.
+   * <p>
+   * Rules which haven't been built locally before count as taking
+   * {@link #DEFAULT_DURATION_MILLIS}, so with no history rules are ranked by the number of rules
+   * on their longest chain.
+   */
+  public ImmutableMap<BuildTarget, Long> getCriticalPathPriorities(Iterable<BuildRule> rules) {
+    // In reverse, this order puts every rule before its deps.
+    List<BuildRule> postOrder = Lists.newArrayList();
+    Set<BuildRule> visited = Sets.newHashSet();
+    Deque<Pair<BuildRule, Iterator<BuildRule>>> toExplore = new ArrayDeque<>();
+    for (BuildRule root : rules) {
+      if (visited.add(root)) {
+        toExplore.push(new Pair<>(root, getDepsAndRuntimeDeps(root)));
+      }
+      while (!toExplore.isEmpty()) {
+        Iterator<BuildRule> deps = toExplore.peek().getSecond();
+        if (deps.hasNext()) {
+          BuildRule dep = deps.next();
+          if (visited.add(dep)) {
+            toExplore.push(new Pair<>(dep, getDepsAndRuntimeDeps(dep)));
+          }
+        } else {
+          postOrder.add(toExplore.pop().getFirst());
+        }
+      }
+    }
+
+    Map<BuildRule, Long> longestChainAbove = Maps.newHashMap();
+    ImmutableMap.Builder<BuildTarget, Long> priorities = ImmutableMap.builder();
+    for (BuildRule rule : Lists.reverse(postOrder)) {
+      Long above = longestChainAbove.get(rule);
+      long priority = (above == null ? 0 : above) +
+          getDurationMillis(rule).or(DEFAULT_DURATION_MILLIS);
+      priorities.put(rule.getBuildTarget(), priority);
+      Iterator<BuildRule> deps = getDepsAndRuntimeDeps(rule);
+      while (deps.hasNext()) {
+        BuildRule dep = deps.next();
+        Long depAbove = longestChainAbove.get(dep);
+        if (depAbove == null || depAbove < priority) {
+          longestChainAbove.put(dep, priority);
+        }
+      }
+    }
+    return priorities.build();
+  }
+
+  private static Iterator<BuildRule> getDepsAndRuntimeDeps(BuildRule rule) {
+    if (!(rule instanceof HasRuntimeDeps)) {
+      return rule.getDeps().iterator();
+    }
+    return Iterators.concat(
+        rule.getDeps().iterator(),
+        ((HasRuntimeDeps) rule).getRuntimeDeps().iterator());
+  }
+
+  /** Writes the durations to {@code buck-out} for later builds. */
+  @VisibleForTesting
+  void save() throws IOException {
+    filesystem.createParentDirs(PATH);
+    filesystem.writeContentsToPath(objectMapper.writeValueAsString(durations), PATH);
+  }
+
+  /**
+   * Saves the durations once the build is over. Events are delivered in the order they were
+   * posted, so every rule event of the build has been seen by now.
+   */
+  @Subscribe
+  public void buildFinished(BuildEvent.Finished finished) {
+    try {
+      save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save rule durations to %s.", PATH);
+    }
+  }
+
+  @Subscribe
+  public void ruleStarted(BuildRuleEvent.Started started) {
+    startWork(started);
+  }
+
+  @Subscribe
+  public void ruleResumed(BuildRuleEvent.Resumed resumed) {
+    startWork(resumed);
+  }
+
+  @Subscribe
+  public void ruleSuspended(BuildRuleEvent.Suspended suspended) {
+    stopWork(suspended);
+  }
+
+  @Subscribe
+  public void ruleFinished(BuildRuleEvent.Finished finished) {
+    long durationMillis = stopWork(finished);
+    workDone.remove(finished.getBuildRule().getBuildTarget());
+
+    // Rules fetched from the cache or found to be up to date took next to no time, which says
+    // nothing about how long they take to build when they have to be built.
+    if (finished.getSuccessType().orNull() == BuildRuleSuccessType.BUILT_LOCALLY) {
+      recordDurationMillis(finished.getBuildRule(), durationMillis);
+    }
+  }
+
+  private void startWork(BuildRuleEvent event) {
+    workStarted.put(event.getBuildRule().getBuildTarget(), event.getTimestamp());
+  }
+
+  /** @return the time the rule has spent working in this build so far. */
+  private long stopWork(BuildRuleEvent event) {
+    BuildTarget target = event.getBuildRule().getBuildTarget();
+    Long started = workStarted.remove(target);
+    Long done = workDone.get(target);
+    long total = (done == null ? 0 : done) +
+        (started == null ? 0 : Math.max(0, event.getTimestamp() - started));
+    workDone.put(target, total);
+    return total;
+  }
+}
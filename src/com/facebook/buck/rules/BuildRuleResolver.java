@@ -127,6 +127,14 @@ public class BuildRuleResolver {
     return buildRule;
   }
 
+  /**
+   * Removes the rule for {@code buildTarget} from the index, so that it can be created again.
+   * Only {@link ActionGraphCache} should need this, to drop rules which are out of date.
+   */
+  void removeFromIndex(BuildTarget buildTarget) {
+    buildRuleIndex.remove(buildTarget);
+  }
+
   /**
    * Adds an iterable of build rules to the index.
    */
@@ -29,6 +29,7 @@ import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.StepRunner;
 import com.facebook.buck.util.concurrent.MoreFutures;
+import com.facebook.buck.util.concurrent.PrioritizedRunnable;
 import com.facebook.buck.zip.Unzip;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
@@ -37,6 +38,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
@@ -59,6 +61,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -91,14 +94,55 @@ public class CachingBuildEngine implements BuildEngine {
   private final ListeningExecutorService service;
   private final BuildMode buildMode;
   private final RuleKeyBuilderFactory inputBasedRuleKeyBuilderFactory;
+  private final Optional<ArtifactUploadQueue> uploadQueue;
+  private final ImmutableMap<BuildTarget, Long> priorities;
 
   public CachingBuildEngine(
       ListeningExecutorService service,
       BuildMode buildMode,
       RuleKeyBuilderFactory inputBasedRuleKeyBuilderFactory) {
+    this(
+        service,
+        buildMode,
+        inputBasedRuleKeyBuilderFactory,
+        Optional.<ArtifactUploadQueue>absent());
+  }
+
+  /**
+   * @param uploadQueue if present, artifacts are stored in the cache by this queue rather than by
+   *     the thread which built the rule. The caller is responsible for closing it once the build
+   *     is done.
+   */
+  public CachingBuildEngine(
+      ListeningExecutorService service,
+      BuildMode buildMode,
+      RuleKeyBuilderFactory inputBasedRuleKeyBuilderFactory,
+      Optional<ArtifactUploadQueue> uploadQueue) {
+    this(
+        service,
+        buildMode,
+        inputBasedRuleKeyBuilderFactory,
+        uploadQueue,
+        ImmutableMap.<BuildTarget, Long>of());
+  }
+
+  /**
+   * @param priorities the priority with which to schedule the work of each rule on
+   *     {@code service}, see {@link BuildRuleDurationStore#getCriticalPathPriorities(Iterable)}.
+   *     The priorities only take effect if {@code service} queues work in priority order, as a
+   *     {@link com.facebook.buck.util.concurrent.LimitedThreadPoolExecutor} does.
+   */
+  public CachingBuildEngine(
+      ListeningExecutorService service,
+      BuildMode buildMode,
+      RuleKeyBuilderFactory inputBasedRuleKeyBuilderFactory,
+      Optional<ArtifactUploadQueue> uploadQueue,
+      ImmutableMap<BuildTarget, Long> priorities) {
     this.service = service;
     this.buildMode = buildMode;
     this.inputBasedRuleKeyBuilderFactory = inputBasedRuleKeyBuilderFactory;
+    this.uploadQueue = uploadQueue;
+    this.priorities = priorities;
   }
 
   @VisibleForTesting
@@ -123,6 +167,16 @@ public class CachingBuildEngine implements BuildEngine {
     return Futures.getUnchecked(ruleKeys.get(buildTarget));
   }
 
+  // Work for rules which are further from the end of the build runs first, so that the longest
+  // chain of rules starts as early as possible.
+  private Executor getExecutorFor(BuildRule rule) {
+    Long priority = priorities.get(rule.getBuildTarget());
+    if (priority == null) {
+      return service;
+    }
+    return PrioritizedRunnable.withPriority(service, priority);
+  }
+
   // Dispatch and return a future resolving to a list of all results of this rules dependencies.
   private ListenableFuture<List<BuildResult>> getDepResults(
       BuildRule rule,
@@ -272,7 +326,7 @@ public class CachingBuildEngine implements BuildEngine {
                 new BuildResult(rule, BuildRuleSuccessType.BUILT_LOCALLY, cacheResult));
           }
         },
-        service);
+        getExecutorFor(rule));
   }
 
   private ListenableFuture<BuildResult> processBuildRule(
@@ -401,19 +455,6 @@ public class CachingBuildEngine implements BuildEngine {
                           BuildInfo.METADATA_KEY_FOR_INPUT_BASED_RULE_KEY).get());
                 }
 
-                // If we have any rule keys to push to the cache with, do the upload now.
-                if (!ruleKeys.isEmpty()) {
-                  try {
-                    buildInfoRecorder.performUploadToArtifactCache(
-                        ImmutableSet.copyOf(ruleKeys),
-                        context.getArtifactCache(),
-                        context.getEventBus());
-                  } catch (Throwable t) {
-                    onFailure(t);
-                    return;
-                  }
-                }
-
                 // Calculate the hash and size of the rule outputs.
                 Pair<Long, HashCode> outputHashAndSize;
                 try {
@@ -423,6 +464,28 @@ public class CachingBuildEngine implements BuildEngine {
                   return;
                 }
 
+                // If we have any rule keys to push to the cache with, do the upload now, or hand
+                // it off to the upload queue.
+                if (!ruleKeys.isEmpty()) {
+                  try {
+                    if (uploadQueue.isPresent()) {
+                      uploadQueue.get().upload(
+                          buildInfoRecorder,
+                          ImmutableSet.copyOf(ruleKeys),
+                          context.getArtifactCache(),
+                          outputHashAndSize.getFirst());
+                    } else {
+                      buildInfoRecorder.performUploadToArtifactCache(
+                          ImmutableSet.copyOf(ruleKeys),
+                          context.getArtifactCache(),
+                          context.getEventBus());
+                    }
+                  } catch (Throwable t) {
+                    onFailure(t);
+                    return;
+                  }
+                }
+
                 context.getEventBus().logVerboseAndPost(
                     LOG,
                     BuildRuleEvent.finished(
@@ -526,7 +589,7 @@ public class CachingBuildEngine implements BuildEngine {
                 return processBuildRule(rule, context, asyncCallbacks);
               }
             },
-            service);
+            getExecutorFor(rule));
     results.put(rule.getBuildTarget(), result);
     return result;
   }
@@ -563,7 +626,7 @@ public class CachingBuildEngine implements BuildEngine {
               }
             }
           },
-          service);
+          getExecutorFor(rule));
 
       // Record the rule key future.
       ruleKeys.put(rule.getBuildTarget(), ruleKey);
@@ -18,29 +18,56 @@ package com.facebook.buck.rules;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
-import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.util.collect.ArrayIterable;
+import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
-import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
+/**
+ * An {@link ArtifactCache} which keeps artifacts in a local directory, sharded into
+ * subdirectories named after the first characters of their keys.
+ * <p>
+ * A {@link DirArtifactCacheIndex} records the size of every artifact in the order they were last
+ * used. When the cache has a maximum size, the least recently used artifacts are deleted in the
+ * background at the end of a build, without listing the directory or relying on access times.
+ */
 public class DirArtifactCache implements ArtifactCache {
 
   private static final Logger LOG = Logger.get(DirArtifactCache.class);
 
+  @VisibleForTesting
+  static final String INDEX_FILE_NAME = ".index";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
   private final String name;
   private final File cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final boolean doStore;
+  private final DirArtifactCacheIndex index;
+  @Nullable private final ExecutorService evictionExecutor;
+  private final AtomicBoolean isEvictionScheduled;
 
   public DirArtifactCache(
       String name,
@@ -53,16 +80,47 @@ public class DirArtifactCache implements ArtifactCache {
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.doStore = doStore;
     Files.createDirectories(cacheDir.toPath());
+    this.index = new DirArtifactCacheIndex(
+        cacheDir.toPath().resolve(INDEX_FILE_NAME),
+        new Supplier<Iterable<DirArtifactCacheIndex.Entry>>() {
+          @Override
+          public Iterable<DirArtifactCacheIndex.Entry> get() {
+            return scanCacheDir();
+          }
+        });
+    this.evictionExecutor = maxCacheSizeBytes.isPresent() ?
+        MoreExecutors.newSingleThreadExecutor(DirArtifactCache.class.getSimpleName()) :
+        null;
+    this.isEvictionScheduled = new AtomicBoolean(false);
+  }
+
+  /**
+   * @return where the artifact for {@code ruleKey} is kept in the cache directory
+   *     {@code cacheDir}.
+   */
+  public static Path getPathToArtifact(Path cacheDir, RuleKey ruleKey) {
+    return getPathToArtifact(cacheDir, ruleKey.toString());
+  }
+
+  private static Path getPathToArtifact(Path cacheDir, String key) {
+    // Keys are hashes, so two characters spread artifacts evenly over 256 subdirectories.
+    return cacheDir.resolve(key.substring(0, Math.min(2, key.length()))).resolve(key);
+  }
+
+  private Path getPathToArtifact(String key) {
+    return getPathToArtifact(cacheDir.toPath(), key);
   }
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, File output) {
     CacheResult success = CacheResult.miss();
-    File cacheEntry = new File(cacheDir, ruleKey.toString());
-    if (cacheEntry.exists()) {
+    String key = ruleKey.toString();
+    Path cacheEntry = getPathToArtifact(key);
+    if (Files.exists(cacheEntry)) {
       try {
         Files.createDirectories(output.toPath().getParent());
-        Files.copy(cacheEntry.toPath(), output.toPath(), REPLACE_EXISTING);
+        Files.copy(cacheEntry, output.toPath(), REPLACE_EXISTING);
+        index.put(key, Files.size(cacheEntry), System.currentTimeMillis());
         success = CacheResult.hit(name);
       } catch (IOException e) {
         LOG.warn(
@@ -71,6 +129,9 @@ public class DirArtifactCache implements ArtifactCache {
             ruleKey,
             output.getPath());
       }
+    } else {
+      // The artifact may have been deleted by another process sharing this directory.
+      index.remove(key);
     }
     LOG.debug(
         "Artifact fetch(%s, %s) cache %s",
@@ -80,21 +141,46 @@ public class DirArtifactCache implements ArtifactCache {
     return success;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(
+          ruleKey,
+          Files.exists(getPathToArtifact(ruleKey.toString())) ?
+              CacheResult.hit(name) :
+              CacheResult.miss());
+    }
+    return results.build();
+  }
+
   @Override
   public void store(ImmutableSet<RuleKey> ruleKeys, File output) {
     if (!doStore) {
       return;
     }
     for (RuleKey ruleKey : ruleKeys) {
-      File cacheEntry = new File(cacheDir, ruleKey.toString());
+      String key = ruleKey.toString();
+      Path cacheEntry = getPathToArtifact(key);
       Path tmpCacheEntry = null;
       try {
         // Write to a temporary file and move the file to its final location atomically to protect
         // against partial artifacts (whether due to buck interruption or filesystem failure) posing
         // as valid artifacts during subsequent buck runs.
-        tmpCacheEntry = File.createTempFile(ruleKey.toString(), ".tmp", cacheDir).toPath();
+        tmpCacheEntry = File.createTempFile(key, TEMP_FILE_SUFFIX, cacheDir).toPath();
         Files.copy(output.toPath(), tmpCacheEntry, REPLACE_EXISTING);
-        Files.move(tmpCacheEntry, cacheEntry.toPath(), REPLACE_EXISTING);
+        Files.createDirectories(cacheEntry.getParent());
+        Files.move(tmpCacheEntry, cacheEntry, REPLACE_EXISTING);
+        index.put(key, Files.size(cacheEntry), System.currentTimeMillis());
       } catch (IOException e) {
         LOG.warn(
             e,
@@ -111,6 +197,7 @@ public class DirArtifactCache implements ArtifactCache {
         }
       }
     }
+    flushIndex();
   }
 
   /**
@@ -123,53 +210,130 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
-    // store() operation is synchronous - do nothing.
+    if (evictionExecutor != null) {
+      try {
+        // Let an eviction started at the end of the build finish.
+        MoreExecutors.shutdown(evictionExecutor);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      index.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't write the index of %s.", cacheDir);
+    }
   }
 
   /**
    * @param finished Signals that the build has finished.
    */
   @Subscribe
-  public synchronized void buildFinished(BuildEvent.Finished finished) {
-    deleteOldFiles();
+  public void buildFinished(BuildEvent.Finished finished) {
+    flushIndex();
+    if (evictionExecutor == null ||
+        index.getTotalSize() <= maxCacheSizeBytes.get() ||
+        !isEvictionScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    evictionExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            isEvictionScheduled.set(false);
+            deleteOldFiles();
+          }
+        });
   }
 
   /**
-   * Deletes files that haven't been accessed recently from the directory cache.
+   * Deletes the least recently used artifacts until the cache fits in its maximum size.
    */
   @VisibleForTesting
   void deleteOldFiles() {
     if (!maxCacheSizeBytes.isPresent()) {
       return;
     }
-    for (File fileAccessedEntry : findFilesToDelete()) {
+    ImmutableList<String> evicted = index.evict(maxCacheSizeBytes.get());
+    for (String key : evicted) {
       try {
-        Files.deleteIfExists(fileAccessedEntry.toPath());
+        Files.deleteIfExists(getPathToArtifact(key));
       } catch (IOException e) {
         // Eat any IOExceptions while attempting to clean up the cache directory.  If the file is
         // now in use, we no longer want to delete it.
         continue;
       }
     }
+    flushIndex();
+    LOG.debug("Evicted %d artifacts from %s.", evicted.size(), cacheDir);
+  }
+
+  private void flushIndex() {
+    try {
+      index.flush();
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't write the index of %s.", cacheDir);
+    }
   }
 
-  private Iterable<File> findFilesToDelete() {
-    Preconditions.checkState(maxCacheSizeBytes.isPresent());
-    long maxSizeBytes = maxCacheSizeBytes.get();
-
-    File[] files = cacheDir.listFiles();
-    MoreFiles.sortFilesByAccessTime(files);
-
-    // Finds the first N from the list ordered by last access time who's combined size is less than
-    // maxCacheSizeBytes.
-    long currentSizeBytes = 0;
-    for (int i = 0; i < files.length; ++i) {
-      File file = files[i];
-      currentSizeBytes += file.length();
-      if (currentSizeBytes > maxSizeBytes) {
-        return ArrayIterable.of(files, i, files.length);
+  /**
+   * Finds the artifacts in the cache directory when there's no index yet, least recently used
+   * first. Artifacts kept directly in the cache directory, as older versions of buck did, are moved
+   * into their subdirectories along the way.
+   */
+  private Iterable<DirArtifactCacheIndex.Entry> scanCacheDir() {
+    final List<DirArtifactCacheIndex.Entry> entries = Lists.newArrayList();
+    Path root = cacheDir.toPath();
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(root)) {
+      for (Path child : children) {
+        String fileName = child.getFileName().toString();
+        if (fileName.startsWith(".") || fileName.endsWith(TEMP_FILE_SUFFIX)) {
+          continue;
+        }
+        if (Files.isDirectory(child)) {
+          if (fileName.length() <= 2) {
+            try (DirectoryStream<Path> artifacts = Files.newDirectoryStream(child)) {
+              for (Path artifact : artifacts) {
+                addEntry(entries, artifact);
+              }
+            }
+          }
+        } else {
+          Path sharded = getPathToArtifact(fileName);
+          Files.createDirectories(sharded.getParent());
+          Files.move(child, sharded, REPLACE_EXISTING);
+          addEntry(entries, sharded);
+        }
       }
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't list the artifacts in %s.", cacheDir);
+    }
+
+    Collections.sort(
+        entries,
+        new Comparator<DirArtifactCacheIndex.Entry>() {
+          @Override
+          public int compare(DirArtifactCacheIndex.Entry a, DirArtifactCacheIndex.Entry b) {
+            return Long.compare(a.getLastUse(), b.getLastUse());
+          }
+        });
+    LOG.info("Indexed %d artifacts in %s.", entries.size(), cacheDir);
+    return entries;
+  }
+
+  private static void addEntry(List<DirArtifactCacheIndex.Entry> entries, Path artifact)
+      throws IOException {
+    String key = artifact.getFileName().toString();
+    if (key.endsWith(TEMP_FILE_SUFFIX)) {
+      return;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(artifact, BasicFileAttributes.class);
+    if (attributes.isRegularFile()) {
+      entries.add(
+          new DirArtifactCacheIndex.Entry(
+              key,
+              attributes.size(),
+              attributes.lastAccessTime().toMillis()));
     }
-    return ImmutableList.of();
   }
 }
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The size and last use of every artifact in a {@link DirArtifactCache}, kept in least recently
+ * used order, so that the cache can be trimmed without listing its directory.
+ * <p>
+ * Changes are appended to a journal, which is replayed when the index is opened and rewritten once
+ * it holds many stale records. Processes sharing a cache directory take a lock on a file next to
+ * the journal whenever they write to it, and a rewrite first replays the journal, so it keeps the
+ * records other processes appended since this one opened it. The index is advisory: an artifact
+ * missing from it is picked up the next time it is fetched.
+ */
+class DirArtifactCacheIndex implements Closeable {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  private static final int MAGIC = 0xB0C4D1EC;
+  /** Bump this whenever the format of the journal changes. */
+  private static final int VERSION = 1;
+
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  /** The journal is rewritten once it holds this many more records than there are entries. */
+  private static final int MAX_STALE_RECORDS = 10000;
+
+  /**
+   * A process can't take a file lock it already holds, so the indexes of this process take turns
+   * on this before locking their journal.
+   */
+  private static final Object JOURNAL_LOCK = new Object();
+
+  private final Path journalPath;
+  private final Path lockPath;
+  private final int maxStaleRecords;
+
+  /** In access order, so iteration starts at the least recently used artifact. */
+  private final LinkedHashMap<String, Entry> entries;
+  private long totalSize;
+  private int journalRecords;
+
+  /** Records which haven't been written to the journal yet. */
+  private final ByteArrayOutputStream pending;
+  private final DataOutputStream pendingOutput;
+  private int pendingRecords;
+
+  /**
+   * @param seed supplies the artifacts to start with, least recently used first, if there's no
+   *     usable journal.
+   */
+  DirArtifactCacheIndex(Path journalPath, Supplier<Iterable<Entry>> seed) throws IOException {
+    this(journalPath, seed, MAX_STALE_RECORDS);
+  }
+
+  @VisibleForTesting
+  DirArtifactCacheIndex(
+      Path journalPath,
+      Supplier<Iterable<Entry>> seed,
+      int maxStaleRecords) throws IOException {
+    this.journalPath = journalPath;
+    this.lockPath = journalPath.resolveSibling(journalPath.getFileName() + ".lock");
+    this.maxStaleRecords = maxStaleRecords;
+    this.entries = new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+    this.pending = new ByteArrayOutputStream();
+    this.pendingOutput = new DataOutputStream(pending);
+
+    if (!replayJournal()) {
+      entries.clear();
+      totalSize = 0;
+      for (Entry entry : seed.get()) {
+        putEntry(entry);
+      }
+      rewriteJournal();
+    } else if (journalRecords > entries.size() + maxStaleRecords) {
+      rewriteJournal();
+    }
+  }
+
+  synchronized long getTotalSize() {
+    return totalSize;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  /** Records that an artifact was stored or fetched, making it the most recently used one. */
+  synchronized void put(String key, long size, long lastUse) {
+    Entry entry = new Entry(key, size, lastUse);
+    putEntry(entry);
+    try {
+      pendingOutput.writeByte(PUT);
+      pendingOutput.writeUTF(key);
+      pendingOutput.writeLong(size);
+      pendingOutput.writeLong(lastUse);
+      pendingRecords++;
+    } catch (IOException e) {
+      // Writing to memory can't fail.
+      throw new AssertionError(e);
+    }
+  }
+
+  synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry == null) {
+      return;
+    }
+    totalSize -= entry.size;
+    try {
+      pendingOutput.writeByte(REMOVE);
+      pendingOutput.writeUTF(key);
+      pendingRecords++;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Removes the least recently used artifacts until the rest fit in {@code maxSizeBytes}.
+   *
+   * @return the keys of the removed artifacts, whose files the caller should delete.
+   */
+  synchronized ImmutableList<String> evict(long maxSizeBytes) {
+    ImmutableList.Builder<String> evicted = ImmutableList.builder();
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (totalSize > maxSizeBytes && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      iterator.remove();
+      totalSize -= entry.size;
+      evicted.add(entry.key);
+      try {
+        pendingOutput.writeByte(REMOVE);
+        pendingOutput.writeUTF(entry.key);
+        pendingRecords++;
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return evicted.build();
+  }
+
+  /** Writes the changes made since the last flush to the journal. */
+  synchronized void flush() throws IOException {
+    if (pending.size() == 0) {
+      return;
+    }
+    synchronized (JOURNAL_LOCK) {
+      try (FileChannel lockChannel = openLockChannel();
+           FileLock lock = lockChannel.lock()) {
+        appendPending();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    if (journalRecords > entries.size() + maxStaleRecords) {
+      rewriteJournal();
+    }
+  }
+
+  private FileChannel openLockChannel() throws IOException {
+    return FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  /** Must be called with the journal locked. */
+  private void appendPending() throws IOException {
+    if (pending.size() == 0) {
+      return;
+    }
+    try (OutputStream journal = Files.newOutputStream(
+        journalPath,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND)) {
+      pending.writeTo(journal);
+    }
+    journalRecords += pendingRecords;
+    pending.reset();
+    pendingRecords = 0;
+  }
+
+  private void putEntry(Entry entry) {
+    Entry previous = entries.put(entry.key, entry);
+    totalSize += entry.size - (previous == null ? 0 : previous.size);
+  }
+
+  /**
+   * @return whether there was a usable journal. A journal which ends in a partial record, say
+   *     because buck was killed while writing it, is used up to that record.
+   */
+  private boolean replayJournal() throws IOException {
+    try (InputStream raw = new BufferedInputStream(Files.newInputStream(journalPath));
+         DataInputStream input = new DataInputStream(raw)) {
+      try {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+          LOG.info("Ignoring artifact cache index %s with a different format.", journalPath);
+          return false;
+        }
+      } catch (EOFException e) {
+        return false;
+      }
+      while (true) {
+        int op = input.read();
+        if (op == -1) {
+          break;
+        }
+        String key = input.readUTF();
+        if (op == PUT) {
+          putEntry(new Entry(key, input.readLong(), input.readLong()));
+        } else if (op == REMOVE) {
+          Entry entry = entries.remove(key);
+          if (entry != null) {
+            totalSize -= entry.size;
+          }
+        } else {
+          LOG.warn("Artifact cache index %s is corrupt, ignoring the rest of it.", journalPath);
+          journalRecords = Integer.MAX_VALUE;
+          break;
+        }
+        journalRecords++;
+      }
+      return true;
+    } catch (NoSuchFileException e) {
+      return false;
+    } catch (EOFException e) {
+      LOG.debug("Artifact cache index %s ends in a partial record.", journalPath);
+      journalRecords = Integer.MAX_VALUE;
+      return true;
+    }
+  }
+
+  /**
+   * Replaces the journal with one record per entry. The journal may have gained records from other
+   * processes since it was read, so they are replayed first, and the index takes on what they say.
+   */
+  private void rewriteJournal() throws IOException {
+    synchronized (JOURNAL_LOCK) {
+      try (FileChannel lockChannel = openLockChannel();
+           FileLock lock = lockChannel.lock()) {
+        appendPending();
+        LinkedHashMap<String, Entry> ours = new LinkedHashMap<>(entries);
+        long ourTotalSize = totalSize;
+        entries.clear();
+        totalSize = 0;
+        journalRecords = 0;
+        if (!replayJournal()) {
+          // Nothing usable on disk, so what this index knows is all there is.
+          entries.putAll(ours);
+          totalSize = ourTotalSize;
+        }
+        writeJournal();
+      }
+    }
+  }
+
+  private void writeJournal() throws IOException {
+    Path temp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      for (Entry entry : entries.values()) {
+        output.writeByte(PUT);
+        output.writeUTF(entry.key);
+        output.writeLong(entry.size);
+        output.writeLong(entry.lastUse);
+      }
+    }
+    Files.move(temp, journalPath, StandardCopyOption.REPLACE_EXISTING);
+    journalRecords = entries.size();
+    pending.reset();
+    pendingRecords = 0;
+  }
+
+  static class Entry {
+    private final String key;
+    private final long size;
+    private final long lastUse;
+
+    Entry(String key, long size, long lastUse) {
+      this.key = key;
+      this.size = size;
+      this.lastUse = lastUse;
+    }
+
+    public long getLastUse() {
+      return lastUse;
+    }
+  }
+}
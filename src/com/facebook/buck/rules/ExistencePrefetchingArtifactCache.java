@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decorates an {@link ArtifactCache} so that the rule keys of a whole build can be checked with a
+ * few {@link ArtifactCache#multiContains(ImmutableSet)} calls before building starts. Fetches of
+ * artifacts which the cache is known not to have then don't cost a request each.
+ * <p>
+ * Artifacts which are cached are still fetched one at a time as the build reaches them, since the
+ * build needn't fetch anything beneath a rule whose own artifact is cached.
+ */
+public class ExistencePrefetchingArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(ExistencePrefetchingArtifactCache.class);
+
+  private final ArtifactCache delegate;
+  private final Set<RuleKey> knownMisses = Sets.newConcurrentHashSet();
+
+  public ExistencePrefetchingArtifactCache(ArtifactCache delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Asks the cache which of the artifacts of {@code rules} it has.
+   */
+  public void prefetch(Iterable<BuildRule> rules) throws InterruptedException {
+    ImmutableSet.Builder<RuleKey> ruleKeys = ImmutableSet.builder();
+    for (BuildRule rule : rules) {
+      ruleKeys.add(rule.getRuleKey());
+    }
+    ImmutableMap<RuleKey, CacheResult> results = delegate.multiContains(ruleKeys.build());
+    for (Map.Entry<RuleKey, CacheResult> entry : results.entrySet()) {
+      if (entry.getValue().getType() == CacheResult.Type.MISS) {
+        knownMisses.add(entry.getKey());
+      }
+    }
+    LOG.debug("Prefetched %d rule keys, of which %d are cache misses.",
+        results.size(),
+        knownMisses.size());
+  }
+
+  @Override
+  public CacheResult fetch(RuleKey ruleKey, File output) throws InterruptedException {
+    if (knownMisses.contains(ruleKey)) {
+      return CacheResult.miss();
+    }
+    return delegate.fetch(ruleKey, output);
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newHashMap();
+    ImmutableMap.Builder<RuleKey, File> unknown = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> entry : outputs.entrySet()) {
+      if (knownMisses.contains(entry.getKey())) {
+        results.put(entry.getKey(), CacheResult.miss());
+      } else {
+        unknown.put(entry);
+      }
+    }
+    results.putAll(delegate.multiFetch(unknown.build()));
+
+    ImmutableMap.Builder<RuleKey, CacheResult> ordered = ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      ordered.put(ruleKey, results.get(ruleKey));
+    }
+    return ordered.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException {
+    return delegate.multiContains(ruleKeys);
+  }
+
+  @Override
+  public void store(ImmutableSet<RuleKey> ruleKeys, File output) throws InterruptedException {
+    delegate.store(ruleKeys, output);
+    if (isStoreSupported()) {
+      knownMisses.removeAll(ruleKeys);
+    }
+  }
+
+  @Override
+  public boolean isStoreSupported() {
+    return delegate.isStoreSupported();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
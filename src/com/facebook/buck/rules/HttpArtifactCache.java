@@ -20,7 +20,12 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -46,6 +51,8 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import okio.BufferedSink;
@@ -71,6 +78,9 @@ public class HttpArtifactCache implements ArtifactCache {
 
   private final Set<String> seenErrors = Sets.newConcurrentHashSet();
 
+  /** Cleared once the server turns out not to implement batch requests. */
+  private volatile boolean batchRequestsSupported = true;
+
   public HttpArtifactCache(
       String name,
       OkHttpClient fetchClient,
@@ -134,51 +144,14 @@ public class HttpArtifactCache implements ArtifactCache {
       return CacheResult.error(name, msg);
     }
 
-    // The hash code shipped with the artifact to/from the cache.
-    HashCode expectedHashCode, actualHashCode;
-
-    // Setup a temporary file, which sits next to the destination, to write to and
-    // make sure all parent dirs exist.
-    Path path = file.toPath();
-    projectFilesystem.createParentDirs(path);
-    Path temp = projectFilesystem.createTempFile(
-        path.getParent(),
-        path.getFileName().toString(),
-        ".tmp");
-
     // Open the stream to server just long enough to read the hash code and artifact.
-    try (InputStream raw = response.body().byteStream();
-         HashingInputStream hasher = new HashingInputStream(hashFunction, raw);
-         DataInputStream input = new DataInputStream(hasher)) {
-
-      // Read the key we packaged with the artifact.  This should *always* match the key we
-      // used to fetch with, unless there is something significantly wrong with the cache.
-      String key = input.readUTF();
-      if (!key.equals(ruleKey.toString())) {
-        String msg = "incorrect key name";
-        reportFailure("fetch(%s, %s): %s", url, ruleKey, msg);
-        return CacheResult.error(name, msg);
-      }
-
-      // First, extract the size of the file data portion, which we put in the beginning of
-      // the artifact.
-      long length = input.readLong();
-
-      // Now, write the remaining response data to the temp file, while grabbing the hash.
-      try (BoundedInputStream boundedInput = new BoundedInputStream(input, length);
-           OutputStream output = projectFilesystem.newFileOutputStream(temp)) {
-        ByteStreams.copy(boundedInput, output);
+    Path temp = createTempFileFor(file);
+    try (InputStream input = response.body().byteStream()) {
+      CacheResult result = readArtifact(ruleKey, temp, input);
+      if (!result.getType().isSuccess()) {
+        return result;
       }
 
-      // Compute the hash now that we've processed the relevant parts of the artifact -- only
-      // the expected hash remains.
-      actualHashCode = hasher.hash();
-
-      // Lastly, extract the hash code from the end of the request data.
-      byte[] hashCodeBytes = new byte[hashFunction.bits() / Byte.SIZE];
-      ByteStreams.readFully(raw, hashCodeBytes);
-      expectedHashCode = HashCode.fromBytes(hashCodeBytes);
-
       // We should be at the end of output -- verify this.  Also, we could just try to read a
       // single byte here, instead of all remaining input, but some network stack
       // implementations require that we exhaust the input stream before the connection can be
@@ -186,10 +159,76 @@ public class HttpArtifactCache implements ArtifactCache {
       if (readTillEnd(input) != 0) {
         String msg = "unexpected end of input";
         reportFailure("fetch(%s, %s): %s", url, ruleKey, msg);
+        projectFilesystem.deleteFileAtPath(temp);
         return CacheResult.error(name, msg);
       }
     }
 
+    // Finally, move the temp file into it's final place.
+    projectFilesystem.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    LOGGER.info("fetch(%s, %s): cache hit", url, ruleKey);
+    return CacheResult.hit(name);
+  }
+
+  /**
+   * Setup a temporary file, which sits next to the destination, to write to and make sure all
+   * parent dirs exist.
+   */
+  private Path createTempFileFor(File file) throws IOException {
+    Path path = file.toPath();
+    projectFilesystem.createParentDirs(path);
+    return projectFilesystem.createTempFile(
+        path.getParent(),
+        path.getFileName().toString(),
+        ".tmp");
+  }
+
+  /**
+   * Reads a single artifact, as packaged by {@link #storeImpl(RuleKey, File)}, from {@code raw}
+   * into {@code temp}. Nothing past the artifact is read, so several artifacts can be read back to
+   * back from the same stream.
+   *
+   * @return a hit if the artifact was valid. Otherwise {@code temp} is deleted.
+   */
+  private CacheResult readArtifact(RuleKey ruleKey, Path temp, InputStream raw)
+      throws IOException {
+    // The hash code shipped with the artifact to/from the cache.
+    HashCode expectedHashCode, actualHashCode;
+
+    // Neither of these streams buffer, so there's no need to close them, which would close the raw
+    // stream that may hold further artifacts.
+    HashingInputStream hasher = new HashingInputStream(hashFunction, raw);
+    DataInputStream input = new DataInputStream(hasher);
+
+    // Read the key we packaged with the artifact.  This should *always* match the key we
+    // used to fetch with, unless there is something significantly wrong with the cache.
+    String key = input.readUTF();
+    if (!key.equals(ruleKey.toString())) {
+      String msg = "incorrect key name";
+      reportFailure("fetch(%s, %s): %s", url, ruleKey, msg);
+      projectFilesystem.deleteFileAtPath(temp);
+      return CacheResult.error(name, msg);
+    }
+
+    // First, extract the size of the file data portion, which we put in the beginning of
+    // the artifact.
+    long length = input.readLong();
+
+    // Now, write the artifact data to the temp file, while grabbing the hash.
+    try (OutputStream output = projectFilesystem.newFileOutputStream(temp)) {
+      ByteStreams.copy(new BoundedInputStream(input, length), output);
+    }
+
+    // Compute the hash now that we've processed the relevant parts of the artifact -- only
+    // the expected hash remains.
+    actualHashCode = hasher.hash();
+
+    // Lastly, extract the hash code from the end of the artifact.
+    byte[] hashCodeBytes = new byte[hashFunction.bits() / Byte.SIZE];
+    ByteStreams.readFully(raw, hashCodeBytes);
+    expectedHashCode = HashCode.fromBytes(hashCodeBytes);
+
     // Now form the checksum on the file we got and compare it to the checksum form the
     // the HTTP header.  If it's incorrect, log this and return a miss.
     if (!expectedHashCode.equals(actualHashCode)) {
@@ -199,10 +238,6 @@ public class HttpArtifactCache implements ArtifactCache {
       return CacheResult.error(name, msg);
     }
 
-    // Finally, move the temp file into it's final place.
-    projectFilesystem.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
-
-    LOGGER.info("fetch(%s, %s): cache hit", url, ruleKey);
     return CacheResult.hit(name);
   }
 
@@ -217,6 +252,166 @@ public class HttpArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * The most keys sent in one batch request. This bounds the size of requests and responses, and
+   * a server can start answering a large batch sooner.
+   */
+  @VisibleForTesting
+  static final int MAX_KEYS_PER_BATCH = 1000;
+
+  private Request createBatchRequest(String operation, List<RuleKey> ruleKeys) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeInt(ruleKeys.size());
+      for (RuleKey ruleKey : ruleKeys) {
+        output.writeUTF(ruleKey.toString());
+      }
+    }
+    return new Request.Builder()
+        .url(new URL(url, "artifacts/" + operation))
+        .post(RequestBody.create(OCTET_STREAM, bytes.toByteArray()))
+        .build();
+  }
+
+  /**
+   * @return whether the response to a batch request is OK. Otherwise the response is consumed,
+   *     and if the server doesn't implement batch requests, they are disabled.
+   */
+  private boolean checkBatchResponse(String operation, Response response) throws IOException {
+    if (response.code() == HttpURLConnection.HTTP_OK) {
+      return true;
+    }
+    readTillEnd(response);
+    if (response.code() == HttpURLConnection.HTTP_NOT_FOUND ||
+        response.code() == HttpURLConnection.HTTP_BAD_METHOD ||
+        response.code() == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+      LOGGER.info("%s(%s): batch requests are not supported", operation, url);
+      batchRequestsSupported = false;
+    } else {
+      reportFailure("%s(%s): unexpected response: %d", operation, url, response.code());
+    }
+    return false;
+  }
+
+  private static void putErrors(
+      Map<RuleKey, CacheResult> results,
+      Iterable<RuleKey> ruleKeys,
+      CacheResult error) {
+    for (RuleKey ruleKey : ruleKeys) {
+      if (!results.containsKey(ruleKey)) {
+        results.put(ruleKey, error);
+      }
+    }
+  }
+
+  public ImmutableMap<RuleKey, CacheResult> multiFetchImpl(ImmutableMap<RuleKey, File> outputs)
+      throws IOException, InterruptedException {
+    if (!batchRequestsSupported) {
+      return fetchEach(outputs);
+    }
+
+    List<RuleKey> ruleKeys = outputs.keySet().asList();
+    Response response = fetchCall(createBatchRequest("fetch", ruleKeys));
+    if (!checkBatchResponse("multiFetch", response)) {
+      return batchRequestsSupported ?
+          ImmutableMap.<RuleKey, CacheResult>of() :
+          fetchEach(outputs);
+    }
+
+    // The response holds, for each requested key in order, whether it was found and, if so, the
+    // artifact exactly as a single fetch returns it.
+    Map<RuleKey, CacheResult> results = Maps.newLinkedHashMap();
+    try (InputStream input = response.body().byteStream()) {
+      DataInputStream dataInput = new DataInputStream(input);
+      for (RuleKey ruleKey : ruleKeys) {
+        if (!dataInput.readBoolean()) {
+          results.put(ruleKey, CacheResult.miss());
+          continue;
+        }
+        File file = outputs.get(ruleKey);
+        Path temp = createTempFileFor(file);
+        CacheResult result = readArtifact(ruleKey, temp, input);
+        results.put(ruleKey, result);
+        if (!result.getType().isSuccess()) {
+          // We can't tell where the next artifact starts.
+          break;
+        }
+        projectFilesystem.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (readTillEnd(input) != 0) {
+        reportFailure("multiFetch(%s): %s", url, "unexpected end of input");
+      }
+    }
+    LOGGER.info("multiFetch(%s): asked for %d artifacts in one request", url, results.size());
+    return ImmutableMap.copyOf(results);
+  }
+
+  private ImmutableMap<RuleKey, CacheResult> fetchEach(ImmutableMap<RuleKey, File> outputs)
+      throws InterruptedException {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newLinkedHashMap();
+    for (List<RuleKey> batch : Iterables.partition(outputs.keySet(), MAX_KEYS_PER_BATCH)) {
+      try {
+        results.putAll(multiFetchImpl(Maps.toMap(batch, Functions.forMap(outputs))));
+      } catch (IOException e) {
+        String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+        reportFailure(e, "multiFetch(%s): %s", url, msg);
+      }
+      putErrors(results, batch, CacheResult.error(name, "incomplete batch response"));
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
+  public ImmutableMap<RuleKey, CacheResult> multiContainsImpl(List<RuleKey> ruleKeys)
+      throws IOException {
+    if (!batchRequestsSupported) {
+      return ImmutableMap.of();
+    }
+
+    Response response = fetchCall(createBatchRequest("contains", ruleKeys));
+    if (!checkBatchResponse("multiContains", response)) {
+      return ImmutableMap.of();
+    }
+
+    // The response holds, for each requested key in order, whether it was found.
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    try (InputStream input = response.body().byteStream()) {
+      DataInputStream dataInput = new DataInputStream(input);
+      for (RuleKey ruleKey : ruleKeys) {
+        results.put(ruleKey, dataInput.readBoolean() ? CacheResult.hit(name) : CacheResult.miss());
+      }
+      if (readTillEnd(input) != 0) {
+        reportFailure("multiContains(%s): %s", url, "unexpected end of input");
+      }
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    Map<RuleKey, CacheResult> results = Maps.newLinkedHashMap();
+    for (List<RuleKey> batch : Iterables.partition(ruleKeys, MAX_KEYS_PER_BATCH)) {
+      try {
+        results.putAll(multiContainsImpl(batch));
+      } catch (IOException e) {
+        String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+        reportFailure(e, "multiContains(%s): %s", url, msg);
+      }
+      // Keys we couldn't ask about will be fetched one at a time when they're needed.
+      putErrors(results, batch, CacheResult.error(name, "unknown"));
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
   protected Response storeCall(Request request) throws IOException {
     return storeClient.newCall(request).execute();
   }
@@ -16,10 +16,12 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.event.BuckEventBus;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
@@ -47,6 +49,29 @@ public class LoggingArtifactCacheDecorator {
         return fetchResult;
       }
 
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs)
+          throws InterruptedException {
+        for (RuleKey ruleKey : outputs.keySet()) {
+          eventBus.post(ArtifactCacheEvent.started(ArtifactCacheEvent.Operation.FETCH,
+              ImmutableSet.of(ruleKey)));
+        }
+        ImmutableMap<RuleKey, CacheResult> fetchResults = delegate.multiFetch(outputs);
+        for (Map.Entry<RuleKey, CacheResult> fetchResult : fetchResults.entrySet()) {
+          eventBus.post(ArtifactCacheEvent.finished(
+                  ArtifactCacheEvent.Operation.FETCH,
+                  ImmutableSet.of(fetchResult.getKey()),
+                  fetchResult.getValue()));
+        }
+        return fetchResults;
+      }
+
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys)
+          throws InterruptedException {
+        return delegate.multiContains(ruleKeys);
+      }
+
       @Override
       public void store(ImmutableSet<RuleKey> ruleKeys, File output)
           throws InterruptedException {
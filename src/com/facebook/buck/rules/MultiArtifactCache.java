@@ -16,23 +16,69 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
  * any of the ArtifactCaches contain the desired artifact, and store() applies to all
  * ArtifactCaches.
+ * <p>
+ * By default the caches are searched one after another. When constructed with a hedge delay,
+ * fetches race the caches instead: each cache is asked in turn, without waiting more than the
+ * hedge delay for the ones before it to answer, and the first hit wins. Artifacts are then copied
+ * to the caches earlier in the search order in the background.
  */
 public class MultiArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
+
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final boolean isStoreSupported;
+  private final Optional<Long> hedgeDelayMillis;
+  @Nullable private final ExecutorService fetchExecutor;
+  @Nullable private final ExecutorService storeExecutor;
 
   public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches) {
+    this(artifactCaches, Optional.<Long>absent());
+  }
+
+  /**
+   * @param hedgeDelayMillis if present, how long to wait for a cache to answer a fetch before also
+   *     asking the next one. Zero asks all caches at once.
+   */
+  public MultiArtifactCache(
+      ImmutableList<ArtifactCache> artifactCaches,
+      Optional<Long> hedgeDelayMillis) {
+    Preconditions.checkArgument(!hedgeDelayMillis.isPresent() || hedgeDelayMillis.get() >= 0);
     this.artifactCaches = artifactCaches;
+    this.hedgeDelayMillis = hedgeDelayMillis;
 
     boolean isStoreSupported = false;
     for (ArtifactCache artifactCache : artifactCaches) {
@@ -42,6 +88,17 @@ public class MultiArtifactCache implements ArtifactCache {
       }
     }
     this.isStoreSupported = isStoreSupported;
+
+    if (hedgeDelayMillis.isPresent()) {
+      // Fetches are made on behalf of build threads, which each wait on at most one fetch per
+      // cache, so an unbounded pool never has more threads than the build has times caches.
+      this.fetchExecutor = Executors.newCachedThreadPool(
+          new MoreExecutors.NamedThreadFactory("MultiArtifactCache-fetch"));
+      this.storeExecutor = MoreExecutors.newSingleThreadExecutor("MultiArtifactCache-store");
+    } else {
+      this.fetchExecutor = null;
+      this.storeExecutor = null;
+    }
   }
 
   /**
@@ -52,6 +109,10 @@ public class MultiArtifactCache implements ArtifactCache {
   @Override
   public CacheResult fetch(RuleKey ruleKey, File output)
       throws InterruptedException {
+    if (hedgeDelayMillis.isPresent()) {
+      return fetchConcurrently(ruleKey, output);
+    }
+
     CacheResult cacheResult = CacheResult.miss();
     for (ArtifactCache artifactCache : artifactCaches) {
       cacheResult = artifactCache.fetch(ruleKey, output);
@@ -70,6 +131,171 @@ public class MultiArtifactCache implements ArtifactCache {
     return cacheResult;
   }
 
+  private CacheResult fetchConcurrently(RuleKey ruleKey, File output)
+      throws InterruptedException {
+    Preconditions.checkNotNull(fetchExecutor);
+    BlockingQueue<FetchAttempt> completed = new LinkedBlockingQueue<>();
+    AtomicBoolean hasWinner = new AtomicBoolean(false);
+    List<Future<?>> started = Lists.newArrayList();
+    CacheResult[] results = new CacheResult[artifactCaches.size()];
+
+    try {
+      int outstanding = 0;
+      while (started.size() < artifactCaches.size() || outstanding > 0) {
+        FetchAttempt attempt;
+        if (started.size() < artifactCaches.size()) {
+          attempt = outstanding == 0 ?
+              null :
+              completed.poll(hedgeDelayMillis.get(), TimeUnit.MILLISECONDS);
+          if (attempt == null) {
+            // Nothing has answered yet, so hedge by asking the next cache too.
+            int index = started.size();
+            started.add(
+                fetchExecutor.submit(
+                    new FetchAttempt(index, ruleKey, output, hasWinner, completed)));
+            outstanding++;
+            continue;
+          }
+        } else {
+          attempt = completed.take();
+        }
+        outstanding--;
+
+        CacheResult result = Preconditions.checkNotNull(attempt.result);
+        results[attempt.index] = result;
+        if (attempt.isWinner) {
+          return finishFetch(ruleKey, output, attempt);
+        }
+      }
+    } finally {
+      for (Future<?> future : started) {
+        future.cancel(/* mayInterruptIfRunning */ true);
+      }
+    }
+
+    // Every cache missed, so report the answer of the last cache like a sequential search does.
+    return results[results.length - 1];
+  }
+
+  private CacheResult finishFetch(RuleKey ruleKey, File output, FetchAttempt winner) {
+    final ImmutableSet<RuleKey> ruleKeys = ImmutableSet.of(ruleKey);
+    final ImmutableList<ArtifactCache> priorCaches = artifactCaches.subList(0, winner.index);
+    final Path temp = Preconditions.checkNotNull(winner.temp);
+    try {
+      if (Files.size(temp) == 0) {
+        // The cache reported a hit without writing an artifact, so there's nothing to copy.
+        deleteQuietly(temp);
+        return Preconditions.checkNotNull(winner.result);
+      }
+
+      boolean needsBackfill = false;
+      for (ArtifactCache priorCache : priorCaches) {
+        needsBackfill |= priorCache.isStoreSupported();
+      }
+      if (!needsBackfill) {
+        Files.move(temp, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return Preconditions.checkNotNull(winner.result);
+      }
+
+      // The build is free to consume the output as soon as we return, so the background stores
+      // read from their own copy.
+      Files.copy(temp, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Preconditions.checkNotNull(storeExecutor).execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                for (ArtifactCache priorCache : priorCaches) {
+                  priorCache.store(ruleKeys, temp.toFile());
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } finally {
+                deleteQuietly(temp);
+              }
+            }
+          });
+      return Preconditions.checkNotNull(winner.result);
+    } catch (IOException e) {
+      deleteQuietly(temp);
+      LOG.warn(e, "Couldn't move fetched artifact for %s to %s.", ruleKey, output);
+      return CacheResult.miss();
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Couldn't delete %s.", path);
+    }
+  }
+
+  /**
+   * Fetch each artifact from the first of the encapsulated ArtifactCaches which has it, asking each
+   * cache in turn for the whole batch of artifacts which haven't been found yet. Like
+   * {@link #fetch(RuleKey, File)}, artifacts are stored to the caches which missed them.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newHashMap();
+    Map<RuleKey, File> remaining = Maps.newLinkedHashMap(outputs);
+    for (int i = 0; i < artifactCaches.size() && !remaining.isEmpty(); i++) {
+      ImmutableMap<RuleKey, CacheResult> cacheResults =
+          artifactCaches.get(i).multiFetch(ImmutableMap.copyOf(remaining));
+      for (Map.Entry<RuleKey, CacheResult> entry : cacheResults.entrySet()) {
+        RuleKey ruleKey = entry.getKey();
+        results.put(ruleKey, entry.getValue());
+        if (entry.getValue().getType().isSuccess()) {
+          File output = remaining.remove(ruleKey);
+          for (ArtifactCache priorArtifactCache : artifactCaches.subList(0, i)) {
+            priorArtifactCache.store(ImmutableSet.of(ruleKey), output);
+          }
+        }
+      }
+    }
+    return orderedLike(outputs.keySet(), results);
+  }
+
+  /**
+   * An artifact is reported as a hit if any of the encapsulated ArtifactCaches has it, and as a
+   * miss only if all of them are sure they don't.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys)
+      throws InterruptedException {
+    Map<RuleKey, CacheResult> results = Maps.newHashMap();
+    Set<RuleKey> remaining = Sets.newLinkedHashSet(ruleKeys);
+    for (int i = 0; i < artifactCaches.size() && !remaining.isEmpty(); i++) {
+      ImmutableMap<RuleKey, CacheResult> cacheResults =
+          artifactCaches.get(i).multiContains(ImmutableSet.copyOf(remaining));
+      for (Map.Entry<RuleKey, CacheResult> entry : cacheResults.entrySet()) {
+        RuleKey ruleKey = entry.getKey();
+        CacheResult result = entry.getValue();
+        CacheResult previous = results.get(ruleKey);
+        if (result.getType().isSuccess()) {
+          remaining.remove(ruleKey);
+          results.put(ruleKey, result);
+        } else if (previous == null || result.getType() == CacheResult.Type.ERROR) {
+          results.put(ruleKey, result);
+        }
+      }
+    }
+    return orderedLike(ruleKeys, results);
+  }
+
+  private static ImmutableMap<RuleKey, CacheResult> orderedLike(
+      Iterable<RuleKey> ruleKeys,
+      Map<RuleKey, CacheResult> results) {
+    ImmutableMap.Builder<RuleKey, CacheResult> ordered = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      CacheResult result = results.get(ruleKey);
+      ordered.put(ruleKey, result == null ? CacheResult.miss() : result);
+    }
+    return ordered.build();
+  }
+
   /**
    * Store the artifact to all encapsulated ArtifactCaches.
    */
@@ -88,6 +314,16 @@ public class MultiArtifactCache implements ArtifactCache {
 
   @Override
   public void close() throws IOException {
+    if (fetchExecutor != null && storeExecutor != null) {
+      fetchExecutor.shutdownNow();
+      try {
+        // Let the artifacts fetched during the build reach the caches which missed them.
+        MoreExecutors.shutdown(storeExecutor);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     // TODO(natthu): It's possible for this to be interrupted before it gets to call close() on all
     // the individual caches. This is acceptable for now since every ArtifactCache.close() is a
     // no-op.
@@ -95,4 +331,57 @@ public class MultiArtifactCache implements ArtifactCache {
       artifactCache.close();
     }
   }
+
+  /**
+   * Fetches from one of the caches into a uniquely named temporary file next to the output, so
+   * that racing caches, and the background stores of earlier fetches, never share a file. Only the
+   * first hit keeps its file.
+   */
+  private class FetchAttempt implements Runnable {
+    private final int index;
+    private final RuleKey ruleKey;
+    private final File output;
+    private final AtomicBoolean hasWinner;
+    private final BlockingQueue<FetchAttempt> completed;
+
+    @Nullable private volatile Path temp;
+    @Nullable private volatile CacheResult result;
+    private volatile boolean isWinner;
+
+    public FetchAttempt(
+        int index,
+        RuleKey ruleKey,
+        File output,
+        AtomicBoolean hasWinner,
+        BlockingQueue<FetchAttempt> completed) {
+      this.index = index;
+      this.ruleKey = ruleKey;
+      this.output = output;
+      this.hasWinner = hasWinner;
+      this.completed = completed;
+    }
+
+    @Override
+    public void run() {
+      CacheResult result = CacheResult.miss();
+      try {
+        Path directory = output.getAbsoluteFile().toPath().getParent();
+        Files.createDirectories(directory);
+        temp = Files.createTempFile(directory, output.getName() + ".", ".multicache.tmp");
+        result = artifactCaches.get(index).fetch(ruleKey, temp.toFile());
+      } catch (IOException e) {
+        LOG.warn(e, "Couldn't create a temporary file to fetch %s into.", ruleKey);
+      } catch (InterruptedException e) {
+        // Another cache won the race.
+        Thread.currentThread().interrupt();
+      } finally {
+        isWinner = result.getType().isSuccess() && hasWinner.compareAndSet(false, true);
+        if (!isWinner && temp != null) {
+          deleteQuietly(temp);
+        }
+        this.result = result;
+        completed.add(this);
+      }
+    }
+  }
 }
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
@@ -28,6 +29,20 @@ public class NoopArtifactCache implements ArtifactCache {
     return CacheResult.miss();
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs) {
+    return multiContains(outputs.keySet());
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(ruleKey, CacheResult.miss());
+    }
+    return results.build();
+  }
+
   @Override
   public void store(ImmutableSet<RuleKey> ruleKeys, File output) {
     // Do nothing.
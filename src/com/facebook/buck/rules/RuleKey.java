@@ -35,8 +35,8 @@ import com.google.common.collect.Lists;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.primitives.Primitives;
 
+import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Iterator;
@@ -121,6 +121,13 @@ public class RuleKey {
 
     private static final Logger logger = Logger.get(Builder.class);
 
+    /**
+     * Whether {@link String#getBytes()} encodes ASCII characters as themselves, in which case ASCII
+     * strings can be fed to the hasher without encoding them.
+     */
+    private static final boolean DEFAULT_CHARSET_IS_ASCII_COMPATIBLE =
+        isAsciiCompatible(Charset.defaultCharset());
+
     private final SourcePathResolver resolver;
     private final Hasher hasher;
     private final FileHashCache hashCache;
@@ -128,6 +135,9 @@ public class RuleKey {
 
     @Nullable private List<String> logElms;
 
+    /** Reused by {@link #feed(String)}, so most strings are hashed without allocating. */
+    private byte[] stringBytes = new byte[128];
+
     public Builder(
         SourcePathResolver resolver,
         FileHashCache hashCache,
@@ -146,6 +156,47 @@ public class RuleKey {
       return this;
     }
 
+    /**
+     * Feeds the same bytes as {@code feed(string.getBytes())}, without copying the string when it
+     * is ASCII, which nearly every string in a rule key is.
+     */
+    private Builder feed(String string) {
+      if (!DEFAULT_CHARSET_IS_ASCII_COMPATIBLE) {
+        return feed(string.getBytes());
+      }
+      int length = string.length();
+      if (length > stringBytes.length) {
+        stringBytes = new byte[Math.max(length, stringBytes.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        char c = string.charAt(i);
+        if (c >= 0x80) {
+          return feed(string.getBytes());
+        }
+        stringBytes[i] = (byte) c;
+      }
+      hasher.putBytes(stringBytes, 0, length);
+      return this;
+    }
+
+    @VisibleForTesting
+    static boolean isAsciiCompatible(Charset charset) {
+      char[] ascii = new char[0x80];
+      for (int i = 0; i < ascii.length; i++) {
+        ascii[i] = (char) i;
+      }
+      byte[] encoded = new String(ascii).getBytes(charset);
+      if (encoded.length != ascii.length) {
+        return false;
+      }
+      for (int i = 0; i < encoded.length; i++) {
+        if (encoded[i] != i) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     private Builder separate() {
       hasher.putByte(SEPARATOR);
       return this;
@@ -155,14 +206,14 @@ public class RuleKey {
       if (logElms != null) {
         logElms.add(String.format(":key(%s):", sectionLabel));
       }
-      return separate().feed(sectionLabel.getBytes()).separate();
+      return separate().feed(sectionLabel).separate();
     }
 
     protected Builder setSourcePath(SourcePath sourcePath) {
       // And now we need to figure out what this thing is.
       Optional<BuildRule> buildRule = resolver.getRule(sourcePath);
       if (buildRule.isPresent()) {
-        feed(sourcePath.toString().getBytes()).separate();
+        feed(sourcePath.toString()).separate();
         return setSingleValue(buildRule.get());
       } else {
         Optional<Path> relativePath = resolver.getRelativePath(sourcePath);
@@ -226,14 +277,14 @@ public class RuleKey {
               key,
               val);
         }
-        feed("{".getBytes());
+        feed("{");
         for (Map.Entry<?, ?> entry : ((Map<?, ?>) val).entrySet()) {
           setReflectively(key, entry.getKey());
-          feed(" -> ".getBytes());
+          feed(" -> ");
           setReflectively(key, entry.getValue());
           separate();
         }
-        feed("}".getBytes());
+        feed("}");
         return separate();
       }
 
@@ -245,6 +296,79 @@ public class RuleKey {
       return setSingleValue(val);
     }
 
+    // The typed setters below add exactly what setReflectively() adds for the boxed value, without
+    // boxing it or working out its type. Callers which know a value's static type, such as the
+    // AlterRuleKeys of @AddToRuleKey fields, use them to keep rule key computation cheap.
+
+    public Builder setBoolean(String key, boolean val) {
+      setKey(key);
+      if (logElms != null) {
+        logElms.add(String.format("boolean(\"%s\"):", val ? "true" : "false"));
+      }
+      feed(val ? "t" : "f");
+      return separate();
+    }
+
+    public Builder setShort(String key, short val) {
+      setKey(key);
+      if (logElms != null) {
+        logNumber(val);
+      }
+      hasher.putShort(val);
+      return separate();
+    }
+
+    public Builder setInt(String key, int val) {
+      setKey(key);
+      if (logElms != null) {
+        logNumber(val);
+      }
+      hasher.putInt(val);
+      return separate();
+    }
+
+    public Builder setLong(String key, long val) {
+      setKey(key);
+      if (logElms != null) {
+        logNumber(val);
+      }
+      hasher.putLong(val);
+      return separate();
+    }
+
+    public Builder setFloat(String key, float val) {
+      setKey(key);
+      if (logElms != null) {
+        logNumber(val);
+      }
+      hasher.putFloat(val);
+      return separate();
+    }
+
+    public Builder setDouble(String key, double val) {
+      setKey(key);
+      if (logElms != null) {
+        logNumber(val);
+      }
+      hasher.putDouble(val);
+      return separate();
+    }
+
+    public Builder setString(String key, @Nullable String val) {
+      setKey(key);
+      if (val != null) {
+        if (logElms != null) {
+          logElms.add(String.format("string(\"%s\"):", val));
+        }
+        feed(val);
+      }
+      return separate();
+    }
+
+    private void logNumber(Object val) {
+      Preconditions.checkNotNull(logElms).add(String.format("number(%s):", val));
+    }
+
     protected Builder setSingleValue(@Nullable Object val) {
 
       if (val == null) { // Null value first
@@ -253,23 +377,22 @@ public class RuleKey {
         if (logElms != null) {
           logElms.add(String.format("boolean(\"%s\"):", (boolean) val ? "true" : "false"));
         }
-        feed(((boolean) val ? "t" : "f").getBytes());
+        feed((boolean) val ? "t" : "f");
       } else if (val instanceof Enum) {
-        feed(String.valueOf(val).getBytes());
+        feed(String.valueOf(val));
       } else if (val instanceof Number) {
         if (logElms != null) {
           logElms.add(String.format("number(%s):", val));
         }
-        Class<?> wrapped = Primitives.wrap(val.getClass());
-        if (Double.class.equals(wrapped)) {
+        if (val instanceof Double) {
           hasher.putDouble(((Double) val).doubleValue());
-        } else if (Float.class.equals(wrapped)) {
+        } else if (val instanceof Float) {
           hasher.putFloat(((Float) val).floatValue());
-        } else if (Integer.class.equals(wrapped)) {
+        } else if (val instanceof Integer) {
           hasher.putInt(((Integer) val).intValue());
-        } else if (Long.class.equals(wrapped)) {
+        } else if (val instanceof Long) {
           hasher.putLong(((Long) val).longValue());
-        } else if (Short.class.equals(wrapped)) {
+        } else if (val instanceof Short) {
           hasher.putShort(((Short) val).shortValue());
         } else {
           throw new RuntimeException(("Unhandled number type: " + val.getClass()));
@@ -291,17 +414,17 @@ public class RuleKey {
         if (path.isAbsolute()) {
           logger.warn(
               "Attempting to add absolute path to rule key. Only using file name: %s", path);
-          feed(path.getFileName().toString().getBytes()).separate();
+          feed(path.getFileName().toString()).separate();
         } else {
-          feed(path.toString().getBytes()).separate();
+          feed(path.toString()).separate();
         }
 
-        feed(sha1.toString().getBytes());
+        feed(sha1.toString());
       } else if (val instanceof String) {
         if (logElms != null) {
           logElms.add(String.format("string(\"%s\"):", val));
         }
-        feed(((String) val).getBytes());
+        feed((String) val);
       }
 
       // Buck types below here.
@@ -312,33 +435,33 @@ public class RuleKey {
         if (logElms != null) {
           logElms.add(String.format("ruleKeyType(%s):", val));
         }
-        feed(val.toString().getBytes());
+        feed(val.toString());
       } else if (val instanceof RuleKey) {
         if (logElms != null) {
           logElms.add(String.format("ruleKey(sha1=%s):", val));
         }
-        feed(val.toString().getBytes());
+        feed(val.toString());
       } else if (val instanceof BuildTarget || val instanceof UnflavoredBuildTarget) {
         if (logElms != null) {
           logElms.add(String.format("target(%s):", val));
         }
-        feed(((HasBuildTarget) val).getBuildTarget().getFullyQualifiedName().getBytes());
+        feed(((HasBuildTarget) val).getBuildTarget().getFullyQualifiedName());
       } else if (val instanceof SourcePath) {
         return setSourcePath((SourcePath) val);
       } else if (val instanceof SourceRoot) {
         if (logElms != null) {
           logElms.add(String.format("sourceroot(%s):", val));
         }
-        feed(((SourceRoot) val).getName().getBytes());
+        feed(((SourceRoot) val).getName());
       } else if (val instanceof SourceWithFlags) {
         SourceWithFlags source = (SourceWithFlags) val;
         setSingleValue(source.getSourcePath());
-        feed("[".getBytes());
+        feed("[");
         for (String flag : source.getFlags()) {
-          feed(flag.getBytes());
-          feed(",".getBytes());
+          feed(flag);
+          feed(",");
         }
-        feed("]".getBytes());
+        feed("]");
       } else {
         throw new RuntimeException("Unsupported value type: " + val.getClass());
       }
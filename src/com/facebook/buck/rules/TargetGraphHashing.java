@@ -16,25 +16,31 @@
 
 package com.facebook.buck.rules;
 
-import com.facebook.buck.graph.AbstractAcyclicDepthFirstPostOrderTraversal;
-import com.facebook.buck.graph.AbstractAcyclicDepthFirstPostOrderTraversal.CycleException;
+import com.facebook.buck.graph.ParallelBottomUpTraversal;
 import com.facebook.buck.hashing.PathHashing;
 import com.facebook.buck.hashing.StringHashing;
+import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.FileHashCache;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Utility class to calculate hash codes for build targets in a {@link TargetGraph}.
@@ -46,6 +52,14 @@ import java.util.Map;
 public class TargetGraphHashing {
   private static final Logger LOG = Logger.get(TargetGraphHashing.class);
 
+  private static final Supplier<ForkJoinPool> HASHING_POOL = Suppliers.memoize(
+      new Supplier<ForkJoinPool>() {
+        @Override
+        public ForkJoinPool get() {
+          return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+      });
+
   // Utility class; do not instantiate.
   private TargetGraphHashing() { }
 
@@ -79,49 +93,82 @@ public class TargetGraphHashing {
       Function<BuildTarget, HashCode> buildTargetToRuleHashCode,
       Iterable<BuildTarget> roots
     ) throws IOException {
+    return hashTargetGraph(
+        projectFilesystem,
+        Optional.<FileHashCache>absent(),
+        targetGraph,
+        buildTargetToRuleHashCode,
+        roots);
+  }
+
+  /**
+   * Like {@link #hashTargetGraph(ProjectFilesystem, TargetGraph, Function, Iterable)}, but takes
+   * the hashes of input files from {@code fileHashCache} rather than reading every input file, so
+   * hashing a graph whose inputs the daemon has already hashed doesn't touch the disk.
+   */
+  public static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      ProjectFilesystem projectFilesystem,
+      FileHashCache fileHashCache,
+      TargetGraph targetGraph,
+      Function<BuildTarget, HashCode> buildTargetToRuleHashCode,
+      Iterable<BuildTarget> roots
+    ) throws IOException {
+    return hashTargetGraph(
+        projectFilesystem,
+        Optional.of(fileHashCache),
+        targetGraph,
+        buildTargetToRuleHashCode,
+        roots);
+  }
+
+  private static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      ProjectFilesystem projectFilesystem,
+      Optional<FileHashCache> fileHashCache,
+      TargetGraph targetGraph,
+      Function<BuildTarget, HashCode> buildTargetToRuleHashCode,
+      Iterable<BuildTarget> roots
+    ) throws IOException {
     try {
-      Map<BuildTarget, HashCode> buildTargetHashes = new HashMap<>();
+      Map<BuildTarget, HashCode> buildTargetHashes = new ConcurrentHashMap<>();
       TargetGraphHashingTraversal traversal = new TargetGraphHashingTraversal(
           projectFilesystem,
-          targetGraph,
+          fileHashCache,
+          targetGraph.getSubgraph(targetGraph.getAll(roots)),
           buildTargetToRuleHashCode,
           buildTargetHashes);
-      traversal.traverse(targetGraph.getAll(roots));
+      traversal.traverse();
       return ImmutableMap.copyOf(buildTargetHashes);
-    } catch (CycleException | InterruptedException e) {
+    } catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Hashes nodes whose deps have been hashed in parallel, as reading the input files of each
+   * node is most of the work.
+   */
   private static class TargetGraphHashingTraversal
-      extends AbstractAcyclicDepthFirstPostOrderTraversal<TargetNode<?>> {
+      extends ParallelBottomUpTraversal<TargetNode<?>> {
     private final ProjectFilesystem projectFilesystem;
-    private final TargetGraph targetGraph;
+    private final Optional<FileHashCache> fileHashCache;
     private final Function<BuildTarget, HashCode> buildTargetToRuleHashCode;
     private final Map<BuildTarget, HashCode> buildTargetHashes;
 
     public TargetGraphHashingTraversal(
         ProjectFilesystem projectFilesystem,
+        Optional<FileHashCache> fileHashCache,
         TargetGraph targetGraph,
         Function<BuildTarget, HashCode> buildTargetToRuleHashCode,
         Map<BuildTarget, HashCode> buildTargetHashes) {
+      super(targetGraph, HASHING_POOL.get());
       this.projectFilesystem = projectFilesystem;
-      this.targetGraph = targetGraph;
+      this.fileHashCache = fileHashCache;
       this.buildTargetToRuleHashCode = buildTargetToRuleHashCode;
       this.buildTargetHashes = buildTargetHashes;
     }
 
     @Override
-    protected Iterator<TargetNode<?>> findChildren(TargetNode<?> node) {
-      return targetGraph.getAll(node.getDeps()).iterator();
-    }
-
-    @Override
-    protected void onNodeExplored(TargetNode<?> node) throws IOException {
-      if (buildTargetHashes.containsKey(node.getBuildTarget())) {
-        LOG.verbose("Already hashed node %s, not hashing again.", node);
-        return;
-      }
+    public void visit(TargetNode<?> node) throws IOException {
       Hasher hasher = Hashing.sha1().newHasher();
       hashNode(hasher, node);
       HashCode result = hasher.hash();
@@ -138,9 +185,16 @@ public class TargetGraphHashing {
       hasher.putBytes(targetRuleHashCode.asBytes());
 
       // Hash the contents of all input files and directories.
-      PathHashing.hashPaths(hasher, projectFilesystem, node.getInputs());
+      if (fileHashCache.isPresent()) {
+        for (Path input : ImmutableSortedSet.copyOf(node.getInputs())) {
+          StringHashing.hashStringAndLength(hasher, MorePaths.pathWithUnixSeparators(input));
+          hasher.putBytes(fileHashCache.get().get(input).asBytes());
+        }
+      } else {
+        PathHashing.hashPaths(hasher, projectFilesystem, node.getInputs());
+      }
 
-      // We've already visited the dependencies (this is a depth-first traversal), so
+      // We've already visited the dependencies (this is a bottom-up traversal), so
       // hash each dependency's build target and that build target's own hash.
       for (BuildTarget dependency : node.getDeps()) {
         HashCode dependencyHashCode = buildTargetHashes.get(dependency);
@@ -150,10 +204,5 @@ public class TargetGraphHashing {
         hasher.putBytes(dependencyHashCode.asBytes());
       }
     }
-
-    @Override
-    protected void onTraversalComplete(Iterable<TargetNode<?>> nodesInExplorationOrder) {
-      // Nothing to do; we did our work in onNodeExplored().
-    }
   }
 }
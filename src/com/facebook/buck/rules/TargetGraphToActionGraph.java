@@ -25,6 +25,7 @@ import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 import javax.annotation.Nullable;
 
@@ -35,18 +36,32 @@ public class TargetGraphToActionGraph implements TargetGraphTransformer {
   private final BuckEventBus eventBus;
   private final TargetNodeToBuildRuleTransformer buildRuleGenerator;
   private final FileHashCache fileHashCache;
+  private final Optional<ActionGraphCache> actionGraphCache;
   @Nullable
   private volatile ActionGraph actionGraph;
   private volatile int hashOfTargetGraph;
-  private final BuildRuleResolver ruleResolver = new BuildRuleResolver();
+  private volatile BuildRuleResolver ruleResolver = new BuildRuleResolver();
 
   public TargetGraphToActionGraph(
       BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer buildRuleGenerator,
       FileHashCache fileHashCache) {
+    this(eventBus, buildRuleGenerator, fileHashCache, Optional.<ActionGraphCache>absent());
+  }
+
+  /**
+   * @param actionGraphCache if present, the rules of target nodes which haven't changed since
+   *     the cache was last used are taken from the cache rather than created again.
+   */
+  public TargetGraphToActionGraph(
+      BuckEventBus eventBus,
+      TargetNodeToBuildRuleTransformer buildRuleGenerator,
+      FileHashCache fileHashCache,
+      Optional<ActionGraphCache> actionGraphCache) {
     this.eventBus = eventBus;
     this.buildRuleGenerator = buildRuleGenerator;
     this.fileHashCache = fileHashCache;
+    this.actionGraphCache = actionGraphCache;
   }
 
   @Override
@@ -65,8 +80,28 @@ public class TargetGraphToActionGraph implements TargetGraphTransformer {
   }
 
   private ActionGraph createActionGraph(final TargetGraph targetGraph) {
+    if (!actionGraphCache.isPresent()) {
+      return createActionGraph(targetGraph, Optional.<ActionGraphCache>absent());
+    }
+    // The cache may be shared by commands running at the same time.
+    synchronized (actionGraphCache.get()) {
+      try {
+        actionGraphCache.get().prepare(targetGraph);
+        ruleResolver = actionGraphCache.get().getRuleResolver();
+        return createActionGraph(targetGraph, actionGraphCache);
+      } catch (RuntimeException e) {
+        actionGraphCache.get().invalidateAll();
+        throw e;
+      }
+    }
+  }
+
+  private ActionGraph createActionGraph(
+      final TargetGraph targetGraph,
+      final Optional<ActionGraphCache> actionGraphCache) {
     eventBus.post(ActionGraphEvent.started());
 
+    final BuildRuleResolver ruleResolver = this.ruleResolver;
     SourcePathResolver pathResolver = new SourcePathResolver(ruleResolver);
     final RuleKeyBuilderFactory ruleKeyBuilderFactory = new DefaultRuleKeyBuilderFactory(
         fileHashCache,
@@ -77,6 +112,13 @@ public class TargetGraphToActionGraph implements TargetGraphTransformer {
 
           @Override
           public void visit(TargetNode<?> node) {
+            if (actionGraphCache.isPresent()) {
+              if (actionGraphCache.get().isUpToDate(node)) {
+                return;
+              }
+              actionGraphCache.get().startNode();
+            }
+
             BuildRule rule;
             try {
               rule = buildRuleGenerator.transform(
@@ -99,10 +141,18 @@ public class TargetGraphToActionGraph implements TargetGraphTransformer {
             if (!existingRule.isPresent()) {
               ruleResolver.addToIndex(rule);
             }
+
+            if (actionGraphCache.isPresent()) {
+              actionGraphCache.get().finishNode(targetGraph, node);
+            }
           }
 
           @Override
           public ActionGraph getResult() {
+            if (actionGraphCache.isPresent()) {
+              // Later commands change the rules in the cache's resolver.
+              return new ActionGraph(ImmutableList.copyOf(ruleResolver.getBuildRules()));
+            }
             return new ActionGraph(ruleResolver.getBuildRules());
           }
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.base.Preconditions;
+
+import java.lang.reflect.Field;
+
+/**
+ * Adds a field of primitive type to a rule key with the typed setters of {@link RuleKey.Builder},
+ * so the value is neither boxed nor checked against every type a rule key supports.
+ */
+abstract class PrimitiveAlterRuleKey extends AbstractAlterRuleKey {
+
+  private PrimitiveAlterRuleKey(Field field) {
+    super(field);
+  }
+
+  /**
+   * @return an {@link AlterRuleKey} for {@code field}, if it is of a primitive type that rule keys
+   *     support, otherwise a {@link DefaultAlterRuleKey}, which fails as that would.
+   */
+  static AlterRuleKey of(Field field) {
+    Class<?> type = field.getType();
+    Preconditions.checkArgument(type.isPrimitive(), "%s is not primitive", field);
+    if (type == boolean.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setBoolean(field.getName(), field.getBoolean(rule));
+        }
+      };
+    } else if (type == short.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setShort(field.getName(), field.getShort(rule));
+        }
+      };
+    } else if (type == int.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setInt(field.getName(), field.getInt(rule));
+        }
+      };
+    } else if (type == long.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setLong(field.getName(), field.getLong(rule));
+        }
+      };
+    } else if (type == float.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setFloat(field.getName(), field.getFloat(rule));
+        }
+      };
+    } else if (type == double.class) {
+      return new PrimitiveAlterRuleKey(field) {
+        @Override
+        protected void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+            throws IllegalAccessException {
+          builder.setDouble(field.getName(), field.getDouble(rule));
+        }
+      };
+    }
+    // byte and char aren't supported by rule keys.
+    return new DefaultAlterRuleKey(field);
+  }
+
+  @Override
+  public void amendKey(RuleKey.Builder builder, BuildRule rule) {
+    try {
+      amendKey(builder, rule, field);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  protected abstract void amendKey(RuleKey.Builder builder, BuildRule rule, Field field)
+      throws IllegalAccessException;
+}
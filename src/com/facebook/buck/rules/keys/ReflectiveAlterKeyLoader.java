@@ -53,9 +53,15 @@ class ReflectiveAlterKeyLoader
           continue;
         }
 
+        // Pick the AlterRuleKey by the field's type once, so that the common primitive and String
+        // fields don't go through setReflectively() for every rule.
         AlterRuleKey ark;
         if (annotation.stringify()) {
           ark = new StringifyAlterRuleKey(field);
+        } else if (field.getType().isPrimitive()) {
+          ark = PrimitiveAlterRuleKey.of(field);
+        } else if (String.class.equals(field.getType())) {
+          ark = new StringAlterRuleKey(field);
         } else {
           ark = new DefaultAlterRuleKey(field);
         }
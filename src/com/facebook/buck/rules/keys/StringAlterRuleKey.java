@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+
+import java.lang.reflect.Field;
+
+/**
+ * Adds a {@link String} field to a rule key without checking it against every type a rule key
+ * supports.
+ */
+class StringAlterRuleKey extends AbstractAlterRuleKey {
+  public StringAlterRuleKey(Field field) {
+    super(field);
+  }
+
+  @Override
+  public void amendKey(RuleKey.Builder builder, BuildRule rule) {
+    builder.setString(field.getName(), (String) getValue(field, rule));
+  }
+}
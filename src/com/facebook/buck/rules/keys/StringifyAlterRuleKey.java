@@ -79,7 +79,7 @@ class StringifyAlterRuleKey extends AbstractAlterRuleKey {
   @Override
   public void amendKey(RuleKey.Builder builder, BuildRule rule) {
     Object val = getValue(field, rule);
-    builder.setReflectively(
+    builder.setString(
         field.getName(),
         val == null ? null : String.valueOf(val));
 
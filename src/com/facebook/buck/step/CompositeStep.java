@@ -16,6 +16,7 @@
 
 package com.facebook.buck.step;
 
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
@@ -39,7 +40,7 @@ public class CompositeStep implements Step, Iterable<Step> {
   @Override
   public int execute(ExecutionContext context) throws IOException, InterruptedException {
     for (Step step : steps) {
-      int exitCode = step.execute(context);
+      int exitCode = executeWithinBudget(step, context);
       if (exitCode != 0) {
         return exitCode;
       }
@@ -47,6 +48,25 @@ public class CompositeStep implements Step, Iterable<Step> {
     return 0;
   }
 
+  /**
+   * The steps are run here rather than by a {@link StepRunner}, so the resources of those which
+   * are resource intensive must be acquired here too.
+   */
+  private static int executeWithinBudget(Step step, ExecutionContext context)
+      throws IOException, InterruptedException {
+    if (!(step instanceof ResourceIntensiveStep)) {
+      return step.execute(context);
+    }
+    ResourceAmounts requiredResources =
+        ((ResourceIntensiveStep) step).getRequiredResources(context);
+    context.getResourceBudget().acquire(requiredResources);
+    try {
+      return step.execute(context);
+    } finally {
+      context.getResourceBudget().release(requiredResources);
+    }
+  }
+
   @Override
   public String getDescription(final ExecutionContext context) {
     return Joiner.on(" && ").join(Iterables.transform(steps,
@@ -19,6 +19,7 @@ package com.facebook.buck.step;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.concurrent.MoreFutures;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -52,6 +53,16 @@ public final class DefaultStepRunner implements StepRunner {
       context.getStdErr().println(step.getDescription(context));
     }
 
+    // Steps which don't say what they need aren't counted against the budget: they're light
+    // enough that the thread limit is all they need, and some of them run resource intensive steps
+    // of their own, which would otherwise wait for their parent to release its resources.
+    Optional<ResourceAmounts> requiredResources = Optional.absent();
+    if (step instanceof ResourceIntensiveStep) {
+      requiredResources =
+          Optional.of(((ResourceIntensiveStep) step).getRequiredResources(context));
+      context.getResourceBudget().acquire(requiredResources.get());
+    }
+
     String stepShortName = step.getShortName();
     String stepDescription = step.getDescription(context);
     UUID stepUuid = UUID.randomUUID();
@@ -63,6 +74,9 @@ public final class DefaultStepRunner implements StepRunner {
     } catch (IOException | RuntimeException e) {
       throw StepFailedException.createForFailingStepWithException(step, e, buildTarget);
     } finally {
+      if (requiredResources.isPresent()) {
+        context.getResourceBudget().release(requiredResources.get());
+      }
       context.getBuckEventBus().logDebugAndPost(
           LOG, StepEvent.finished(stepShortName, stepDescription, stepUuid, exitCode));
     }
@@ -30,6 +30,7 @@ import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
+import com.facebook.buck.util.concurrent.ResourceBudget;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.immutables.DeprecatedBuckStyleImmutable;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -101,6 +102,13 @@ public abstract class ExecutionContext implements Closeable {
   @Value.Parameter
   public abstract ConcurrencyLimit getConcurrencyLimit();
 
+  /**
+   * Shared by all the steps of a build, to keep the resources they use at once within
+   * {@link ConcurrencyLimit#resourceLimit}.
+   */
+  @Value.Parameter
+  public abstract ResourceBudget getResourceBudget();
+
 
   @Value.Derived
   public Verbosity getVerbosity() {
@@ -200,6 +208,7 @@ public abstract class ExecutionContext implements Closeable {
         new ConcurrencyLimit(
             /* threadLimit */ Runtime.getRuntime().availableProcessors(),
             /* loadLimit */ Double.POSITIVE_INFINITY);
+    @Nullable private ResourceBudget resourceBudget = null;
 
     private Builder() {}
 
@@ -219,7 +228,10 @@ public abstract class ExecutionContext implements Closeable {
           Preconditions.checkNotNull(javaPackageFinder),
           Preconditions.checkNotNull(objectMapper),
           Preconditions.checkNotNull(classLoaderCache),
-          Preconditions.checkNotNull(concurrencyLimit));
+          Preconditions.checkNotNull(concurrencyLimit),
+          resourceBudget != null ?
+              resourceBudget :
+              new ResourceBudget(concurrencyLimit.resourceLimit));
     }
 
     public Builder setExecutionContext(ExecutionContext executionContext) {
@@ -236,6 +248,7 @@ public abstract class ExecutionContext implements Closeable {
       setJavaPackageFinder(executionContext.getJavaPackageFinder());
       setObjectMapper(executionContext.getObjectMapper());
       setConcurrencyLimit(executionContext.getConcurrencyLimit());
+      setResourceBudget(executionContext.getResourceBudget());
       return this;
     }
 
@@ -321,5 +334,14 @@ public abstract class ExecutionContext implements Closeable {
       this.concurrencyLimit = concurrencyLimit;
       return this;
     }
+
+    /**
+     * Only needed to share a budget with another context, otherwise a budget is created from the
+     * {@link ConcurrencyLimit}.
+     */
+    public Builder setResourceBudget(ResourceBudget resourceBudget) {
+      this.resourceBudget = resourceBudget;
+      return this;
+    }
   }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+
+/**
+ * A {@link Step} which needs more of the machine than most, such as one which runs a JVM with a
+ * large heap. {@link DefaultStepRunner} and {@link CompositeStep} won't run it until the resources
+ * it needs are free, see {@link ExecutionContext#getResourceBudget()}. Other steps aren't counted
+ * against the budget.
+ * <p>
+ * A resource intensive step mustn't run other resource intensive steps itself, since they would
+ * wait for it to finish.
+ */
+public interface ResourceIntensiveStep extends Step {
+
+  /** @return the cores and memory this step needs while it runs. */
+  public ResourceAmounts getRequiredResources(ExecutionContext context);
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decodes the PDUs (protocol data units) that Watchman sends in its binary BSER encoding, as
+ * described at https://facebook.github.io/watchman/docs/bser.html. Compared to JSON, BSER values
+ * are length-prefixed and strings don't need unescaping, which makes large change sets much
+ * cheaper to read.
+ * <p>
+ * Arrays are returned as {@link List}s, objects as {@link Map}s, strings as {@link String}s, all
+ * integers as {@link Long}s and reals as {@link Double}s.
+ */
+public class BserDeserializer {
+
+  static final byte BSER_ARRAY = 0x00;
+  static final byte BSER_OBJECT = 0x01;
+  static final byte BSER_STRING = 0x02;
+  static final byte BSER_INT8 = 0x03;
+  static final byte BSER_INT16 = 0x04;
+  static final byte BSER_INT32 = 0x05;
+  static final byte BSER_INT64 = 0x06;
+  static final byte BSER_REAL = 0x07;
+  static final byte BSER_TRUE = 0x08;
+  static final byte BSER_FALSE = 0x09;
+  static final byte BSER_NULL = 0x0a;
+  static final byte BSER_TEMPLATE = 0x0b;
+  static final byte BSER_SKIP = 0x0c;
+  static final byte BSER_UTF8_STRING = 0x0d;
+
+  private static final byte[] BSER_MAGIC = {0x00, 0x01};
+
+  /** BSER is written in the byte order of the machine running Watchman, which is this one. */
+  private static final ByteOrder BSER_BYTE_ORDER = ByteOrder.nativeOrder();
+
+  private BserDeserializer() {}
+
+  /**
+   * Reads the next PDU from {@code input}.
+   * @return the value the PDU holds, or {@code null} if {@code input} ended before a new PDU.
+   * @throws IOException if the PDU is malformed, or {@code input} ends in the middle of one.
+   */
+  @Nullable
+  public static Object deserializePdu(InputStream input) throws IOException {
+    // The header is the magic bytes followed by the length of the value as a BSER integer, which
+    // is at most 1 + 8 bytes long.
+    int first = input.read();
+    if (first == -1) {
+      return null;
+    }
+    byte[] magic = {(byte) first, 0};
+    ByteStreams.readFully(input, magic, 1, 1);
+    if (magic[0] != BSER_MAGIC[0] || magic[1] != BSER_MAGIC[1]) {
+      throw new IOException(
+          String.format("Invalid BSER header: 0x%02x%02x", magic[0], magic[1]));
+    }
+    byte lengthType = readByte(input);
+    byte[] lengthBytes = new byte[integerSize(lengthType)];
+    ByteStreams.readFully(input, lengthBytes);
+    long length = readInteger(
+        lengthType,
+        ByteBuffer.wrap(lengthBytes).order(BSER_BYTE_ORDER));
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid BSER PDU length: " + length);
+    }
+
+    byte[] value = new byte[(int) length];
+    ByteStreams.readFully(input, value);
+    ByteBuffer buffer = ByteBuffer.wrap(value).order(BSER_BYTE_ORDER);
+    try {
+      Object result = readValue(buffer);
+      if (buffer.hasRemaining()) {
+        throw new IOException(
+            String.format("%d unexpected bytes at the end of BSER PDU", buffer.remaining()));
+      }
+      return result;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("BSER PDU ended in the middle of a value", e);
+    }
+  }
+
+  private static byte readByte(InputStream input) throws IOException {
+    int read = input.read();
+    if (read == -1) {
+      throw new EOFException();
+    }
+    return (byte) read;
+  }
+
+  @Nullable
+  private static Object readValue(ByteBuffer buffer) throws IOException {
+    byte type = buffer.get();
+    switch (type) {
+      case BSER_ARRAY:
+        return readArray(buffer);
+      case BSER_OBJECT:
+        return readObject(buffer);
+      case BSER_STRING:
+      case BSER_UTF8_STRING:
+        return readString(buffer);
+      case BSER_INT8:
+      case BSER_INT16:
+      case BSER_INT32:
+      case BSER_INT64:
+        return readInteger(type, buffer);
+      case BSER_REAL:
+        return buffer.getDouble();
+      case BSER_TRUE:
+        return true;
+      case BSER_FALSE:
+        return false;
+      case BSER_NULL:
+        return null;
+      case BSER_TEMPLATE:
+        return readTemplate(buffer);
+      default:
+        throw new IOException(String.format("Unexpected BSER type 0x%02x", type));
+    }
+  }
+
+  private static List<Object> readArray(ByteBuffer buffer) throws IOException {
+    int count = readCount(buffer);
+    List<Object> array = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      array.add(readValue(buffer));
+    }
+    return array;
+  }
+
+  private static Map<String, Object> readObject(ByteBuffer buffer) throws IOException {
+    int count = readCount(buffer);
+    Map<String, Object> object = Maps.newLinkedHashMap();
+    for (int i = 0; i < count; i++) {
+      object.put(readKey(buffer), readValue(buffer));
+    }
+    return object;
+  }
+
+  /**
+   * A template is an array of objects which all have the same keys, which are only sent once. An
+   * object which lacks one of the keys has a skip marker in its place.
+   */
+  private static List<Map<String, Object>> readTemplate(ByteBuffer buffer) throws IOException {
+    if (buffer.get() != BSER_ARRAY) {
+      throw new IOException("Expected the keys of a BSER template to be an array");
+    }
+    int keyCount = readCount(buffer);
+    String[] keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = readKey(buffer);
+    }
+    int count = readCount(buffer);
+    List<Map<String, Object>> objects = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> object = Maps.newLinkedHashMap();
+      for (String key : keys) {
+        if (buffer.get(buffer.position()) == BSER_SKIP) {
+          buffer.get();
+        } else {
+          object.put(key, readValue(buffer));
+        }
+      }
+      objects.add(object);
+    }
+    return objects;
+  }
+
+  private static String readKey(ByteBuffer buffer) throws IOException {
+    byte type = buffer.get();
+    if (type != BSER_STRING && type != BSER_UTF8_STRING) {
+      throw new IOException(String.format("Expected a BSER string key, got type 0x%02x", type));
+    }
+    return readString(buffer);
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    int length = readCount(buffer);
+    String string = new String(
+        buffer.array(),
+        buffer.arrayOffset() + buffer.position(),
+        length,
+        Charsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return string;
+  }
+
+  /** Reads a length or count, which must fit in an int and in what is left of the buffer. */
+  private static int readCount(ByteBuffer buffer) throws IOException {
+    long count = readInteger(buffer.get(), buffer);
+    if (count < 0 || count > buffer.remaining()) {
+      throw new IOException("Invalid BSER length: " + count);
+    }
+    return (int) count;
+  }
+
+  private static long readInteger(byte type, ByteBuffer buffer) throws IOException {
+    switch (type) {
+      case BSER_INT8:
+        return buffer.get();
+      case BSER_INT16:
+        return buffer.getShort();
+      case BSER_INT32:
+        return buffer.getInt();
+      case BSER_INT64:
+        return buffer.getLong();
+      default:
+        throw new IOException(String.format("Expected a BSER integer, got type 0x%02x", type));
+    }
+  }
+
+  private static int integerSize(byte type) throws IOException {
+    switch (type) {
+      case BSER_INT8:
+        return 1;
+      case BSER_INT16:
+        return 2;
+      case BSER_INT32:
+        return 4;
+      case BSER_INT64:
+        return 8;
+      default:
+        throw new IOException(String.format("Expected a BSER integer, got type 0x%02x", type));
+    }
+  }
+}
@@ -75,7 +75,11 @@ public class DefaultFileHashCache implements FileHashCache {
     }
   }
 
-  private HashCode getFileHashCode(Path path) throws IOException {
+  /**
+   * @return the SHA-1 of the contents of the file at {@code path}, which is either absolute or
+   *     relative to the project root.
+   */
+  protected HashCode getFileHashCode(Path path) throws IOException {
     // TODO(simons): Should be this.projectFilesystem.computeSha1(path);
     File file = this.projectFilesystem.resolve(path).toFile();
     ByteSource source = Files.asByteSource(file);
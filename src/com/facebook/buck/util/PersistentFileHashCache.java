@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DefaultFileHashCache} which remembers the hashes of source files across processes.
+ * <p>
+ * For every file it hashes, it appends a record of the file's size, modification time and file
+ * key (its inode on Unix) along with the SHA-1 of its contents to an index under
+ * {@code buck-out}. A later process memory-maps the index, and only reads a file again if its
+ * stamp no longer matches the one recorded. Files in ignored directories, such as
+ * {@code buck-out} itself, and files outside the project are never recorded.
+ * <p>
+ * Like git's index, a file modified within {@link #RACY_WINDOW_MILLIS} of being hashed isn't
+ * recorded, as a later write within the same timestamp granularity would go unnoticed.
+ * <p>
+ * The index is kept open for appending until the cache is closed. A closed cache still hashes
+ * files but no longer records them.
+ */
+public class PersistentFileHashCache extends DefaultFileHashCache implements Closeable {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashCache.class);
+
+  public static final Path INDEX_PATH =
+      BuckConstant.BUCK_OUTPUT_PATH.resolve(".file-hash-cache");
+
+  private static final int MAGIC = 0xB0C4F11E;
+  /** Bump this whenever the format of the index changes. */
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int SHA1_SIZE = 20;
+
+  @VisibleForTesting
+  static final long RACY_WINDOW_MILLIS = 2000;
+
+  /** Files at least this large are hashed from a memory mapping rather than a stream. */
+  private static final long MAP_THRESHOLD = 1L << 20;
+  private static final long MAP_CHUNK_SIZE = 64L << 20;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path indexPath;
+  private final ConcurrentMap<Path, Stamp> stamps;
+  private final AtomicInteger filesRead;
+
+  @Nullable private FileChannel journal;
+  private boolean isClosed;
+
+  public PersistentFileHashCache(ProjectFilesystem projectFilesystem) {
+    super(projectFilesystem);
+    this.projectFilesystem = projectFilesystem;
+    this.indexPath = projectFilesystem.resolve(INDEX_PATH);
+    this.stamps = new ConcurrentHashMap<>();
+    this.filesRead = new AtomicInteger();
+    loadIndex();
+  }
+
+  @Override
+  protected HashCode getFileHashCode(Path path) throws IOException {
+    if (path.isAbsolute() || projectFilesystem.isIgnored(path)) {
+      return super.getFileHashCode(path);
+    }
+
+    Path absolutePath = projectFilesystem.resolve(path);
+    BasicFileAttributes attributes =
+        Files.readAttributes(absolutePath, BasicFileAttributes.class);
+    long size = attributes.size();
+    long modified = attributes.lastModifiedTime().toMillis();
+    long fileKey = attributes.fileKey() == null ? 0 : attributes.fileKey().hashCode();
+
+    Stamp stamp = stamps.get(path);
+    if (stamp != null && stamp.matches(size, modified, fileKey)) {
+      return stamp.hashCode;
+    }
+
+    long now = System.currentTimeMillis();
+    HashCode hashCode = hashFile(absolutePath, size);
+    filesRead.incrementAndGet();
+    if (now - modified >= RACY_WINDOW_MILLIS) {
+      Stamp newStamp = new Stamp(size, modified, fileKey, hashCode);
+      stamps.put(path, newStamp);
+      append(path, newStamp);
+    } else {
+      stamps.remove(path);
+    }
+    return hashCode;
+  }
+
+  /**
+   * @return the number of files this cache has read because they had no valid stamp.
+   */
+  @VisibleForTesting
+  int getFilesRead() {
+    return filesRead.get();
+  }
+
+  private static HashCode hashFile(Path path, long size) throws IOException {
+    if (size < MAP_THRESHOLD) {
+      return MorePaths.asByteSource(path).hash(Hashing.sha1());
+    }
+
+    // Hashing straight from the page cache saves copying large files through a heap buffer.
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long length = channel.size();
+      for (long position = 0; position < length; position += MAP_CHUNK_SIZE) {
+        MappedByteBuffer chunk = channel.map(
+            FileChannel.MapMode.READ_ONLY,
+            position,
+            Math.min(MAP_CHUNK_SIZE, length - position));
+        digest.update(chunk);
+      }
+    }
+    return HashCode.fromBytes(digest.digest());
+  }
+
+  private void loadIndex() {
+    if (!Files.isRegularFile(indexPath)) {
+      return;
+    }
+
+    int records = 0;
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_SIZE ||
+          buffer.getInt() != MAGIC ||
+          buffer.getInt() != VERSION) {
+        LOG.debug("Ignoring file hash index with an unknown format at %s.", indexPath);
+        Files.delete(indexPath);
+        return;
+      }
+      // Later records replace earlier ones for the same path. A record cut short by a process
+      // which died while appending it is simply dropped.
+      while (buffer.hasRemaining()) {
+        int pathLength = buffer.getInt();
+        byte[] pathBytes = new byte[pathLength];
+        buffer.get(pathBytes);
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        long fileKey = buffer.getLong();
+        byte[] sha1 = new byte[SHA1_SIZE];
+        buffer.get(sha1);
+        stamps.put(
+            Paths.get(new String(pathBytes, UTF_8)),
+            new Stamp(size, modified, fileKey, HashCode.fromBytes(sha1)));
+        records++;
+      }
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      LOG.debug("File hash index at %s ends with a partial record.", indexPath);
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't read file hash index at %s.", indexPath);
+      return;
+    }
+    LOG.debug("Loaded %d file hashes from %d records.", stamps.size(), records);
+
+    // Appending means stale records pile up, so rewrite the index once they dominate.
+    if (records > 2 * stamps.size() + 1000) {
+      compact();
+    }
+  }
+
+  private void compact() {
+    try {
+      Path tempPath = Files.createTempFile(indexPath.getParent(), "file-hash-cache", ".tmp");
+      try {
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+          writeFully(channel, header());
+          for (Map.Entry<Path, Stamp> entry : stamps.entrySet()) {
+            writeFully(channel, record(entry.getKey(), entry.getValue()));
+          }
+        }
+        Files.move(
+            tempPath,
+            indexPath,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't compact file hash index at %s.", indexPath);
+    }
+  }
+
+  private synchronized void append(Path path, Stamp stamp) {
+    if (isClosed) {
+      return;
+    }
+    try {
+      if (journal == null) {
+        Files.createDirectories(indexPath.getParent());
+        journal = FileChannel.open(
+            indexPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        if (journal.size() == 0) {
+          writeFully(journal, header());
+        }
+      }
+      writeFully(journal, record(path, stamp));
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't record the hash of %s in %s.", path, indexPath);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Couldn't close file hash index at %s.", indexPath);
+    } finally {
+      journal = null;
+    }
+  }
+
+  private static ByteBuffer header() {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+    buffer.putInt(MAGIC).putInt(VERSION).flip();
+    return buffer;
+  }
+
+  private static ByteBuffer record(Path path, Stamp stamp) {
+    byte[] pathBytes = MorePaths.pathWithUnixSeparators(path).getBytes(UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + pathBytes.length + 3 * 8 + SHA1_SIZE);
+    buffer.putInt(pathBytes.length)
+        .put(pathBytes)
+        .putLong(stamp.size)
+        .putLong(stamp.modified)
+        .putLong(stamp.fileKey)
+        .put(stamp.hashCode.asBytes())
+        .flip();
+    return buffer;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static class Stamp {
+    private final long size;
+    private final long modified;
+    private final long fileKey;
+    private final HashCode hashCode;
+
+    public Stamp(long size, long modified, long fileKey, HashCode hashCode) {
+      this.size = size;
+      this.modified = modified;
+      this.fileKey = fileKey;
+      this.hashCode = hashCode;
+    }
+
+    public boolean matches(long size, long modified, long fileKey) {
+      return this.size == size && this.modified == modified && this.fileKey == fileKey;
+    }
+  }
+}
@@ -16,29 +16,30 @@
 
 package com.facebook.buck.util;
 
-
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.timing.Clock;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.common.io.ByteStreams;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
@@ -47,13 +48,25 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
 /**
  * A ProjectFilesystemWatcher implementation that uses a local watchman service.
+ * <p>
+ * Rather than querying Watchman for every change at the start of each command, this keeps a
+ * single Watchman client running with a subscription to the project, and reads the changes
+ * Watchman pushes to it in the BSER binary encoding on a background thread as they happen. Each
+ * call to {@link #postEvents} then posts the changes received since the last one, once it has
+ * synced with Watchman over the same subscription, so that changes made just before the call
+ * aren't left for the next one.
  */
 public class WatchmanWatcher implements ProjectFilesystemWatcher {
 
@@ -61,14 +74,24 @@ public class WatchmanWatcher implements ProjectFilesystemWatcher {
   private static final int DEFAULT_OVERFLOW_THRESHOLD = 10000;
   private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
 
+  /**
+   * Starts the names of the files created to sync with Watchman. Watchman leaves its own cookies
+   * out of subscriptions, so these can't be named like them.
+   */
+  @VisibleForTesting
+  static final String COOKIE_PREFIX = ".buckd-cookie-";
+
   private final Supplier<Process> watchmanProcessSupplier;
   private final EventBus fileChangeEventBus;
-  private final Clock clock;
-  private final ObjectMapper objectMapper;
-  private final String query;
+  private final String subscribeCommand;
+  /** Where cookies are created: the root of the project, which Watchman names paths from. */
+  private final Path cookieDirectory;
+  /** Tells the cookies of this watcher from those of any other watching the project. */
+  private final String cookiePrefix;
+  private long cookieCount;
 
   /**
-   * The maximum number of watchman changes to process in each call to postEvents before
+   * The maximum number of watchman changes to hold on to between calls to postEvents before
    * giving up and generating an overflow. The goal is to be able to process a reasonable
    * number of human generated changes quickly, but not spend a long time processing lots
    * of changes after a branch switch which will end up invalidating the entire cache
@@ -77,61 +100,75 @@ public class WatchmanWatcher implements ProjectFilesystemWatcher {
    */
   private final int overflow;
 
+  /**
+   * How long the first call to postEvents waits for Watchman to accept the subscription, and how
+   * long each call waits for Watchman to report the cookie it creates.
+   */
   private final long timeoutMillis;
 
+  @Nullable
+  private Subscription subscription;
+  private boolean hasSubscribed;
+
   public WatchmanWatcher(ProjectFilesystem filesystem,
                          EventBus fileChangeEventBus,
-                         Clock clock,
-                         ObjectMapper objectMapper,
-                         Iterable<Path> ignorePaths,
-                         Iterable<String> ignoreGlobs) {
+                         final ObjectMapper objectMapper,
+                         final Iterable<Path> ignorePaths,
+                         final Iterable<String> ignoreGlobs) {
     this(createProcessSupplier(),
         fileChangeEventBus,
-        clock,
-        objectMapper,
         DEFAULT_OVERFLOW_THRESHOLD,
         DEFAULT_TIMEOUT_MILLIS,
-        createQuery(
+        createSubscribeCommand(
             objectMapper,
             MorePaths.absolutify(filesystem.getRootPath()).toString(),
             UUID.randomUUID().toString(),
             ignorePaths,
-            ignoreGlobs));
+            ignoreGlobs),
+        MorePaths.absolutify(filesystem.getRootPath()));
   }
 
   @VisibleForTesting
   WatchmanWatcher(Supplier<Process> processSupplier,
                   EventBus fileChangeEventBus,
-                  Clock clock,
-                  ObjectMapper objectMapper,
                   int overflow,
                   long timeoutMillis,
-                  String query) {
+                  String subscribeCommand,
+                  Path cookieDirectory) {
     this.watchmanProcessSupplier = processSupplier;
     this.fileChangeEventBus = fileChangeEventBus;
-    this.clock = clock;
-    this.objectMapper = objectMapper;
     this.overflow = overflow;
     this.timeoutMillis = timeoutMillis;
-    this.query = query;
+    this.subscribeCommand = subscribeCommand;
+    this.cookieDirectory = cookieDirectory;
+    this.cookiePrefix = COOKIE_PREFIX + UUID.randomUUID() + "-";
   }
 
   @VisibleForTesting
-  static String createQuery(
+  static String createSubscribeCommand(
       ObjectMapper objectMapper,
       String rootPath,
       String uuid,
       Iterable<Path> ignorePaths,
       Iterable<String> ignoreGlobs) {
-    List<Object> queryParams = new ArrayList<>();
-    queryParams.add("query");
-    queryParams.add(rootPath);
+    List<Object> subscribeParams = new ArrayList<>();
+    subscribeParams.add("subscribe");
+    subscribeParams.add(rootPath);
+    subscribeParams.add("buckd" + uuid);
+    subscribeParams.add(createQueryParams(ignorePaths, ignoreGlobs));
+    try {
+      return objectMapper.writeValueAsString(subscribeParams);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static Map<String, Object> createQueryParams(
+      Iterable<Path> ignorePaths,
+      Iterable<String> ignoreGlobs) {
     // Note that we use LinkedHashMap so insertion order is preserved. That
     // helps us write tests that don't depend on the undefined order of HashMap.
-    Map<String, Object> sinceParams = new LinkedHashMap<>();
-    sinceParams.put(
-        "since",
-        new StringBuilder("n:buckd").append(uuid).toString());
+    Map<String, Object> queryParams = new LinkedHashMap<>();
 
     // Exclude any expressions added to this list.
     List<Object> excludeAnyOf = Lists.<Object>newArrayList("anyof");
@@ -162,26 +199,24 @@ public class WatchmanWatcher implements ProjectFilesystemWatcher {
               "wholename"));
     }
 
-    sinceParams.put(
+    queryParams.put(
         "expression",
         Lists.newArrayList(
             "not",
             excludeAnyOf));
-    sinceParams.put("empty_on_fresh_instance", true);
-    sinceParams.put("fields", Lists.newArrayList("name", "exists", "new"));
-    queryParams.add(sinceParams);
-    try {
-      return objectMapper.writeValueAsString(queryParams);
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
-    }
+    queryParams.put("empty_on_fresh_instance", true);
+    queryParams.put("fields", Lists.newArrayList("name", "exists", "new"));
+    return queryParams;
   }
 
   private static Supplier<Process> createProcessSupplier() {
+    // The client reads the subscription as JSON and keeps relaying what the server sends for it
+    // in BSER.
     final ProcessBuilder processBuilder = new ProcessBuilder(
         "watchman",
-        "--server-encoding=json",
-        "--no-pretty",
+        "--server-encoding=bser",
+        "--output-encoding=bser",
+        "--persistent",
         "-j");
 
     return new Supplier<Process>() {
@@ -198,158 +233,131 @@ public class WatchmanWatcher implements ProjectFilesystemWatcher {
   }
 
   /**
-   * Query Watchman for file change events. If too many events are pending or an error occurs
-   * an overflow event is posted to the EventBus signalling that events may have been lost
-   * (and so typically caches must be cleared to avoid inconsistency). Interruptions and
-   * IOExceptions are propagated to callers, but typically if overflow events are handled
+   * Post the file change events Watchman has sent since the last call, subscribing to them first
+   * if needed, after waiting for it to send those made before this call. If too many events
+   * are pending or an error occurs an overflow event is posted to the EventBus signalling that
+   * events may have been lost (and so typically caches must be cleared to avoid inconsistency).
+   * Interruptions, IOExceptions and errors from the subscription are propagated to callers, and
+   * the next call will subscribe again, but typically if overflow events are handled
    * conservatively by subscribers then no other remedial action is required.
    */
   @Override
   public void postEvents(BuckEventBus buckEventBus) throws IOException, InterruptedException {
-    Process watchmanProcess = watchmanProcessSupplier.get();
-    try {
-      LOG.debug("Writing query to Watchman: %s", query);
-      watchmanProcess.getOutputStream().write(query.getBytes(Charsets.US_ASCII));
-      watchmanProcess.getOutputStream().close();
-      LOG.debug("Parsing JSON output from Watchman");
-      final long parseStartTimeMillis = clock.currentTimeMillis();
-      InputStream jsonInput = watchmanProcess.getInputStream();
-      if (LOG.isVerboseEnabled()) {
-        byte[] fullResponse = ByteStreams.toByteArray(jsonInput);
-        jsonInput.close();
-        jsonInput = new ByteArrayInputStream(fullResponse);
-        LOG.verbose("Full JSON: " + new String(fullResponse, Charsets.UTF_8).trim());
-      }
-      JsonParser jsonParser = objectMapper.getJsonFactory().createJsonParser(jsonInput);
-      PathEventBuilder builder = new PathEventBuilder();
-      JsonToken token = jsonParser.nextToken();
-      /*
-       * Watchman returns changes as an array of JSON objects with potentially unstable key
-       * ordering:
-       * {
-       *     "files": [
-       *     {
-       *         "new": false,
-       *         "exists": true,
-       *         "name": "bin/buckd",
-       *     },
-       *     ]
-       * }
-       * A simple way to parse these changes is to collect the relevant values from each object
-       * in a builder and then build an event when the end of a JSON object is reached. When the end
-       * of the enclosing JSON object is processed the builder will not contain a complete event, so
-       * the object end token will be ignored.
-       */
-      int eventCount = 0;
-      while (token != null) {
-        boolean shouldOverflow = false;
-        if (eventCount > overflow) {
-          LOG.warn(
-              "Received too many events from Watchmen (%d > overflow max %d), posting overflow " +
-              "event and giving up.",
-              eventCount,
-              overflow);
-          shouldOverflow = true;
-        } else {
-          long elapsedMillis = clock.currentTimeMillis() - parseStartTimeMillis;
-          if (elapsedMillis >= timeoutMillis) {
-            LOG.warn(
-                "Parsing took too long (timeout %d ms), posting overflow event and giving up.",
-                timeoutMillis);
-            shouldOverflow = true;
-          }
-        }
-
-        if (shouldOverflow) {
-          postWatchEvent(createOverflowEvent());
-          watchmanProcess.destroy();
-          return;
-        }
+    if (subscription == null) {
+      subscribe();
+    }
+    Subscription current = Preconditions.checkNotNull(subscription);
 
-        switch (token) {
-          case FIELD_NAME:
-            String fieldName = jsonParser.getCurrentName();
-            switch (fieldName) {
-              case "is_fresh_instance":
-                // Force caches to be invalidated --- we have no idea what's happening.
-                Boolean newInstance = jsonParser.nextBooleanValue();
-                if (newInstance) {
-                  LOG.info("Fresh watchman instance detected. " +
-                          "Posting overflow event to flush caches.");
-                  postWatchEvent(createOverflowEvent());
-                }
-                break;
-
-              case "name":
-                builder.setPath(Paths.get(jsonParser.nextTextValue()));
-                break;
-              case "new":
-                if (jsonParser.nextBooleanValue()) {
-                  builder.setCreationEvent();
-                }
-                break;
-              case "exists":
-                if (!jsonParser.nextBooleanValue()) {
-                  builder.setDeletionEvent();
-                }
-                break;
-              case "error":
-                WatchmanWatcherException e = new WatchmanWatcherException(
-                    jsonParser.nextTextValue());
-                LOG.error(
-                    e,
-                    "Error in Watchman output. Posting an overflow event to flush the caches");
-                postWatchEvent(createOverflowEvent());
-                throw e;
-              case "warning":
-                String message = jsonParser.nextTextValue();
-                buckEventBus.post(
-                    ConsoleEvent.warning("Watchman has produced a warning: %s", message));
-
-                LOG.warn("Watchman has produced a warning! Assuming the worst and posting an " +
-                        "overflow event to flush the caches: %s", message);
-                postWatchEvent(createOverflowEvent());
-                break;
-            }
-            break;
-          case END_OBJECT:
-            if (builder.canBuild()) {
-              postWatchEvent(builder.build());
-              ++eventCount;
-            }
-            builder = new PathEventBuilder();
-            break;
-          // $CASES-OMITTED$
-          default:
-            break;
-        }
-        token = jsonParser.nextToken();
-      }
-      int watchmanExitCode;
-      LOG.debug("Posted %d Watchman events. Waiting for subprocess to exit...", eventCount);
-      watchmanExitCode = watchmanProcess.waitFor();
-      if (watchmanExitCode != 0) {
-        LOG.error("Watchman exited with error code %d", watchmanExitCode);
-        postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        ByteStreams.copy(watchmanProcess.getErrorStream(), buffer);
-        throw new WatchmanWatcherException(
-            "Watchman failed with exit code " + watchmanExitCode + ": " + buffer.toString());
-      } else {
-        LOG.debug("Watchman exited cleanly.");
+    boolean isSynced;
+    try {
+      if (!current.subscribed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Watchman did not accept the subscription within %d ms.", timeoutMillis);
       }
+      isSynced = overflow < 0 || sync(current);
     } catch (InterruptedException e) {
-      LOG.warn(e, "Killing Watchman process on interrupted exception");
+      LOG.warn(e, "Closing Watchman subscription on interrupted exception");
       postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
-      watchmanProcess.destroy();
+      unsubscribe();
       Thread.currentThread().interrupt();
       throw e;
+    }
+
+    // Taken along with whether the queue overflowed, so that changes dropped after the pending
+    // ones were taken can't go unnoticed until the next call.
+    PendingChanges pending = current.takePendingChanges();
+    boolean shouldOverflow = pending.overflowed || !isSynced;
+    if (pending.overflowed) {
+      LOG.warn(
+          "Received too many events from Watchman (> overflow max %d) or a fresh instance, " +
+          "posting overflow event.",
+          overflow);
+    }
+    String warning;
+    while ((warning = current.warnings.poll()) != null) {
+      buckEventBus.post(ConsoleEvent.warning("Watchman has produced a warning: %s", warning));
+      LOG.warn("Watchman has produced a warning! Assuming the worst and posting an " +
+          "overflow event to flush the caches: %s", warning);
+      shouldOverflow = true;
+    }
+
+    WatchmanWatcherException failure = current.failure.get();
+    if (failure != null) {
+      LOG.error(failure, "Watchman subscription failed. Posting an overflow event.");
+      postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
+      unsubscribe();
+      throw failure;
+    }
+
+    if (shouldOverflow || overflow < 0) {
+      postWatchEvent(createOverflowEvent());
+      return;
+    }
+    for (WatchEvent<?> event : pending.events) {
+      postWatchEvent(event);
+    }
+    LOG.debug("Posted %d Watchman events.", pending.events.size());
+  }
+
+  /**
+   * Creates a cookie file and waits for the subscription to report it, as Watchman does to sync
+   * its own queries. Watchman reports changes in the order it sees them, so by then every change
+   * made before the cookie was created has been received too.
+   *
+   * @return whether the subscription caught up within the timeout.
+   */
+  private boolean sync(Subscription current) throws InterruptedException {
+    String cookie = cookiePrefix + cookieCount++;
+    Path cookiePath = cookieDirectory.resolve(cookie);
+    try {
+      Files.createFile(cookiePath);
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to create %s to sync with Watchman.", cookiePath);
+      return false;
+    }
+    try {
+      if (current.awaitCookie(cookie, timeoutMillis)) {
+        return true;
+      }
+      LOG.warn("Watchman did not report %s within %d ms.", cookiePath, timeoutMillis);
+      return false;
+    } finally {
+      try {
+        Files.deleteIfExists(cookiePath);
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to delete %s.", cookiePath);
+      }
+    }
+  }
+
+  private void subscribe() throws IOException {
+    Process watchmanProcess = watchmanProcessSupplier.get();
+    try {
+      LOG.debug("Writing subscription to Watchman: %s", subscribeCommand);
+      OutputStream output = watchmanProcess.getOutputStream();
+      output.write(subscribeCommand.getBytes(Charsets.US_ASCII));
+      output.close();
     } catch (IOException e) {
       LOG.error(e, "Killing Watchman process on I/O exception");
       postWatchEvent(createOverflowEvent()); // Events may have been lost, signal overflow.
       watchmanProcess.destroy();
       throw e;
     }
+    subscription = new Subscription(watchmanProcess);
+    subscription.start();
+
+    // Changes made since an earlier subscription ended were not seen by anyone.
+    if (hasSubscribed) {
+      LOG.info("Subscribed to Watchman again. Posting overflow event to flush caches.");
+      postWatchEvent(createOverflowEvent());
+    }
+    hasSubscribed = true;
+  }
+
+  private void unsubscribe() {
+    if (subscription != null) {
+      subscription.close();
+      subscription = null;
+    }
   }
 
   private void postWatchEvent(WatchEvent<?> event) {
@@ -385,6 +393,205 @@ public class WatchmanWatcher implements ProjectFilesystemWatcher {
 
   @Override
   public void close() throws IOException {
+    unsubscribe();
+  }
+
+  /**
+   * A running Watchman client subscribed to the project, and the state its reader thread hands
+   * over to {@link #postEvents}.
+   */
+  private class Subscription implements Runnable {
+
+    private final Process process;
+    private final Thread readerThread;
+    /** The changes pushed by Watchman which haven't been posted yet. Guarded by this. */
+    private final List<WatchEvent<?>> pendingEvents = Lists.newArrayList();
+    /** Whether pending changes were dropped, because there were too many. Guarded by this. */
+    private boolean overflowed;
+    /** The cookies of this watcher reported by Watchman and not yet awaited. Guarded by this. */
+    private final Set<String> reportedCookies = Sets.newHashSet();
+    /** Whether the reader thread has stopped, so no more cookies will be reported. */
+    private boolean isFinished;
+    private final Queue<String> warnings = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<WatchmanWatcherException> failure = new AtomicReference<>();
+    /** Counted down once Watchman has accepted the subscription, or failed. */
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private volatile boolean isClosed;
+    /** Only accessed from the reader thread. */
+    private boolean hasReceivedFiles;
+
+    Subscription(Process process) {
+      this.process = process;
+      this.readerThread = Threads.namedThread("Watchman subscription", this);
+      this.readerThread.setDaemon(true);
+    }
+
+    void start() {
+      readerThread.start();
+    }
+
+    void close() {
+      isClosed = true;
+      process.destroy();
+    }
+
+    /** @return the changes pushed since the last call, and whether any were dropped. */
+    synchronized PendingChanges takePendingChanges() {
+      PendingChanges taken =
+          new PendingChanges(ImmutableList.copyOf(pendingEvents), overflowed);
+      pendingEvents.clear();
+      overflowed = false;
+      return taken;
+    }
+
+    /** @return whether Watchman reported {@code cookie} within {@code timeoutMillis}. */
+    synchronized boolean awaitCookie(String cookie, long timeoutMillis)
+        throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (!reportedCookies.remove(cookie)) {
+        long remainingNanos = deadline - System.nanoTime();
+        if (isFinished || remainingNanos <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        InputStream input = new BufferedInputStream(process.getInputStream());
+        Object pdu;
+        while ((pdu = BserDeserializer.deserializePdu(input)) != null) {
+          LOG.verbose("Received from Watchman: %s", pdu);
+          if (handlePdu(pdu)) {
+            subscribed.countDown();
+          }
+        }
+        if (!isClosed) {
+          failure.compareAndSet(null, new WatchmanWatcherException(describeExit()));
+        }
+      } catch (IOException e) {
+        if (!isClosed) {
+          LOG.error(e, "Error reading from Watchman");
+          failure.compareAndSet(
+              null,
+              new WatchmanWatcherException("Error reading from Watchman: " + e.getMessage()));
+        }
+      } catch (WatchmanWatcherException e) {
+        failure.compareAndSet(null, e);
+      } catch (InterruptedException e) {
+        LOG.debug(e, "Interrupted waiting for Watchman to exit");
+      } finally {
+        subscribed.countDown();
+        synchronized (this) {
+          isFinished = true;
+          notifyAll();
+        }
+      }
+    }
+
+    private String describeExit() throws IOException, InterruptedException {
+      int exitCode = process.waitFor();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      ByteStreams.copy(process.getErrorStream(), buffer);
+      return "Watchman failed with exit code " + exitCode + ": " + buffer.toString();
+    }
+
+    /** @return whether {@code pdu} is Watchman's response to the subscribe command. */
+    private boolean handlePdu(Object pdu) {
+      if (!(pdu instanceof Map)) {
+        throw new WatchmanWatcherException("Unexpected output from Watchman: " + pdu);
+      }
+      Map<?, ?> response = (Map<?, ?>) pdu;
+      Object error = response.get("error");
+      if (error != null) {
+        throw new WatchmanWatcherException(String.valueOf(error));
+      }
+      Object warning = response.get("warning");
+      if (warning != null) {
+        warnings.add(String.valueOf(warning));
+      }
+      Object files = response.get("files");
+      if (files instanceof List) {
+        handleFiles(response, (List<?>) files);
+      }
+      return response.containsKey("subscribe");
+    }
+
+    private synchronized void handleFiles(Map<?, ?> response, List<?> files) {
+      // The first changes sent for a subscription are always from a "fresh instance", which
+      // doesn't mean anything was missed.
+      if (Boolean.TRUE.equals(response.get("is_fresh_instance")) && hasReceivedFiles) {
+        // Force caches to be invalidated --- we have no idea what's happening.
+        LOG.info("Fresh watchman instance detected. Posting overflow event to flush caches.");
+        overflowed = true;
+        pendingEvents.clear();
+      }
+      hasReceivedFiles = true;
+
+      for (Object file : files) {
+        Optional<WatchEvent<Path>> event = createPathEvent(file);
+        if (!event.isPresent()) {
+          continue;
+        }
+        String name = String.valueOf(event.get().context());
+        if (name.startsWith(COOKIE_PREFIX)) {
+          // Cookies aren't part of the project, but this watcher waits for its own to be created.
+          if (name.startsWith(cookiePrefix) &&
+              event.get().kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+            reportedCookies.add(name);
+            notifyAll();
+          }
+          continue;
+        }
+        if (overflowed) {
+          // The caches will be flushed anyway, so the individual changes don't matter.
+          continue;
+        }
+        if (pendingEvents.size() >= overflow) {
+          overflowed = true;
+          pendingEvents.clear();
+          continue;
+        }
+        pendingEvents.add(event.get());
+      }
+    }
+  }
+
+  /** Changes pushed by Watchman. */
+  private static class PendingChanges {
+    private final ImmutableList<WatchEvent<?>> events;
+    private final boolean overflowed;
+
+    private PendingChanges(ImmutableList<WatchEvent<?>> events, boolean overflowed) {
+      this.events = events;
+      this.overflowed = overflowed;
+    }
+  }
+
+  /** @return the event for a file in Watchman's output, if it names one. */
+  private static Optional<WatchEvent<Path>> createPathEvent(Object file) {
+    if (!(file instanceof Map)) {
+      return Optional.absent();
+    }
+    Map<?, ?> fileFields = (Map<?, ?>) file;
+    PathEventBuilder builder = new PathEventBuilder();
+    Object name = fileFields.get("name");
+    if (name instanceof String) {
+      builder.setPath(Paths.get((String) name));
+    }
+    if (Boolean.TRUE.equals(fileFields.get("new"))) {
+      builder.setCreationEvent();
+    }
+    if (Boolean.FALSE.equals(fileFields.get("exists"))) {
+      builder.setDeletionEvent();
+    }
+    if (!builder.canBuild()) {
+      return Optional.absent();
+    }
+    return Optional.of(builder.build());
   }
 
   private static class PathEventBuilder {
@@ -24,8 +24,19 @@ public class ConcurrencyLimit {
   public final int threadLimit;
   public final double loadLimit;
 
+  /**
+   * The cores and memory which the steps running at once may use between them, see
+   * {@link ResourceBudget}.
+   */
+  public final ResourceAmounts resourceLimit;
+
   public ConcurrencyLimit(int threadLimit, double loadLimit) {
+    this(threadLimit, loadLimit, ResourceAmounts.UNLIMITED);
+  }
+
+  public ConcurrencyLimit(int threadLimit, double loadLimit, ResourceAmounts resourceLimit) {
     this.threadLimit = threadLimit;
     this.loadLimit = loadLimit;
+    this.resourceLimit = resourceLimit;
   }
 }
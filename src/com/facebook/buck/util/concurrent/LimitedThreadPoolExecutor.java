@@ -18,7 +18,7 @@ package com.facebook.buck.util.concurrent;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -28,6 +28,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * This class is like {@link ThreadPoolExecutor}, but tries to keep the total active work below the
  * specific limits.  Regardless of the configured limitations, however, we always allow at least one
  * work item to execute so that we can continue to make progress.
+ * <p>
+ * Queued work runs in priority order, see {@link PrioritizedRunnable}. Work submitted without a
+ * priority gets {@link PrioritizedRunnable#DEFAULT_PRIORITY}, so if nothing is prioritized this
+ * runs work in the order it was submitted.
  */
 public class LimitedThreadPoolExecutor extends ThreadPoolExecutor {
 
@@ -53,7 +57,7 @@ public class LimitedThreadPoolExecutor extends ThreadPoolExecutor {
         /* corePoolSize */ concurrencyLimit.threadLimit,
         /* maximumPoolSize */ concurrencyLimit.threadLimit,
         /* keepAliveTime */ 0L, TimeUnit.MILLISECONDS,
-        /* workQueue */ new LinkedBlockingQueue<Runnable>(),
+        /* workQueue */ new PriorityBlockingQueue<Runnable>(),
         /* threadFactory */ threadFactory,
         /* handler */ new ThreadPoolExecutor.DiscardPolicy());
     loadLimit = concurrencyLimit.loadLimit;
@@ -81,6 +85,14 @@ public class LimitedThreadPoolExecutor extends ThreadPoolExecutor {
 
   }
 
+  @Override
+  public void execute(Runnable command) {
+    super.execute(
+        command instanceof PrioritizedRunnable ?
+            command :
+            new PrioritizedRunnable(command, PrioritizedRunnable.DEFAULT_PRIORITY));
+  }
+
   @Override
   protected void beforeExecute(Thread t, Runnable r) {
     super.beforeExecute(t, r);
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Runnable} with a priority, for executors such as {@link LimitedThreadPoolExecutor}
+ * which queue work in priority order. Higher priorities run first, and work of equal priority
+ * runs in the order it was submitted.
+ */
+public class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+
+  public static final long DEFAULT_PRIORITY = 0;
+
+  private static final AtomicLong nextSequenceNumber = new AtomicLong();
+
+  private final Runnable delegate;
+  private final long priority;
+  private final long sequenceNumber;
+
+  public PrioritizedRunnable(Runnable delegate, long priority) {
+    this.delegate = delegate;
+    this.priority = priority;
+    this.sequenceNumber = nextSequenceNumber.getAndIncrement();
+  }
+
+  /**
+   * @return an {@link Executor} which submits work to {@code executor} with the given priority.
+   */
+  public static Executor withPriority(final Executor executor, final long priority) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executor.execute(new PrioritizedRunnable(command, priority));
+      }
+    };
+  }
+
+  public long getPriority() {
+    return priority;
+  }
+
+  @Override
+  public void run() {
+    delegate.run();
+  }
+
+  @Override
+  public int compareTo(PrioritizedRunnable that) {
+    if (priority != that.priority) {
+      return priority > that.priority ? -1 : 1;
+    }
+    return Long.compare(sequenceNumber, that.sequenceNumber);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (priority %d)", delegate, priority);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Objects;
+
+/**
+ * An amount of machine resources: cores and memory. Used both for what a piece of work needs and
+ * for how much of the machine a build may use at once, see {@link ResourceBudget}.
+ */
+public final class ResourceAmounts {
+
+  public static final ResourceAmounts ZERO = of(0, 0);
+
+  /** No limit at all. */
+  public static final ResourceAmounts UNLIMITED = of(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+  private final int cpus;
+  private final long memoryBytes;
+
+  private ResourceAmounts(int cpus, long memoryBytes) {
+    Preconditions.checkArgument(cpus >= 0, "cpus must not be negative, but was %s", cpus);
+    Preconditions.checkArgument(
+        memoryBytes >= 0,
+        "memoryBytes must not be negative, but was %s",
+        memoryBytes);
+    this.cpus = cpus;
+    this.memoryBytes = memoryBytes;
+  }
+
+  public static ResourceAmounts of(int cpus, long memoryBytes) {
+    return new ResourceAmounts(cpus, memoryBytes);
+  }
+
+  public int getCpus() {
+    return cpus;
+  }
+
+  public long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  public boolean isUnlimited() {
+    return cpus == Integer.MAX_VALUE && memoryBytes == Long.MAX_VALUE;
+  }
+
+  /** @return whether none of these amounts exceeds the same amount of {@code limit}. */
+  public boolean fitsWithin(ResourceAmounts limit) {
+    return cpus <= limit.cpus && memoryBytes <= limit.memoryBytes;
+  }
+
+  /** @return the smaller of each amount of this and {@code limit}. */
+  public ResourceAmounts clampTo(ResourceAmounts limit) {
+    return of(Math.min(cpus, limit.cpus), Math.min(memoryBytes, limit.memoryBytes));
+  }
+
+  public ResourceAmounts append(ResourceAmounts other) {
+    return of(cpus + other.cpus, memoryBytes + other.memoryBytes);
+  }
+
+  public ResourceAmounts subtract(ResourceAmounts other) {
+    return of(cpus - other.cpus, memoryBytes - other.memoryBytes);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof ResourceAmounts)) {
+      return false;
+    }
+    ResourceAmounts that = (ResourceAmounts) other;
+    return cpus == that.cpus && memoryBytes == that.memoryBytes;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(cpus, memoryBytes);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("{cpus=%d, memoryBytes=%d}", cpus, memoryBytes);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Admits work only while the {@link ResourceAmounts} it needs, together with those of the work
+ * already running, fit within a limit. Work which needs more than the whole limit is admitted
+ * once nothing else is running, so that the build can always make progress.
+ * <p>
+ * Work is admitted in the order it asked, so a large piece of work isn't starved by a stream of
+ * small ones.
+ */
+public class ResourceBudget {
+
+  private final ResourceAmounts limit;
+
+  /** What the admitted work needs, clamped to the limit. */
+  private ResourceAmounts used = ResourceAmounts.ZERO;
+
+  /** The work waiting to be admitted, in the order it asked. */
+  private final Deque<Object> waiting = new ArrayDeque<>();
+
+  public ResourceBudget(ResourceAmounts limit) {
+    this.limit = limit;
+  }
+
+  public ResourceAmounts getLimit() {
+    return limit;
+  }
+
+  /**
+   * Blocks until {@code amounts} can be used. Each call must be followed by a call to
+   * {@link #release(ResourceAmounts)} with the same amounts once the work is done.
+   */
+  public void acquire(ResourceAmounts amounts) throws InterruptedException {
+    if (limit.isUnlimited() || amounts.equals(ResourceAmounts.ZERO)) {
+      return;
+    }
+    ResourceAmounts request = amounts.clampTo(limit);
+    Object turn = new Object();
+    synchronized (this) {
+      waiting.addLast(turn);
+      try {
+        while (waiting.peekFirst() != turn || !used.append(request).fitsWithin(limit)) {
+          wait();
+        }
+      } finally {
+        waiting.remove(turn);
+        // Whether this work was admitted or interrupted, the work behind it may now fit.
+        notifyAll();
+      }
+      used = used.append(request);
+    }
+  }
+
+  /**
+   * Uses {@code amounts} if they fit now and no other work is waiting, without blocking. If this
+   * returns true, {@link #release(ResourceAmounts)} must be called with the same amounts once the
+   * work is done.
+   */
+  public boolean tryAcquire(ResourceAmounts amounts) {
+    if (limit.isUnlimited() || amounts.equals(ResourceAmounts.ZERO)) {
+      return true;
+    }
+    ResourceAmounts request = amounts.clampTo(limit);
+    synchronized (this) {
+      if (!waiting.isEmpty() || !used.append(request).fitsWithin(limit)) {
+        return false;
+      }
+      used = used.append(request);
+      return true;
+    }
+  }
+
+  public void release(ResourceAmounts amounts) {
+    if (limit.isUnlimited() || amounts.equals(ResourceAmounts.ZERO)) {
+      return;
+    }
+    ResourceAmounts request = amounts.clampTo(limit);
+    synchronized (this) {
+      Preconditions.checkState(
+          request.fitsWithin(used),
+          "Releasing %s, but only %s is in use.",
+          request,
+          used);
+      used = used.subtract(request);
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pools of threads for work which steps hand off to finish sooner, such as deflating the entries
+ * of a zip. Steps already run in parallel, so each pool is shared by every step using it rather
+ * than created by each one.
+ */
+public class SharedExecutors {
+
+  private SharedExecutors() {
+    // Utility class.
+  }
+
+  /**
+   * @param nameFormat the name of the pool's threads, with a {@code %d} for their number.
+   * @return a supplier of a pool with a daemon thread per processor, which is created when it is
+   *     first asked for. The threads go away when the pool is idle, so it needs no shutting down.
+   */
+  public static Supplier<ListeningExecutorService> perProcessor(final String nameFormat) {
+    return Suppliers.memoize(
+        new Supplier<ListeningExecutorService>() {
+          @Override
+          public ListeningExecutorService get() {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                /* corePoolSize */ threads,
+                /* maximumPoolSize */ threads,
+                /* keepAliveTime */ 10L, TimeUnit.SECONDS,
+                /* workQueue */ new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                    .setNameFormat(nameFormat)
+                    .setDaemon(true)
+                    .build());
+            executor.allowCoreThreadTimeOut(true);
+            return listeningDecorator(executor);
+          }
+        });
+  }
+}
@@ -17,14 +17,26 @@
 package com.facebook.buck.zip;
 
 import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceBudget;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
@@ -33,6 +45,13 @@ import javax.annotation.Nullable;
 /**
  * A drop-in replacement for (@link java.util.zip.ZipOutStream} that supports the ability to set a
  * compression level and allows multiple entries with the same name.
+ * <p>
+ * The data of each entry is held in memory until the entry is closed, and then deflated on the
+ * given executor while later entries are written. Entries are written out in the order they were
+ * put, each exactly as it would have been had it been deflated as it was written, so the zip is
+ * the same however many threads deflate its entries. The data held is charged to a memory budget
+ * shared by every stream: an entry too large to hold, or written while the budget is spent, is
+ * deflated as it is written instead, once the entries before it have been written out.
  *
  * <a href="https://users.cs.jmu.edu/buchhofp/forensics/formats/pkzip.html">
  *   https://users.cs.jmu.edu/buchhofp/forensics/formats/pkzip.html
@@ -43,26 +62,52 @@ import javax.annotation.Nullable;
  */
 class AppendingZipOutputStream extends CustomZipOutputStream {
 
+  /** Entries larger than this are deflated as they are written rather than held in memory. */
+  private static final int MAX_HELD_ENTRY_SIZE = 8 * 1024 * 1024;
+
   private final boolean throwExceptionsOnDuplicate;
   private final Clock clock;
+  private final ListeningExecutorService executorService;
+  /** Bounds the entry data held by every stream sharing it, in memory bytes. */
+  private final ResourceBudget memoryBudget;
   private long currentOffset = 0;
   private List<EntryAccounting> entries = Lists.newLinkedList();
   @Nullable private EntryAccounting currentEntry = null;
+  /** The data of the current entry, unless it is being deflated as it is written. */
+  @Nullable private EntryBuffer currentData = null;
+
+  /** Closed entries which haven't been written out yet, in the order they were put. */
+  private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
 
   private Set<String> seenNames = Sets.newHashSet();
 
   public AppendingZipOutputStream(Clock clock,
         OutputStream stream,
-        boolean throwExceptionsOnDuplicate) {
+        boolean throwExceptionsOnDuplicate,
+        ListeningExecutorService executorService,
+        ResourceBudget memoryBudget) {
     super(stream);
     this.clock = clock;
     this.throwExceptionsOnDuplicate = throwExceptionsOnDuplicate;
+    this.executorService = executorService;
+    this.memoryBudget = memoryBudget;
   }
 
   @Override
   protected void actuallyWrite(byte[] b, int off, int len) throws IOException {
     Preconditions.checkNotNull(currentEntry);
-    currentOffset += currentEntry.write(delegate, b, off, len);
+    if (currentData != null &&
+        (currentData.size() + len > MAX_HELD_ENTRY_SIZE ||
+            !memoryBudget.tryAcquire(memory(len)))) {
+      writePendingEntries(/* all */ true);
+      startWritingCurrentEntry();
+    }
+
+    if (currentData != null) {
+      currentData.write(b, off, len);
+    } else {
+      currentOffset += currentEntry.write(delegate, b, off, len);
+    }
   }
 
   @Override
@@ -72,10 +117,37 @@ class AppendingZipOutputStream extends CustomZipOutputStream {
       throw new ZipException("duplicate entry: " + entry.getName());
     }
 
-    currentEntry = new EntryAccounting(clock, entry, currentOffset);
+    // The offset is set once the entry is written out.
+    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
     entries.add(currentEntry);
+    currentData = new EntryBuffer();
+  }
+
+  @Override
+  protected void actuallyPutRawEntry(RawZipFile zip, RawZipFile.Entry entry) throws IOException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
+      throw new ZipException("duplicate entry: " + entry.getName());
+    }
+
+    writePendingEntries(/* all */ true);
+    EntryAccounting accounting = EntryAccounting.forRawEntry(clock, entry, currentOffset);
+    entries.add(accounting);
+    currentOffset += accounting.writeLocalFileHeader(delegate);
+    zip.transferData(entry, Channels.newChannel(delegate));
+    currentOffset += entry.getCompressedSize();
+    currentOffset += accounting.writeRawDataDescriptor(delegate);
+  }
 
+  /** Writes the current entry, and the data held for it so far, straight to the delegate. */
+  private void startWritingCurrentEntry() throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    Preconditions.checkNotNull(currentData);
+    currentEntry.setOffset(currentOffset);
     currentOffset += currentEntry.writeLocalFileHeader(delegate);
+    EntryBuffer data = currentData;
+    currentData = null;
+    currentOffset += currentEntry.write(delegate, data.getBuffer(), 0, data.size());
+    memoryBudget.release(memory(data.size()));
   }
 
   @Override
@@ -84,17 +156,93 @@ class AppendingZipOutputStream extends CustomZipOutputStream {
       return; // no-op
     }
 
-    currentOffset += currentEntry.close(delegate);
+    if (currentData == null) {
+      currentOffset += currentEntry.close(delegate);
+    } else {
+      final EntryAccounting entry = currentEntry;
+      final EntryBuffer data = currentData;
+      ListenableFuture<EntryBuffer> bytes = executorService.submit(
+          new Callable<EntryBuffer>() {
+            @Override
+            public EntryBuffer call() throws IOException {
+              EntryBuffer bytes = new EntryBuffer();
+              entry.writeEntry(bytes, data.getBuffer(), data.size());
+              return bytes;
+            }
+          });
+      pendingEntries.add(new PendingEntry(entry, bytes, data.size()));
+      writePendingEntries(/* all */ false);
+    }
 
     currentEntry = null;
+    currentData = null;
+  }
+
+  /**
+   * Writes out the pending entries which have been deflated, in order, waiting for them to be
+   * deflated if {@code all} of them are to be written.
+   */
+  private void writePendingEntries(boolean all) throws IOException {
+    while (!pendingEntries.isEmpty() && (all || pendingEntries.peek().bytes.isDone())) {
+      PendingEntry pending = pendingEntries.poll();
+
+      EntryBuffer bytes;
+      try {
+        bytes = Uninterruptibles.getUninterruptibly(pending.bytes);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      } finally {
+        memoryBudget.release(memory(pending.size));
+      }
+      pending.entry.setOffset(currentOffset);
+      bytes.writeTo(delegate);
+      currentOffset += bytes.size();
+    }
+  }
+
+  private static ResourceAmounts memory(long bytes) {
+    return ResourceAmounts.of(0, bytes);
   }
 
   @Override
   protected void actuallyClose() throws IOException {
-    closeEntry();
+    try {
+      closeEntry();
+      writePendingEntries(/* all */ true);
+
+      new CentralDirectory().writeCentralDirectory(delegate, currentOffset, entries);
+    } finally {
+      // After a failure, give back the memory of the entries that were never written out.
+      if (currentData != null) {
+        memoryBudget.release(memory(currentData.size()));
+        currentData = null;
+      }
+      for (PendingEntry pending : pendingEntries) {
+        memoryBudget.release(memory(pending.size));
+      }
+      pendingEntries.clear();
+      delegate.close();
+    }
+  }
+
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    private final ListenableFuture<EntryBuffer> bytes;
+    /** The size of the entry's data, which is charged to the memory budget. */
+    private final long size;
 
-    new CentralDirectory().writeCentralDirectory(delegate, currentOffset, entries);
+    public PendingEntry(EntryAccounting entry, ListenableFuture<EntryBuffer> bytes, long size) {
+      this.entry = entry;
+      this.bytes = bytes;
+      this.size = size;
+    }
+  }
 
-    delegate.close();
+  /** Lets the data of an entry be deflated and written without copying it out first. */
+  private static class EntryBuffer extends ByteArrayOutputStream {
+    public byte[] getBuffer() {
+      return buf;
+    }
   }
 }
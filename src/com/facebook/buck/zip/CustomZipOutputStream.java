@@ -17,9 +17,12 @@
 package com.facebook.buck.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
@@ -56,6 +59,41 @@ public abstract class CustomZipOutputStream extends OutputStream {
    */
   protected abstract void actuallyPutNextEntry(ZipEntry entry) throws IOException;
 
+  /**
+   * Puts {@code entry} of {@code zip} into this zip as it is stored there, without inflating and
+   * deflating its data again where the stream supports that. The entry is closed once it has been
+   * put.
+   */
+  public final void putRawEntry(RawZipFile zip, RawZipFile.Entry entry) throws IOException {
+    Preconditions.checkState(state != State.CLOSED, "Stream has been closed.");
+
+    state = State.OPEN;
+    closeEntry();
+    actuallyPutRawEntry(zip, entry);
+  }
+
+  /**
+   * Called by {@link #putRawEntry(RawZipFile, RawZipFile.Entry)} once there's no current entry
+   * open. By default, this puts the entry as any other, copying its inflated data.
+   */
+  protected void actuallyPutRawEntry(RawZipFile zip, RawZipFile.Entry entry) throws IOException {
+    CustomZipEntry zipEntry = new CustomZipEntry(entry.getName());
+    zipEntry.setTime(entry.getTime());
+    zipEntry.setExternalAttributes(entry.getExternalAttributes());
+    if (entry.getMethod() == ZipEntry.STORED) {
+      zipEntry.setCompressionLevel(Deflater.NO_COMPRESSION);
+      zipEntry.setCrc(entry.getCrc());
+      zipEntry.setSize(entry.getSize());
+      zipEntry.setCompressedSize(entry.getCompressedSize());
+    }
+
+    putNextEntry(zipEntry);
+    try (InputStream data = zip.getInputStream(entry)) {
+      ByteStreams.copy(data, this);
+    }
+    closeEntry();
+  }
+
   public final void closeEntry() throws IOException {
     Preconditions.checkState(state != State.CLOSED, "Stream has been closed");
     if (!entryOpen) {
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.google.common.collect.Maps;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps the {@link Deflater}s of finished zip entries for later entries, rather than allocating
+ * the native state of a new one for every entry. Deflaters are only reused at the level they were
+ * created with, so a reused deflater produces exactly the bytes a new one would.
+ */
+class DeflaterPool {
+
+  /** Enough for every thread deflating entries at once, at a couple of levels. */
+  private static final int MAX_IDLE_DEFLATERS = 4 * Runtime.getRuntime().availableProcessors();
+
+  private static final ConcurrentMap<Integer, Queue<Deflater>> IDLE = Maps.newConcurrentMap();
+  private static final AtomicInteger idleDeflaters = new AtomicInteger();
+
+  private DeflaterPool() {
+    // Utility class.
+  }
+
+  /** @return a deflater writing raw deflate data, as zip entries hold, at {@code level}. */
+  public static Deflater acquire(int level) {
+    Deflater deflater = getIdle(level).poll();
+    if (deflater == null) {
+      return new Deflater(level, /* nowrap */ true);
+    }
+    idleDeflaters.decrementAndGet();
+    return deflater;
+  }
+
+  /** Gives back a deflater from {@link #acquire(int)} that was created at {@code level}. */
+  public static void release(int level, Deflater deflater) {
+    if (idleDeflaters.incrementAndGet() > MAX_IDLE_DEFLATERS) {
+      idleDeflaters.decrementAndGet();
+      deflater.end();
+      return;
+    }
+    deflater.reset();
+    getIdle(level).add(deflater);
+  }
+
+  private static Queue<Deflater> getIdle(int level) {
+    Queue<Deflater> idle = IDLE.get(level);
+    if (idle == null) {
+      Queue<Deflater> created = new ConcurrentLinkedQueue<>();
+      idle = IDLE.putIfAbsent(level, created);
+      if (idle == null) {
+        idle = created;
+      }
+    }
+    return idle;
+  }
+}
@@ -25,23 +25,29 @@ import com.google.common.hash.Hashing;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 
+import javax.annotation.Nullable;
+
 /**
  * A wrapper containing the {@link ZipEntry} and additional book keeping information required to
  * write the entry to a zip file.
  */
 class EntryAccounting {
   private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+  /** The bits of the general purpose flags for the compression option and data descriptor. */
+  private static final int RAW_FLAGS = (1 << 1) | (1 << 2) | DATA_DESCRIPTOR_FLAG;
   private static final int UTF8_NAMES_FLAG = 1 << 11;
   private static final int ARBITRARY_SIZE = 1024;
   private static final long DOS_EPOCH_START = (1 << 21) | (1 << 16);
 
   private final ZipEntry entry;
   private final Method method;
+  /** Whether the data of the entry is copied as it was stored in another zip. */
+  private final boolean isRaw;
+  @Nullable private Long dosTime;
   private Hasher crc = Hashing.crc32().newHasher();
   private long offset;
   private long externalAttributes = 0;
@@ -65,24 +71,53 @@ class EntryAccounting {
    *  Defaults to indicate that names are stored as UTF8.
    */
   private int flags = UTF8_NAMES_FLAG;
-  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  @Nullable private Deflater deflater;
   private final byte[] buffer = new byte[ARBITRARY_SIZE];
 
   public EntryAccounting(Clock clock, ZipEntry entry, long currentOffset) {
+    this(clock, entry, currentOffset, /* isRaw */ false);
+  }
+
+  private EntryAccounting(Clock clock, ZipEntry entry, long currentOffset, boolean isRaw) {
     this.entry = entry;
     this.method = Method.detect(entry.getMethod());
     this.offset = currentOffset;
+    this.isRaw = isRaw;
 
     if (entry.getTime() == -1) {
       entry.setTime(clock.currentTimeMillis());
     }
 
     if (entry instanceof CustomZipEntry) {
-      deflater.setLevel(((CustomZipEntry) entry).getCompressionLevel());
+      compressionLevel = ((CustomZipEntry) entry).getCompressionLevel();
       externalAttributes = ((CustomZipEntry) entry).getExternalAttributes();
     }
   }
 
+  /**
+   * Accounts for an entry of another zip which is copied as it is stored there. Its local file
+   * header is written by {@link #writeLocalFileHeader(OutputStream)} and its data descriptor, if it
+   * had one, by {@link #writeRawDataDescriptor(OutputStream)}, while the caller copies its data.
+   */
+  public static EntryAccounting forRawEntry(
+      Clock clock,
+      RawZipFile.Entry raw,
+      long currentOffset) {
+    ZipEntry entry = new ZipEntry(raw.getName());
+    entry.setTime(raw.getTime());
+    entry.setMethod(raw.getMethod());
+    entry.setCrc(raw.getCrc());
+    entry.setSize(raw.getSize());
+    entry.setCompressedSize(raw.getCompressedSize());
+    EntryAccounting accounting =
+        new EntryAccounting(clock, entry, currentOffset, /* isRaw */ true);
+    accounting.dosTime = raw.getDosTime();
+    accounting.flags |= raw.getFlags() & RAW_FLAGS;
+    accounting.externalAttributes = raw.getExternalAttributes();
+    return accounting;
+  }
+
   public void updateCrc(byte[] b, int off, int len) {
     crc = crc.putBytes(b, off, len);
   }
@@ -91,6 +126,10 @@ class EntryAccounting {
    * @return The time of the entry in DOS format.
    */
   public long getTime() {
+    if (dosTime != null) {
+      return dosTime;
+    }
+
     // It'd be nice to use a Calendar for this, but (and here's the fun bit), that's a Really Bad
     // Idea since the calendar's internal time representation keeps ticking once set. Instead, do
     // this long way.
@@ -162,7 +201,7 @@ class EntryAccounting {
   }
 
   public long writeLocalFileHeader(OutputStream out) throws IOException {
-    if (method == Method.DEFLATE) {
+    if (method == Method.DEFLATE && !isRaw) {
       flags |= DATA_DESCRIPTOR_FLAG;
 
       // See http://www.pkware.com/documents/casestudies/APPNOTE.TXT (section 4.4.4)
@@ -199,8 +238,12 @@ class EntryAccounting {
       ByteIo.writeShort(stream, getCompressionMethod());
       ByteIo.writeInt(stream, getTime());
 
-      // In deflate mode, we don't know the size or CRC of the data.
-      if (isDeflated()) {
+      // In deflate mode, we don't know the size or CRC of the data, unless it was deflated already.
+      if (isRaw && !hasDataDescriptor()) {
+        ByteIo.writeInt(stream, entry.getCrc());
+        ByteIo.writeInt(stream, entry.getCompressedSize());
+        ByteIo.writeInt(stream, entry.getSize());
+      } else if (isDeflated()) {
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
@@ -221,8 +264,24 @@ class EntryAccounting {
     }
   }
 
+  private boolean hasDataDescriptor() {
+    return (flags & DATA_DESCRIPTOR_FLAG) != 0;
+  }
+
+  /**
+   * Writes the data descriptor of an entry copied as it was stored in another zip, if it had one.
+   *
+   * @return the number of bytes written.
+   */
+  public long writeRawDataDescriptor(OutputStream out) throws IOException {
+    Preconditions.checkState(isRaw);
+    byte[] bytes = close();
+    out.write(bytes);
+    return bytes.length;
+  }
+
   private byte[] close() throws IOException {
-    if (!isDeflated()) {
+    if (!hasDataDescriptor()) {
       return new byte[0];
     }
 
@@ -236,10 +295,17 @@ class EntryAccounting {
     }
   }
 
-  private int deflate(OutputStream out) throws IOException {
+  private Deflater getDeflater() {
+    if (deflater == null) {
+      deflater = DeflaterPool.acquire(compressionLevel);
+    }
+    return deflater;
+  }
+
+  private int deflate(Deflater deflater, OutputStream out) throws IOException {
     int written = deflater.deflate(buffer, 0, buffer.length);
     if (written > 0) {
-      out.write(Arrays.copyOf(buffer, written));
+      out.write(buffer, 0, written);
     }
     return written;
   }
@@ -256,32 +322,46 @@ class EntryAccounting {
       return 0;
     }
 
+    Deflater deflater = getDeflater();
     Preconditions.checkState(!deflater.finished());
     deflater.setInput(b, off, len);
 
     while (!deflater.needsInput()) {
-      deflate(out);
+      deflate(deflater, out);
     }
     return 0; // We calculate how many bytes we write when closing deflated entries.
   }
 
+  /**
+   * Writes the whole entry: its local file header, its {@code data}, compressed if the entry is
+   * deflated, and its data descriptor, if it has one. The offset of the entry is left for the
+   * caller to set, once it knows where the entry will go.
+   *
+   * @param length how many bytes at the start of {@code data} are the entry's.
+   */
+  public void writeEntry(OutputStream out, byte[] data, int length) throws IOException {
+    writeLocalFileHeader(out);
+    write(out, data, 0, length);
+    close(out);
+  }
+
   public long close(OutputStream out) throws IOException {
     if (!isDeflated()) {
-      // If we're not doing deflation, end the deflater to free native resources.
-      deflater.end();
       // Nothing left to do.
       return 0;
     }
 
+    Deflater deflater = getDeflater();
     deflater.finish();
     while (!deflater.finished()) {
-      deflate(out);
+      deflate(deflater, out);
     }
     entry.setSize(deflater.getBytesRead());
     entry.setCompressedSize(deflater.getBytesWritten());
     calculateCrc();
 
-    deflater.end();
+    DeflaterPool.release(compressionLevel, deflater);
+    this.deflater = null;
 
     byte[] closeBytes = close();
     out.write(closeBytes);
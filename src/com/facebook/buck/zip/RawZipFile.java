@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file whose entries can be copied to a {@link CustomZipOutputStream} as they are stored,
+ * without inflating and deflating them again. The entries are read from the central directory of
+ * the zip, and their data is transferred straight from the file.
+ * <p>
+ * Zips which this doesn't support, such as zip64 or encrypted ones, fail to open with a
+ * {@link ZipException}, so callers can fall back to {@link java.util.zip.ZipFile}.
+ */
+public class RawZipFile implements Closeable {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int ENCRYPTED_FLAG = 1;
+
+  private final FileChannel channel;
+  private final ImmutableList<Entry> entries;
+
+  private RawZipFile(FileChannel channel, ImmutableList<Entry> entries) {
+    this.channel = channel;
+    this.entries = entries;
+  }
+
+  public static RawZipFile open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new RawZipFile(channel, readCentralDirectory(channel));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** @return the entries of the zip, in the order of its central directory. */
+  public ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /** @return the inflated contents of {@code entry}. */
+  public InputStream getInputStream(Entry entry) throws IOException {
+    InputStream data = new EntryDataInputStream(getDataOffset(entry), entry.compressedSize);
+    if (entry.method == ZipEntry.STORED) {
+      return data;
+    }
+    return new InflaterInputStream(data, new Inflater(/* nowrap */ true));
+  }
+
+  /** Transfers the stored, possibly compressed, data of {@code entry} to {@code target}. */
+  void transferData(Entry entry, WritableByteChannel target) throws IOException {
+    long position = getDataOffset(entry);
+    long end = position + entry.compressedSize;
+    while (position < end) {
+      long transferred = channel.transferTo(position, end - position, target);
+      if (transferred <= 0) {
+        throw new EOFException("Unexpected end of zip data for " + entry.name);
+      }
+      position += transferred;
+    }
+  }
+
+  private long getDataOffset(Entry entry) throws IOException {
+    ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != ZipEntry.LOCSIG) {
+      throw new ZipException("Bad local header for " + entry.name);
+    }
+    int nameLength = header.getShort(26) & 0xffff;
+    int extraLength = header.getShort(28) & 0xffff;
+    return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static ImmutableList<Entry> readCentralDirectory(FileChannel channel)
+      throws IOException {
+    long size = channel.size();
+    int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = read(channel, size - tailSize, tailSize);
+
+    int end = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == ZipEntry.ENDSIG) {
+        end = i;
+        break;
+      }
+    }
+    if (end == -1) {
+      throw new ZipException("No end of central directory found");
+    }
+
+    int entryCount = tail.getShort(end + 10) & 0xffff;
+    long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+    long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+    if (entryCount == 0xffff || directoryOffset == 0xffffffffL) {
+      throw new ZipException("zip64 files are not supported");
+    }
+
+    ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    int position = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (directory.getInt(position) != ZipEntry.CENSIG) {
+        throw new ZipException("Bad central directory header");
+      }
+      int flags = directory.getShort(position + 8) & 0xffff;
+      int method = directory.getShort(position + 10) & 0xffff;
+      if ((flags & ENCRYPTED_FLAG) != 0) {
+        throw new ZipException("Encrypted entries are not supported");
+      }
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new ZipException("Unsupported compression method: " + method);
+      }
+
+      int nameLength = directory.getShort(position + 28) & 0xffff;
+      int extraLength = directory.getShort(position + 30) & 0xffff;
+      int commentLength = directory.getShort(position + 32) & 0xffff;
+      byte[] name = new byte[nameLength];
+      directory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+      directory.get(name);
+
+      entries.add(
+          new Entry(
+              new String(name, Charsets.UTF_8),
+              flags,
+              method,
+              directory.getInt(position + 12) & 0xffffffffL,
+              directory.getInt(position + 16) & 0xffffffffL,
+              directory.getInt(position + 20) & 0xffffffffL,
+              directory.getInt(position + 24) & 0xffffffffL,
+              directory.getInt(position + 38) & 0xffffffffL,
+              directory.getInt(position + 42) & 0xffffffffL));
+      position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries.build();
+  }
+
+  private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of zip file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Reads the stored data of an entry, leaving the channel open when closed. */
+  private class EntryDataInputStream extends InputStream {
+    private long position;
+    private final long end;
+
+    public EntryDataInputStream(long position, long size) {
+      this.position = position;
+      this.end = position + size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int toRead = (int) Math.min(len, end - position);
+      int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of zip data");
+      }
+      position += read;
+      return read;
+    }
+  }
+
+  /** An entry of a {@link RawZipFile}, as it is stored. */
+  public static class Entry {
+    private final String name;
+    private final int flags;
+    private final int method;
+    private final long dosTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long externalAttributes;
+    private final long localHeaderOffset;
+
+    private Entry(
+        String name,
+        int flags,
+        int method,
+        long dosTime,
+        long crc,
+        long compressedSize,
+        long size,
+        long externalAttributes,
+        long localHeaderOffset) {
+      this.name = name;
+      this.flags = flags;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.externalAttributes = externalAttributes;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** @return the general purpose bit flags of the entry. */
+    public int getFlags() {
+      return flags;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    /** @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+    public int getMethod() {
+      return method;
+    }
+
+    /** @return the modification time in DOS format. */
+    public long getDosTime() {
+      return dosTime;
+    }
+
+    /** @return the modification time in milliseconds since the epoch. */
+    public long getTime() {
+      Calendar instance = Calendar.getInstance();
+      instance.clear();
+      instance.set(
+          (int) ((dosTime >> 25) & 0x7f) + 1980,
+          (int) ((dosTime >> 21) & 0x0f) - 1,
+          (int) ((dosTime >> 16) & 0x1f),
+          (int) ((dosTime >> 11) & 0x1f),
+          (int) ((dosTime >> 5) & 0x3f),
+          (int) ((dosTime << 1) & 0x3e));
+      return instance.getTimeInMillis();
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getExternalAttributes() {
+      return externalAttributes;
+    }
+  }
+}
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -84,6 +85,46 @@ public class RepackZipEntriesStep implements Step {
     ProjectFilesystem filesystem = context.getProjectFilesystem();
     File inputFile = filesystem.getFileForRelativePath(inputPath);
     File outputFile = filesystem.getFileForRelativePath(outputPath);
+    try {
+      RawZipFile rawZip;
+      try {
+        rawZip = RawZipFile.open(inputFile.toPath());
+      } catch (ZipException e) {
+        // Not a zip whose entries we can copy as they are, so inflate and deflate them all.
+        repackAllEntries(inputFile, outputFile);
+        return 0;
+      }
+
+      // Only the entries to repack are inflated and deflated again, the rest are copied as they
+      // are stored.
+      try (
+          RawZipFile in = rawZip;
+          CustomZipOutputStream out = ZipOutputStreams.newOutputStream(outputFile)
+      ) {
+        for (RawZipFile.Entry entry : in.getEntries()) {
+          if (!entries.contains(entry.getName())) {
+            out.putRawEntry(in, entry);
+            continue;
+          }
+
+          CustomZipEntry customEntry = new CustomZipEntry(entry.getName());
+          customEntry.setTime(entry.getTime());
+          customEntry.setExternalAttributes(entry.getExternalAttributes());
+          customEntry.setCompressionLevel(compressionLevel);
+          try (InputStream data = in.getInputStream(entry)) {
+            putEntry(out, customEntry, data);
+          }
+        }
+      }
+
+      return 0;
+    } catch (IOException e) {
+      context.logError(e, "Unable to repack zip");
+      return 1;
+    }
+  }
+
+  private void repackAllEntries(File inputFile, File outputFile) throws IOException {
     try (
         ZipInputStream in =
             new ZipInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
@@ -94,32 +135,33 @@ public class RepackZipEntriesStep implements Step {
         if (entries.contains(customEntry.getName())) {
           customEntry.setCompressionLevel(compressionLevel);
         }
-
-        InputStream toUse;
-        // If we're using STORED files, we must pre-calculate the CRC.
-        if (customEntry.getMethod() == ZipEntry.STORED) {
-          try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ByteStreams.copy(in, bos);
-            byte[] bytes = bos.toByteArray();
-            customEntry.setCrc(Hashing.crc32().hashBytes(bytes).padToLong());
-            customEntry.setSize(bytes.length);
-            customEntry.setCompressedSize(bytes.length);
-            toUse = new ByteArrayInputStream(bytes);
-          }
-        } else {
-          toUse = in;
-        }
-
-        out.putNextEntry(customEntry);
-        ByteStreams.copy(toUse, out);
-        out.closeEntry();
+        putEntry(out, customEntry, in);
       }
+    }
+  }
 
-      return 0;
-    } catch (IOException e) {
-      context.logError(e, "Unable to repack zip");
-      return 1;
+  private static void putEntry(
+      CustomZipOutputStream out,
+      CustomZipEntry customEntry,
+      InputStream in) throws IOException {
+    InputStream toUse;
+    // If we're using STORED files, we must pre-calculate the CRC.
+    if (customEntry.getMethod() == ZipEntry.STORED) {
+      try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+        ByteStreams.copy(in, bos);
+        byte[] bytes = bos.toByteArray();
+        customEntry.setCrc(Hashing.crc32().hashBytes(bytes).padToLong());
+        customEntry.setSize(bytes.length);
+        customEntry.setCompressedSize(bytes.length);
+        toUse = new ByteArrayInputStream(bytes);
+      }
+    } else {
+      toUse = in;
     }
+
+    out.putNextEntry(customEntry);
+    ByteStreams.copy(toUse, out);
+    out.closeEntry();
   }
 
   @Override
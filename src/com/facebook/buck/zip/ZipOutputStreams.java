@@ -19,6 +19,11 @@ package com.facebook.buck.zip;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceBudget;
+import com.facebook.buck.util.concurrent.SharedExecutors;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -28,6 +33,17 @@ import java.io.OutputStream;
 
 public class ZipOutputStreams {
 
+  /** Deflates the entries of zips on several threads. */
+  private static final Supplier<ListeningExecutorService> DEFLATE_EXECUTOR_SERVICE =
+      SharedExecutors.perProcessor("zip-deflate-%d");
+
+  /**
+   * How much entry data every zip being written may hold in memory between them, waiting to be
+   * deflated and written out.
+   */
+  private static final ResourceBudget DEFLATE_MEMORY_BUDGET =
+      new ResourceBudget(ResourceAmounts.of(0, 64 * 1024 * 1024));
+
   private ZipOutputStreams() {
     // factory class
   }
@@ -79,6 +95,22 @@ public class ZipOutputStreams {
    * @param mode How to handle duplicate entries.
    */
   public static CustomZipOutputStream newOutputStream(OutputStream out, HandleDuplicates mode) {
+    return newOutputStream(out, mode, DEFLATE_EXECUTOR_SERVICE.get());
+  }
+
+  /**
+   * Create a new {@link CustomZipOutputStream} that handles duplicate entries in the way dictated
+   * by {@code mode}, and deflates entries on {@code executorService} where it can. The zip is the
+   * same whichever executor deflates its entries.
+   *
+   * @param out The output stream to write to.
+   * @param mode How to handle duplicate entries.
+   * @param executorService The executor to deflate entries on.
+   */
+  public static CustomZipOutputStream newOutputStream(
+      OutputStream out,
+      HandleDuplicates mode,
+      ListeningExecutorService executorService) {
     Clock clock = new DefaultClock();
 
     switch (mode) {
@@ -86,7 +118,9 @@ public class ZipOutputStreams {
       case THROW_EXCEPTION:
         return new AppendingZipOutputStream(clock,
             out,
-            mode == HandleDuplicates.THROW_EXCEPTION);
+            mode == HandleDuplicates.THROW_EXCEPTION,
+            executorService,
+            DEFLATE_MEMORY_BUDGET);
 
       case OVERWRITE_EXISTING:
         return new OverwritingZipOutputStream(clock, out);
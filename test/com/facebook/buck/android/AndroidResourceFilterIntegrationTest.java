@@ -21,6 +21,8 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.DirArtifactCache;
+import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.testutil.integration.BuckBuildLog;
 import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
@@ -186,7 +188,9 @@ public class AndroidResourceFilterIntegrationTest {
     workspace.runBuckBuild("//apps/sample:app_comp_str").assertSuccess();
     BuckBuildLog buildLog = workspace.getBuildLog();
     Sha1HashCode androidBinaryRuleKey = buildLog.getRuleKey("//apps/sample:app_comp_str");
-    File cachedFile = workspace.getFile("buck-cache/" + androidBinaryRuleKey.getHash());
+    File cachedFile = DirArtifactCache.getPathToArtifact(
+        workspace.getPath("buck-cache"),
+        new RuleKey(androidBinaryRuleKey.getHash())).toFile();
     assertTrue(cachedFile.delete());
 
     workspace.runBuckCommand("clean").assertSuccess();
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+public class DexCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void keysDependOnTheInputsDxAndFormatButNotTheOutputName() {
+    String key = DexCache.getKey("inputs", "dx --no-optimize", Paths.get("a/foo.dex.jar"));
+    assertEquals(key, DexCache.getKey("inputs", "dx --no-optimize", Paths.get("b/bar.dex.jar")));
+    assertNotEquals(key, DexCache.getKey("other", "dx --no-optimize", Paths.get("a/foo.dex.jar")));
+    assertNotEquals(key, DexCache.getKey("inputs", "dx", Paths.get("a/foo.dex.jar")));
+    assertNotEquals(
+        key,
+        DexCache.getKey("inputs", "dx --no-optimize", Paths.get("a/foo.dex.jar.xz")));
+  }
+
+  @Test
+  public void storedFilesCanBeFetchedByAnotherRule() throws Exception {
+    DexCache cache = new DexCache(tmp.getRoot().toPath().resolve("cache"), Long.MAX_VALUE);
+    Path dex = write("app/foo.dex.jar", "dex");
+    Path meta = write("app/foo.dex.jar.meta", "meta");
+    String key = DexCache.getKey("inputs", "dx", dex);
+
+    Path otherDex = tmp.getRoot().toPath().resolve("other/bar.dex.jar");
+    Path otherMeta = tmp.getRoot().toPath().resolve("other/bar.dex.jar.meta");
+    assertFalse(cache.fetch(key, ImmutableList.of(otherDex, otherMeta)));
+
+    cache.store(key, ImmutableList.of(dex, meta));
+    assertTrue(cache.fetch(key, ImmutableList.of(otherDex, otherMeta)));
+    assertArrayEquals(Files.readAllBytes(dex), Files.readAllBytes(otherDex));
+    assertArrayEquals(Files.readAllBytes(meta), Files.readAllBytes(otherMeta));
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+    Path cacheDir = tmp.getRoot().toPath().resolve("cache");
+    DexCache cache = new DexCache(cacheDir, /* maxSizeBytes */ 40);
+    Path output = tmp.getRoot().toPath().resolve("out/foo.dex.jar");
+
+    cache.store("aa01", ImmutableList.of(write("foo.dex.jar", "fourteen bytes")));
+    Files.setLastModifiedTime(cacheDir.resolve("aa").resolve("aa01"), FileTime.fromMillis(1000));
+    cache.store("bb02", ImmutableList.of(write("foo.dex.jar", "fourteen bytes")));
+    Files.setLastModifiedTime(cacheDir.resolve("bb").resolve("bb02"), FileTime.fromMillis(2000));
+
+    // Using the first entry makes the second one the least recently used. A third entry doesn't
+    // fit, and evicting one entry brings the cache down to three quarters of its maximum size.
+    assertTrue(cache.fetch("aa01", ImmutableList.of(output)));
+    cache.store("cc03", ImmutableList.of(write("foo.dex.jar", "fourteen bytes")));
+
+    assertTrue(cache.fetch("aa01", ImmutableList.of(output)));
+    assertFalse(cache.fetch("bb02", ImmutableList.of(output)));
+    assertTrue(cache.fetch("cc03", ImmutableList.of(output)));
+  }
+
+  private Path write(String path, String contents) throws Exception {
+    Path file = tmp.getRoot().toPath().resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, contents.getBytes("UTF-8"));
+    return file;
+  }
+}
@@ -88,12 +88,10 @@ public class DummyRDotJavaTest {
     FakeBuildableContext buildableContext = new FakeBuildableContext();
     List<Step> steps = dummyRDotJava.getBuildSteps(EasyMock.createMock(BuildContext.class),
         buildableContext);
-    assertEquals("DummyRDotJava returns an incorrect number of Steps.", 6, steps.size());
+    assertEquals("DummyRDotJava returns an incorrect number of Steps.", 5, steps.size());
 
     String rDotJavaSrcFolder = Paths.get("buck-out/bin/java/base/__rule_rdotjava_src__").toString();
     String rDotJavaBinFolder = Paths.get("buck-out/bin/java/base/__rule_rdotjava_bin__").toString();
-    String rDotJavaAbiFolder = Paths.get(
-        "buck-out/gen/java/base/__rule_dummyrdotjava_abi__").toString();
 
     List<String> expectedStepDescriptions = Lists.newArrayList(
         makeCleanDirDescription(rDotJavaSrcFolder),
@@ -102,7 +100,6 @@ public class DummyRDotJavaTest {
                 (AndroidResource) resourceRule1,
                 (AndroidResource) resourceRule2)),
         makeCleanDirDescription(rDotJavaBinFolder),
-        makeCleanDirDescription(rDotJavaAbiFolder),
         javacInMemoryDescription(rDotJavaBinFolder, pathResolver),
         String.format("calculate_abi %s", rDotJavaBinFolder));
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.event.FakeBuckEventListener;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.google.common.base.Optional;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class DxServiceTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void dxWithoutAJarIsNotRunInProcess() throws Exception {
+    Path dx = tmp.newFile("dx").toPath();
+    DxService service = new DxService(ResourceAmounts.UNLIMITED);
+    assertFalse(service.getDexer(dx).isPresent());
+  }
+
+  @Test
+  public void eachDxJarIsLoadedOnceByItsOwnClassLoader() throws Exception {
+    Path dir = tmp.newFolder("build-tools").toPath();
+    Path dx = Files.createFile(dir.resolve("dx"));
+    Path jar = Files.createDirectory(dir.resolve("lib")).resolve("dx.jar");
+    writeDxJar(jar);
+
+    DxService service = new DxService(ResourceAmounts.UNLIMITED);
+    Optional<DxService.Dexer> dexer = service.getDexer(dx);
+    assertTrue(dexer.isPresent());
+    assertEquals(jar.toString(), dexer.get().getVersion());
+    assertNotEquals(service.getBundledDexer(), dexer.get());
+    assertSame(dexer.get(), service.getDexer(dx).get());
+
+    int exitCode = service.run(
+        dexer.get(),
+        tmp.getRoot().toPath().resolve("classes.dex"),
+        ImmutableList.<String>of(),
+        /* inputBytes */ 0,
+        new PrintStream(new ByteArrayOutputStream()),
+        new PrintStream(new ByteArrayOutputStream()),
+        BuckEventBusFactory.newInstance());
+    assertEquals(42, exitCode);
+  }
+
+  @Test
+  public void theClassLoaderOfAReplacedDxJarIsClosed() throws Exception {
+    Path dir = tmp.newFolder("build-tools").toPath();
+    Path dx = Files.createFile(dir.resolve("dx"));
+    Path jar = Files.createDirectory(dir.resolve("lib")).resolve("dx.jar");
+    writeDxJar(jar);
+
+    DxService service = new DxService(ResourceAmounts.UNLIMITED);
+    DxService.Dexer original = service.getDexer(dx).get();
+
+    writeDxJar(jar);
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+    DxService.Dexer replacement = service.getDexer(dx).get();
+    assertNotEquals(original, replacement);
+    assertTrue(original.isClosed());
+    assertFalse(replacement.isClosed());
+
+    // A step which looked up the original before it was replaced runs the replacement instead.
+    int exitCode = service.run(
+        original,
+        tmp.getRoot().toPath().resolve("classes.dex"),
+        ImmutableList.<String>of(),
+        /* inputBytes */ 0,
+        new PrintStream(new ByteArrayOutputStream()),
+        new PrintStream(new ByteArrayOutputStream()),
+        BuckEventBusFactory.newInstance());
+    assertEquals(42, exitCode);
+    assertFalse(replacement.isClosed());
+  }
+
+  @Test
+  public void theHashOfDxChangesWithTheContentsOfItsJar() throws Exception {
+    Path dir = tmp.newFolder("build-tools").toPath();
+    Path dx = Files.createFile(dir.resolve("dx"));
+    Path jar = Files.createDirectory(dir.resolve("lib")).resolve("dx.jar");
+    Files.write(jar, new byte[] {1, 2, 3});
+
+    DxService service = new DxService(ResourceAmounts.UNLIMITED);
+    String original = service.hashDx(dx);
+    assertEquals(original, service.hashDx(dx));
+
+    // Replaced in place by a jar of the same size, as an SDK update might.
+    Files.write(jar, new byte[] {4, 5, 6});
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+    assertNotEquals(original, service.hashDx(dx));
+  }
+
+  @Test
+  public void runningDxPostsItsStats() throws Exception {
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    FakeBuckEventListener listener = new FakeBuckEventListener();
+    eventBus.register(listener);
+    DxService service = new DxService(ResourceAmounts.of(Integer.MAX_VALUE, 1));
+    Path output = tmp.getRoot().toPath().resolve("classes.dex");
+
+    // There is nothing to dex, so dx fails, but it still ran.
+    int exitCode = service.run(
+        service.getBundledDexer(),
+        output,
+        ImmutableList.of("--output", output.toString(), Paths.get("missing.jar").toString()),
+        /* inputBytes */ 1024,
+        new PrintStream(new ByteArrayOutputStream()),
+        new PrintStream(new ByteArrayOutputStream()),
+        eventBus);
+    assertNotEquals(0, exitCode);
+
+    List<DxEvent> events = FluentIterable.from(listener.getEvents())
+        .filter(DxEvent.class)
+        .toList();
+    assertEquals(2, events.size());
+    assertTrue(events.get(0) instanceof DxEvent.Started);
+    DxEvent.Finished finished = (DxEvent.Finished) events.get(1);
+    assertTrue(finished.isRelatedTo(events.get(0)));
+    assertEquals(DxService.BUNDLED_VERSION, finished.getDxVersion());
+    assertTrue(finished.isInProcess());
+    assertEquals(1024, finished.getInputBytes());
+    assertEquals(exitCode, finished.getExitCode());
+  }
+
+  private static void writeDxJar(Path jar) throws IOException {
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+      out.putNextEntry(new JarEntry("com/android/dx/command/dexer/Main.class"));
+      out.write(createMainClass());
+    }
+  }
+
+  /** A dexer {@code Main} which can be run in-process and always exits with 42. */
+  private static byte[] createMainClass() {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(
+        Opcodes.V1_6,
+        Opcodes.ACC_PUBLIC,
+        "com/android/dx/command/dexer/Main",
+        null,
+        "java/lang/Object",
+        null);
+    MethodVisitor constructor =
+        writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitMethodInsn(
+        Opcodes.INVOKESPECIAL,
+        "java/lang/Object",
+        "<init>",
+        "()V",
+        false);
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+    MethodVisitor run = writer.visitMethod(
+        Opcodes.ACC_PUBLIC,
+        "run",
+        "([Ljava/lang/String;Ljava/io/PrintStream;Ljava/io/PrintStream;)I",
+        null,
+        null);
+    run.visitCode();
+    run.visitIntInsn(Opcodes.BIPUSH, 42);
+    run.visitInsn(Opcodes.IRETURN);
+    run.visitMaxs(0, 0);
+    run.visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  @Test
+  public void heapEstimateGrowsWithTheInputs() {
+    assertTrue(DxService.estimateHeapBytes(0) > 0);
+    assertTrue(DxService.estimateHeapBytes(1024 * 1024) > DxService.estimateHeapBytes(1024));
+  }
+}
@@ -155,4 +155,13 @@ public class ProGuardObfuscateStepTest extends EasyMockSupport {
 
     assertEquals(expectedPath, found);
   }
+
+  @Test
+  public void testRequiredMemoryIsTheMaxHeapSize() {
+    assertEquals(1024L << 20, ProGuardObfuscateStep.parseJvmMemorySize("1024M"));
+    assertEquals(4L << 30, ProGuardObfuscateStep.parseJvmMemorySize("4g"));
+    assertEquals(512L << 10, ProGuardObfuscateStep.parseJvmMemorySize("512k"));
+    assertEquals(4096, ProGuardObfuscateStep.parseJvmMemorySize("4096"));
+    assertEquals(0, ProGuardObfuscateStep.parseJvmMemorySize("lots"));
+  }
 }
@@ -163,6 +163,19 @@ public class SmartDexingStepTest extends EasyMockSupport {
     verifyAll();
   }
 
+  @Test
+  public void testDxOutputsIncludeTheMetaFileOfTheDexJar() {
+    assertEquals(
+        ImmutableList.of(Paths.get("classes.dex.jar.xz"), Paths.get("classes.dex.jar.meta")),
+        SmartDexingStep.getDxOutputs(Paths.get("classes.dex.jar.xz")));
+    assertEquals(
+        ImmutableList.of(Paths.get("classes.dex.jar"), Paths.get("classes.dex.jar.meta")),
+        SmartDexingStep.getDxOutputs(Paths.get("classes.dex.jar")));
+    assertEquals(
+        ImmutableList.of(Paths.get("classes.dex")),
+        SmartDexingStep.getDxOutputs(Paths.get("classes.dex")));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testCreateDxStepForDxPseudoRuleWithUnrecognizedOutput() {
     ImmutableList<Path> filesToDex = ImmutableList.of(
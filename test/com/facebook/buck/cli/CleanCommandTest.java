@@ -27,6 +27,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.java.FakeJavaPackageFinder;
 import com.facebook.buck.java.intellij.Project;
 import com.facebook.buck.parser.Parser;
+import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.Repository;
 import com.facebook.buck.rules.TestRepositoryBuilder;
@@ -131,7 +132,8 @@ public class CleanCommandTest extends EasyMockSupport {
         Optional.<ProcessManager>absent(),
         Optional.<WebServer>absent(),
         new FakeBuckConfig(),
-        new NullFileHashCache());
+        new NullFileHashCache(),
+        Optional.<ActionGraphCache>absent());
   }
 
 }
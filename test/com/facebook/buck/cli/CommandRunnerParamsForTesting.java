@@ -28,6 +28,7 @@ import com.facebook.buck.java.JavaPackageFinder;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.python.PythonBuckConfig;
+import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.NoopArtifactCache;
 import com.facebook.buck.rules.Repository;
 import com.facebook.buck.rules.TestRepositoryBuilder;
@@ -40,6 +41,7 @@ import com.facebook.buck.util.environment.Platform;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.IOException;
 
@@ -81,7 +83,8 @@ public class CommandRunnerParamsForTesting {
             parserConfig.getEnforceBuckPackageBoundary(),
             parserConfig.getTempFilePatterns(),
             parserConfig.getBuildFileName(),
-            parserConfig.getDefaultIncludes()),
+            parserConfig.getDefaultIncludes(),
+            ImmutableSet.<String>of()),
         platform,
         environment,
         javaPackageFinder,
@@ -90,7 +93,8 @@ public class CommandRunnerParamsForTesting {
         Optional.<ProcessManager>absent(),
         webServer,
         config,
-        new NullFileHashCache());
+        new NullFileHashCache(),
+        Optional.<ActionGraphCache>absent());
   }
 
   public static Builder builder() {
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.java.classes.AbstractFileLike;
+import com.facebook.buck.java.classes.FileLike;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DalvikStatsCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void statsAreKeptForLaterBuilds() throws Exception {
+    Path index = tmp.getRoot().toPath().resolve("buck-out/.dalvik-stats");
+    DalvikStatsTool.Stats stats = new DalvikStatsTool.Stats(
+        42,
+        ImmutableSet.of(
+            new DalvikStatsTool.MethodReference("com/example/Foo", "bar", "()V"),
+            new DalvikStatsTool.MethodReference("com/example/Foo", "baz", "()V")));
+    DalvikStatsStore store = new DalvikStatsStore(index);
+    store.put(Hashing.sha1().hashInt(1), stats);
+    store.save();
+
+    DalvikStatsStore reloaded = new DalvikStatsStore(index);
+    DalvikStatsTool.Stats reloadedStats = reloaded.get(Hashing.sha1().hashInt(1));
+    assertEquals(42, reloadedStats.estimatedLinearAllocSize);
+    assertEquals(stats.methodReferences, reloadedStats.methodReferences);
+    assertNull(reloaded.get(Hashing.sha1().hashInt(2)));
+  }
+
+  @Test
+  public void unreadableIndexIsIgnored() throws Exception {
+    Path index = tmp.newFile(".dalvik-stats").toPath();
+    Files.write(index, new byte[] {1, 2, 3});
+    assertNull(new DalvikStatsStore(index).get(Hashing.sha1().hashInt(1)));
+  }
+
+  @Test
+  public void classesAreLookedUpByTheirContents() throws Exception {
+    byte[] contents;
+    try (InputStream in = getClass().getResourceAsStream("DalvikStatsCacheTest.class")) {
+      contents = ByteStreams.toByteArray(in);
+    }
+    DalvikStatsStore store = new DalvikStatsStore(tmp.getRoot().toPath().resolve("index"));
+    DalvikStatsTool.Stats known = new DalvikStatsTool.Stats(
+        7,
+        ImmutableSet.<DalvikStatsTool.MethodReference>of());
+    store.put(Hashing.sha1().hashBytes(contents), known);
+
+    DalvikStatsCache cache =
+        new DalvikStatsCache(store, MoreExecutors.newDirectExecutorService());
+    FileLike entry = newFileLike("a.jar", "com/example/A.class", contents);
+    cache.prefetch(entry);
+    assertSame(known, cache.getStats(entry));
+    assertSame(known, cache.getStats(newFileLike("b.jar", "com/example/B.class", contents)));
+    assertSame(
+        DalvikStatsTool.Stats.ZERO,
+        cache.getStats(newFileLike("a.jar", "META-INF/MANIFEST.MF", contents)));
+  }
+
+  private static FileLike newFileLike(
+      final String container,
+      final String relativePath,
+      final byte[] contents) {
+    return new AbstractFileLike() {
+      @Override
+      public File getContainer() {
+        return new File(container);
+      }
+
+      @Override
+      public String getRelativePath() {
+        return relativePath;
+      }
+
+      @Override
+      public long getSize() {
+        return contents.length;
+      }
+
+      @Override
+      public InputStream getInput() {
+        return new ByteArrayInputStream(contents);
+      }
+    };
+  }
+}
@@ -66,8 +66,17 @@ public class BuckEventBusFactory {
     return buckEventBus;
   }
 
-  public static EventBus getEventBusFor(BuckEventBus buckEventBus) {
-    return buckEventBus.getEventBus();
+  /**
+   * @return an {@link EventBus} which posts events to {@code buckEventBus} as they are, without
+   *     configuring them, so that tests can choose their timestamps.
+   */
+  public static EventBus getEventBusFor(final BuckEventBus buckEventBus) {
+    return new EventBus() {
+      @Override
+      public void post(Object event) {
+        buckEventBus.postWithoutConfiguring((BuckEvent) event);
+      }
+    };
   }
 
   /**
@@ -17,6 +17,7 @@
 package com.facebook.buck.event;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
@@ -25,11 +26,16 @@ import static org.junit.Assert.fail;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.timing.SettableFakeClock;
 import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.Subscribe;
 
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class BuckEventBusTest {
@@ -124,6 +130,136 @@ public class BuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void eventsPostedByEachThreadAreDeliveredInOrder() throws Exception {
+    // About as many events as a large build posts.
+    final int threadCount = 4;
+    final int eventsPerThread = 25000;
+    final BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        MoreExecutors.newSingleThreadExecutor(BuckEventBus.class.getSimpleName()),
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis);
+    final int[] lastSequence = new int[threadCount];
+    Arrays.fill(lastSequence, -1);
+    final List<String> outOfOrder = Lists.newArrayList();
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void sequenced(SequencedEvent event) {
+            if (event.sequence != lastSequence[event.poster] + 1) {
+              outOfOrder.add(event.poster + ":" + event.sequence);
+            }
+            lastSequence[event.poster] = event.sequence;
+          }
+        });
+
+    List<Thread> posters = Lists.newArrayList();
+    for (int i = 0; i < threadCount; i++) {
+      final int poster = i;
+      posters.add(
+          new Thread() {
+            @Override
+            public void run() {
+              for (int sequence = 0; sequence < eventsPerThread; sequence++) {
+                eb.post(new SequencedEvent(poster, sequence));
+              }
+            }
+          });
+    }
+    for (Thread thread : posters) {
+      thread.start();
+    }
+    for (Thread thread : posters) {
+      thread.join();
+    }
+    eb.close();
+
+    assertEquals(ImmutableList.<String>of(), outOfOrder);
+    for (int i = 0; i < threadCount; i++) {
+      assertEquals(eventsPerThread - 1, lastSequence[i]);
+    }
+    assertEquals(0, eb.getQueueDepth());
+    assertThat(eb.getMaxQueueDepth(), greaterThan(0L));
+  }
+
+  @Test
+  public void eventsPostedByListenersAreDeliveredAfterTheCurrentEvent() throws IOException {
+    final BuckEventBus eb = BuckEventBusFactory.newInstance();
+    final List<String> delivered = Lists.newArrayList();
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void sequenced(SequencedEvent event) {
+            delivered.add("start " + event.sequence);
+            if (event.sequence == 0) {
+              eb.post(new SequencedEvent(0, 1));
+            }
+            delivered.add("end " + event.sequence);
+          }
+        });
+    eb.post(new SequencedEvent(0, 0));
+    eb.close();
+
+    assertEquals(ImmutableList.of("start 0", "end 0", "start 1", "end 1"), delivered);
+  }
+
+  @Test
+  public void eventsAreStillDeliveredAfterAListenerThrowsAnError() throws IOException {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        MoreExecutors.newSingleThreadExecutor(BuckEventBus.class.getSimpleName()),
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis);
+    final List<Integer> delivered = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void sequenced(SequencedEvent event) {
+            if (event.sequence == 0) {
+              throw new AssertionError("Failing on purpose.");
+            }
+          }
+        });
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void sequenced(SequencedEvent event) {
+            delivered.add(event.sequence);
+          }
+        });
+    eb.post(new SequencedEvent(0, 0));
+    eb.post(new SequencedEvent(0, 1));
+    eb.close();
+
+    assertEquals(ImmutableList.of(0, 1), delivered);
+  }
+
+  private static class SequencedEvent extends AbstractBuckEvent {
+    public final int poster;
+    public final int sequence;
+
+    private SequencedEvent(int poster, int sequence) {
+      this.poster = poster;
+      this.sequence = sequence;
+    }
+
+    @Override
+    protected String getValueString() {
+      return poster + ":" + sequence;
+    }
+
+    @Override
+    public boolean isRelatedTo(BuckEvent event) {
+      return false;
+    }
+
+    @Override
+    public String getEventName() {
+      return "SequencedEvent";
+    }
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
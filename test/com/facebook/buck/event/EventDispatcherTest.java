@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class EventDispatcherTest {
+
+  @Test
+  public void eventsAreDeliveredToSubscribersOfTheirSupertypes() {
+    EventDispatcher dispatcher = new EventDispatcher();
+    Recorder recorder = new Recorder();
+    dispatcher.register(recorder);
+
+    dispatcher.deliver("string");
+    dispatcher.deliver(42);
+
+    assertEquals(
+        ImmutableList.of("string: string", "object: string", "object: 42"),
+        recorder.delivered);
+  }
+
+  @Test
+  public void registeringAListenerTwiceDeliversEachEventOnce() {
+    EventDispatcher dispatcher = new EventDispatcher();
+    Recorder recorder = new Recorder();
+    dispatcher.register(recorder);
+    dispatcher.deliver(1);
+    dispatcher.register(recorder);
+    dispatcher.deliver(2);
+
+    assertEquals(ImmutableList.of("object: 1", "object: 2"), recorder.delivered);
+  }
+
+  @Test
+  public void unregisteredListenersGetNoMoreEvents() {
+    EventDispatcher dispatcher = new EventDispatcher();
+    Recorder first = new Recorder();
+    Recorder second = new Recorder();
+    dispatcher.register(first);
+    dispatcher.register(second);
+    dispatcher.deliver(1);
+    dispatcher.unregister(first);
+    dispatcher.deliver(2);
+
+    assertEquals(ImmutableList.of("object: 1"), first.delivered);
+    assertEquals(ImmutableList.of("object: 1", "object: 2"), second.delivered);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unregisteringAnUnknownListenerFails() {
+    new EventDispatcher().unregister(new Recorder());
+  }
+
+  @Test
+  public void aFailingSubscriberDoesNotStopTheOthers() {
+    EventDispatcher dispatcher = new EventDispatcher();
+    dispatcher.register(
+        new Object() {
+          @Subscribe
+          public void fail(String event) {
+            throw new RuntimeException("Failing on purpose.");
+          }
+        });
+    Recorder recorder = new Recorder();
+    dispatcher.register(recorder);
+
+    dispatcher.deliver("string");
+
+    assertEquals(ImmutableList.of("string: string", "object: string"), recorder.delivered);
+  }
+
+  public static class Recorder {
+    private final List<String> delivered = Lists.newArrayList();
+
+    @Subscribe
+    public void string(String event) {
+      delivered.add("string: " + event);
+    }
+
+    @Subscribe
+    public void object(Object event) {
+      delivered.add("object: " + event);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+public class CompactDirectedGraphTest {
+
+  @Test
+  public void edgesAreAvailableInBothDirections() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addNode("D");
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    assertEquals(4, graph.getNodeCount());
+    assertEquals(3, graph.getEdgeCount());
+    assertEquals(ImmutableSet.of("B", "C"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableSet.of("A", "B"), graph.getIncomingNodesFor("C"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("E"));
+    assertEquals(ImmutableSet.of("C", "D"), graph.getNodesWithNoOutgoingEdges());
+    assertEquals(ImmutableSet.of("A", "D"), graph.getNodesWithNoIncomingEdges());
+    assertTrue(graph.isAcyclic());
+    assertEquals(ImmutableSet.<ImmutableSet<String>>of(), graph.findCycles());
+  }
+
+  @Test
+  public void findCyclesReturnsComponentsAndSelfLoops() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("C", "A");
+    mutableGraph.addEdge("C", "D");
+    mutableGraph.addEdge("E", "E");
+    mutableGraph.addEdge("D", "F");
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    assertFalse(graph.isAcyclic());
+    assertEquals(
+        ImmutableSet.of(ImmutableSet.of("A", "B", "C"), ImmutableSet.of("E")),
+        graph.findCycles());
+  }
+
+  @Test
+  public void findCyclesHandlesLongChains() {
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    int length = 100000;
+    for (int i = 0; i < length; i++) {
+      mutableGraph.addEdge(i, i + 1);
+    }
+    mutableGraph.addEdge(length, 0);
+    CompactDirectedGraph<Integer> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    ImmutableSet<ImmutableSet<Integer>> cycles = graph.findCycles();
+    assertEquals(1, cycles.size());
+    assertEquals(length + 1, cycles.iterator().next().size());
+  }
+
+  @Test
+  public void graphsWithTheSameEdgesAreEqual() {
+    MutableDirectedGraph<String> first = new MutableDirectedGraph<>();
+    first.addEdge("A", "B");
+    first.addEdge("B", "C");
+    MutableDirectedGraph<String> second = new MutableDirectedGraph<>();
+    second.addNode("C");
+    second.addEdge("B", "C");
+    second.addEdge("A", "B");
+
+    assertEquals(CompactDirectedGraph.copyOf(first), CompactDirectedGraph.copyOf(second));
+    assertEquals(
+        CompactDirectedGraph.copyOf(first).hashCode(),
+        CompactDirectedGraph.copyOf(second).hashCode());
+
+    second.removeEdge("B", "C");
+    second.addEdge("A", "C");
+    assertNotEquals(CompactDirectedGraph.copyOf(first), CompactDirectedGraph.copyOf(second));
+  }
+
+  @Test
+  public void edgeViewsBehaveAsSets() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addNode("D");
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    Set<String> outgoing = graph.getOutgoingNodesFor("A");
+    assertEquals(2, outgoing.size());
+    assertTrue(outgoing.contains("B"));
+    assertFalse(outgoing.contains("D"));
+    assertFalse(outgoing.contains("Z"));
+    assertEquals(ImmutableSet.of("B", "C").hashCode(), outgoing.hashCode());
+    assertTrue(graph.getIncomingNodesFor("D").isEmpty());
+  }
+
+  @Test
+  public void topologicalSortOfCompactGraphMatchesMutableGraph() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("B", "D");
+    mutableGraph.addEdge("C", "D");
+    mutableGraph.addEdge("E", "C");
+    mutableGraph.addNode("F");
+
+    // Each level of the sort, deps first, in natural order within the level.
+    assertEquals(
+        ImmutableList.of("D", "F", "B", "C", "A", "E"),
+        TopologicalSort.sort(
+            new DefaultTraversableGraph<>(mutableGraph),
+            Predicates.<String>alwaysTrue()));
+    assertEquals(
+        ImmutableList.of("D", "F", "B", "C", "A", "E"),
+        TopologicalSort.sort(mutableGraph, Predicates.<String>alwaysTrue()));
+    assertEquals(
+        ImmutableList.of("F", "B", "E"),
+        TopologicalSort.sort(
+            mutableGraph,
+            Predicates.in(ImmutableSet.of("B", "E", "F"))));
+  }
+}
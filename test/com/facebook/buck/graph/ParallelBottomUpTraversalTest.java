@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+
+public class ParallelBottomUpTraversalTest {
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void testCrissCrossTraversal() throws Exception {
+    // Build up a graph as follows:
+    //     A
+    //   /   \
+    //  B     C
+    //  | \ / |
+    //  | / \ |
+    //  D     E
+    //    \ /
+    //     F
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    for (String node : ImmutableSet.of("A", "B", "C", "D", "E", "F")) {
+      mutableGraph.addNode(node);
+    }
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("B", "D");
+    mutableGraph.addEdge("B", "E");
+    mutableGraph.addEdge("C", "D");
+    mutableGraph.addEdge("C", "E");
+    mutableGraph.addEdge("D", "F");
+    mutableGraph.addEdge("E", "F");
+
+    assertVisitsEveryNodeAfterItsDeps(new DefaultDirectedAcyclicGraph<>(mutableGraph));
+  }
+
+  @Test
+  public void testLargeGraphTraversal() throws Exception {
+    // Each node depends on a few nodes created before it, like a large target graph.
+    Random random = new Random(42);
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    for (int node = 0; node < 100000; node++) {
+      mutableGraph.addNode(node);
+      for (int edge = 0; node > 0 && edge < 3; edge++) {
+        mutableGraph.addEdge(node, random.nextInt(node));
+      }
+    }
+
+    assertVisitsEveryNodeAfterItsDeps(new DefaultDirectedAcyclicGraph<>(mutableGraph));
+  }
+
+  @Test
+  public void testFailureStopsTheTraversal() throws InterruptedException {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    final Set<String> visited = Sets.newConcurrentHashSet();
+
+    try {
+      new ParallelBottomUpTraversal<String>(
+          new DefaultDirectedAcyclicGraph<>(mutableGraph),
+          pool) {
+        @Override
+        public void visit(String node) throws IOException {
+          visited.add(node);
+          if (node.equals("B")) {
+            throw new IOException("Failed to visit B.");
+          }
+        }
+      }.traverse();
+      fail("The failure to visit B should have been thrown.");
+    } catch (IOException e) {
+      assertEquals("Failed to visit B.", e.getMessage());
+    }
+    assertFalse(visited.contains("A"));
+  }
+
+  private <T> void assertVisitsEveryNodeAfterItsDeps(final DefaultDirectedAcyclicGraph<T> graph)
+      throws Exception {
+    final ConcurrentMap<T, Boolean> visited = new ConcurrentHashMap<>();
+    final Set<T> visitedBeforeDeps = Sets.newConcurrentHashSet();
+    new ParallelBottomUpTraversal<T>(graph, pool) {
+      @Override
+      public void visit(T node) {
+        for (T dep : graph.getOutgoingNodesFor(node)) {
+          if (!visited.containsKey(dep)) {
+            visitedBeforeDeps.add(node);
+          }
+        }
+        assertTrue("Visited twice: " + node, visited.putIfAbsent(node, true) == null);
+      }
+    }.traverse();
+
+    assertEquals(graph.getNodes(), visited.keySet());
+    assertEquals(ImmutableSet.<T>of(), visitedBeforeDeps);
+  }
+}
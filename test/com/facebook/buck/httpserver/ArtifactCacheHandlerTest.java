@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.httpserver;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.CacheResult;
+import com.facebook.buck.rules.HttpArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.squareup.okhttp.OkHttpClient;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+
+public class ArtifactCacheHandlerTest {
+
+  private static final RuleKey CACHED = new RuleKey("00000000000000000000000000000001");
+  private static final RuleKey ALSO_CACHED = new RuleKey("00000000000000000000000000000002");
+  private static final RuleKey NOT_CACHED = new RuleKey("00000000000000000000000000000003");
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private Server server;
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void multiContainsAsksAboutAllKeysInOneRequest() throws Exception {
+    ArtifactCacheHandler handler = new ArtifactCacheHandler();
+    HttpArtifactCache cache = startServer(handler);
+    store(cache, CACHED, "one");
+    store(cache, ALSO_CACHED, "two");
+    int requestsBefore = handler.getRequestCount();
+
+    ImmutableMap<RuleKey, CacheResult> results =
+        cache.multiContains(ImmutableSet.of(CACHED, NOT_CACHED, ALSO_CACHED));
+
+    assertEquals(1, handler.getRequestCount() - requestsBefore);
+    assertEquals(CacheResult.Type.HIT, results.get(CACHED).getType());
+    assertEquals(CacheResult.Type.MISS, results.get(NOT_CACHED).getType());
+    assertEquals(CacheResult.Type.HIT, results.get(ALSO_CACHED).getType());
+  }
+
+  @Test
+  public void multiFetchFetchesAllArtifactsInOneRequest() throws Exception {
+    ArtifactCacheHandler handler = new ArtifactCacheHandler();
+    HttpArtifactCache cache = startServer(handler);
+    store(cache, CACHED, "one");
+    store(cache, ALSO_CACHED, "two");
+    int requestsBefore = handler.getRequestCount();
+
+    File first = new File(tmp.getRoot(), "first");
+    File second = new File(tmp.getRoot(), "second");
+    File third = new File(tmp.getRoot(), "third");
+    ImmutableMap<RuleKey, CacheResult> results = cache.multiFetch(
+        ImmutableMap.of(CACHED, first, NOT_CACHED, second, ALSO_CACHED, third));
+
+    assertEquals(1, handler.getRequestCount() - requestsBefore);
+    assertEquals(CacheResult.Type.HIT, results.get(CACHED).getType());
+    assertEquals(CacheResult.Type.MISS, results.get(NOT_CACHED).getType());
+    assertEquals(CacheResult.Type.HIT, results.get(ALSO_CACHED).getType());
+    assertEquals("one", new String(Files.readAllBytes(first.toPath()), Charsets.UTF_8));
+    assertEquals("two", new String(Files.readAllBytes(third.toPath()), Charsets.UTF_8));
+  }
+
+  @Test
+  public void serversWithoutBatchRequestsAreAskedForEachArtifact() throws Exception {
+    ArtifactCacheHandler handler = new ArtifactCacheHandler(/* supportsBatchRequests */ false);
+    HttpArtifactCache cache = startServer(handler);
+    store(cache, CACHED, "one");
+
+    ImmutableMap<RuleKey, CacheResult> containsResults =
+        cache.multiContains(ImmutableSet.of(CACHED, NOT_CACHED));
+    assertEquals(CacheResult.Type.ERROR, containsResults.get(CACHED).getType());
+    assertEquals(CacheResult.Type.ERROR, containsResults.get(NOT_CACHED).getType());
+
+    File output = new File(tmp.getRoot(), "output");
+    ImmutableMap<RuleKey, CacheResult> fetchResults = cache.multiFetch(
+        ImmutableMap.of(CACHED, output, NOT_CACHED, new File(tmp.getRoot(), "missing")));
+    assertEquals(CacheResult.Type.HIT, fetchResults.get(CACHED).getType());
+    assertEquals(CacheResult.Type.MISS, fetchResults.get(NOT_CACHED).getType());
+    assertEquals("one", new String(Files.readAllBytes(output.toPath()), Charsets.UTF_8));
+  }
+
+  private HttpArtifactCache startServer(ArtifactCacheHandler handler) throws Exception {
+    server = new Server(/* port */ 0);
+    server.setHandler(handler);
+    server.start();
+    int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    OkHttpClient client = new OkHttpClient();
+    return new HttpArtifactCache(
+        "http",
+        client,
+        client,
+        new URL("http://localhost:" + port + "/"),
+        /* doStore */ true,
+        new ProjectFilesystem(tmp.getRoot().toPath()),
+        BuckEventBusFactory.newInstance(),
+        Hashing.crc32());
+  }
+
+  private void store(HttpArtifactCache cache, RuleKey ruleKey, String contents) throws Exception {
+    File artifact = tmp.newFile();
+    Files.write(artifact.toPath(), contents.getBytes(Charsets.UTF_8));
+    cache.store(ImmutableSet.of(ruleKey), artifact);
+  }
+}
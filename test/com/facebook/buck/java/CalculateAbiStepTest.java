@@ -18,8 +18,10 @@ package com.facebook.buck.java;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.java.abi.StubJar;
 import com.facebook.buck.rules.AbiRule;
 import com.facebook.buck.rules.FakeBuildableContext;
 import com.facebook.buck.step.ExecutionContext;
@@ -43,7 +45,7 @@ public class CalculateAbiStepTest {
   public DebuggableTemporaryFolder temp = new DebuggableTemporaryFolder();
 
   @Test
-  public void shouldCalculateAbiFromAStubJar() throws IOException {
+  public void shouldCalculateAbiFromTheStubbedClasses() throws IOException {
     Path outDir = temp.newFolder().toPath().toAbsolutePath();
     ProjectFilesystem filesystem = new ProjectFilesystem(outDir);
 
@@ -61,7 +63,8 @@ public class CalculateAbiStepTest {
     FakeBuildableContext context = new FakeBuildableContext();
     new CalculateAbiStep(context, binJar, abiJar).execute(executionContext);
 
-    String expectedHash = filesystem.computeSha1(Paths.get("abi.jar"));
+    assertTrue(Files.exists(abiJar));
+    String expectedHash = new StubJar(filesystem.resolve(binJar)).computeAbiHash().toString();
     ImmutableMap<String, Object> metadata = context.getRecordedMetadata();
     Object seenHash = metadata.get(AbiRule.ABI_KEY_ON_DISK_METADATA);
 
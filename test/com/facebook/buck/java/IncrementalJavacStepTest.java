@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.BuildDependencies;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+public class IncrementalJavacStepTest {
+
+  private static final FileTime BEFORE = FileTime.fromMillis(0);
+
+  @Rule
+  public DebuggableTemporaryFolder temp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private ExecutionContext context;
+  private Path classes;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(temp.getRoot().toPath().toAbsolutePath());
+    context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(filesystem)
+        .build();
+    classes = Paths.get("classes");
+    filesystem.mkdirs(classes);
+
+    write("Base.java", "package lib; public class Base { public int get() { return 1; } }");
+    write("User.java", "package lib; public class User { int use() { return new Base().get(); } }");
+    write("Other.java", "package lib; public class Other { }");
+  }
+
+  @Test
+  public void onlyChangedSourcesAndTheirUsersAreRecompiled() throws Exception {
+    assertEquals(0, createStep().execute(context));
+    filesystem.writeContentsToPath("copied", classes.resolve("resource.txt"));
+    setModifiedTimesToBefore();
+
+    write("Base.java", "package lib; public class Base { public int get() { return 2; } }");
+    assertEquals(0, createStep().execute(context));
+
+    assertTrue(wasRecompiled("lib/Base.class"));
+    assertTrue(wasRecompiled("lib/User.class"));
+    assertFalse(wasRecompiled("lib/Other.class"));
+    // Anything copied in after compiling is cleared out, to be copied in again.
+    assertFalse(filesystem.exists(classes.resolve("resource.txt")));
+  }
+
+  @Test
+  public void everythingIsRecompiledWhenAChangedClassDeclaresConstants() throws Exception {
+    write("Base.java", "package lib; public class Base { public static final int GET = 1; }");
+    write("User.java", "package lib; public class User { int use() { return Base.GET; } }");
+    assertEquals(0, createStep().execute(context));
+    setModifiedTimesToBefore();
+
+    write("Base.java", "package lib; public class Base { public static final int GET = 2; }");
+    assertEquals(0, createStep().execute(context));
+
+    assertTrue(wasRecompiled("lib/Base.class"));
+    assertTrue(wasRecompiled("lib/User.class"));
+    assertTrue(wasRecompiled("lib/Other.class"));
+  }
+
+  @Test
+  public void everythingIsRecompiledWhenTheAbiOfDepsChanges() throws Exception {
+    assertEquals(0, createStep().execute(context));
+    setModifiedTimesToBefore();
+
+    assertEquals(0, createStep("another abi key").execute(context));
+
+    assertTrue(wasRecompiled("lib/Other.class"));
+  }
+
+  @Test
+  public void everythingIsRecompiledAfterAFailedCompilation() throws Exception {
+    assertEquals(0, createStep().execute(context));
+    write("Base.java", "package lib; public class Base { syntax error }");
+    assertEquals(1, createStep().execute(context));
+    setModifiedTimesToBefore();
+
+    write("Base.java", "package lib; public class Base { public int get() { return 2; } }");
+    assertEquals(0, createStep().execute(context));
+
+    assertTrue(wasRecompiled("lib/Other.class"));
+  }
+
+  private IncrementalJavacStep createStep() {
+    return createStep("abi key");
+  }
+
+  private IncrementalJavacStep createStep(String abiKeyForDeps) {
+    JavacStep javacStep = new JavacStep(
+        classes,
+        /* workingDirectory */ Optional.<Path>absent(),
+        ImmutableSortedSet.of(
+            Paths.get("Base.java"),
+            Paths.get("Other.java"),
+            Paths.get("User.java")),
+        /* pathToSrcsList */ Optional.<Path>absent(),
+        /* transitiveClasspathEntries */ ImmutableSet.<Path>of(),
+        /* declaredClasspathEntries */ ImmutableSet.<Path>of(),
+        JavacOptions.builder()
+            .setSourceLevel("7")
+            .setTargetLevel("7")
+            .build(),
+        BuildTargetFactory.newInstance("//:lib"),
+        BuildDependencies.FIRST_ORDER_ONLY,
+        /* suggestBuildRules */ Optional.<JavacStep.SuggestBuildRules>absent(),
+        new SourcePathResolver(new BuildRuleResolver()));
+    return new IncrementalJavacStep(javacStep, Paths.get("state.json"), abiKeyForDeps);
+  }
+
+  private void write(String source, String contents) throws IOException {
+    Files.write(filesystem.resolve(source), contents.getBytes(UTF_8));
+  }
+
+  private void setModifiedTimesToBefore() throws IOException {
+    for (Path file : filesystem.getFilesUnderPath(classes)) {
+      Files.setLastModifiedTime(filesystem.resolve(file), BEFORE);
+    }
+  }
+
+  private boolean wasRecompiled(String classFile) throws IOException {
+    return !Files.getLastModifiedTime(filesystem.resolve(classes.resolve(classFile)))
+        .equals(BEFORE);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+
+import org.easymock.EasyMock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+public class StandardJavaFileManagerPoolTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void pathsAreNotPartOfTheKey() {
+    assertEquals(
+        ImmutableList.of("-source", "7", "-d", "-classpath", "-g"),
+        StandardJavaFileManagerPool.getKey(
+            ImmutableList.of("-source", "7", "-d", "/out", "-classpath", "a.jar:b.jar", "-g")));
+  }
+
+  @Test
+  public void fileManagersAreReusedByCompilationsWithTheSameOptions() throws Exception {
+    StandardJavaFileManager first = EasyMock.createMock(StandardJavaFileManager.class);
+    StandardJavaFileManager second = EasyMock.createMock(StandardJavaFileManager.class);
+    StandardJavaFileManager third = EasyMock.createMock(StandardJavaFileManager.class);
+    JavaCompiler compiler = EasyMock.createMock(JavaCompiler.class);
+    EasyMock.expect(compiler.getStandardFileManager(null, null, null))
+        .andReturn(first)
+        .andReturn(second)
+        .andReturn(third);
+    // Some versions of javac keep the paths a file manager was first given.
+    first.setLocation(StandardLocation.CLASS_PATH, ImmutableList.of(new File("b.jar")));
+    EasyMock.replay(compiler, first, second, third);
+
+    StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 2);
+    StandardJavaFileManagerPool.Lease lease =
+        pool.acquire(ImmutableList.of("-classpath", "a.jar"));
+    assertSame(first, lease.getFileManager());
+    pool.release(lease, /* reusable */ true);
+
+    lease = pool.acquire(ImmutableList.of("-classpath", "b.jar"));
+    assertSame(first, lease.getFileManager());
+    StandardJavaFileManagerPool.Lease other =
+        pool.acquire(ImmutableList.of("-classpath", "b.jar"));
+    assertSame(second, other.getFileManager());
+    pool.release(other, /* reusable */ true);
+    pool.release(lease, /* reusable */ true);
+
+    // A file manager holds on to options such as the encoding, so it can't be shared with
+    // compilations which set different ones.
+    assertSame(
+        third,
+        pool.acquire(ImmutableList.of("-encoding", "UTF-8", "-classpath", "a.jar"))
+            .getFileManager());
+  }
+
+  @Test
+  public void fileManagersWhoseJarsChangedAreClosedBeforeTheyAreReused() throws Exception {
+    Path jar = tmp.newFile("lib.jar").toPath();
+    Files.write(jar, "old".getBytes(StandardCharsets.UTF_8));
+    ImmutableList<String> options = ImmutableList.of("-classpath", jar.toString());
+
+    StandardJavaFileManager fileManager = EasyMock.createMock(StandardJavaFileManager.class);
+    fileManager.setLocation(StandardLocation.CLASS_PATH, ImmutableList.of(jar.toFile()));
+    EasyMock.expectLastCall().times(2);
+    fileManager.close();
+    EasyMock.expectLastCall().once();
+    JavaCompiler compiler = EasyMock.createMock(JavaCompiler.class);
+    EasyMock.expect(compiler.getStandardFileManager(null, null, null)).andReturn(fileManager);
+    EasyMock.replay(compiler, fileManager);
+
+    StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 1);
+    pool.release(pool.acquire(options), /* reusable */ true);
+    pool.release(pool.acquire(options), /* reusable */ true);
+
+    Files.write(jar, "changed".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+    StandardJavaFileManagerPool.Lease lease = pool.acquire(options);
+    assertSame(fileManager, lease.getFileManager());
+
+    EasyMock.verify(fileManager);
+  }
+
+  @Test
+  public void jarsReplacedWithoutChangingSizeOrModificationTimeAreNoticed() throws Exception {
+    Path jar = tmp.newFile("lib.jar").toPath();
+    Files.write(jar, "old".getBytes(StandardCharsets.UTF_8));
+    FileTime lastModifiedTime = Files.getLastModifiedTime(jar);
+    ImmutableList<String> options = ImmutableList.of("-classpath", jar.toString());
+
+    StandardJavaFileManager fileManager = EasyMock.createMock(StandardJavaFileManager.class);
+    fileManager.setLocation(StandardLocation.CLASS_PATH, ImmutableList.of(jar.toFile()));
+    fileManager.close();
+    EasyMock.expectLastCall().once();
+    JavaCompiler compiler = EasyMock.createMock(JavaCompiler.class);
+    EasyMock.expect(compiler.getStandardFileManager(null, null, null)).andReturn(fileManager);
+    EasyMock.replay(compiler, fileManager);
+
+    StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 1);
+    pool.release(pool.acquire(options), /* reusable */ true);
+
+    Path replacement = tmp.newFile("lib.jar.tmp").toPath();
+    Files.write(replacement, "new".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(replacement, lastModifiedTime);
+    Files.move(replacement, jar, StandardCopyOption.REPLACE_EXISTING);
+    assertSame(fileManager, pool.acquire(options).getFileManager());
+
+    EasyMock.verify(fileManager);
+  }
+
+  @Test
+  public void reusedFileManagersWhosePathsCannotBeSetAreReplaced() throws Exception {
+    StandardJavaFileManager fileManager = EasyMock.createMock(StandardJavaFileManager.class);
+    StandardJavaFileManager replacement = EasyMock.createMock(StandardJavaFileManager.class);
+    fileManager.setLocation(
+        StandardLocation.CLASS_OUTPUT,
+        ImmutableList.of(new File("/does/not/exist")));
+    EasyMock.expectLastCall().andThrow(new IOException("directory not found"));
+    fileManager.close();
+    JavaCompiler compiler = EasyMock.createMock(JavaCompiler.class);
+    EasyMock.expect(compiler.getStandardFileManager(null, null, null))
+        .andReturn(fileManager)
+        .andReturn(replacement);
+    EasyMock.replay(compiler, fileManager, replacement);
+
+    StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 1);
+    pool.release(pool.acquire(ImmutableList.of("-d", "/out")), /* reusable */ true);
+    assertSame(
+        replacement,
+        pool.acquire(ImmutableList.of("-d", "/does/not/exist")).getFileManager());
+
+    EasyMock.verify(fileManager);
+  }
+
+  @Test
+  public void fileManagersOfCompilationsWhichThrewAreClosed() throws Exception {
+    StandardJavaFileManager fileManager = EasyMock.createMock(StandardJavaFileManager.class);
+    StandardJavaFileManager replacement = EasyMock.createMock(StandardJavaFileManager.class);
+    fileManager.close();
+    JavaCompiler compiler = EasyMock.createMock(JavaCompiler.class);
+    EasyMock.expect(compiler.getStandardFileManager(null, null, null))
+        .andReturn(fileManager)
+        .andReturn(replacement);
+    EasyMock.replay(compiler, fileManager, replacement);
+
+    StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 1);
+    pool.release(pool.acquire(ImmutableList.<String>of()), /* reusable */ false);
+    assertSame(replacement, pool.acquire(ImmutableList.<String>of()).getFileManager());
+
+    EasyMock.verify(fileManager);
+  }
+}
@@ -21,6 +21,9 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.integration.TestDataHelper;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -30,6 +33,7 @@ import org.junit.rules.TemporaryFolder;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.Executors;
 
 public class StubJarIntegrationTest {
 
@@ -90,4 +94,24 @@ public class StubJarIntegrationTest {
     assertTrue(filesystem.getFileSize(out) > 0);
     assertTrue(filesystem.getFileSize(out) < filesystem.getFileSize(source));
   }
+
+  @Test
+  public void abiHashDoesNotDependOnWritingTheJarOrOnThreads() throws IOException {
+    Path source = testDataDir.resolve("junit.jar");
+    HashCode expected = new StubJar(source).computeAbiHash();
+
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      assertEquals(expected, new StubJar(source, executorService).computeAbiHash());
+      assertEquals(
+          expected,
+          new StubJar(source, executorService).writeTo(filesystem, Paths.get("junit-abi.jar")));
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    // Stubbing a stub jar changes nothing, so neither does its hash.
+    assertEquals(expected, new StubJar(filesystem.resolve("junit-abi.jar")).computeAbiHash());
+  }
 }
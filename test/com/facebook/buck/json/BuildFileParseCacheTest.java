@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class BuildFileParseCacheTest {
+
+  private static final HashCode CONFIGURATION = Hashing.sha1().hashInt(1);
+
+  @Rule
+  public DebuggableTemporaryFolder temporaryFolder = new DebuggableTemporaryFolder();
+
+  private Path root;
+  private Path buildFile;
+  private BuildFileParseCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    root = temporaryFolder.getRoot().toPath().toRealPath();
+    Files.createDirectories(root.resolve("foo"));
+    buildFile = root.resolve("foo/BUCK");
+    Files.write(buildFile, "java_library(name = 'foo')\n".getBytes(UTF_8));
+    Files.write(root.resolve("foo/Foo.java"), new byte[0]);
+    cache = new BuildFileParseCache(new ProjectFilesystem(root));
+  }
+
+  @Test
+  public void storedRulesAreReturnedByTheNextLookup() {
+    BuildFileParseCache.Lookup lookup = cache.lookup(buildFile, CONFIGURATION);
+    assertFalse(lookup.getRules().isPresent());
+    lookup.store(rules());
+
+    BuildFileParseCache.Lookup hit =
+        new BuildFileParseCache(new ProjectFilesystem(root))
+            .lookup(buildFile, CONFIGURATION);
+    assertEquals(rules(), hit.getRules().get());
+  }
+
+  @Test
+  public void changingTheBuildFileInvalidatesTheEntry() throws IOException {
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+    Files.write(buildFile, "java_library(name = 'bar')\n".getBytes(UTF_8));
+    assertFalse(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void changingAnIncludedFileInvalidatesTheEntry() throws IOException {
+    Path include = root.resolve("DEFS");
+    Files.write(include, "x = 1\n".getBytes(UTF_8));
+    cache.lookup(buildFile, CONFIGURATION).store(
+        ImmutableList.<Map<String, Object>>builder()
+            .addAll(rules())
+            .add(
+                ImmutableMap.<String, Object>of(
+                    "__includes",
+                    Arrays.asList(buildFile.toString(), include.toString())))
+            .build());
+    assertTrue(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+
+    Files.write(include, "x = 2\n".getBytes(UTF_8));
+    assertFalse(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void addingAFileToThePackageInvalidatesTheEntry() throws IOException {
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+    Files.createDirectories(root.resolve("foo/sub"));
+    Files.write(root.resolve("foo/sub/Bar.java"), new byte[0]);
+    assertFalse(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void addingAFileToASubpackageInvalidatesTheEntry() throws IOException {
+    // glob() descends into subpackages, so their files can change the rules.
+    Files.createDirectories(root.resolve("foo/sub"));
+    Files.write(root.resolve("foo/sub/BUCK"), new byte[0]);
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+
+    Files.write(root.resolve("foo/sub/Bar.java"), new byte[0]);
+    assertFalse(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void storingEntriesDoesNotInvalidateTheRootBuildFile() throws IOException {
+    Path rootBuildFile = root.resolve("BUCK");
+    Files.write(rootBuildFile, "java_library(name = 'root')\n".getBytes(UTF_8));
+    Files.createDirectories(root.resolve(BuildFileParseCache.CACHE_DIR));
+    cache.lookup(rootBuildFile, CONFIGURATION).store(rules());
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+
+    assertTrue(cache.lookup(rootBuildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void writingUnderIgnoredPathsDoesNotInvalidateTheRootBuildFile() throws IOException {
+    Path rootBuildFile = root.resolve("BUCK");
+    Files.write(rootBuildFile, "java_library(name = 'root')\n".getBytes(UTF_8));
+    BuildFileParseCache ignoringBuckOut = new BuildFileParseCache(
+        new ProjectFilesystem(root, ImmutableSet.of(Paths.get("buck-out"))));
+    ignoringBuckOut.lookup(rootBuildFile, CONFIGURATION).store(rules());
+
+    Files.createDirectories(root.resolve("buck-out/gen/foo"));
+    Files.write(root.resolve("buck-out/gen/foo/foo.jar"), new byte[0]);
+    assertTrue(ignoringBuckOut.lookup(rootBuildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  @Test
+  public void changingTheConfigurationInvalidatesTheEntry() {
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+    assertFalse(cache.lookup(buildFile, Hashing.sha1().hashInt(2)).getRules().isPresent());
+  }
+
+  @Test
+  public void corruptEntriesAreIgnored() throws IOException {
+    cache.lookup(buildFile, CONFIGURATION).store(rules());
+    Files.write(cache.getEntryPath(buildFile), "{\"version\": [".getBytes(UTF_8));
+    assertFalse(cache.lookup(buildFile, CONFIGURATION).getRules().isPresent());
+  }
+
+  private static List<Map<String, Object>> rules() {
+    return ImmutableList.<Map<String, Object>>of(
+        ImmutableMap.<String, Object>of(
+            "name", "foo",
+            "buck.type", "java_library",
+            "srcs", ImmutableList.of("Foo.java"),
+            "exported_deps", ImmutableList.of()));
+  }
+}
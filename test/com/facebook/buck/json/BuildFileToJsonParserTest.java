@@ -19,6 +19,7 @@ package com.facebook.buck.json;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
@@ -57,6 +58,24 @@ public class BuildFileToJsonParserTest {
     }
   }
 
+  @Test
+  public void requestsAreReadBeforeTheRules() throws IOException {
+    String json = "{\"list_files\": \"/foo\"}{\"list_files\": \"/bar\"}[{\"name\": \"foo\"}]";
+
+    try (BuildFileToJsonParser parser = new BuildFileToJsonParser(json)) {
+      assertEquals(
+          Optional.of(ImmutableMap.<String, Object>of("list_files", "/foo")),
+          parser.nextRequest());
+      assertEquals(
+          Optional.of(ImmutableMap.<String, Object>of("list_files", "/bar")),
+          parser.nextRequest());
+      assertEquals(Optional.<Map<String, Object>>absent(), parser.nextRequest());
+      assertEquals(
+          ImmutableList.of(ImmutableMap.of("name", "foo")),
+          parser.nextRules());
+    }
+  }
+
   @Test
   public void testParseLong() throws IOException {
     String json = "[{\"thing\": 27}]";
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class FileListingCacheTest {
+
+  @Rule
+  public DebuggableTemporaryFolder temporaryFolder = new DebuggableTemporaryFolder();
+
+  private Path root;
+  private FileListingCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    root = temporaryFolder.getRoot().toPath().toRealPath();
+    touch("foo/BUCK");
+    touch("foo/Foo.java");
+    touch("foo/bar/.Bar.java");
+    touch("foo/bar/baz/Baz.java");
+    Files.createDirectories(root.resolve("foo/empty"));
+    cache = new FileListingCache(
+        new ProjectFilesystem(root, ImmutableSet.of(Paths.get("foo/ignored"))),
+        ImmutableSet.of("*.pbxproj"));
+  }
+
+  @Test
+  public void listsRegularFilesRecursivelyInOrder() {
+    assertEquals(
+        Optional.of(ImmutableList.of("BUCK", "Foo.java", "bar/.Bar.java", "bar/baz/Baz.java")),
+        cache.getFiles(root.resolve("foo")));
+  }
+
+  @Test
+  public void subdirectoriesOfCachedListingsAreNotWalkedAgain() throws IOException {
+    cache.getFiles(root.resolve("foo"));
+    // Not reported to the cache, so only visible if the directory is walked.
+    touch("foo/bar/New.java");
+
+    assertEquals(
+        Optional.of(ImmutableList.of(".Bar.java", "baz/Baz.java")),
+        cache.getFiles(root.resolve("foo/bar")));
+  }
+
+  @Test
+  public void creatingAFileInvalidatesTheListingsContainingIt() throws IOException {
+    cache.getFiles(root.resolve("foo"));
+    cache.getFiles(root.resolve("foo/bar/baz"));
+    cache.getFiles(root.resolve("foo/empty"));
+    touch("foo/bar/New.java");
+    cache.invalidate(Paths.get("foo/bar/New.java"));
+
+    // The listings of foo/bar/baz and foo/empty are unaffected.
+    assertEquals(2, cache.getCachedListingCount());
+    assertEquals(
+        Optional.of(ImmutableList.of(".Bar.java", "New.java", "baz/Baz.java")),
+        cache.getFiles(root.resolve("foo/bar")));
+  }
+
+  @Test
+  public void deletingADirectoryInvalidatesTheListingsBeneathIt() {
+    cache.getFiles(root.resolve("foo/bar/baz"));
+    cache.invalidate(Paths.get("foo/bar"));
+    assertEquals(0, cache.getCachedListingCount());
+  }
+
+  @Test
+  public void directoriesReachingIgnoredPathsAreNotListed() throws IOException {
+    touch("foo/ignored/Generated.java");
+
+    assertFalse(cache.getFiles(root.resolve("foo")).isPresent());
+    assertFalse(cache.getFiles(root.resolve("foo/ignored")).isPresent());
+    assertEquals(
+        Optional.of(ImmutableList.of(".Bar.java", "baz/Baz.java")),
+        cache.getFiles(root.resolve("foo/bar")));
+  }
+
+  @Test
+  public void directoriesHoldingFilesMatchingIgnoredGlobsAreNotListed() throws IOException {
+    touch("foo/bar/baz/project.pbxproj");
+
+    assertFalse(cache.getFiles(root.resolve("foo")).isPresent());
+    assertFalse(cache.getFiles(root.resolve("foo/bar")).isPresent());
+    assertEquals(0, cache.getCachedListingCount());
+  }
+
+  @Test
+  public void directoriesAreListedAgainOnceTheyMayBeCacheable() throws IOException {
+    Path ignoredFile = root.resolve("foo/bar/project.pbxproj");
+    touch("foo/bar/project.pbxproj");
+    assertFalse(cache.getFiles(root.resolve("foo")).isPresent());
+
+    Files.delete(ignoredFile);
+    // Not yet reported to the cache.
+    assertFalse(cache.getFiles(root.resolve("foo")).isPresent());
+    cache.invalidate(Paths.get("foo/bar/New.java"));
+    assertTrue(cache.getFiles(root.resolve("foo")).isPresent());
+  }
+
+  @Test
+  public void directoriesReachingSymlinksAreNotListed() throws IOException {
+    Files.createSymbolicLink(root.resolve("foo/link"), root.resolve("foo/bar"));
+
+    assertFalse(cache.getFiles(root.resolve("foo")).isPresent());
+    assertFalse(cache.getFiles(root.resolve("foo/link")).isPresent());
+    assertEquals(0, cache.getCachedListingCount());
+  }
+
+  @Test
+  public void directoriesOutsideTheProjectAreNotListed() {
+    assertFalse(cache.getFiles(root.getParent()).isPresent());
+  }
+
+  private void touch(String path) throws IOException {
+    Path file = root.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, "".getBytes(UTF_8));
+  }
+}
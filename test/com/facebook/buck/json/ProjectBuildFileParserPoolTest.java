@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.parser.ParserConfig;
+import com.facebook.buck.rules.Description;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.Console;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProjectBuildFileParserPoolTest {
+
+  @Test
+  public void buildFilesAreEvaluatedConcurrently() throws Exception {
+    // Each evaluation blocks until all three are running, so this only completes if the pool
+    // really runs them on separate parsers at the same time.
+    final CountDownLatch allRunning = new CountDownLatch(3);
+    FakeParserFactory factory = new FakeParserFactory() {
+      @Override
+      protected void onEvaluate(Path buildFile) throws IOException {
+        allRunning.countDown();
+        try {
+          assertTrue(allRunning.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    };
+
+    try (ProjectBuildFileParserPool pool = createPool(3, factory)) {
+      pool.prefetch(Paths.get("/a/BUCK"));
+      pool.prefetch(Paths.get("/b/BUCK"));
+      pool.prefetch(Paths.get("/c/BUCK"));
+      assertEquals(
+          "/b/BUCK",
+          pool.getAllRulesAndMetaRules(Paths.get("/b/BUCK")).get(0).get("name"));
+    }
+    assertEquals(3, factory.parsersCreated.get());
+  }
+
+  @Test
+  public void eachBuildFileIsEvaluatedOnce() throws Exception {
+    FakeParserFactory factory = new FakeParserFactory();
+    try (ProjectBuildFileParserPool pool = createPool(4, factory)) {
+      pool.prefetch(Paths.get("/a/BUCK"));
+      pool.getAllRulesAndMetaRules(Paths.get("/a/BUCK"));
+      pool.getAllRulesAndMetaRules(Paths.get("/a/BUCK"));
+    }
+    assertEquals(ImmutableList.of(Paths.get("/a/BUCK")), factory.evaluated());
+  }
+
+  @Test
+  public void parsersAreReusedWhenIdle() throws Exception {
+    FakeParserFactory factory = new FakeParserFactory();
+    try (ProjectBuildFileParserPool pool = createPool(4, factory)) {
+      pool.getAllRulesAndMetaRules(Paths.get("/a/BUCK"));
+      pool.getAllRulesAndMetaRules(Paths.get("/b/BUCK"));
+      pool.getAllRulesAndMetaRules(Paths.get("/c/BUCK"));
+    }
+    assertEquals(1, factory.parsersCreated.get());
+  }
+
+  @Test
+  public void theParseIsReportedOnceHoweverManyParsersItUses() throws Exception {
+    final CountDownLatch allRunning = new CountDownLatch(3);
+    FakeParserFactory factory = new FakeParserFactory() {
+      @Override
+      protected void onEvaluate(Path buildFile) throws IOException {
+        allRunning.countDown();
+        try {
+          assertTrue(allRunning.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+    };
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    final List<BuckEvent> events = Collections.synchronizedList(Lists.<BuckEvent>newArrayList());
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onParseEvent(ProjectBuildFileParseEvents.Started started) {
+            events.add(started);
+          }
+
+          @Subscribe
+          public void onParseEvent(ProjectBuildFileParseEvents.Finished finished) {
+            events.add(finished);
+          }
+        });
+
+    try (ProjectBuildFileParserPool pool = createPool(3, factory, eventBus)) {
+      pool.prefetch(Paths.get("/a/BUCK"));
+      pool.prefetch(Paths.get("/b/BUCK"));
+      pool.getAllRulesAndMetaRules(Paths.get("/c/BUCK"));
+    }
+    eventBus.close();
+
+    assertEquals(3, factory.parsersCreated.get());
+    assertEquals(2, events.size());
+    assertTrue(events.get(0) instanceof ProjectBuildFileParseEvents.Started);
+    assertTrue(events.get(1) instanceof ProjectBuildFileParseEvents.Finished);
+  }
+
+  @Test(expected = BuildFileParseException.class)
+  public void parseErrorsArePropagatedToTheCaller() throws Exception {
+    FakeParserFactory factory = new FakeParserFactory() {
+      @Override
+      protected void onEvaluate(Path buildFile) throws IOException {
+        throw new IOException("Broken build file.");
+      }
+    };
+    try (ProjectBuildFileParserPool pool = createPool(2, factory)) {
+      pool.getAllRulesAndMetaRules(Paths.get("/a/BUCK"));
+    }
+  }
+
+  private static ProjectBuildFileParserPool createPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory factory) {
+    return createPool(maxParsers, factory, BuckEventBusFactory.newInstance());
+  }
+
+  private static ProjectBuildFileParserPool createPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory factory,
+      BuckEventBus eventBus) {
+    return new ProjectBuildFileParserPool(
+        maxParsers,
+        factory,
+        new TestConsole(),
+        ImmutableMap.<String, String>of(),
+        eventBus,
+        /* enableProfiling */ false);
+  }
+
+  /**
+   * Creates parsers which return a single rule named after the build file, without starting
+   * buck.py.
+   */
+  private static class FakeParserFactory implements ProjectBuildFileParserFactory {
+    private final AtomicInteger parsersCreated = new AtomicInteger();
+    private final Set<Path> evaluated =
+        Sets.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final AtomicInteger evaluations = new AtomicInteger();
+
+    protected void onEvaluate(Path buildFile) throws IOException {
+    }
+
+    public List<Path> evaluated() {
+      assertEquals(evaluated.size(), evaluations.get());
+      return ImmutableList.copyOf(evaluated);
+    }
+
+    @Override
+    public ProjectBuildFileParser createParser(
+        Console console,
+        ImmutableMap<String, String> environment,
+        BuckEventBus buckEventBus) {
+      parsersCreated.incrementAndGet();
+      return new ProjectBuildFileParser(
+          Paths.get("/"),
+          "python",
+          ParserConfig.DEFAULT_ALLOW_EMPTY_GLOBS,
+          ParserConfig.DEFAULT_BUILD_FILE_NAME,
+          ImmutableList.<String>of(),
+          ImmutableSet.<Description<?>>of(),
+          console,
+          environment,
+          buckEventBus) {
+        @Override
+        protected List<Map<String, Object>> getAllRulesInternal(Path buildFile)
+            throws IOException {
+          evaluations.incrementAndGet();
+          evaluated.add(buildFile);
+          onEvaluate(buildFile);
+          return ImmutableList.<Map<String, Object>>of(
+              ImmutableMap.<String, Object>of("name", buildFile.toString()));
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.cli.BuildTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.java.JavaLibrary;
+import com.facebook.buck.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargets;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.facebook.buck.util.FileHashCache;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+public class ActionGraphCacheTest {
+
+  private static final BuildTarget LIB = BuildTargetFactory.newInstance("//lib:lib");
+  private static final BuildTarget DEP = BuildTargetFactory.newInstance("//dep:dep");
+  private static final BuildTarget OTHER = BuildTargetFactory.newInstance("//other:other");
+
+  private final Map<BuildTarget, HashCode> ruleHashes = Maps.newHashMap();
+  private final Map<Path, HashCode> fileHashes = Maps.newHashMap();
+  private final FileHashCache fileHashCache = new FileHashCache() {
+    @Override
+    public boolean contains(Path path) {
+      return fileHashes.containsKey(path);
+    }
+
+    @Override
+    public HashCode get(Path path) {
+      return Preconditions.checkNotNull(fileHashes.get(path), path.toString());
+    }
+  };
+  private ActionGraphCache cache;
+  private TargetGraph targetGraph;
+
+  @Before
+  public void setUp() {
+    ruleHashes.put(LIB, HashCode.fromInt(1));
+    ruleHashes.put(DEP, HashCode.fromInt(2));
+    ruleHashes.put(OTHER, HashCode.fromInt(3));
+    fileHashes.put(Paths.get("lib/Lib.java"), HashCode.fromInt(11));
+    fileHashes.put(Paths.get("dep/Dep.java"), HashCode.fromInt(12));
+    fileHashes.put(Paths.get("other/Other.java"), HashCode.fromInt(13));
+    cache = new ActionGraphCache(
+        new FakeProjectFilesystem(),
+        fileHashCache,
+        Functions.forMap(ruleHashes));
+    targetGraph = TargetGraphFactory.newInstance(
+        JavaLibraryBuilder.createBuilder(LIB)
+            .addSrc(Paths.get("lib/Lib.java"))
+            .addDep(DEP)
+            .build(),
+        JavaLibraryBuilder.createBuilder(DEP)
+            .addSrc(Paths.get("dep/Dep.java"))
+            .build(),
+        JavaLibraryBuilder.createBuilder(OTHER)
+            .addSrc(Paths.get("other/Other.java"))
+            .build());
+  }
+
+  @Test
+  public void rulesOfUnchangedNodesAreReused() {
+    ActionGraph first = createActionGraph(targetGraph);
+    ActionGraph second = createActionGraph(targetGraph);
+
+    for (BuildTarget target : ImmutableSet.of(LIB, DEP, OTHER)) {
+      assertSame(first.findBuildRuleByTarget(target), second.findBuildRuleByTarget(target));
+    }
+  }
+
+  @Test
+  public void rulesOfChangedNodesAndTheirDependentsAreCreatedAgain() {
+    ActionGraph first = createActionGraph(targetGraph);
+    ruleHashes.put(DEP, HashCode.fromInt(4));
+    ActionGraph second = createActionGraph(targetGraph);
+
+    assertNotSame(first.findBuildRuleByTarget(DEP), second.findBuildRuleByTarget(DEP));
+    assertNotSame(first.findBuildRuleByTarget(LIB), second.findBuildRuleByTarget(LIB));
+    assertSame(first.findBuildRuleByTarget(OTHER), second.findBuildRuleByTarget(OTHER));
+    assertSame(
+        second.findBuildRuleByTarget(DEP),
+        second.findBuildRuleByTarget(LIB).getDeps().first());
+  }
+
+  @Test
+  public void rulesUsingAChangedFileAreCreatedAgainWithNewRuleKeys() {
+    // A java_library with sources also gets a GWT module, as a flavor of itself.
+    BuildTarget app = BuildTargetFactory.newInstance("//app:app");
+    BuildTarget libGwtModule = gwtModuleOf(LIB);
+    BuildTarget depGwtModule = gwtModuleOf(DEP);
+    ruleHashes.put(app, HashCode.fromInt(5));
+    fileHashes.put(Paths.get("app/App.java"), HashCode.fromInt(15));
+    TargetGraph graph = TargetGraphFactory.newInstance(
+        targetGraph.get(LIB),
+        targetGraph.get(DEP),
+        targetGraph.get(OTHER),
+        JavaLibraryBuilder.createBuilder(app)
+            .addSrc(Paths.get("app/App.java"))
+            .addDep(LIB)
+            .build());
+
+    ActionGraph first = createActionGraph(graph);
+    ImmutableSet<BuildTarget> changed = ImmutableSet.of(LIB, libGwtModule, app);
+    Map<BuildTarget, RuleKey> firstRuleKeys = Maps.newHashMap();
+    for (BuildTarget target : changed) {
+      firstRuleKeys.put(target, first.findBuildRuleByTarget(target).getRuleKey());
+    }
+    fileHashes.put(Paths.get("lib/Lib.java"), HashCode.fromInt(21));
+    ActionGraph second = createActionGraph(graph);
+
+    for (BuildTarget target : changed) {
+      BuildRule rule = second.findBuildRuleByTarget(target);
+      assertNotSame(target.toString(), first.findBuildRuleByTarget(target), rule);
+      assertNotEquals(target.toString(), firstRuleKeys.get(target), rule.getRuleKey());
+    }
+    for (BuildTarget target : ImmutableSet.of(DEP, depGwtModule, OTHER)) {
+      assertSame(
+          target.toString(),
+          first.findBuildRuleByTarget(target),
+          second.findBuildRuleByTarget(target));
+    }
+    assertSame(
+        second.findBuildRuleByTarget(LIB),
+        second.findBuildRuleByTarget(app).getDeps().first());
+  }
+
+  @Test
+  public void rulesOfNodesMissingFromTheGraphAreDropped() {
+    ActionGraph first = createActionGraph(targetGraph);
+    ActionGraph second = createActionGraph(
+        TargetGraphFactory.newInstance(targetGraph.get(OTHER)));
+
+    assertSame(first.findBuildRuleByTarget(OTHER), second.findBuildRuleByTarget(OTHER));
+    for (BuildRule rule : second.getNodes()) {
+      assertEquals(OTHER, BuildTarget.of(rule.getBuildTarget().getUnflavoredBuildTarget()));
+    }
+  }
+
+  private static BuildTarget gwtModuleOf(BuildTarget target) {
+    return BuildTargets.createFlavoredBuildTarget(
+        target.getUnflavoredBuildTarget(),
+        JavaLibrary.GWT_MODULE_FLAVOR);
+  }
+
+  private ActionGraph createActionGraph(TargetGraph targetGraph) {
+    return new TargetGraphToActionGraph(
+        BuckEventBusFactory.newInstance(),
+        new BuildTargetNodeToBuildRuleTransformer(),
+        fileHashCache,
+        Optional.of(cache))
+        .apply(targetGraph);
+  }
+}
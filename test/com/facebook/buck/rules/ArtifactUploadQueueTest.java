@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.timing.DefaultClock;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ArtifactUploadQueueTest {
+
+  private static final RuleKey RULE_KEY = new RuleKey(Strings.repeat("a", 40));
+  private static final RuleKey OTHER_RULE_KEY = new RuleKey(Strings.repeat("c", 40));
+
+  @Test
+  public void eachRuleKeyIsUploadedOnce() throws InterruptedException {
+    RecordingArtifactCache cache = new RecordingArtifactCache();
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    FlushListener listener = new FlushListener();
+    eventBus.register(listener);
+
+    try (ArtifactUploadQueue queue = new ArtifactUploadQueue(2, 1024, eventBus)) {
+      queue.upload(createBuildInfoRecorder(), ImmutableSet.of(RULE_KEY), cache, 10);
+      queue.upload(
+          createBuildInfoRecorder(),
+          ImmutableSet.of(RULE_KEY, OTHER_RULE_KEY),
+          cache,
+          10);
+      queue.upload(createBuildInfoRecorder(), ImmutableSet.of(OTHER_RULE_KEY), cache, 10);
+    }
+
+    assertEquals(
+        ImmutableSet.of(ImmutableSet.of(RULE_KEY), ImmutableSet.of(OTHER_RULE_KEY)),
+        ImmutableSet.copyOf(cache.stored));
+    assertEquals(2, cache.stored.size());
+    assertEquals(2, listener.event.getUploaded());
+    assertEquals(2, listener.event.getCoalesced());
+    assertEquals(0, listener.event.getFailed());
+  }
+
+  @Test
+  public void uploadsBlockOnceTheBudgetIsUsedUp() throws Exception {
+    final CountDownLatch storeLatch = new CountDownLatch(1);
+    final RecordingArtifactCache cache = new RecordingArtifactCache() {
+      @Override
+      public void store(ImmutableSet<RuleKey> ruleKeys, File output) throws InterruptedException {
+        storeLatch.await();
+        super.store(ruleKeys, output);
+      }
+    };
+
+    try (final ArtifactUploadQueue queue =
+             new ArtifactUploadQueue(2, 10, BuckEventBusFactory.newInstance())) {
+      queue.upload(createBuildInfoRecorder(), ImmutableSet.of(RULE_KEY), cache, 8);
+
+      final AtomicBoolean secondUploadScheduled = new AtomicBoolean(false);
+      Thread buildThread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            queue.upload(createBuildInfoRecorder(), ImmutableSet.of(OTHER_RULE_KEY), cache, 8);
+            secondUploadScheduled.set(true);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      buildThread.start();
+
+      buildThread.join(200);
+      assertFalse(
+          "The second upload should wait for the first to free up the budget.",
+          secondUploadScheduled.get());
+
+      storeLatch.countDown();
+      buildThread.join();
+      assertTrue(secondUploadScheduled.get());
+    }
+    assertEquals(2, cache.stored.size());
+  }
+
+  @Test
+  public void nothingIsQueuedWhenTheCacheDoesNotSupportStores() throws InterruptedException {
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    FlushListener listener = new FlushListener();
+    eventBus.register(listener);
+    try (ArtifactUploadQueue queue = new ArtifactUploadQueue(1, 1024, eventBus)) {
+      queue.upload(
+          createBuildInfoRecorder(),
+          ImmutableSet.of(RULE_KEY),
+          new NoopArtifactCache(),
+          10);
+    }
+    assertEquals(0, listener.event.getUploaded());
+  }
+
+  private static BuildInfoRecorder createBuildInfoRecorder() {
+    BuildInfoRecorder buildInfoRecorder = new BuildInfoRecorder(
+        BuildTargetFactory.newInstance("//foo:bar"),
+        new FakeProjectFilesystem(),
+        new DefaultClock(),
+        new BuildId(),
+        ImmutableMap.<String, String>of(),
+        RULE_KEY,
+        RULE_KEY);
+    try {
+      buildInfoRecorder.writeMetadataToDisk(/* clearExistingMetadata */ true);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return buildInfoRecorder;
+  }
+
+  private static class RecordingArtifactCache implements ArtifactCache {
+    private final List<ImmutableSet<RuleKey>> stored =
+        Collections.synchronizedList(Lists.<ImmutableSet<RuleKey>>newArrayList());
+
+    @Override
+    public void store(ImmutableSet<RuleKey> ruleKeys, File output) throws InterruptedException {
+      stored.add(ruleKeys);
+    }
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, File output) {
+      return CacheResult.miss();
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs) {
+      return multiContains(outputs.keySet());
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+      return new NoopArtifactCache().multiContains(ruleKeys);
+    }
+
+    @Override
+    public boolean isStoreSupported() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  public static class FlushListener {
+    private ArtifactCacheEvent.UploadsFlushed event;
+
+    @Subscribe
+    public void uploadsFlushed(ArtifactCacheEvent.UploadsFlushed event) {
+      this.event = event;
+    }
+  }
+}
@@ -36,7 +36,6 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Collection;
 
 public class BuildInfoRecorderIntegrationTest {
@@ -69,7 +68,10 @@ public class BuildInfoRecorderIntegrationTest {
         ImmutableSet.of(new RuleKey(RULE_KEY)),
         artifactCache,
         new BuckEventBus(new DefaultClock(), new BuildId()));
-    assertTrue(cacheDir.getRootPath().resolve(Paths.get(RULE_KEY)).toFile().exists());
+    assertTrue(
+        DirArtifactCache.getPathToArtifact(cacheDir.getRootPath(), new RuleKey(RULE_KEY))
+            .toFile()
+            .exists());
   }
 
   private static BuildInfoRecorder createBuildInfoRecorder(ProjectFilesystem filesystem) {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+
+import org.junit.Test;
+
+public class BuildRuleDurationStoreTest {
+
+  private final SourcePathResolver resolver = new SourcePathResolver(new BuildRuleResolver());
+
+  @Test
+  public void rulesOnTheLongestChainAreRankedFirst() {
+    FakeBuildRule slowLeaf = new FakeBuildRule("//:slow_leaf", resolver);
+    FakeBuildRule quickLibrary = new FakeBuildRule("//:quick_library", resolver, slowLeaf);
+    FakeBuildRule mediumLeaf = new FakeBuildRule("//:medium_leaf", resolver);
+    FakeBuildRule binary =
+        new FakeBuildRule("//:binary", resolver, quickLibrary, mediumLeaf);
+    FakeBuildRule unknown = new FakeBuildRule("//:unknown", resolver, slowLeaf);
+
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(
+        new FakeProjectFilesystem(),
+        new ObjectMapper());
+    store.recordDurationMillis(slowLeaf, 100);
+    store.recordDurationMillis(quickLibrary, 10);
+    store.recordDurationMillis(mediumLeaf, 50);
+    store.recordDurationMillis(binary, 5);
+
+    ImmutableMap<BuildTarget, Long> priorities =
+        store.getCriticalPathPriorities(
+            ImmutableList.<BuildRule>of(mediumLeaf, binary, unknown, slowLeaf, quickLibrary));
+
+    assertEquals(5L, (long) priorities.get(binary.getBuildTarget()));
+    assertEquals(15L, (long) priorities.get(quickLibrary.getBuildTarget()));
+    assertEquals(55L, (long) priorities.get(mediumLeaf.getBuildTarget()));
+    assertEquals(
+        BuildRuleDurationStore.DEFAULT_DURATION_MILLIS,
+        (long) priorities.get(unknown.getBuildTarget()));
+    assertEquals(115L, (long) priorities.get(slowLeaf.getBuildTarget()));
+  }
+
+  @Test
+  public void timeSpentWaitingForDepsIsNotCounted() {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    FakeBuildRule built = new FakeBuildRule("//:built", resolver);
+    FakeBuildRule fetched = new FakeBuildRule("//:fetched", resolver);
+
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(filesystem, new ObjectMapper());
+    store.ruleStarted(at(0, BuildRuleEvent.started(built)));
+    store.ruleSuspended(at(10, BuildRuleEvent.suspended(built)));
+    store.ruleResumed(at(500, BuildRuleEvent.resumed(built)));
+    store.ruleFinished(at(530, finished(built, BuildRuleSuccessType.BUILT_LOCALLY)));
+    store.ruleStarted(at(0, BuildRuleEvent.started(fetched)));
+    store.ruleFinished(at(20, finished(fetched, BuildRuleSuccessType.FETCHED_FROM_CACHE)));
+    store.buildFinished(at(600, BuildEvent.finished(ImmutableList.<String>of(), 0)));
+
+    BuildRuleDurationStore reloaded = BuildRuleDurationStore.load(filesystem, new ObjectMapper());
+    assertEquals(Optional.of(40L), reloaded.getDurationMillis(built));
+    assertEquals(Optional.<Long>absent(), reloaded.getDurationMillis(fetched));
+  }
+
+  private static BuildRuleEvent.Finished finished(BuildRule rule, BuildRuleSuccessType success) {
+    return BuildRuleEvent.finished(
+        rule,
+        BuildRuleStatus.SUCCESS,
+        CacheResult.miss(),
+        Optional.of(success),
+        Optional.<HashCode>absent(),
+        Optional.<Long>absent());
+  }
+
+  private static <T extends BuckEvent> T at(long timestamp, T event) {
+    event.configure(timestamp, 0, 0, BuckEventBusFactory.BUILD_ID_FOR_TEST);
+    return event;
+  }
+}
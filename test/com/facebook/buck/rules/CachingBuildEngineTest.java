@@ -1556,6 +1556,16 @@ public class CachingBuildEngineTest extends EasyMockSupport {
       return CacheResult.hit("dir");
     }
 
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+      throw new UnsupportedOperationException();
+    }
+
     @Override
     public void store(ImmutableSet<RuleKey> ruleKeys, File output) {
       throw new UnsupportedOperationException();
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class DirArtifactCacheIndexTest {
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private static final Supplier<Iterable<DirArtifactCacheIndex.Entry>> NO_ENTRIES =
+      Suppliers.<Iterable<DirArtifactCacheIndex.Entry>>ofInstance(
+          ImmutableList.<DirArtifactCacheIndex.Entry>of());
+
+  @Test
+  public void rewritingTheJournalKeepsWhatAnotherIndexAppended() throws IOException {
+    Path journal = tmpDir.getRoot().toPath().resolve(".index");
+    DirArtifactCacheIndex first = new DirArtifactCacheIndex(journal, NO_ENTRIES, 0);
+    DirArtifactCacheIndex second = new DirArtifactCacheIndex(journal, NO_ENTRIES, 0);
+
+    first.put("aaaa", 1, 1);
+    first.flush();
+
+    // Two records for one entry make the journal stale enough to be rewritten on close.
+    second.put("bbbb", 2, 2);
+    second.put("bbbb", 2, 3);
+    second.close();
+    assertTrue(second.contains("aaaa"));
+    assertEquals(3, second.getTotalSize());
+
+    first.put("cccc", 4, 4);
+    first.close();
+
+    DirArtifactCacheIndex reopened = new DirArtifactCacheIndex(journal, NO_ENTRIES);
+    assertTrue(reopened.contains("aaaa"));
+    assertTrue(reopened.contains("bbbb"));
+    assertTrue(reopened.contains("cccc"));
+    assertEquals(7, reopened.getTotalSize());
+    reopened.close();
+  }
+}
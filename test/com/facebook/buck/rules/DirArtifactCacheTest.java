@@ -27,6 +27,7 @@ import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.NullFileHashCache;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -227,11 +228,11 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleY, new BuildRuleForTest(fileY));
     assertEquals(inputRuleZ, new BuildRuleForTest(fileZ));
 
-    assertEquals(3, cacheDir.listFiles().length);
+    assertEquals(3, getArtifacts(cacheDir).size());
 
     dirArtifactCache.deleteOldFiles();
 
-    assertEquals(0, cacheDir.listFiles().length);
+    assertEquals(0, getArtifacts(cacheDir).size());
   }
 
   @Test
@@ -302,7 +303,7 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleY, new BuildRuleForTest(fileY));
     assertEquals(inputRuleZ, new BuildRuleForTest(fileZ));
 
-    assertEquals(0, cacheDir.listFiles().length);
+    assertEquals(0, getArtifacts(cacheDir).size());
   }
 
   @Test
@@ -356,17 +357,13 @@ public class DirArtifactCacheTest {
   @Test
   public void testDeleteSome() throws IOException {
     File cacheDir = tmpDir.newFolder();
-    File fileW = new File(cacheDir, "w");
-    File fileX = new File(cacheDir, "x");
-    File fileY = new File(cacheDir, "y");
-    File fileZ = new File(cacheDir, "z");
-
-    dirArtifactCache = new DirArtifactCache(
-        "dir",
-        cacheDir,
-        /* doStore */ true,
-        /* maxCacheSizeBytes */ Optional.of(2L));
+    File fileW = new File(cacheDir, "wwww");
+    File fileX = new File(cacheDir, "xxxx");
+    File fileY = new File(cacheDir, "yyyy");
+    File fileZ = new File(cacheDir, "zzzz");
 
+    // Artifacts kept directly in the cache directory by older versions of buck are indexed in the
+    // order they were last accessed.
     Files.write("w", fileW, Charsets.UTF_8);
     Files.write("x", fileX, Charsets.UTF_8);
     Files.write("y", fileY, Charsets.UTF_8);
@@ -377,11 +374,88 @@ public class DirArtifactCacheTest {
     java.nio.file.Files.setAttribute(fileY.toPath(), "lastAccessTime", FileTime.fromMillis(1000));
     java.nio.file.Files.setAttribute(fileZ.toPath(), "lastAccessTime", FileTime.fromMillis(2000));
 
-    assertEquals(4, cacheDir.listFiles().length);
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(2L));
+
+    assertEquals(ImmutableSet.of("wwww", "xxxx", "yyyy", "zzzz"), getArtifacts(cacheDir));
 
     dirArtifactCache.deleteOldFiles();
 
-    assertEquals(ImmutableSet.of(fileZ, fileW), ImmutableSet.copyOf(cacheDir.listFiles()));
+    assertEquals(ImmutableSet.of("zzzz", "wwww"), getArtifacts(cacheDir));
+  }
+
+  @Test
+  public void testDeleteLeastRecentlyUsed() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+    Files.write("x", fileX, Charsets.UTF_8);
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(2L));
+
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("aaaa")), fileX);
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("bbbb")), fileX);
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("cccc")), fileX);
+    assertEquals(
+        CacheResult.Type.HIT,
+        dirArtifactCache.fetch(new RuleKey("aaaa"), fileX).getType());
+
+    dirArtifactCache.deleteOldFiles();
+
+    assertEquals(ImmutableSet.of("aaaa", "cccc"), getArtifacts(cacheDir));
+  }
+
+  @Test
+  public void testIndexIsReadBackByANewCache() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+    Files.write("x", fileX, Charsets.UTF_8);
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("aaaa")), fileX);
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("bbbb")), fileX);
+    dirArtifactCache.fetch(new RuleKey("aaaa"), fileX);
+    dirArtifactCache.close();
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(1L));
+    dirArtifactCache.buildFinished(BuildEvent.finished(ImmutableList.<String>of(), 0));
+    dirArtifactCache.close();
+
+    assertEquals(ImmutableSet.of("aaaa"), getArtifacts(cacheDir));
+    assertTrue(new File(cacheDir, DirArtifactCache.INDEX_FILE_NAME).isFile());
+  }
+
+  @Test
+  public void testArtifactsAreShardedIntoSubdirectories() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+    Files.write("x", fileX, Charsets.UTF_8);
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    dirArtifactCache.store(ImmutableSet.of(new RuleKey("abcd")), fileX);
+
+    assertTrue(new File(new File(cacheDir, "ab"), "abcd").isFile());
+    assertEquals(
+        cacheDir.toPath().resolve("ab/abcd"),
+        DirArtifactCache.getPathToArtifact(cacheDir.toPath(), new RuleKey("abcd")));
   }
 
   @Test
@@ -410,6 +484,21 @@ public class DirArtifactCacheTest {
     assertEquals(CacheResult.Type.HIT, dirArtifactCache.fetch(ruleKey2, fileX).getType());
   }
 
+  /**
+   * @return the names of the artifacts in the subdirectories of {@code cacheDir}.
+   */
+  private static ImmutableSet<String> getArtifacts(File cacheDir) {
+    ImmutableSet.Builder<String> artifacts = ImmutableSet.builder();
+    for (File shard : cacheDir.listFiles()) {
+      if (shard.isDirectory()) {
+        for (File artifact : shard.listFiles()) {
+          artifacts.add(artifact.getName());
+        }
+      }
+    }
+    return artifacts.build();
+  }
+
   private static class BuildRuleForTest extends FakeBuildRule {
 
     @SuppressWarnings("PMD.UnusedPrivateField")
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+public class ExistencePrefetchingArtifactCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void knownMissesAreNotFetched() throws Exception {
+    FakeBuildRule cached = createRule("//:cached", "aaaa");
+    FakeBuildRule notCached = createRule("//:not_cached", "bbbb");
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    delegate.putArtifact(cached.getRuleKey(), "artifact".getBytes(Charsets.UTF_8));
+
+    ExistencePrefetchingArtifactCache cache = new ExistencePrefetchingArtifactCache(delegate);
+    cache.prefetch(ImmutableList.<BuildRule>of(cached, notCached));
+
+    File output = tmp.newFile();
+    assertEquals(CacheResult.Type.MISS, cache.fetch(notCached.getRuleKey(), output).getType());
+    assertEquals(CacheResult.Type.HIT, cache.fetch(cached.getRuleKey(), output).getType());
+    assertEquals(ImmutableList.of(cached.getRuleKey()), delegate.fetched);
+  }
+
+  @Test
+  public void storedArtifactsAreNoLongerKnownMisses() throws Exception {
+    FakeBuildRule rule = createRule("//:rule", "cccc");
+    CountingArtifactCache delegate = new CountingArtifactCache();
+    ExistencePrefetchingArtifactCache cache = new ExistencePrefetchingArtifactCache(delegate);
+    cache.prefetch(ImmutableList.<BuildRule>of(rule));
+
+    File output = tmp.newFile();
+    Files.write(output.toPath(), "artifact".getBytes(Charsets.UTF_8));
+    cache.store(ImmutableSet.of(rule.getRuleKey()), output);
+
+    assertEquals(
+        CacheResult.Type.HIT,
+        cache.multiFetch(ImmutableMap.of(rule.getRuleKey(), output))
+            .get(rule.getRuleKey())
+            .getType());
+  }
+
+  private static FakeBuildRule createRule(String target, String ruleKey) {
+    FakeBuildRule rule = new FakeBuildRule(
+        BuildTargetFactory.newInstance(target),
+        new SourcePathResolver(new BuildRuleResolver()));
+    rule.setRuleKey(new RuleKey(ruleKey));
+    return rule;
+  }
+
+  private static class CountingArtifactCache extends InMemoryArtifactCache {
+    private final List<RuleKey> fetched = Lists.newArrayList();
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, File output) {
+      fetched.add(ruleKey);
+      return super.fetch(ruleKey, output);
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.facebook.buck.rules;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
@@ -54,6 +55,26 @@ public class InMemoryArtifactCache implements ArtifactCache {
     return CacheResult.hit("in-memory");
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, File> outputs) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, File> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(
+          ruleKey,
+          artifacts.containsKey(ruleKey) ? CacheResult.hit("in-memory") : CacheResult.miss());
+    }
+    return results.build();
+  }
+
   @Override
   public void store(ImmutableSet<RuleKey> ruleKeys, File output) {
     for (RuleKey ruleKey : ruleKeys) {
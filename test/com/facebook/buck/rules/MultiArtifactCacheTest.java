@@ -17,16 +17,25 @@
 package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import org.junit.Rule;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
 
 import javax.annotation.Nullable;
 
@@ -35,6 +44,9 @@ public class MultiArtifactCacheTest {
       new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
   private static final File dummyFile = new File("dummy");
 
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
   class DummyArtifactCache extends NoopArtifactCache {
 
     @Nullable public RuleKey storeKey;
@@ -126,4 +138,75 @@ public class MultiArtifactCacheTest {
     cache.close();
   }
 
+  // An in-memory cache whose fetches block until it is released.
+  private static class BlockingArtifactCache extends InMemoryArtifactCache {
+
+    private final CountDownLatch fetchLatch = new CountDownLatch(1);
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, File output) {
+      Uninterruptibles.awaitUninterruptibly(fetchLatch);
+      return super.fetch(ruleKey, output);
+    }
+  }
+
+  @Test
+  public void parallelFetchDoesNotWaitForASlowCache() throws Exception {
+    BlockingArtifactCache slow = new BlockingArtifactCache();
+    InMemoryArtifactCache fast = new InMemoryArtifactCache();
+    File source = tmp.newFile("source");
+    Files.write(source.toPath(), "artifact".getBytes(Charsets.UTF_8));
+    fast.store(ImmutableSet.of(dummyRuleKey), source);
+
+    MultiArtifactCache cache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(slow, fast),
+        Optional.of(0L));
+    File output = new File(tmp.getRoot(), "output");
+    CacheResult result = cache.fetch(dummyRuleKey, output);
+
+    assertEquals(CacheResult.Type.HIT, result.getType());
+    assertEquals("artifact", new String(Files.readAllBytes(output.toPath()), Charsets.UTF_8));
+
+    // The hit is copied back to the slow cache in the background, which finishes by close().
+    slow.fetchLatch.countDown();
+    cache.close();
+    assertEquals(
+        "artifact",
+        new String(slow.getArtifact(dummyRuleKey).get(), Charsets.UTF_8));
+    assertEquals(
+        "Temporary files should be cleaned up.",
+        ImmutableSet.of("source", "output"),
+        ImmutableSet.copyOf(tmp.getRoot().list()));
+  }
+
+  @Test
+  public void parallelFetchReportsAMissWhenNoCacheHasTheArtifact() throws Exception {
+    MultiArtifactCache cache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(
+            new InMemoryArtifactCache(),
+            new ErroringArtifactCache()),
+        Optional.of(10L));
+    File output = new File(tmp.getRoot(), "output");
+    assertSame(CacheResult.Type.ERROR, cache.fetch(dummyRuleKey, output).getType());
+    assertFalse(output.exists());
+    cache.close();
+  }
+
+  @Test
+  public void parallelFetchPrefersTheFirstCacheWhenItAnswersInTime() throws Exception {
+    InMemoryArtifactCache first = new InMemoryArtifactCache();
+    DummyArtifactCache second = new DummyArtifactCache();
+    File source = tmp.newFile("source");
+    Files.write(source.toPath(), "artifact".getBytes(Charsets.UTF_8));
+    first.store(ImmutableSet.of(dummyRuleKey), source);
+
+    MultiArtifactCache cache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(first, second),
+        Optional.of(60000L));
+    File output = new File(tmp.getRoot(), "output");
+    assertEquals(CacheResult.Type.HIT, cache.fetch(dummyRuleKey, output).getType());
+    assertTrue(output.exists());
+    cache.close();
+  }
+
 }
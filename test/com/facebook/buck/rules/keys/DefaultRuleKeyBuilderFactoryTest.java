@@ -106,6 +106,57 @@ public class DefaultRuleKeyBuilderFactoryTest {
 
 
 
+  @Test
+  public void primitiveAndStringFieldsAreAddedAsIfTheyWereBoxed() {
+    BuildTarget target = BuildTargetFactory.newInstance("//cheese:peas");
+    SourcePathResolver pathResolver = new SourcePathResolver(new BuildRuleResolver());
+    BuildRule rule = new EmptyRule(target);
+
+    DefaultRuleKeyBuilderFactory factory =
+        new DefaultRuleKeyBuilderFactory(new NullFileHashCache(), pathResolver);
+    RuleKey.Builder builder = factory.newInstance(rule);
+
+    // Fields are added in the order of their names.
+    builder.setReflectively("aBoolean", true);
+    builder.setReflectively("aDouble", 2.5d);
+    builder.setReflectively("aFloat", 1.5f);
+    builder.setReflectively("aLong", 42L);
+    builder.setReflectively("aNullString", null);
+    builder.setReflectively("aShort", (short) 7);
+    builder.setReflectively("aString", "caf\u00e9");
+    builder.setReflectively("anInt", 42);
+    RuleKey expected = builder.build();
+
+    class TypedFields extends EmptyRule {
+
+      @AddToRuleKey
+      private boolean aBoolean = true;
+      @AddToRuleKey
+      private double aDouble = 2.5d;
+      @AddToRuleKey
+      private float aFloat = 1.5f;
+      @AddToRuleKey
+      private int anInt = 42;
+      @AddToRuleKey
+      private long aLong = 42L;
+      @AddToRuleKey
+      @Nullable
+      private String aNullString = null;
+      @AddToRuleKey
+      private short aShort = 7;
+      @AddToRuleKey
+      private String aString = "caf\u00e9";
+
+      public TypedFields(BuildTarget target) {
+        super(target);
+      }
+    }
+
+    RuleKey.Builder seen = factory.newInstance(new TypedFields(target));
+
+    assertEquals(expected, seen.build());
+  }
+
   @Test
   public void shouldAllowAFieldToBeStringified() {
     BuildTarget target = BuildTargetFactory.newInstance("//cheese:peas");
@@ -24,6 +24,8 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.FakeBuckEventListener;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.concurrent.ConcurrencyLimit;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
@@ -34,6 +36,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DefaultStepRunnerTest {
 
@@ -125,6 +128,115 @@ public class DefaultStepRunnerTest {
     }
   }
 
+  @Test(timeout = 10000)
+  public void testResourcesAreReleasedWhenAStepFails() throws InterruptedException {
+    ResourceAmounts limit = ResourceAmounts.of(2, 1000);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setConcurrencyLimit(new ConcurrencyLimit(2, Double.POSITIVE_INFINITY, limit))
+        .build();
+    DefaultStepRunner runner = new DefaultStepRunner(context);
+
+    try {
+      runner.runStepForBuildTarget(
+          new ResourceIntensiveExplosionStep(limit),
+          Optional.<BuildTarget>absent());
+      fail("Should have thrown a StepFailedException!");
+    } catch (StepFailedException e) {
+      // Expected.
+    }
+
+    // This would wait forever if the failed step still held the budget.
+    context.getResourceBudget().acquire(limit);
+  }
+
+  @Test(timeout = 10000)
+  public void testResourceIntensiveStepsInCompositeStepsAreCountedAgainstTheBudget()
+      throws StepFailedException, InterruptedException {
+    ResourceAmounts limit = ResourceAmounts.of(1, 1000);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setConcurrencyLimit(new ConcurrencyLimit(4, Double.POSITIVE_INFINITY, limit))
+        .build();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    // Laid out like the steps SmartDexingStep runs in parallel: each dx run is followed by writing
+    // the hash of its inputs.
+    ImmutableList.Builder<Step> steps = ImmutableList.builder();
+    for (int i = 0; i < 4; i++) {
+      steps.add(
+          new CompositeStep(
+              ImmutableList.of(
+                  new ResourceIntensiveCountingStep(limit, running, maxRunning),
+                  new FakeStep("write", "write hash", 0))));
+    }
+
+    ListeningExecutorService service =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    new DefaultStepRunner(context).runStepsInParallelAndWait(
+        steps.build(),
+        Optional.<BuildTarget>absent(),
+        service,
+        StepRunner.NOOP_CALLBACK);
+    service.shutdown();
+
+    assertEquals(1, maxRunning.get());
+  }
+
+  private static class ResourceIntensiveCountingStep implements ResourceIntensiveStep {
+    private final ResourceAmounts requiredResources;
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+
+    public ResourceIntensiveCountingStep(
+        ResourceAmounts requiredResources,
+        AtomicInteger running,
+        AtomicInteger maxRunning) {
+      this.requiredResources = requiredResources;
+      this.running = running;
+      this.maxRunning = maxRunning;
+    }
+
+    @Override
+    public int execute(ExecutionContext context) throws InterruptedException {
+      int nowRunning = running.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(maxRunning.get(), nowRunning));
+      }
+      Thread.sleep(50);
+      running.decrementAndGet();
+      return 0;
+    }
+
+    @Override
+    public ResourceAmounts getRequiredResources(ExecutionContext context) {
+      return requiredResources;
+    }
+
+    @Override
+    public String getShortName() {
+      return "dx";
+    }
+
+    @Override
+    public String getDescription(ExecutionContext context) {
+      return "dx";
+    }
+  }
+
+  private static class ResourceIntensiveExplosionStep
+      extends ExplosionStep
+      implements ResourceIntensiveStep {
+    private final ResourceAmounts requiredResources;
+
+    public ResourceIntensiveExplosionStep(ResourceAmounts requiredResources) {
+      this.requiredResources = requiredResources;
+    }
+
+    @Override
+    public ResourceAmounts getRequiredResources(ExecutionContext context) {
+      return requiredResources;
+    }
+  }
+
   private static class ExplosionStep implements Step {
     @Override
     public int execute(ExecutionContext context) {
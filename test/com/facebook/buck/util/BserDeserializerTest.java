@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Bytes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class BserDeserializerTest {
+
+  @Test
+  public void decodesScalars() throws IOException {
+    assertEquals("hello", deserialize("hello"));
+    assertEquals(-1L, deserialize(-1));
+    assertEquals(1000L, deserialize(1000));
+    assertEquals(100000L, deserialize(100000));
+    assertEquals(Long.MAX_VALUE, deserialize(Long.MAX_VALUE));
+    assertEquals(1.5, deserialize(1.5));
+    assertEquals(true, deserialize(true));
+    assertEquals(false, deserialize(false));
+    assertNull(deserialize(null));
+  }
+
+  @Test
+  public void decodesNestedArraysAndObjects() throws IOException {
+    Object value = ImmutableMap.of(
+        "files", ImmutableList.of(
+            ImmutableMap.of("name", "foo/bar", "exists", true),
+            ImmutableMap.of("name", "caf\u00e9", "exists", false)),
+        "clock", "c:1:2:3",
+        "empty", Collections.emptyList());
+    assertEquals(value, deserialize(value));
+  }
+
+  @Test
+  public void decodesTemplates() throws IOException {
+    byte[] template = Bytes.concat(
+        new byte[] {BserDeserializer.BSER_TEMPLATE},
+        new byte[] {BserDeserializer.BSER_ARRAY, BserDeserializer.BSER_INT8, 2},
+        string("name"),
+        string("exists"),
+        new byte[] {BserDeserializer.BSER_INT8, 2},
+        string("foo"),
+        new byte[] {BserDeserializer.BSER_TRUE},
+        string("bar"),
+        new byte[] {BserDeserializer.BSER_SKIP});
+    assertEquals(
+        ImmutableList.of(
+            ImmutableMap.of("name", "foo", "exists", true),
+            ImmutableMap.of("name", "bar")),
+        BserDeserializer.deserializePdu(new ByteArrayInputStream(pdu(template))));
+  }
+
+  @Test
+  public void readsConsecutivePdus() throws IOException {
+    InputStream input = new ByteArrayInputStream(
+        Bytes.concat(FakeWatchmanProcess.serializePdu("a"), FakeWatchmanProcess.serializePdu(2)));
+    assertEquals("a", BserDeserializer.deserializePdu(input));
+    assertEquals(2L, BserDeserializer.deserializePdu(input));
+    assertNull(BserDeserializer.deserializePdu(input));
+  }
+
+  @Test
+  public void rejectsInvalidHeader() {
+    assertDeserializationFails("{}".getBytes(), "Invalid BSER header");
+  }
+
+  @Test
+  public void rejectsTruncatedPdu() {
+    byte[] bytes = FakeWatchmanProcess.serializePdu(ImmutableList.of("a", "b"));
+    assertDeserializationFails(Arrays.copyOf(bytes, bytes.length - 1), "");
+  }
+
+  @Test
+  public void rejectsLengthsBeyondThePdu() {
+    byte[] value = {BserDeserializer.BSER_STRING, BserDeserializer.BSER_INT8, 100, 'a'};
+    assertDeserializationFails(pdu(value), "Invalid BSER length");
+  }
+
+  @Test
+  public void rejectsUnknownTypes() {
+    assertDeserializationFails(pdu(new byte[] {0x42}), "Unexpected BSER type 0x42");
+  }
+
+  @Test
+  public void rejectsTrailingBytes() {
+    byte[] value = {BserDeserializer.BSER_TRUE, BserDeserializer.BSER_TRUE};
+    assertDeserializationFails(pdu(value), "1 unexpected bytes");
+  }
+
+  private static Object deserialize(Object value) throws IOException {
+    return BserDeserializer.deserializePdu(
+        new ByteArrayInputStream(FakeWatchmanProcess.serializePdu(value)));
+  }
+
+  private static void assertDeserializationFails(byte[] bytes, String message) {
+    try {
+      BserDeserializer.deserializePdu(new ByteArrayInputStream(bytes));
+      fail("Should have thrown IOException.");
+    } catch (IOException e) {
+      assertThat(String.valueOf(e.getMessage()), containsString(message));
+    }
+  }
+
+  private static byte[] string(String value) {
+    byte[] bytes = value.getBytes();
+    return Bytes.concat(
+        new byte[] {BserDeserializer.BSER_STRING, BserDeserializer.BSER_INT8, (byte) bytes.length},
+        bytes);
+  }
+
+  private static byte[] pdu(byte[] value) {
+    ByteBuffer header = ByteBuffer.allocate(7).order(ByteOrder.nativeOrder());
+    header.put((byte) 0x00).put((byte) 0x01).put(BserDeserializer.BSER_INT32).putInt(value.length);
+    return Bytes.concat(header.array(), value);
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Fake implementation of a persistent {@code watchman} client {@link java.lang.Process}, which
+ * sends whatever the test passes to {@link #send} to its stdout as BSER PDUs, until
+ * {@link #exit} or {@link #destroy()} is called.
+ */
+public class FakeWatchmanProcess extends Process {
+  private final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+  private final PipedOutputStream stdoutWriter = new PipedOutputStream();
+  private final PipedInputStream stdout;
+  private InputStream stderr = new ByteArrayInputStream(new byte[0]);
+  private int exitValue;
+  private boolean isDestroyed;
+
+  public FakeWatchmanProcess() {
+    try {
+      this.stdout = new PipedInputStream(stdoutWriter, 1 << 20);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /** Sends {@code value}, made of maps, lists, strings, numbers, booleans and nulls. */
+  public synchronized void send(@Nullable Object value) throws IOException {
+    stdoutWriter.write(serializePdu(value));
+    stdoutWriter.flush();
+  }
+
+  /** Sends arbitrary bytes, such as a malformed PDU. */
+  public void sendRaw(byte[] bytes) throws IOException {
+    stdoutWriter.write(bytes);
+    stdoutWriter.flush();
+  }
+
+  public void exit(int exitValue, String stderr) throws IOException {
+    this.exitValue = exitValue;
+    this.stderr = new ByteArrayInputStream(stderr.getBytes(Charsets.UTF_8));
+    stdoutWriter.close();
+  }
+
+  @Override
+  public void destroy() {
+    isDestroyed = true;
+    try {
+      stdoutWriter.close();
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public int exitValue() {
+    return exitValue;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return stdin;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return stdout;
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    return stderr;
+  }
+
+  @Override
+  public int waitFor() {
+    return exitValue;
+  }
+
+  public boolean isDestroyed() {
+    return isDestroyed;
+  }
+
+  /** Returns the command written to the process's stdin. */
+  public String getCommand() {
+    return stdin.toString();
+  }
+
+  public static byte[] serializePdu(@Nullable Object value) {
+    ByteBuffer body = ByteBuffer.allocate(1 << 20).order(ByteOrder.nativeOrder());
+    serializeValue(value, body);
+    ByteBuffer pdu = ByteBuffer.allocate(body.position() + 7).order(ByteOrder.nativeOrder());
+    pdu.put((byte) 0x00).put((byte) 0x01);
+    serializeInteger(body.position(), pdu);
+    pdu.put(body.array(), 0, body.position());
+    byte[] bytes = new byte[pdu.position()];
+    System.arraycopy(pdu.array(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static void serializeValue(@Nullable Object value, ByteBuffer buffer) {
+    if (value == null) {
+      buffer.put((byte) 0x0a);
+    } else if (value instanceof Boolean) {
+      buffer.put((Boolean) value ? (byte) 0x08 : (byte) 0x09);
+    } else if (value instanceof Double) {
+      buffer.put((byte) 0x07).putDouble((Double) value);
+    } else if (value instanceof Number) {
+      serializeInteger(((Number) value).longValue(), buffer);
+    } else if (value instanceof String) {
+      byte[] bytes = ((String) value).getBytes(Charsets.UTF_8);
+      buffer.put((byte) 0x02);
+      serializeInteger(bytes.length, buffer);
+      buffer.put(bytes);
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      buffer.put((byte) 0x00);
+      serializeInteger(list.size(), buffer);
+      for (Object element : list) {
+        serializeValue(element, buffer);
+      }
+    } else {
+      Preconditions.checkArgument(value instanceof Map, "Can't serialize %s", value);
+      Map<?, ?> map = (Map<?, ?>) value;
+      buffer.put((byte) 0x01);
+      serializeInteger(map.size(), buffer);
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        serializeValue(entry.getKey(), buffer);
+        serializeValue(entry.getValue(), buffer);
+      }
+    }
+  }
+
+  private static void serializeInteger(long value, ByteBuffer buffer) {
+    if (value == (byte) value) {
+      buffer.put((byte) 0x03).put((byte) value);
+    } else if (value == (short) value) {
+      buffer.put((byte) 0x04).putShort((short) value);
+    } else if (value == (int) value) {
+      buffer.put((byte) 0x05).putInt((int) value);
+    } else {
+      buffer.put((byte) 0x06).putLong(value);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class PersistentFileHashCacheTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private Path path;
+  private FileTime anHourAgo;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(
+        tmp.getRoot().toPath(),
+        ImmutableSet.of(BuckConstant.BUCK_OUTPUT_PATH));
+    path = Paths.get("SomeClass.java");
+    anHourAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+  }
+
+  @Test
+  public void unchangedFilesAreNotReadByANewCache() throws IOException {
+    writeFile("class SomeClass {}", anHourAgo);
+    PersistentFileHashCache first = new PersistentFileHashCache(filesystem);
+    assertEquals(sha1("class SomeClass {}"), first.get(path));
+    assertEquals(1, first.getFilesRead());
+
+    PersistentFileHashCache second = new PersistentFileHashCache(filesystem);
+    assertEquals(sha1("class SomeClass {}"), second.get(path));
+    assertEquals(0, second.getFilesRead());
+  }
+
+  @Test
+  public void closingTheCacheKeepsWhatItRecorded() throws IOException {
+    writeFile("class SomeClass {}", anHourAgo);
+    PersistentFileHashCache first = new PersistentFileHashCache(filesystem);
+    first.get(path);
+    first.close();
+
+    // A closed cache still hashes files, it just stops recording them.
+    Path other = Paths.get("OtherClass.java");
+    Files.write(filesystem.resolve(other), "class OtherClass {}".getBytes(Charsets.UTF_8));
+    Files.setLastModifiedTime(filesystem.resolve(other), anHourAgo);
+    assertEquals(sha1("class OtherClass {}"), first.get(other));
+
+    PersistentFileHashCache second = new PersistentFileHashCache(filesystem);
+    assertEquals(sha1("class SomeClass {}"), second.get(path));
+    assertEquals(0, second.getFilesRead());
+    second.get(other);
+    assertEquals(1, second.getFilesRead());
+    second.close();
+  }
+
+  @Test
+  public void filesWithANewStampAreReadAgain() throws IOException {
+    writeFile("class SomeClass {}", anHourAgo);
+    new PersistentFileHashCache(filesystem).get(path);
+
+    writeFile("class OtherClass {}", FileTime.fromMillis(anHourAgo.toMillis() + 1000));
+    PersistentFileHashCache cache = new PersistentFileHashCache(filesystem);
+    assertEquals(sha1("class OtherClass {}"), cache.get(path));
+    assertEquals(1, cache.getFilesRead());
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws IOException {
+    writeFile("class SomeClass {}", FileTime.fromMillis(System.currentTimeMillis()));
+    new PersistentFileHashCache(filesystem).get(path);
+
+    PersistentFileHashCache cache = new PersistentFileHashCache(filesystem);
+    cache.get(path);
+    assertEquals(1, cache.getFilesRead());
+  }
+
+  @Test
+  public void ignoredFilesAreNotRecorded() throws IOException {
+    path = BuckConstant.BUCK_OUTPUT_PATH.resolve("Output.java");
+    writeFile("class Output {}", anHourAgo);
+    new PersistentFileHashCache(filesystem).get(path);
+
+    writeFile("class Changed {}", anHourAgo);
+    assertNotEquals(
+        sha1("class Output {}"),
+        new PersistentFileHashCache(filesystem).get(path));
+  }
+
+  @Test
+  public void partialRecordsAreDropped() throws IOException {
+    writeFile("class SomeClass {}", anHourAgo);
+    new PersistentFileHashCache(filesystem).get(path);
+
+    Path index = filesystem.resolve(PersistentFileHashCache.INDEX_PATH);
+    byte[] bytes = Files.readAllBytes(index);
+    Files.write(index, Arrays.copyOf(bytes, bytes.length - 5));
+
+    PersistentFileHashCache cache = new PersistentFileHashCache(filesystem);
+    assertEquals(sha1("class SomeClass {}"), cache.get(path));
+    assertEquals(1, cache.getFilesRead());
+  }
+
+  private void writeFile(String contents, FileTime modified) throws IOException {
+    Path absolutePath = filesystem.resolve(path);
+    Files.createDirectories(absolutePath.getParent());
+    Files.write(absolutePath, contents.getBytes(Charsets.UTF_8));
+    Files.setLastModifiedTime(absolutePath, modified);
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, Charsets.UTF_8);
+  }
+}
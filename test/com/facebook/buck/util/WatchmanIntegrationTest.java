@@ -91,7 +91,6 @@ public class WatchmanIntegrationTest {
       WatchmanWatcher watcher = new WatchmanWatcher(
           new ProjectFilesystem(tmp.getRoot().toPath()),
           eventBus,
-          new FakeClock(0),
           new ObjectMapper(),
           new ArrayList<Path>(),
           new ArrayList<String>());
@@ -16,12 +16,8 @@
 
 package com.facebook.buck.util;
 
-import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
-import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.createStrictMock;
-import static org.easymock.EasyMock.expect;
-import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.newCapture;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
@@ -33,14 +29,14 @@ import static org.junit.Assert.fail;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.model.BuildId;
-import com.facebook.buck.timing.Clock;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
 import com.facebook.buck.timing.FakeClock;
-import com.facebook.buck.timing.IncrementingFakeClock;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Charsets;
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
@@ -49,577 +45,588 @@ import com.google.common.eventbus.Subscribe;
 import org.easymock.Capture;
 import org.hamcrest.Matchers;
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 public class WatchmanWatcherTest {
 
+  private static final String CLOCK = "c:1386170113:26390:5:50273";
+
+  private static final ImmutableMap<String, Object> SUBSCRIBED = ImmutableMap.<String, Object>of(
+      "version", "3.1.0",
+      "subscribe", "buckduuid",
+      "clock", CLOCK);
+
+  @Rule
+  public DebuggableTemporaryFolder projectRoot = new DebuggableTemporaryFolder();
+
+  private final List<WatchEvent<?>> events =
+      Collections.synchronizedList(Lists.<WatchEvent<?>>newArrayList());
+  private final EventBus eventBus = new EventBus("watchman test");
+  private final BuckEventBus buckEventBus = new BuckEventBus(new FakeClock(0), new BuildId());
+  @Nullable
+  private CookieReporter cookieReporter;
+
+  public WatchmanWatcherTest() {
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void listen(WatchEvent<?> event) {
+            events.add(event);
+          }
+        });
+  }
+
   @After
-  public void cleanUp() {
+  public void cleanUp() throws InterruptedException {
     // Clear interrupted state so it doesn't affect any other test.
     Thread.interrupted();
+    if (cookieReporter != null) {
+      cookieReporter.shutDown();
+    }
   }
 
   @Test
   public void whenFilesListIsEmptyThenNoEventsAreGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{",
-        "\"version\": \"2.9.2\",",
-        "\"clock\": \"c:1386170113:26390:5:50273\",",
-        "\"is_fresh_instance\": false,",
-        "\"files\": []",
-        "}");
-    EventBus eventBus = createStrictMock(EventBus.class);
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(changes(false));
+    watcher.postEvents(buckEventBus);
+    assertEquals(ImmutableList.of(), events);
   }
 
   @Test
   public void whenNameThenModifyEventIsGenerated() throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\"",
-            "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(changes(false, ImmutableMap.of("name", "foo/bar/baz")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be modify event.",
         StandardWatchEventKinds.ENTRY_MODIFY,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
     assertEquals("Path should match watchman output.",
         "foo/bar/baz",
-        eventCapture.getValue().context().toString());
+        events.get(0).context().toString());
   }
 
   @Test
   public void whenNewIsTrueThenCreateEventIsGenerated() throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\",",
-                "\"new\": true",
-            "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(
+        changes(false, ImmutableMap.of("name", "foo/bar/baz", "exists", true, "new", true)));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be create event.",
         StandardWatchEventKinds.ENTRY_CREATE,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
 
   @Test
   public void whenExistsIsFalseThenDeleteEventIsGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\",",
-                "\"exists\": false",
-            "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(
+        changes(false, ImmutableMap.of("name", "foo/bar/baz", "exists", false)));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be delete event.",
         StandardWatchEventKinds.ENTRY_DELETE,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
 
   @Test
   public void whenNewAndNotExistsThenDeleteEventIsGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\",",
-                "\"new\": true,",
-                "\"exists\": false",
-             "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(
+        changes(false, ImmutableMap.of("name", "foo/bar/baz", "exists", false, "new", true)));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be delete event.",
         StandardWatchEventKinds.ENTRY_DELETE,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
 
   @Test
   public void whenMultipleFilesThenMultipleEventsGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\"",
-            "},",
-            "{",
-                "\"name\": \"foo/bar/boz\"",
-            "}",
-        "]}");
-    EventBus eventBus = createStrictMock(EventBus.class);
-    Capture<WatchEvent<Path>> firstEvent = newCapture();
-    Capture<WatchEvent<Path>> secondEvent = newCapture();
-    eventBus.post(capture(firstEvent));
-    eventBus.post(capture(secondEvent));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(
+        changes(
+            false,
+            ImmutableMap.of("name", "foo/bar/baz"),
+            ImmutableMap.of("name", "foo/bar/boz")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(2, events.size());
     assertEquals("Path should match watchman output.",
         "foo/bar/baz",
-        firstEvent.getValue().context().toString());
+        events.get(0).context().toString());
     assertEquals("Path should match watchman output.",
         "foo/bar/boz",
-        secondEvent.getValue().context().toString());
+        events.get(1).context().toString());
   }
 
   @Test
-  public void whenTooManyChangesThenOverflowEventGenerated()
+  public void changesPushedBetweenCommandsArePostedByTheNextCommand()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-            "{",
-                "\"name\": \"foo/bar/baz\"",
-            "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createProcessMock(watchmanOutput);
-    process.destroy();
-    expectLastCall();
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
+    final FakeWatchmanProcess process = new FakeWatchmanProcess();
+    final int[] processesStarted = {0};
+    WatchmanWatcher watcher = new WatchmanWatcher(
+        new Supplier<Process>() {
+          @Override
+          public Process get() {
+            processesStarted[0]++;
+            return process;
+          }
+        },
         eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper(),
-        -1 /* overflow */,
-        10000 /* timeout */);
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+        200 /* overflow */,
+        10000 /* timeout */,
+        "[\"subscribe\"]",
+        projectRoot.getRoot().toPath());
+    reportCookies(process);
+    subscribe(watcher, process);
+    process.send(changes(false, ImmutableMap.of("name", "foo")));
+    watcher.postEvents(buckEventBus);
+    process.send(changes(false, ImmutableMap.of("name", "bar")));
+    process.send(changes(false, ImmutableMap.of("name", "baz")));
+    watcher.postEvents(buckEventBus);
+
+    // Syncing with Watchman doesn't take another client.
+    assertEquals(1, processesStarted[0]);
+    assertEquals("[\"subscribe\"]", process.getCommand());
+    assertEquals(3, events.size());
+    assertEquals(Paths.get("foo"), events.get(0).context());
+    assertEquals(Paths.get("bar"), events.get(1).context());
+    assertEquals(Paths.get("baz"), events.get(2).context());
+  }
+
+  @Test
+  public void changesNotYetPushedWhenPostEventsStartsArePosted()
+      throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+
+    // "foo" changed before postEvents started, but Watchman only pushes it with the cookie.
+    cookieReporter.pushBeforeNextCookie(changes(false, ImmutableMap.of("name", "foo")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
+    assertEquals(Paths.get("foo"), events.get(0).context());
+
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
+  }
+
+  @Test
+  public void cookiesAreNotPosted() throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process, 1 /* overflow */);
+    subscribe(watcher, process);
+    process.send(
+        changes(
+            false,
+            ImmutableMap.of("name", WatchmanWatcher.COOKIE_PREFIX + "other-buckd-0", "new", true),
+            ImmutableMap.of("name", "foo"),
+            ImmutableMap.of(
+                "name", WatchmanWatcher.COOKIE_PREFIX + "other-buckd-0",
+                "exists", false)));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
+    assertEquals(Paths.get("foo"), events.get(0).context());
+    assertEquals(0, projectRoot.getRoot().list().length);
+  }
+
+  @Test
+  public void whenTheCookieIsNotReportedInTimeThenOverflowEventGenerated()
+      throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = new WatchmanWatcher(
+        Suppliers.<Process>ofInstance(process),
+        eventBus,
+        200 /* overflow */,
+        10 /* timeout */,
+        "" /* subscribeCommand */,
+        projectRoot.getRoot().toPath());
+    process.send(SUBSCRIBED);
+    process.send(changes(false, ImmutableMap.of("name", "foo")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
+    assertEquals(StandardWatchEventKinds.OVERFLOW, events.get(0).kind());
+    assertEquals(0, projectRoot.getRoot().list().length);
+  }
+
+  @Test
+  public void whenTooManyChangesThenOverflowEventGenerated()
+      throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process, 1 /* overflow */);
+    subscribe(watcher, process);
+    process.send(
+        changes(
+            false,
+            ImmutableMap.of("name", "foo/bar/baz"),
+            ImmutableMap.of("name", "foo/bar/boz")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be overflow event.",
         StandardWatchEventKinds.OVERFLOW,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
+
+    // Once the caches have been flushed, changes are posted again.
+    process.send(changes(false, ImmutableMap.of("name", "foo/bar/baz")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(2, events.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_MODIFY, events.get(1).kind());
   }
 
   @Test
   public void whenWatchmanFailsThenOverflowEventGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = "";
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput, 1);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    process.exit(1, "unable to talk to your watchman");
     try {
-      watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-      fail("Should have thrown IOException.");
+      watcher.postEvents(buckEventBus);
+      fail("Should have thrown WatchmanWatcherException.");
     } catch (WatchmanWatcherException e) {
       assertTrue("Should be watchman error", e.getMessage().startsWith("Watchman failed"));
+      assertThat(e.getMessage(), Matchers.containsString("unable to talk to your watchman"));
     }
-    verify(eventBus, process);
+    assertEquals(1, events.size());
     assertEquals("Should be overflow event.",
         StandardWatchEventKinds.OVERFLOW,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
 
   @Test
-  public void whenWatchmanInterruptedThenOverflowEventGenerated()
+  public void whenSubscriptionEndsThenNextCallSubscribesAgainAndPostsOverflow()
       throws IOException, InterruptedException {
-    String watchmanOutput = "";
-    String message = "Boo!";
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput, new InterruptedException(message));
-    process.destroy();
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
+    final FakeWatchmanProcess first = new FakeWatchmanProcess();
+    final FakeWatchmanProcess second = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = new WatchmanWatcher(
+        new Supplier<Process>() {
+          private int processesStarted;
+
+          @Override
+          public Process get() {
+            return processesStarted++ == 0 ? first : second;
+          }
+        },
         eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
+        200 /* overflow */,
+        10000 /* timeout */,
+        "" /* subscribeCommand */,
+        projectRoot.getRoot().toPath());
+    reportCookies(first);
+    subscribe(watcher, first);
+    first.exit(0, "");
+    // The watcher notices that the client exited in the background.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (true) {
+      try {
+        watcher.postEvents(buckEventBus);
+      } catch (WatchmanWatcherException e) {
+        assertTrue("Should be watchman error", e.getMessage().startsWith("Watchman failed"));
+        break;
+      }
+      assertTrue("Should have thrown WatchmanWatcherException.", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+    assertTrue(first.isDestroyed());
+    assertEquals(1, events.size());
+
+    // Changes made while nobody was subscribed are lost, so the caches must be flushed again.
+    reportCookies(second);
+    subscribe(watcher, second);
+    assertEquals(2, events.size());
+    assertEquals(StandardWatchEventKinds.OVERFLOW, events.get(1).kind());
+  }
+
+  @Test
+  public void whenWatchmanInterruptedThenOverflowEventGenerated()
+      throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    Thread.currentThread().interrupt();
     try {
-      watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
+      watcher.postEvents(buckEventBus);
+      fail("Should have thrown InterruptedException.");
     } catch (InterruptedException e) {
-      assertEquals("Should be test interruption.", e.getMessage(), message);
+      // Expected.
     }
-    verify(eventBus, process);
     assertTrue(Thread.currentThread().isInterrupted());
+    assertTrue(process.isDestroyed());
+    assertEquals(1, events.size());
     assertEquals("Should be overflow event.",
         StandardWatchEventKinds.OVERFLOW,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
 
   @Test
   public void whenQueryResultContainsErrorThenHumanReadableExceptionThrown()
       throws IOException, InterruptedException {
     String watchmanError = "Watch does not exist.";
-    String watchmanOutput = Joiner.on('\n').join(
-        "{",
-        "\"version\": \"2.9.2\",",
-        "\"error\": \"" + watchmanError + "\"",
-        "}");
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(anyObject());
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    process.send(ImmutableMap.of("version", "3.1.0", "error", watchmanError));
     try {
-      watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-      fail("Should have thrown RuntimeException");
-    } catch (RuntimeException e) {
-      assertThat("Should contain watchman error.",
-          e.getMessage(),
-          Matchers.containsString(watchmanError));
+      watcher.postEvents(buckEventBus);
+      fail("Should have thrown WatchmanWatcherException.");
+    } catch (WatchmanWatcherException e) {
+      assertEquals(watchmanError, e.getMessage());
     }
-  }
-
-  @Test(expected = WatchmanWatcherException.class)
-  public void whenQueryResultContainsErrorThenOverflowEventGenerated()
-      throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{",
-        "\"version\": \"2.9.2\",",
-        "\"error\": \"Watch does not exist.\"",
-        "}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    try {
-      watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    } finally {
-      assertEquals("Should be overflow event.",
+    assertEquals(1, events.size());
+    assertEquals("Should be overflow event.",
         StandardWatchEventKinds.OVERFLOW,
-        eventCapture.getValue().kind());
-    }
+        events.get(0).kind());
   }
 
   @Test
-  public void whenWatchmanInstanceIsFreshAllCachesAreCleared()
-      throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{",
-        "\"version\": \"2.9.2\",",
-        "\"clock\": \"c:1386170113:26390:5:50273\",",
-        "\"is_fresh_instance\": true,",
-        "\"files\": []",
-        "}");
-
-    final Set<WatchEvent<?>> events = Sets.newHashSet();
-    EventBus bus = new EventBus("watchman test");
-    bus.register(
-        new Object() {
-          @Subscribe
-          public void listen(WatchEvent<?> event) {
-            events.add(event);
-          }
-        });
-    Process process = createWaitForProcessMock(watchmanOutput);
-    replay(process);
-    WatchmanWatcher watcher = createWatcher(
-        bus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper());
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-
-    verify(process);
-    boolean overflowSeen = false;
-    for (WatchEvent<?> event : events) {
-      overflowSeen |= event.kind().equals(StandardWatchEventKinds.OVERFLOW);
+  public void whenOutputIsNotBserThenExceptionThrown() throws IOException, InterruptedException {
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    process.sendRaw("{\"files\": []}".getBytes());
+    try {
+      watcher.postEvents(buckEventBus);
+      fail("Should have thrown WatchmanWatcherException.");
+    } catch (WatchmanWatcherException e) {
+      assertThat(e.getMessage(), Matchers.containsString("Invalid BSER header"));
     }
-    assertTrue(overflowSeen);
+    assertEquals(1, events.size());
+    assertEquals(StandardWatchEventKinds.OVERFLOW, events.get(0).kind());
   }
 
   @Test
-  public void whenParseTimesOutThenOverflowGenerated()
+  public void whenWatchmanInstanceIsFreshAllCachesAreCleared()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{",
-        "\"version\": \"2.9.2\",",
-        "\"clock\": \"c:1386170113:26390:5:50273\",",
-        "\"is_fresh_instance\": true,",
-        "\"files\": []",
-        "}");
-
-    final Set<WatchEvent<?>> events = Sets.newHashSet();
-    EventBus bus = new EventBus("watchman test");
-    bus.register(
-        new Object() {
-          @Subscribe
-          public void listen(WatchEvent<?> event) {
-            events.add(event);
-          }
-        });
-    Process process = createProcessMock(watchmanOutput);
-    process.destroy();
-    replay(process);
-    WatchmanWatcher watcher = createWatcher(
-        bus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper(),
-        200 /* overflow */,
-        -1 /* timeout */);
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    assertEquals(0, events.size());
 
-    verify(process);
-    boolean overflowSeen = false;
-    for (WatchEvent<?> event : events) {
-      overflowSeen |= event.kind().equals(StandardWatchEventKinds.OVERFLOW);
-    }
-    assertTrue(overflowSeen);
+    process.send(changes(true, ImmutableMap.of("name", "foo/bar/baz")));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
+    assertEquals("Should be overflow event.",
+        StandardWatchEventKinds.OVERFLOW,
+        events.get(0).kind());
   }
 
   @Test
-  public void watchmanQueryWithRepoPathNeedingEscapingFormatsToCorrectJson() {
-    String query = WatchmanWatcher.createQuery(
+  public void watchmanSubscriptionWithRepoPathNeedingEscapingFormatsToCorrectJson() {
+    String command = WatchmanWatcher.createSubscribeCommand(
         new ObjectMapper(),
         "/path/to/\"repo\"",
         "uuid",
         Lists.<Path>newArrayList(),
         Lists.<String>newArrayList());
     assertEquals(
-        "[\"query\",\"/path/to/\\\"repo\\\"\",{\"since\":\"n:buckduuid\"," +
+        "[\"subscribe\",\"/path/to/\\\"repo\\\"\",\"buckduuid\",{" +
         "\"expression\":[\"not\",[\"anyof\"," +
         "[\"type\",\"d\"]]]," +
         "\"empty_on_fresh_instance\":true,\"fields\":[\"name\",\"exists\",\"new\"]}]",
-        query);
+        command);
   }
 
   @Test
-  public void watchmanQueryWithExcludePathsAddsExpressionToQuery() {
-    String query = WatchmanWatcher.createQuery(
+  public void watchmanSubscriptionWithExcludePathsAddsExpressionToQuery() {
+    String command = WatchmanWatcher.createSubscribeCommand(
         new ObjectMapper(),
         "/path/to/repo",
         "uuid",
         Lists.newArrayList(Paths.get("foo"), Paths.get("bar/baz")),
         Lists.<String>newArrayList());
     assertEquals(
-        "[\"query\",\"/path/to/repo\",{\"since\":\"n:buckduuid\"," +
+        "[\"subscribe\",\"/path/to/repo\",\"buckduuid\",{" +
         "\"expression\":[\"not\",[\"anyof\"," +
         "[\"type\",\"d\"]," +
         "[\"match\",\"foo/*\",\"wholename\"]," +
         "[\"match\",\"bar/baz/*\",\"wholename\"]]]," +
         "\"empty_on_fresh_instance\":true,\"fields\":[\"name\",\"exists\",\"new\"]}]",
-        query);
+        command);
   }
 
   @Test
-  public void watchmanQueryWithExcludeGlobsAddsExpressionToQuery() {
-    String query = WatchmanWatcher.createQuery(
+  public void watchmanSubscriptionWithExcludeGlobsAddsExpressionToQuery() {
+    String command = WatchmanWatcher.createSubscribeCommand(
         new ObjectMapper(),
         "/path/to/repo",
         "uuid",
         Lists.<Path>newArrayList(),
         Lists.newArrayList("*/project.pbxproj", "buck-out/*"));
     assertEquals(
-        "[\"query\",\"/path/to/repo\",{\"since\":\"n:buckduuid\"," +
+        "[\"subscribe\",\"/path/to/repo\",\"buckduuid\",{" +
         "\"expression\":[\"not\",[\"anyof\"," +
         "[\"type\",\"d\"]," +
         "[\"match\",\"*/project.pbxproj\",\"wholename\"]," +
         "[\"match\",\"buck-out/*\",\"wholename\"]]]," +
         "\"empty_on_fresh_instance\":true,\"fields\":[\"name\",\"exists\",\"new\"]}]",
-        query);
+        command);
   }
 
   @Test
   public void whenWatchmanProducesAWarningThenOverflowEventGenerated()
       throws IOException, InterruptedException {
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-        "{",
-        "\"warning\": \"message\"",
-        "}",
-        "]}");
-    Capture<WatchEvent<Path>> eventCapture = newCapture();
-    EventBus eventBus = createStrictMock(EventBus.class);
-    eventBus.post(capture(eventCapture));
-    Process process = createProcessMock(watchmanOutput);
-    expect(process.waitFor()).andReturn(0);
-    expectLastCall();
-    replay(eventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper(),
-        10000 /* overflow */,
-        10000 /* timeout */);
-    watcher.postEvents(new BuckEventBus(new FakeClock(0), new BuildId()));
-    verify(eventBus, process);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(ImmutableMap.of("warning", "message"));
+    watcher.postEvents(buckEventBus);
+    assertEquals(1, events.size());
     assertEquals("Should be overflow event.",
         StandardWatchEventKinds.OVERFLOW,
-        eventCapture.getValue().kind());
+        events.get(0).kind());
   }
+
   @Test
   public void whenWatchmanProducesAWarningThenConsoleEventGenerated()
       throws IOException, InterruptedException {
     String message = "Find me!";
-    String watchmanOutput = Joiner.on('\n').join(
-        "{\"files\": [",
-        "{",
-        "\"warning\": \"" + message + "\"",
-        "}",
-        "]}");
     Capture<ConsoleEvent> eventCapture = newCapture();
-    EventBus eventBus = new EventBus("watchman test");
-    BuckEventBus buckEventBus = createStrictMock(BuckEventBus.class);
-    buckEventBus.post(capture(eventCapture));
-    Process process = createProcessMock(watchmanOutput);
-    expect(process.waitFor()).andReturn(0);
-    expectLastCall();
-    replay(buckEventBus, process);
-    WatchmanWatcher watcher = createWatcher(
-        eventBus,
-        process,
-        new IncrementingFakeClock(),
-        new ObjectMapper(),
-        10000 /* overflow */,
-        10000 /* timeout */);
-    watcher.postEvents(buckEventBus);
-    verify(buckEventBus, process);
+    BuckEventBus mockBuckEventBus = createStrictMock(BuckEventBus.class);
+    mockBuckEventBus.post(capture(eventCapture));
+    replay(mockBuckEventBus);
+    FakeWatchmanProcess process = new FakeWatchmanProcess();
+    WatchmanWatcher watcher = createWatcher(process);
+    subscribe(watcher, process);
+    process.send(ImmutableMap.of("warning", message));
+    watcher.postEvents(mockBuckEventBus);
+    verify(mockBuckEventBus);
     assertThat(eventCapture.getValue().getMessage(), Matchers.containsString(message));
   }
 
-  private WatchmanWatcher createWatcher(
-      EventBus eventBus,
-      Process process,
-      Clock clock,
-      ObjectMapper objectMapper) {
-    return createWatcher(
-        eventBus,
-        process,
-        clock,
-        objectMapper,
-        200 /* overflow */,
-        10000 /* timeout */);
+  private WatchmanWatcher createWatcher(FakeWatchmanProcess process) {
+    return createWatcher(process, 200 /* overflow */);
   }
 
-  private WatchmanWatcher createWatcher(EventBus eventBus,
-                                        Process process,
-                                        Clock clock,
-                                        ObjectMapper objectMapper,
-                                        int overflow,
-                                        long timeoutMillis) {
+  private WatchmanWatcher createWatcher(FakeWatchmanProcess process, int overflow) {
+    reportCookies(process);
     return new WatchmanWatcher(
-        Suppliers.ofInstance(process),
+        Suppliers.<Process>ofInstance(process),
         eventBus,
-        clock,
-        objectMapper,
         overflow,
-        timeoutMillis,
-        "" /* query */);
+        10000 /* timeout */,
+        "" /* subscribeCommand */,
+        projectRoot.getRoot().toPath());
   }
 
-  private Process createProcessMock(String output) {
-    Process process = createMock(Process.class);
-    expect(process.getInputStream()).andReturn(
-        new ByteArrayInputStream(output.getBytes(Charsets.US_ASCII)));
-    expect(process.getOutputStream()).andReturn(
-        new ByteArrayOutputStream()).times(2);
-    return process;
+  /** Reports the cookies created in the project through {@code process} from now on. */
+  private void reportCookies(FakeWatchmanProcess process) {
+    if (cookieReporter == null) {
+      cookieReporter = new CookieReporter(projectRoot.getRoot().toPath());
+      cookieReporter.start();
+    }
+    cookieReporter.process = process;
   }
 
-  private Process createWaitForProcessMock(String output) {
-    return createWaitForProcessMock(output, 0);
+  /**
+   * Subscribes {@code watcher}, with {@code process} accepting the subscription and sending the
+   * empty changes from a fresh instance that always come first.
+   */
+  private void subscribe(WatchmanWatcher watcher, FakeWatchmanProcess process)
+      throws IOException, InterruptedException {
+    process.send(SUBSCRIBED);
+    process.send(changes(true));
+    watcher.postEvents(buckEventBus);
   }
 
-  private Process createWaitForProcessMock(String output, Throwable t) throws InterruptedException {
-    Process process = createProcessMock(output);
-    expect(process.waitFor()).andThrow(Preconditions.checkNotNull(t));
-    return process;
+  @SafeVarargs
+  private static ImmutableMap<String, Object> changes(
+      boolean isFreshInstance,
+      Map<String, ?>... files) {
+    return ImmutableMap.<String, Object>of(
+        "subscription", "buckduuid",
+        "clock", CLOCK,
+        "is_fresh_instance", isFreshInstance,
+        "files", ImmutableList.copyOf(files));
   }
 
-  private Process createWaitForProcessMock(String output, int exitCode) {
-    Process process = createProcessMock(output);
-    if (exitCode != 0) {
-      expect(process.getErrorStream()).andReturn(
-          new ByteArrayInputStream("".getBytes(Charsets.US_ASCII)));
+  /**
+   * Plays Watchman's part in syncing: reports each cookie created in the project root through
+   * the current process, after any changes it has been asked to push first.
+   */
+  private static class CookieReporter extends Thread {
+    private final Path root;
+    private final Set<Path> reported = Sets.newHashSet();
+    private final Queue<Object> pushedBeforeNextCookie = new ConcurrentLinkedQueue<>();
+    @Nullable
+    private volatile FakeWatchmanProcess process;
+    private volatile boolean isStopped;
+
+    CookieReporter(Path root) {
+      super("Cookie reporter");
+      this.root = root;
+      setDaemon(true);
     }
-    try {
-      expect(process.waitFor()).andReturn(exitCode);
-    } catch (InterruptedException e) {
-      fail("Should not throw exception.");
+
+    void pushBeforeNextCookie(Object pdu) {
+      pushedBeforeNextCookie.add(pdu);
+    }
+
+    void shutDown() throws InterruptedException {
+      isStopped = true;
+      join();
+    }
+
+    @Override
+    public void run() {
+      while (!isStopped) {
+        try (DirectoryStream<Path> cookies =
+                 Files.newDirectoryStream(root, WatchmanWatcher.COOKIE_PREFIX + "*")) {
+          for (Path cookie : cookies) {
+            if (reported.add(cookie)) {
+              report(cookie.getFileName().toString());
+            }
+          }
+        } catch (IOException e) {
+          // The process has exited, which the watcher finds out for itself.
+        }
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    private void report(String cookie) throws IOException {
+      FakeWatchmanProcess current = Preconditions.checkNotNull(process);
+      Object pdu;
+      while ((pdu = pushedBeforeNextCookie.poll()) != null) {
+        current.send(pdu);
+      }
+      current.send(
+          changes(false, ImmutableMap.of("name", cookie, "exists", true, "new", true)));
     }
-    return process;
   }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+public class LimitedThreadPoolExecutorTest {
+
+  @Test
+  public void queuedWorkRunsInPriorityOrder() throws Exception {
+    LimitedThreadPoolExecutor executor = new LimitedThreadPoolExecutor(
+        Executors.defaultThreadFactory(),
+        new ConcurrencyLimit(/* threadLimit */ 1, /* loadLimit */ Double.POSITIVE_INFINITY));
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    // Keep the only thread busy until everything else is queued.
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              blocked.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    executor.execute(record(order, "unprioritized"));
+    PrioritizedRunnable.withPriority(executor, 1).execute(record(order, "low"));
+    PrioritizedRunnable.withPriority(executor, 1).execute(record(order, "also low"));
+    PrioritizedRunnable.withPriority(executor, 5).execute(record(order, "high"));
+    blocked.countDown();
+    MoreExecutors.shutdown(executor);
+
+    assertEquals(ImmutableList.of("high", "low", "also low", "unprioritized"), order);
+  }
+
+  @Test
+  public void withPriorityWrapsWorkForAnyExecutor() {
+    final List<Runnable> submitted = Lists.newArrayList();
+    Executor executor = PrioritizedRunnable.withPriority(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            submitted.add(command);
+          }
+        },
+        3);
+    executor.execute(record(Lists.<String>newArrayList(), "work"));
+    assertEquals(3, ((PrioritizedRunnable) submitted.get(0)).getPriority());
+  }
+
+  private static Runnable record(final List<String> order, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+}
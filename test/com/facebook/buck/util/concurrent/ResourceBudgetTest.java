@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ResourceBudgetTest {
+
+  private static final ResourceAmounts LIMIT = ResourceAmounts.of(4, 1000);
+
+  @Test(timeout = 10000)
+  public void workWaitsUntilItFitsWithinTheLimit() throws Exception {
+    ResourceBudget budget = new ResourceBudget(LIMIT);
+    ResourceAmounts large = ResourceAmounts.of(1, 600);
+    budget.acquire(large);
+
+    CountDownLatch admitted = acquireInBackground(budget, large);
+    assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+
+    budget.release(large);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void workLargerThanTheLimitRunsOnItsOwn() throws Exception {
+    ResourceBudget budget = new ResourceBudget(LIMIT);
+    ResourceAmounts small = ResourceAmounts.of(1, 10);
+    budget.acquire(small);
+
+    CountDownLatch admitted = acquireInBackground(budget, ResourceAmounts.of(16, 5000));
+    assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+
+    budget.release(small);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void smallWorkDoesNotJumpAheadOfWaitingWork() throws Exception {
+    ResourceBudget budget = new ResourceBudget(LIMIT);
+    ResourceAmounts small = ResourceAmounts.of(1, 10);
+    budget.acquire(small);
+
+    CountDownLatch largeAdmitted = acquireInBackground(budget, LIMIT);
+    assertFalse(largeAdmitted.await(100, TimeUnit.MILLISECONDS));
+    CountDownLatch smallAdmitted = acquireInBackground(budget, small);
+    assertFalse(smallAdmitted.await(100, TimeUnit.MILLISECONDS));
+
+    budget.release(small);
+    assertTrue(largeAdmitted.await(5, TimeUnit.SECONDS));
+    assertFalse(smallAdmitted.await(100, TimeUnit.MILLISECONDS));
+
+    budget.release(LIMIT);
+    assertTrue(smallAdmitted.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void tryAcquireOnlyTakesWhatFitsNow() {
+    ResourceBudget budget = new ResourceBudget(LIMIT);
+    ResourceAmounts large = ResourceAmounts.of(1, 600);
+    assertTrue(budget.tryAcquire(large));
+    assertFalse(budget.tryAcquire(large));
+
+    budget.release(large);
+    assertTrue(budget.tryAcquire(large));
+  }
+
+  @Test(timeout = 10000)
+  public void workNeedingNothingIsNeverHeldUp() throws Exception {
+    ResourceBudget budget = new ResourceBudget(LIMIT);
+    budget.acquire(LIMIT);
+    budget.acquire(ResourceAmounts.ZERO);
+    budget.release(ResourceAmounts.ZERO);
+  }
+
+  private static CountDownLatch acquireInBackground(
+      final ResourceBudget budget,
+      final ResourceAmounts amounts) {
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              budget.acquire(amounts);
+              admitted.countDown();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    thread.setDaemon(true);
+    thread.start();
+    return admitted;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class RawZipFileTest {
+
+  private static final byte[] DEFLATED = Strings.repeat("deflated ", 1000).getBytes(UTF_8);
+  private static final byte[] STORED = "stored".getBytes(UTF_8);
+  // Zips can't hold times before 1980 without an extra field.
+  private static final long TIME = 1420070400000L;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void entriesAreCopiedWithoutBeingDeflatedAgain() throws IOException {
+    File input = writeSampleZip();
+    File output = tmp.newFile("output.zip");
+
+    try (
+        RawZipFile zip = RawZipFile.open(input.toPath());
+        CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output)
+    ) {
+      assertEquals(
+          ImmutableList.of("dir/", "deflated", "stored"),
+          getNames(zip.getEntries()));
+      for (RawZipFile.Entry entry : zip.getEntries()) {
+        out.putRawEntry(zip, entry);
+      }
+    }
+
+    assertSameEntries(input, output);
+    try (ZipFile in = new ZipFile(input); ZipFile out = new ZipFile(output)) {
+      // The entry was deflated at the fastest level, so deflating it again would shrink it.
+      assertEquals(
+          in.getEntry("deflated").getCompressedSize(),
+          out.getEntry("deflated").getCompressedSize());
+    }
+  }
+
+  @Test
+  public void entriesAreInflatedForStreamsWhichCannotCopyThemAsTheyAre() throws IOException {
+    File input = writeSampleZip();
+    File output = tmp.newFile("output.zip");
+
+    try (
+        RawZipFile zip = RawZipFile.open(input.toPath());
+        CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output, OVERWRITE_EXISTING)
+    ) {
+      for (RawZipFile.Entry entry : zip.getEntries()) {
+        out.putRawEntry(zip, entry);
+      }
+    }
+
+    assertSameEntries(input, output);
+  }
+
+  private File writeSampleZip() throws IOException {
+    File zip = tmp.newFile("input.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.setLevel(Deflater.BEST_SPEED);
+
+      ZipEntry dir = new ZipEntry("dir/");
+      dir.setTime(TIME);
+      out.putNextEntry(dir);
+
+      ZipEntry deflated = new ZipEntry("deflated");
+      deflated.setTime(TIME);
+      out.putNextEntry(deflated);
+      out.write(DEFLATED);
+
+      CRC32 crc = new CRC32();
+      crc.update(STORED);
+      ZipEntry stored = new ZipEntry("stored");
+      stored.setTime(TIME);
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(STORED.length);
+      stored.setCrc(crc.getValue());
+      out.putNextEntry(stored);
+      out.write(STORED);
+    }
+    return zip;
+  }
+
+  private static List<String> getNames(List<RawZipFile.Entry> entries) {
+    List<String> names = Lists.newArrayList();
+    for (RawZipFile.Entry entry : entries) {
+      names.add(entry.getName());
+    }
+    return names;
+  }
+
+  private static void assertSameEntries(File expected, File actual) throws IOException {
+    try (ZipFile in = new ZipFile(expected); ZipFile out = new ZipFile(actual)) {
+      List<? extends ZipEntry> expectedEntries = Collections.list(in.entries());
+      List<? extends ZipEntry> actualEntries = Collections.list(out.entries());
+      assertEquals(expectedEntries.size(), actualEntries.size());
+      for (int i = 0; i < expectedEntries.size(); i++) {
+        ZipEntry expectedEntry = expectedEntries.get(i);
+        ZipEntry actualEntry = actualEntries.get(i);
+        assertEquals(expectedEntry.getName(), actualEntry.getName());
+        assertEquals(expectedEntry.getMethod(), actualEntry.getMethod());
+        assertEquals(expectedEntry.getTime(), actualEntry.getTime());
+        assertEquals(expectedEntry.getCrc(), actualEntry.getCrc());
+        try (InputStream expectedData = in.getInputStream(expectedEntry);
+             InputStream actualData = out.getInputStream(actualEntry)) {
+          assertArrayEquals(
+              ByteStreams.toByteArray(expectedData),
+              ByteStreams.toByteArray(actualData));
+        }
+      }
+    }
+  }
+}
@@ -33,18 +33,25 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.MorePosixFilePermissions;
 import com.facebook.buck.testutil.Zip;
+import com.facebook.buck.timing.DefaultClock;
+import com.facebook.buck.util.concurrent.ResourceAmounts;
+import com.facebook.buck.util.concurrent.ResourceBudget;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -57,6 +64,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -488,4 +496,103 @@ public class ZipOutputStreamTest {
     }
   }
 
+  @Test
+  public void deflatingEntriesInParallelGivesTheSameZipAsDeflatingThemInOrder()
+      throws IOException {
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      byte[] expected = writeSampleZip(MoreExecutors.newDirectExecutorService());
+      assertArrayEquals(expected, writeSampleZip(executorService));
+
+      // Make sure the output is valid.
+      try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(expected))) {
+        for (int i = 0; i < 50; i++) {
+          assertEquals("entry-" + i, in.getNextEntry().getName());
+        }
+        assertEquals("large", in.getNextEntry().getName());
+        assertEquals(9 * 1024 * 1024, ByteStreams.toByteArray(in).length);
+        assertEquals("stored", in.getNextEntry().getName());
+        assertNull(in.getNextEntry());
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void entriesAreDeflatedAsTheyAreWrittenWhileTheSharedMemoryBudgetIsSpent()
+      throws IOException, InterruptedException {
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    ResourceAmounts limit = ResourceAmounts.of(0, 64 * 1024);
+    ResourceBudget memoryBudget = new ResourceBudget(limit);
+    try {
+      byte[] expected = writeSampleZip(MoreExecutors.newDirectExecutorService());
+
+      // As if other zips being written held all of it.
+      memoryBudget.acquire(limit);
+      assertArrayEquals(expected, writeSampleZip(executorService, memoryBudget));
+      memoryBudget.release(limit);
+
+      assertArrayEquals(expected, writeSampleZip(executorService, memoryBudget));
+      // Everything the zip held was given back when it was closed.
+      assertTrue(memoryBudget.tryAcquire(limit));
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  private byte[] writeSampleZip(ListeningExecutorService executorService) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeSampleZip(ZipOutputStreams.newOutputStream(bytes, APPEND_TO_ZIP, executorService));
+    return bytes.toByteArray();
+  }
+
+  private byte[] writeSampleZip(
+      ListeningExecutorService executorService,
+      ResourceBudget memoryBudget) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeSampleZip(
+        new AppendingZipOutputStream(
+            new DefaultClock(),
+            bytes,
+            /* throwExceptionsOnDuplicate */ false,
+            executorService,
+            memoryBudget));
+    return bytes.toByteArray();
+  }
+
+  private void writeSampleZip(CustomZipOutputStream zip) throws IOException {
+    String packageName = getClass().getPackage().getName().replace(".", "/");
+    byte[] input = Resources.toByteArray(
+        Resources.getResource(packageName + "/macbeth.properties"));
+
+    try (CustomZipOutputStream out = zip) {
+      for (int i = 0; i < 50; i++) {
+        CustomZipEntry entry = new CustomZipEntry("entry-" + i);
+        entry.setTime(0);
+        entry.setCompressionLevel(i % 9 + 1);
+        out.putNextEntry(entry);
+        out.write(input, 0, input.length * i / 50);
+      }
+
+      // Too large to hold in memory, so it's deflated as it's written.
+      CustomZipEntry large = new CustomZipEntry("large");
+      large.setTime(0);
+      out.putNextEntry(large);
+      for (int i = 0; i < 9 * 1024; i++) {
+        out.write(input, i % 1024, 1024);
+      }
+
+      CustomZipEntry stored = new CustomZipEntry("stored");
+      stored.setTime(0);
+      stored.setCompressionLevel(NO_COMPRESSION);
+      stored.setSize(input.length);
+      stored.setCompressedSize(input.length);
+      stored.setCrc(Hashing.crc32().hashBytes(input).padToLong());
+      out.putNextEntry(stored);
+      out.write(input);
+    }
+  }
 }